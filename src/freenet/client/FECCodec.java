@@ -1,5 +1,7 @@
 package freenet.client;
 
+import java.nio.ByteBuffer;
+
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.Metadata.SplitfileAlgorithm;
 
@@ -42,12 +44,26 @@ public abstract class FECCodec {
      * @param checkBlocksPresent Indicates which check blocks have already been encoded. */
     public abstract void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
             int blockLength);
+    
+    /** Execute a FEC decode on views of existing storage rather than separate arrays, e.g. 
+     * slices of one array holding a whole segment. Each block is the blockLength bytes 
+     * starting at the buffer's position; positions and limits are not changed. Otherwise the
+     * same as decode(byte[][], ...). Buffers which are not backed by an accessible array, such as
+     * direct or memory-mapped buffers, work but may be copied. */
+    public abstract void decode(ByteBuffer[] dataBlocks, ByteBuffer[] checkBlocks, 
+            boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength);
+    
+    /** Execute a FEC encode on views of existing storage. See decode(ByteBuffer[], ...). */
+    public abstract void encode(ByteBuffer[] dataBlocks, ByteBuffer[] checkBlocks, 
+            boolean[] checkBlocksPresent, int blockLength);
 
     public static FECCodec getInstance(SplitfileAlgorithm splitfileType) {
         switch(splitfileType) {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
+            if(Boolean.getBoolean(StripedFECCodec.PROPERTY))
+                return new StripedFECCodec();
             return new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
@@ -1,6 +1,7 @@
 package freenet.client;
 
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 
 import com.onionnetworks.fec.PureCode;
 import com.onionnetworks.util.Buffer;
@@ -14,7 +15,6 @@ public class OnionFECCodec extends FECCodec {
     public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
         int[] blockNumbers = new int[k];
         Buffer[] buffers = new Buffer[k];
         // The data blocks are already in the correct positions in dataBlocks.
@@ -39,10 +39,23 @@ public class OnionFECCodec extends FECCodec {
         }
         
         // Now do the decode.
-        codec.decode(buffers, blockNumbers);
+        decode(k, n, buffers, blockNumbers);
         // The data blocks are now decoded and in the correct locations.
     }
 
+    /** Decode in place: on entry buffers holds k blocks, where blockNumbers gives the number of
+     * each, with any data blocks already in their own slots. On exit buffers holds the data 
+     * blocks. Same as PureCode.decode(). */
+    protected void decode(int k, int n, Buffer[] buffers, int[] blockNumbers) {
+        getCodec(k, n).decode(buffers, blockNumbers);
+    }
+    
+    /** Encode the check blocks numbered in toEncode from the k data blocks. Same as 
+     * PureCode.encode(). */
+    protected void encode(int k, int n, Buffer[] data, Buffer[] check, int[] toEncode) {
+        getCodec(k, n).encode(data, check, toEncode);
+    }
+
     /** Cache of PureCode by {k,n}. The memory usage is relatively small so we account for it in 
      * the FEC jobs, see maxMemoryOverheadDecode() etc. */
     private synchronized static PureCode getCodec(int k, int n) {
@@ -114,7 +127,6 @@ public class OnionFECCodec extends FECCodec {
             int blockLength) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
         Buffer[] data = new Buffer[dataBlocks.length];
         for(int i=0;i<data.length;i++) {
             if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
@@ -136,7 +148,95 @@ public class OnionFECCodec extends FECCodec {
             check[x] = new Buffer(checkBlocks[i]);
             toEncode[x++] = i+dataBlocks.length;
         }
-        codec.encode(data, check, toEncode);
+        encode(k, n, data, check, toEncode);
+    }
+
+    @Override
+    public void decode(ByteBuffer[] dataBlocks, ByteBuffer[] checkBlocks, boolean[] dataBlocksPresent, 
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        int[] blockNumbers = new int[k];
+        Buffer[] buffers = new Buffer[k];
+        // The data blocks are already in the correct positions in dataBlocks.
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i].remaining() < blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) continue;
+            buffers[i] = wrap(dataBlocks[i], blockLength, true);
+            blockNumbers[i] = i;
+        }
+        boolean[] decoded = new boolean[k];
+        int target = 0;
+        // Fill in the gaps with the check blocks.
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].remaining() < blockLength) throw new IllegalArgumentException();
+            while(target < dataBlocks.length && buffers[target] != null) target++; // Scan for slot.
+            if(target >= dataBlocks.length) continue;
+            // Provide the data from the check block, in the slot for the relevant data block.
+            ByteBuffer src = checkBlocks[i].duplicate();
+            src.limit(src.position() + blockLength);
+            dataBlocks[target].duplicate().put(src);
+            buffers[target] = wrap(dataBlocks[target], blockLength, true);
+            blockNumbers[target] = i + dataBlocks.length;
+            decoded[target] = true;
+        }
+        
+        // Now do the decode.
+        decode(k, n, buffers, blockNumbers);
+        for(int i=0;i<k;i++)
+            if(decoded[i]) unwrap(buffers[i], dataBlocks[i]);
+    }
+
+    @Override
+    public void encode(ByteBuffer[] dataBlocks, ByteBuffer[] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        Buffer[] data = new Buffer[dataBlocks.length];
+        for(int i=0;i<data.length;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].remaining() < blockLength)
+                throw new IllegalArgumentException();
+            data[i] = wrap(dataBlocks[i], blockLength, true);
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].remaining() < blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        Buffer[] check = new Buffer[mustEncode];
+        int[] toEncode = new int[mustEncode];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            check[x] = wrap(checkBlocks[i], blockLength, false);
+            toEncode[x++] = i+dataBlocks.length;
+        }
+        encode(k, n, data, check, toEncode);
+        x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            unwrap(check[x++], checkBlocks[i]);
+        }
+    }
+    
+    /** The codec only works on arrays. Use the buffer's own array if it has one, otherwise copy
+     * the block, so a memory-mapped or direct buffer costs an extra copy rather than saving one.
+     * @param read True if the codec will read the block, false if it will only write it. */
+    private static Buffer wrap(ByteBuffer block, int blockLength, boolean read) {
+        if(block.hasArray())
+            return new Buffer(block.array(), block.arrayOffset() + block.position(), blockLength);
+        byte[] buf = new byte[blockLength];
+        if(read) block.duplicate().get(buf);
+        return new Buffer(buf);
+    }
+    
+    /** Copy back a block written by the codec, if wrap() had to copy it. */
+    private static void unwrap(Buffer buffer, ByteBuffer block) {
+        if(block.hasArray()) return;
+        block.duplicate().put(buffer.b, buffer.off, buffer.len);
     }
 
     @Override
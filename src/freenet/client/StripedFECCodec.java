@@ -0,0 +1,377 @@
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.LRUMap;
+import freenet.support.io.NativeThread;
+
+/** Pure Java Reed-Solomon engine producing exactly the same check blocks as PureCode, so it can
+ * decode existing splitfiles and its output can be decoded by older nodes.
+ *
+ * PureCode uses the systematic code from Luigi Rizzo's fec.c: the encoding matrix is the
+ * Vandermonde matrix on the points 0, 1, a, a^2, ... of GF(2^8) (polynomial 0x11d), multiplied
+ * by the inverse of its top k rows. This is unique, so we can build it with ordinary Gaussian
+ * elimination.
+ *
+ * PureCode multiplies one byte at a time and makes one pass over the whole block per
+ * coefficient, on one thread. Here each output is computed a stripe at a time, so the stripes
+ * of the inputs stay in cache while all their coefficients are applied, and the stripes are
+ * shared between the calling thread and a small pool of low priority threads. Each multiply is
+ * a single lookup in the 256 byte row of the multiplication table for the coefficient, which
+ * stays in L1 cache. (Nibble split tables and packing the products into longs only pay off with
+ * SIMD shuffles, which Java does not give us; in Java both are slower than a plain byte loop.)
+ *
+ * Enable with -Dfreenet.fec.striped=true. */
+public class StripedFECCodec extends OnionFECCodec {
+
+    /** System property selecting this codec in FECCodec.getInstance() */
+    public static final String PROPERTY = "freenet.fec.striped";
+
+    /** Bytes of each block processed by one task. Small enough that a stripe of every input
+     * block fits in L2 cache for 128 data blocks. */
+    static final int STRIPE_SIZE = 2048;
+
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[a][b] = a*b */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = x;
+            EXP[i+255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= 256) x ^= 0x11d;
+        }
+        for(int a=1;a<256;a++)
+            for(int b=1;b<256;b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int mul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /** Helper threads, one fewer than the cores, since the caller works too. Low priority like
+     * the rest of the FEC work, and they exit when idle. */
+    private static ThreadPoolExecutor pool;
+
+    /** @return The helper pool, or null on a single core. */
+    private static synchronized ThreadPoolExecutor getPool() {
+        if(pool == null) {
+            int threads = Runtime.getRuntime().availableProcessors() - 1;
+            if(threads < 1) return null;
+            pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new FECThreadFactory());
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    private static class FECThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new NativeThread(r, "FEC stripe thread",
+                    NativeThread.PriorityLevel.LOW_PRIORITY.value, true);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    @Override
+    protected void encode(int k, int n, Buffer[] data, Buffer[] check, int[] toEncode) {
+        byte[][] matrix = getEncodeMatrix(k, n);
+        int[][] coefficients = new int[check.length][];
+        for(int i=0;i<check.length;i++) {
+            coefficients[i] = new int[k];
+            for(int j=0;j<k;j++)
+                coefficients[i][j] = matrix[toEncode[i]][j] & 0xff;
+        }
+        run(data, check, coefficients, false);
+    }
+
+    @Override
+    protected void decode(int k, int n, Buffer[] buffers, int[] blockNumbers) {
+        shuffle(buffers, blockNumbers, k);
+        int missing = 0;
+        for(int i=0;i<k;i++)
+            if(blockNumbers[i] != i) missing++;
+        if(missing == 0) return;
+        byte[][] matrix = getEncodeMatrix(k, n);
+        // Row r of the decoding matrix is the encoding row of the block in slot r. Inverting it
+        // gives the coefficients to get each data block back from the blocks we have.
+        int[][] m = new int[k][];
+        for(int r=0;r<k;r++) {
+            m[r] = new int[k];
+            for(int c=0;c<k;c++)
+                m[r][c] = matrix[blockNumbers[r]][c] & 0xff;
+        }
+        int[][] inverse = invert(m, k);
+        // Decode in place. The slots of the missing data blocks hold check blocks which are
+        // inputs for every output, so each stripe is decoded into a small buffer first.
+        Buffer[] output = new Buffer[missing];
+        int[][] coefficients = new int[missing][];
+        int x = 0;
+        for(int i=0;i<k;i++) {
+            if(blockNumbers[i] == i) continue;
+            output[x] = buffers[i];
+            coefficients[x++] = inverse[i];
+        }
+        run(buffers, output, coefficients, true);
+        for(int i=0;i<k;i++)
+            blockNumbers[i] = i;
+    }
+
+    /** Move any data blocks which are not in their own slot into it, as PureCode does. */
+    private static void shuffle(Buffer[] buffers, int[] blockNumbers, int k) {
+        for(int i=0;i<k;) {
+            int blockNo = blockNumbers[i];
+            if(blockNo >= k || blockNo == i) {
+                i++;
+                continue;
+            }
+            if(blockNumbers[blockNo] == blockNo) throw new IllegalArgumentException("Duplicate block "+blockNo);
+            Buffer b = buffers[blockNo];
+            buffers[blockNo] = buffers[i];
+            buffers[i] = b;
+            blockNumbers[i] = blockNumbers[blockNo];
+            blockNumbers[blockNo] = blockNo;
+        }
+    }
+
+    /** Compute output[i] = sum over j of coefficients[i][j] * input[j].
+     * @param inPlace True if the outputs are also inputs. */
+    private static void run(Buffer[] input, Buffer[] output, int[][] coefficients, boolean inPlace) {
+        int blockLength = input[0].len;
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        Stripes task = new Stripes(input, output, coefficients, blockLength, stripes, inPlace);
+        ThreadPoolExecutor executor = stripes > 1 ? getPool() : null;
+        if(executor != null) {
+            // Helpers take stripes from the same counter as us. If they are busy with another
+            // block, we do the work ourselves and they find nothing left when they get to it.
+            int helpers = Math.min(stripes - 1, executor.getMaximumPoolSize());
+            for(int i=0;i<helpers;i++)
+                executor.execute(task);
+        }
+        task.run();
+        task.waitForStripes();
+    }
+
+    private static class Stripes implements Runnable {
+
+        private final Buffer[] input;
+        private final Buffer[] output;
+        private final int[][] coefficients;
+        private final int blockLength;
+        private final int stripes;
+        /** If set, the outputs are also inputs, so a stripe of every output is computed before
+         * any of them is written. */
+        private final boolean inPlace;
+        private final AtomicInteger nextStripe = new AtomicInteger();
+        /** Stripes finished, or given up on because compute() threw. */
+        private int done;
+        private Throwable failure;
+
+        Stripes(Buffer[] input, Buffer[] output, int[][] coefficients, int blockLength, int stripes,
+                boolean inPlace) {
+            this.input = input;
+            this.output = output;
+            this.coefficients = coefficients;
+            this.blockLength = blockLength;
+            this.stripes = stripes;
+            this.inPlace = inPlace;
+        }
+
+        @Override
+        public void run() {
+            int stripe;
+            byte[][] scratch = null;
+            while((stripe = nextStripe.getAndIncrement()) < stripes) {
+                int start = stripe * STRIPE_SIZE;
+                try {
+                    if(inPlace && scratch == null)
+                        scratch = new byte[output.length][STRIPE_SIZE];
+                    compute(start, Math.min(start + STRIPE_SIZE, blockLength), scratch);
+                } catch (Throwable t) {
+                    synchronized(this) {
+                        if(failure == null) failure = t;
+                    }
+                } finally {
+                    synchronized(this) {
+                        if(++done == stripes) notifyAll();
+                    }
+                }
+            }
+        }
+
+        /** Wait until every stripe has been computed, including those taken by helpers, which
+         * may still be writing to the output when we run out of stripes to take. */
+        synchronized void waitForStripes() {
+            boolean interrupted = false;
+            while(done < stripes) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            // compute() doesn't throw checked exceptions.
+            if(failure instanceof Error) throw (Error) failure;
+            if(failure != null) throw (RuntimeException) failure;
+        }
+
+        /** Compute one stripe of every output, via scratch if it is not null. */
+        private void compute(int start, int end, byte[][] scratch) {
+            int length = end - start;
+            for(int i=0;i<output.length;i++) {
+                byte[] dst = scratch == null ? output[i].b : scratch[i];
+                int dstOffset = scratch == null ? output[i].off + start : 0;
+                boolean first = true;
+                for(int j=0;j<input.length;j++) {
+                    int c = coefficients[i][j];
+                    if(c == 0) continue;
+                    Buffer in = input[j];
+                    mulAdd(MUL[c], c == 1, in.b, in.off + start, dst, dstOffset, length, first);
+                    first = false;
+                }
+                if(first) Arrays.fill(dst, dstOffset, dstOffset + length, (byte) 0);
+            }
+            if(scratch == null) return;
+            // Every output has been computed from the inputs, so now they can be overwritten.
+            for(int i=0;i<output.length;i++)
+                System.arraycopy(scratch[i], 0, output[i].b, output[i].off + start, length);
+        }
+
+    }
+
+    /** dst ^= c * src, or dst = c * src if overwrite, where mulRow is the row of the
+     * multiplication table for c. */
+    private static void mulAdd(byte[] mulRow, boolean identity, byte[] src, int srcOffset,
+            byte[] dst, int dstOffset, int length, boolean overwrite) {
+        if(identity) {
+            if(overwrite)
+                System.arraycopy(src, srcOffset, dst, dstOffset, length);
+            else {
+                for(int i=0;i<length;i++)
+                    dst[dstOffset+i] ^= src[srcOffset+i];
+            }
+        } else if(overwrite) {
+            for(int i=0;i<length;i++)
+                dst[dstOffset+i] = mulRow[src[srcOffset+i] & 0xff];
+        } else {
+            for(int i=0;i<length;i++)
+                dst[dstOffset+i] ^= mulRow[src[srcOffset+i] & 0xff];
+        }
+    }
+
+    /** Decoding also needs the matrix to invert and its inverse, and a buffer of a stripe of
+     * each missing block for each thread. The output is written in place. */
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        long matrices = 2L * dataBlocks * dataBlocks * 4; // int[k][k] twice
+        long stripes = (long) Runtime.getRuntime().availableProcessors() * dataBlocks * STRIPE_SIZE;
+        return super.maxMemoryOverheadDecode(dataBlocks, checkBlocks) + matrices + stripes;
+    }
+
+    /** Build the n x k systematic encoding matrix, the same as PureCode's. */
+    static byte[][] createEncodeMatrix(int k, int n) {
+        if(k < 1 || n < k || n > 256) throw new IllegalArgumentException();
+        // Vandermonde rows for the points 0, 1, a, a^2, ...
+        int[][] v = new int[n][k];
+        v[0][0] = 1;
+        for(int row=1;row<n;row++)
+            for(int col=0;col<k;col++)
+                v[row][col] = EXP[((row - 1) * col) % 255];
+        int[][] top = new int[k][];
+        for(int i=0;i<k;i++) top[i] = v[i].clone();
+        int[][] inverse = invert(top, k);
+        byte[][] matrix = new byte[n][k];
+        for(int i=0;i<k;i++)
+            matrix[i][i] = 1;
+        for(int row=k;row<n;row++) {
+            for(int col=0;col<k;col++) {
+                int sum = 0;
+                for(int j=0;j<k;j++)
+                    sum ^= mul(v[row][j], inverse[j][col]);
+                matrix[row][col] = (byte) sum;
+            }
+        }
+        return matrix;
+    }
+
+    /** Invert a k x k matrix over GF(2^8) by Gauss-Jordan elimination. Overwrites m. */
+    private static int[][] invert(int[][] m, int k) {
+        int[][] inverse = new int[k][k];
+        for(int i=0;i<k;i++) inverse[i][i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && m[pivot][col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                int[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+                t = inverse[pivot]; inverse[pivot] = inverse[col]; inverse[col] = t;
+            }
+            int f = inverse(m[col][col]);
+            if(f != 1) {
+                for(int j=0;j<k;j++) {
+                    m[col][j] = mul(m[col][j], f);
+                    inverse[col][j] = mul(inverse[col][j], f);
+                }
+            }
+            for(int row=0;row<k;row++) {
+                if(row == col) continue;
+                int g = m[row][col];
+                if(g == 0) continue;
+                for(int j=0;j<k;j++) {
+                    m[row][j] ^= mul(g, m[col][j]);
+                    inverse[row][j] ^= mul(g, inverse[col][j]);
+                }
+            }
+        }
+        return inverse;
+    }
+
+    /** Cache of encoding matrices by {k,n}, like the PureCode cache in OnionFECCodec. */
+    private synchronized static byte[][] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) | k;
+        SoftReference<byte[][]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(key);
+        if(ref != null) {
+            byte[][] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(key, ref);
+                return matrix;
+            }
+        }
+        byte[][] matrix = createEncodeMatrix(k, n);
+        recentlyUsedMatrices.push(key, new SoftReference<byte[][]>(matrix));
+        return matrix;
+    }
+
+    private static final LRUMap<Integer, SoftReference<byte[][]>> recentlyUsedMatrices = LRUMap.createSafeMap();
+
+}
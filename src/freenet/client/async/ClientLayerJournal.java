@@ -0,0 +1,177 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Append-only journal of changes to the persistent requests since client.dat was last written
+ * in full, so that most checkpoints only have to write the requests that have changed.
+ * ClientLayerPersister decides what goes in each segment; this class just looks after the file.
+ *
+ * The journal starts with the ID of the client.dat it applies to, and is ignored if that is not
+ * the client.dat we loaded, e.g. because we crashed after writing a new client.dat but before
+ * starting a new journal. Each checkpoint appends one segment, prefixed with its length and
+ * followed by a checksum, so if we crash while appending, the partial segment is ignored.
+ *
+ * Not thread-safe: ClientLayerPersister only uses it while holding serializeCheckpoints.
+ */
+class ClientLayerJournal {
+
+    private static final long MAGIC = 0x5a1c7e3b9d04f268L;
+    private static final int VERSION = 1;
+
+    final File file;
+    private final ChecksumChecker checker;
+    private final BucketFactory bf;
+    /** Length of the file, or -1 if it must be reset() before we can append to it. */
+    private long length = -1;
+
+    ClientLayerJournal(File file, ChecksumChecker checker, BucketFactory bf) {
+        this.file = file;
+        this.checker = checker;
+        this.bf = bf;
+    }
+
+    interface SegmentReader {
+        /** Read a complete and correctly checksummed segment. */
+        void read(InputStream segment, long length) throws IOException;
+    }
+
+    /** Start a new, empty journal, replacing any existing one.
+     * @param baseID The ID of the client.dat which has just been written. */
+    void reset(long baseID) throws IOException {
+        length = -1;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeLong(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(baseID);
+        dos.close();
+        byte[] header = baos.toByteArray();
+        OutputStream os = new FileOutputStream(file, false);
+        try {
+            checker.writeAndChecksum(os, header, 0, header.length);
+        } finally {
+            os.close();
+        }
+        length = file.length();
+    }
+
+    /** @return False if the journal has not been reset() since loading, or an append failed. */
+    boolean canAppend() {
+        return length >= 0;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /** Append a segment. If this fails the journal must be reset() before it is used again. */
+    void append(Bucket segment) throws IOException {
+        if(length < 0) throw new IOException("Journal has not been started");
+        long oldLength = length;
+        length = -1;
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file, true));
+        try {
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeLong(segment.size());
+            OutputStream cos = checker.checksumWriter(dos);
+            BucketTools.copyTo(segment, cos, Long.MAX_VALUE);
+            cos.close();
+            dos.close();
+            os = null;
+        } finally {
+            if(os != null) os.close();
+        }
+        length = oldLength + 8 + segment.size() + checker.checksumLength();
+        if(file.length() != length)
+            throw new IOException("Journal is "+file.length()+" bytes, should be "+length);
+    }
+
+    /** Read each complete segment of the journal in order, provided the journal belongs to the
+     * given client.dat.
+     * @return The number of segments read, or -1 if the journal does not exist or belongs to a
+     * different client.dat. */
+    int replay(long baseID, SegmentReader reader) throws IOException {
+        if(!file.exists()) return -1;
+        long fileLength = file.length();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] header = new byte[20];
+            try {
+                checker.readAndChecksum(dis, header, 0, header.length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Ignoring journal "+file+" : header checksum failed");
+                return -1;
+            }
+            DataInputStream hdis = new DataInputStream(new ByteArrayInputStream(header));
+            if(hdis.readLong() != MAGIC) throw new IOException("Bad magic");
+            if(hdis.readInt() != VERSION) throw new IOException("Bad version");
+            long id = hdis.readLong();
+            if(baseID == 0 || id != baseID) {
+                Logger.normal(this, "Ignoring journal "+file+" as it belongs to a different "+
+                        "client.dat (probably interrupted while writing it)");
+                return -1;
+            }
+            long pos = header.length + checker.checksumLength();
+            int segments = 0;
+            while(pos < fileLength) {
+                long remaining = fileLength - pos - 8 - checker.checksumLength();
+                long segmentLength = remaining < 0 ? -1 : dis.readLong();
+                if(segmentLength < 0 || segmentLength > remaining) {
+                    Logger.error(this, "Ignoring incomplete segment at the end of journal "+file);
+                    break;
+                }
+                Bucket bucket = bf.makeBucket(segmentLength);
+                boolean verified = false;
+                OutputStream os = bucket.getOutputStream();
+                try {
+                    checker.copyAndStripChecksum(dis, os, segmentLength);
+                    verified = true;
+                } catch (ChecksumFailedException e) {
+                    Logger.error(this, "Checksum failed, ignoring the rest of journal "+file);
+                } finally {
+                    os.close();
+                    if(!verified) bucket.free();
+                }
+                if(!verified) break;
+                InputStream is = ReadBucketAndFreeInputStream.create(bucket);
+                try {
+                    reader.read(is, segmentLength);
+                } finally {
+                    is.close();
+                }
+                pos += 8 + segmentLength + checker.checksumLength();
+                segments++;
+            }
+            return segments;
+        } finally {
+            dis.close();
+        }
+    }
+
+    void delete() {
+        length = -1;
+        file.delete();
+    }
+
+}
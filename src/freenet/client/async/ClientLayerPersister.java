@@ -7,26 +7,38 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
@@ -35,6 +47,7 @@ import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
@@ -47,7 +60,8 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Between full writes, checkpoints only append the requests which
+ * have changed to client.dat.journal (see ClientLayerJournal), unless client.dat is encrypted.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -100,10 +114,43 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Changes since client.dat was last written in full. */
+    private ClientLayerJournal journal;
+    /** False if we must always write client.dat in full, because it is encrypted and the 
+     * encrypted bucket can't be appended to. */
+    private boolean writeJournal;
+    /** Digest of each request as it was last written, to client.dat or the journal. Null if the
+     * next checkpoint must write client.dat in full. */
+    private Map<RequestIdentifier, byte[]> writtenDigests;
+    /** Random ID of client.dat as loaded or last written, so we only replay its own journal. */
+    private long baseID;
+    /** Size of client.dat when it was last written in full. */
+    private long baseLength;
+    private Random random;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
     
+    /** Write client.dat in full rather than appending to the journal once the journal is bigger
+     * than this and than client.dat. */
+    static final long MIN_COMPACT_JOURNAL_SIZE = 1024 * 1024;
+    private static final byte JOURNAL_END = 0;
+    private static final byte JOURNAL_PUT = 1;
+    private static final byte JOURNAL_REMOVE = 2;
+    
+    /** System property setting the number of threads used to deserialize requests on startup.
+     * 1 deserializes them one at a time on the loading thread. */
+    public static final String LOAD_THREADS_PROPERTY = "freenet.persistence.loadThreads";
+    private final int loadThreads = Math.max(1, Integer.getInteger(LOAD_THREADS_PROPERTY, 
+            Math.min(Runtime.getRuntime().availableProcessors(), 4)));
+    /** Requests to read ahead of deserializing them, limits the memory used while loading. */
+    static final int LOAD_BATCH_SIZE = 256;
+    /** Not worth starting another thread for fewer requests than this. */
+    static final int MIN_RECORDS_PER_LOAD_THREAD = 16;
+    /** Initial size of the buffer requests are serialized into when appending to the journal.
+     * It grows to fit the biggest request. */
+    private static final int RECORD_BUFFER_SIZE = 16*1024;
+    
     private static volatile boolean logMINOR;
     static {
         Logger.registerClass(ClientLayerPersister.class);
@@ -125,7 +172,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         this.bandwidthStatsPutter = stats;
     }
     
-    /** Set the files to write to and set up encryption
+    /** Set the files to write to and set up encryption, loading the requests if we haven't yet.
+     * The requests are deserialized in parallel (see LOAD_THREADS_PROPERTY), but they are all
+     * resumed, one at a time, before this returns. The FCP server only starts after that, so
+     * ListPersistentRequests is not answered until every request has been resumed.
+     * FIXME Answer it from the loaded requests while they are being resumed.
      * @param noWrite If true, don't write the data to disk at all, and delete existing 
      * client.dat*.
      * @throws MasterKeysWrongPasswordException If we need the encryption key but it has not been 
@@ -138,6 +189,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         synchronized(serializeCheckpoints) {
             this.dir = dir;
             this.baseName = baseName;
+            this.random = random;
             if(noWrite) {
                 writeToBucket = null;
                 writeToFilename = null;
@@ -146,6 +198,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteFile(makeJournalFilename(dir, baseName));
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -172,7 +225,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     }
     
     private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
-        File f = makeFilename(dir, baseName, backup, encrypted);
+        deleteFile(makeFilename(dir, baseName, backup, encrypted));
+    }
+    
+    private void deleteFile(File f) {
         try {
             FileUtil.secureDelete(f);
         } catch (IOException e) {
@@ -195,6 +251,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
         System.out.println("Will save downloads to "+writeToFilename);
+        journal = new ClientLayerJournal(makeJournalFilename(dir, baseName), checker, tempBucketFactory);
+        writeJournal = !writeEncrypted;
+        writtenDigests = null;
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
         queueNormalOrDrop(new PersistentJob() {
@@ -239,6 +298,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         if(clientDatBakCryptExists && loaded.needsMore()) {
             innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
         }
+        // The second pass with noSerialize doesn't read the ID, but it's the same client.dat.
+        if(loaded.getBaseID() != 0)
+            baseID = loaded.getBaseID();
+        replayJournal(loaded, makeJournalFilename(dir, baseName), noSerialize, context);
+        if(!noSerialize) {
+            if(loaded.stats != null)
+                bandwidthStatsPutter.addFrom(loaded.stats);
+            persistentTempFactory.finishDelayedFree(loaded.bucketsToFree);
+        }
+        
+        journal = new ClientLayerJournal(makeJournalFilename(dir, baseName), checker, tempBucketFactory);
+        writeJournal = !writeEncrypted;
+        writtenDigests = null;
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
@@ -264,8 +336,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             int restoredRestarted = 0;
             int restoredFully = 0;
             int failed = 0;
-            // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+            // Resume the requests. The most important ones first, so they get going sooner on a 
+            // big queue. This is still one at a time on this thread: onResume() registers with the
+            // persistent root and the schedulers, which expect to be set up by a single thread.
+            List<PartiallyLoadedRequest> toResume = 
+                new ArrayList<PartiallyLoadedRequest>(loaded.partiallyLoadedRequests.values());
+            Collections.sort(toResume, RESUME_ORDER);
+            for(PartiallyLoadedRequest partial : toResume) {
                 ClientRequest req = partial.request;
                 if(req == null) continue;
                 try {
@@ -339,6 +416,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
                 
     }
+    
+    private File makeJournalFilename(File parent, String baseName) {
+        return new File(parent, baseName + ".journal");
+    }
 
     private enum RequestLoadStatus {
         // In order of preference, best first.
@@ -357,6 +438,25 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Global queue first, then by priority class. This only decides which requests start
+     * first; nothing is available to clients until all of them have been resumed. */
+    private static final Comparator<PartiallyLoadedRequest> RESUME_ORDER = 
+        new Comparator<PartiallyLoadedRequest>() {
+
+        @Override
+        public int compare(PartiallyLoadedRequest a, PartiallyLoadedRequest b) {
+            if(a.request == null || b.request == null) {
+                if(a.request == b.request) return 0;
+                return a.request == null ? 1 : -1;
+            }
+            boolean aGlobal = a.request.getRequestIdentifier().isGlobalQueue();
+            boolean bGlobal = b.request.getRequestIdentifier().isGlobalQueue();
+            if(aGlobal != bGlobal) return aGlobal ? -1 : 1;
+            return a.request.getPriority() - b.request.getPriority();
+        }
+        
+    };
+    
     private class PartialLoad {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
@@ -367,6 +467,17 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         
         private boolean doneSomething;
         
+        /** ID of the latest client.dat, or 0 if unknown. */
+        private long baseID;
+        
+        /** True once we are replaying the journal, so newer copies of requests replace older 
+         * ones even if they were restored less completely. */
+        private boolean replaying;
+        
+        /** Stats and buckets to free from the latest checkpoint. */
+        PersistentStatsPutter stats;
+        DelayedFree[] bucketsToFree;
+        
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
@@ -381,7 +492,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 }
             }
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
-            if(old == null || old.status.ordinal() > status.ordinal()) {
+            if(old == null || old.status.ordinal() > status.ordinal() || 
+                    (replaying && status != RequestLoadStatus.FAILED)) {
                 partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
                 if(!(status == RequestLoadStatus.LOADED || status == RequestLoadStatus.RESTORED_FULLY))
                     somethingFailed = true;
@@ -410,6 +522,22 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         public boolean doneSomething() {
             return doneSomething;
         }
+        
+        void removeRequest(RequestIdentifier reqID) {
+            partiallyLoadedRequests.remove(reqID);
+        }
+        
+        void setBaseID(long id) {
+            baseID = id;
+        }
+        
+        long getBaseID() {
+            return baseID;
+        }
+        
+        void startReplaying() {
+            replaying = true;
+        }
     }
     
     private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
@@ -457,87 +585,299 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
-        for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
+        List<RequestRecord> records = new ArrayList<RequestRecord>();
+        try {
+            for(int i=0;i<requestCount;i++) {
+                RequestRecord record = readRequestRecord(ois, length, context, noSerialize);
+                if(record != null) records.add(record);
+                if(records.size() >= LOAD_BATCH_SIZE)
+                    loadRequests(loaded, records, context);
             }
+            loadRequests(loaded, records, context);
+        } finally {
+            for(RequestRecord record : records)
+                record.close();
+        }
+        if(latest) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                readStatsAndBuckets(loaded, ois, length);
+                loaded.setBaseID(readBaseID(ois));
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
-            if(request == null || logMINOR) {
+        }
+        ois.close();
+        fis = null;
+    }
+    
+    /** A request read from client.dat or the journal, with its checksums verified, but not yet
+     * deserialized, so that loadRequests() can deserialize several at once. */
+    private static class RequestRecord {
+        final RequestIdentifier reqID;
+        /** The serialized request, or null if we are not deserializing or the checksum failed. */
+        InputStream requestData;
+        /** The recovery data, or null if the checksum failed. */
+        InputStream recoveryData;
+        /** Set by deserialize(). */
+        ClientRequest request;
+        
+        RequestRecord(RequestIdentifier reqID) {
+            this.reqID = reqID;
+        }
+        
+        void close() {
+            try (InputStream request = requestData; InputStream recovery = recoveryData) {
+                requestData = null;
+                recoveryData = null;
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    /** Read one request as written by writeRequest(), checking the checksums but not 
+     * deserializing it yet.
+     * @return Null if the request is already running. */
+    private RequestRecord readRequestRecord(ObjectInputStream ois, long length, 
+            ClientContext context, boolean noSerialize) throws IOException {
+        RequestIdentifier reqID = readRequestIdentifier(ois);
+        if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+            Logger.warning(this, "Not reading request because already have it");
+            skipChecksummedObject(ois, length); // Request itself
+            skipChecksummedObject(ois, length); // Recovery data
+            return null;
+        }
+        RequestRecord record = new RequestRecord(reqID);
+        try {
+            if(!noSerialize) {
                 try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
+                    record.requestData = checker.checksumReaderWithLength(ois, tempBucketFactory, length);
                 } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+                    Logger.error(this, "Failed to load request (checksum failed)");
+                    System.err.println("Failed to load a request (checksum failed)");
                 }
-            } else {
+            } else
                 skipChecksummedObject(ois, length);
+            try {
+                record.recoveryData = checker.checksumReaderWithLength(ois, tempBucketFactory, length);
+            } catch (ChecksumFailedException e) {
+                // Only matters if we need it, see loadRequest().
             }
+            return record;
+        } catch (IOException e) {
+            record.close();
+            throw e;
         }
-        if(latest) {
+    }
+    
+    /** Deserialize the requests, on several threads if there are enough of them, and add them
+     * to the PartialLoad in order. Closes the records. */
+    private void loadRequests(PartialLoad loaded, List<RequestRecord> records, ClientContext context) {
+        try {
+            deserializeRequests(records, context);
+            for(RequestRecord record : records)
+                loadRequest(loaded, record);
+        } finally {
+            for(RequestRecord record : records)
+                record.close();
+            records.clear();
+        }
+    }
+    
+    private void deserializeRequests(final List<RequestRecord> records, ClientContext context) {
+        int threads = Math.min(loadThreads, records.size() / MIN_RECORDS_PER_LOAD_THREAD);
+        if(threads <= 1) {
+            for(RequestRecord record : records)
+                deserialize(record);
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        PrioRunnable worker = new PrioRunnable() {
+
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while((i = next.getAndIncrement()) < records.size())
+                        deserialize(records.get(i));
+                } finally {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.PriorityLevel.HIGH_PRIORITY.value;
+            }
+            
+        };
+        for(int i=1;i<threads;i++)
+            context.mainExecutor.execute(worker, "Deserializing persistent requests");
+        // Help out rather than just waiting.
+        worker.run();
+        boolean interrupted = false;
+        while(true) {
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
-        ois.close();
-        fis = null;
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+    
+    private void deserialize(RequestRecord record) {
+        InputStream is = record.requestData;
+        if(is == null) return;
+        record.requestData = null;
+        try (InputStream in = is) {
+            ObjectInputStream oo = new ObjectInputStream(in);
+            record.request = (ClientRequest) oo.readObject();
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+    }
+    
+    /** Add a request to the PartialLoad, restoring it from the recovery data if it could not
+     * be deserialized. */
+    private void loadRequest(PartialLoad loaded, RequestRecord record) {
+        ClientRequest request = record.request;
+        RequestIdentifier reqID = record.reqID;
+        if(request != null) {
+            if(reqID != null) {
+                if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                    Logger.error(this, "Request does not match request identifier, discarding");
+                    request = null;
+                } else {
+                    loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                }
+            }
+        }
+        if(request == null || logMINOR) {
+            InputStream recoveryData = record.recoveryData;
+            record.recoveryData = null;
+            try {
+                if(recoveryData == null) throw new ChecksumFailedException();
+                ClientRequest restored = readRequestFromRecoveryData(recoveryData, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            } catch (IOException e) {
+                Logger.error(this, "Failed to read recovery data for "+reqID+" : "+e, e);
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            }
+        }
+    }
+    
+    /** Read the ID written after the buckets, which tells us whether the journal applies to 
+     * this client.dat.
+     * @return 0 if there is none (written before we had a journal). */
+    private long readBaseID(ObjectInputStream ois) throws IOException {
+        try {
+            return ois.readLong();
+        } catch (EOFException e) {
+            return 0;
+        }
+    }
+    
+    /** Apply any changes made since client.dat was written, from the journal, provided it 
+     * belongs to the client.dat we have loaded. */
+    private void replayJournal(final PartialLoad loaded, File filename, final boolean noSerialize, 
+            final ClientContext context) {
+        ClientLayerJournal journal = new ClientLayerJournal(filename, checker, tempBucketFactory);
+        loaded.startReplaying();
+        try {
+            int segments = journal.replay(baseID, new ClientLayerJournal.SegmentReader() {
+
+                @Override
+                public void read(InputStream segment, long length) throws IOException {
+                    readJournalSegment(loaded, segment, length, noSerialize, context);
+                }
+                
+            });
+            if(segments > 0)
+                Logger.normal(this, "Replayed "+segments+" checkpoints from "+filename);
+        } catch (IOException e) {
+            Logger.error(this, "Failed to replay journal "+filename+" : "+e, e);
+            System.err.println("Failed to replay journal "+filename+" : "+e);
+            e.printStackTrace();
+            loaded.setSomethingFailed();
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to replay journal "+filename+" : "+t, t);
+            System.err.println("Failed to replay journal "+filename+" : "+t);
+            t.printStackTrace();
+            loaded.setSomethingFailed();
+        }
+    }
+    
+    private void readJournalSegment(PartialLoad loaded, InputStream is, long length, 
+            boolean noSerialize, ClientContext context) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(is);
+        List<RequestRecord> records = new ArrayList<RequestRecord>();
+        try {
+            while(true) {
+                byte type = ois.readByte();
+                if(type == JOURNAL_PUT) {
+                    RequestRecord record = readRequestRecord(ois, length, context, noSerialize);
+                    if(record != null) records.add(record);
+                    if(records.size() >= LOAD_BATCH_SIZE)
+                        loadRequests(loaded, records, context);
+                } else if(type == JOURNAL_REMOVE) {
+                    loadRequests(loaded, records, context);
+                    RequestIdentifier reqID = readRequestIdentifier(ois);
+                    if(reqID != null) loaded.removeRequest(reqID);
+                } else if(type == JOURNAL_END) {
+                    loadRequests(loaded, records, context);
+                    break;
+                } else {
+                    throw new IOException("Bad journal entry type "+type);
+                }
+            }
+        } finally {
+            for(RequestRecord record : records)
+                record.close();
+        }
+        if(noSerialize) return;
+        try {
+            readStatsAndBuckets(loaded, ois, length);
+        } catch (ClassNotFoundException e) {
+            Logger.error(this, "Failed to restore stats and delete old temp files: "+e, e);
+        }
     }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+    /** Read the stats and the buckets to free. These are only used from the latest checkpoint,
+     * once we have finished loading. */
+    private void readStatsAndBuckets(PartialLoad loaded, ObjectInputStream ois, long length) throws IOException, ClassNotFoundException {
+        loaded.stats = (PersistentStatsPutter) ois.readObject();
         int count = ois.readInt();
         DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
@@ -547,7 +887,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
         }
-        persistentTempFactory.finishDelayedFree(buckets);
+        loaded.bucketsToFree = buckets;
+    }
+    
+    private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
     }
 
     @Override
@@ -557,10 +909,28 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
+        }
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        // Rewrite client.dat once the journal is bigger than it, so loading doesn't get slower
+        // and slower.
+        if(writeJournal && writtenDigests != null && journal.canAppend() && 
+                journal.length() < Math.max(MIN_COMPACT_JOURNAL_SIZE, baseLength)) {
+            if(appendToJournal(requests, buckets)) return;
+        }
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
         }
-        if(innerSave(shutdown)) {
+        if(innerSave(requests, buckets)) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,11 +939,27 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+            if(writeJournal) {
+                try {
+                    journal.reset(baseID);
+                } catch (IOException e) {
+                    // Not a problem, the next checkpoint will write everything again.
+                    Logger.error(this, "Failed to start journal "+journal.file+" : "+e, e);
+                }
+            } else {
+                journal.delete();
+            }
+        } else {
+            writtenDigests = null;
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+    private boolean innerSave(ClientRequest[] requests, DelayedFree[] buckets) {
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        long newBaseID;
+        do {
+            newBaseID = random.nextLong();
+        } while(newBaseID == 0);
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
@@ -582,41 +968,23 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             oos.writeLong(MAGIC);
             oos.writeInt(VERSION);
             checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
             oos.writeInt(requests.length);
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
+                MessageDigest md = SHA256.getMessageDigest();
+                writeRequest(oos, req, md);
+                digests.put(req.getRequestIdentifier(), md.digest());
+                SHA256.returnMessageDigest(md);
             }
+            writeStatsAndBuckets(oos, buckets);
+            // Older versions stop reading before this.
+            oos.writeLong(newBaseID);
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
             persistentTempFactory.finishDelayedFree(buckets);
+            baseID = newBaseID;
+            baseLength = writeToFilename.length();
+            writtenDigests = digests;
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
@@ -632,7 +1000,78 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Append the requests which have changed since they were last written, and those which 
+     * have been removed, to the journal. Every request is still serialized to find out whether 
+     * it has changed, but only the changed ones are written to disk. Requests are serialized
+     * one at a time into the same buffer in memory, rather than each into a new temp bucket.
+     * @return False if we need to write client.dat in full instead. */
+    private boolean appendToJournal(ClientRequest[] requests, DelayedFree[] buckets) {
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        int changed = 0;
+        int removed = 0;
+        Bucket segment = null;
+        OutputStream os = null;
+        try {
+            segment = tempBucketFactory.makeBucket(-1);
+            os = segment.getOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+            ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_BUFFER_SIZE);
+            MessageDigest md = SHA256.getMessageDigest();
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                record.reset();
+                writeRequest(record, req, md);
+                byte[] digest = md.digest();
+                digests.put(reqID, digest);
+                if(Arrays.equals(digest, writtenDigests.get(reqID))) continue;
+                oos.writeByte(JOURNAL_PUT);
+                record.writeTo(oos);
+                changed++;
+            }
+            SHA256.returnMessageDigest(md);
+            for(RequestIdentifier reqID : writtenDigests.keySet()) {
+                if(digests.containsKey(reqID)) continue;
+                oos.writeByte(JOURNAL_REMOVE);
+                writeRequestIdentifier(oos, reqID);
+                removed++;
+            }
+            oos.writeByte(JOURNAL_END);
+            writeStatsAndBuckets(oos, buckets);
+            oos.close();
+            os = null;
+            journal.append(segment);
+            Logger.normal(this, "Saved "+changed+" changed and "+removed+" removed of "+
+                    requests.length+" requests to "+journal.file);
+            persistentTempFactory.finishDelayedFree(buckets);
+            writtenDigests = digests;
+            return true;
+        } catch (IOException e) {
+            Logger.error(this, "Failed to write journal, writing "+writeToFilename+" instead: "+e, e);
+            return false;
+        } finally {
+            try {
+                if(os != null) os.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            if(segment != null) segment.free();
+        }
+    }
+    
+    /** Write a request: its identifier so we can skip reading the request if we already have 
+     * it, the actual request, and recovery data. The recovery data is just enough to restart 
+     * the request from scratch, but may support continuing the request in simple cases e.g. if 
+     * a fetch is now just a single splitfile.
+     * @param md Updated with everything written, so we can tell whether the request has
+     * changed. */
+    private void writeRequest(OutputStream os, ClientRequest req, MessageDigest md) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new DigestOutputStream(os, md));
+        writeRequestIdentifier(dos, req.getRequestIdentifier());
+        writeChecksummedObject(dos, req, req.toString());
+        writeRecoveryData(dos, req);
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,8 +1088,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
-        InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+    /** @param tmp The recovery data, with the checksum already checked. Will be closed. */
+    private ClientRequest readRequestFromRecoveryData(InputStream tmp, RequestIdentifier reqID) throws IOException, StorageFormatException {
         try {
             DataInputStream dis = new DataInputStream(tmp);
             ClientRequest request = ClientRequest.restartFrom(dis, reqID, getClientContext(), checker);
@@ -666,7 +1105,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -757,6 +1196,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteFile(makeJournalFilename(dir, baseName));
         }
     }
 
@@ -26,9 +26,9 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
-import freenet.support.RemoveRandomParent;
 import freenet.support.SectoredRandomGrabArray;
 import freenet.support.SectoredRandomGrabArraySimple;
 import freenet.support.TimeUtil;
@@ -44,18 +44,19 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: Consequently we need to lock a whole subtree whenever we access either the subtree or 
+ * its wakeup times: When a request completes, we start at the request itself and go up the tree 
+ * until we stop updating the wakeup times. However when we choose a request to send, we start at 
+ * the top and go down (and update the wakeup times when backtracking back up the tree if we don't
+ * find anything).
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
- * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
+ * **We lock on the RequestClientRGANode for the priority** when using the tree below it, 
+ * including the wakeup times. Wakeup times never propagate above a priority, so each priority is
+ * an independent subtree, and request starters and completions on different priorities don't 
+ * contend. The priorities are created in the constructor and never change, so choosing a priority
+ * doesn't need a lock either. When a request changes priority, we take both priority locks, lowest
+ * priority number first, and move its requests to a new RGA under the new priority, so each node 
+ * only ever belongs to one subtree.
  * 
  * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
  * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
@@ -76,25 +77,26 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	static class ClientRequestRGANode extends SectoredRandomGrabArraySimple<RequestClient,ClientRequestSchedulerGroup> {
 
-        public ClientRequestRGANode(RequestClient object, RemoveRandomParent parent,
+        public ClientRequestRGANode(RequestClient object, RequestClientRGANode parent,
                 ClientRequestSelector root) {
-            super(object, parent, root);
+            super(object, parent, root, parent);
         }
 	    
 	}
 	
 	static class RequestClientRGANode extends SectoredRandomGrabArray<RequestClient,ClientRequestRGANode> {
 
-        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root) {
-            super(parent, root);
+        /** The top of the subtree for a priority, which is also its lock. */
+        public RequestClientRGANode(ClientRequestSelector root) {
+            super(null, root, null);
         }
 	    
 	}
 	
 	/**
-     * The base of the tree.
+     * The base of the tree. One subtree per priority, each of which is its own lock.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +116,8 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++)
+		    priorities[i] = new RequestClientRGANode(this);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +149,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Not synchronized. The priorities never change, and each one takes its own lock 
+	 * when we check its wakeup time and whether it is empty. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -225,6 +229,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		return null;
 	}
 	
+	/** Create a ChosenBlock for a request chosen by chooseRequestInner(), if it can send anything.
+	 * LOCKING: Takes no tree locks, only the request's own locks and keysFetching / 
+	 * runningInserts via chooseKey(). */
 	public ChosenBlock maybeMakeChosenRequest(SendableRequest req, ClientContext context, long now) {
 		if(req == null) return null;
 		if(req.isCancelled()) {
@@ -337,7 +344,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS;choosenPriorityClass++) {
 			if(logMINOR) Logger.minor(this, "Using priority "+choosenPriorityClass);
 			RequestClientRGANode chosenTracker = priorities[choosenPriorityClass];
-			if(chosenTracker == null) {
+			if(chosenTracker.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
 			}
@@ -352,9 +359,9 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
-				    // This is important for keeping the cooldown tracker consistent amongst other 
+				synchronized(chosenTracker) {
+				    // We must hold the priority's lock, just as in addToGrabArrays.
+				    // This is important for keeping the wakeup times consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
 				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
 				    // resulting in the request not being accessible.
@@ -386,7 +393,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
 							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
+							synchronized(chosenTracker) {
 								baseRGA.remove(req, context);
 							}
 						} else {
@@ -618,21 +625,17 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorities[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
         sched.wakeStarter();
     }
 
+    /** LOCKING: Caller must hold the lock on priorities[priorityClass]. */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
@@ -653,67 +656,74 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
+        // Always take the lower numbered priority first to avoid deadlocks.
+        RequestClientRGANode firstLock = priorities[Math.min(oldPrio, newPrio)];
+        RequestClientRGANode secondLock = priorities[Math.max(oldPrio, newPrio)];
+        synchronized(firstLock) {
+            synchronized(secondLock) {
+                // First by priority
+                RequestClientRGANode clientGrabber = priorities[oldPrio];
+                // Then by RequestClient
+                ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+                if(requestGrabber == null) {
+                    // Normal as most of the schedulers aren't relevant to any given insert/request.
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+                if(rga == null) {
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
                 requestGrabber.maybeRemove(rga, context);
+                requestGrabber = makeSRGAForClient(newPrio, client, context);
+                if(requestGrabber.getGrabber(group) != null) {
+                    Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
+                            " but want to insert "+rga, new Exception("error"));
+                }
+                // The RGA is locked by the old priority, so move its requests rather than the RGA.
+                for(int i=0;i<rga.size();i++) {
+                    RandomGrabArrayItem item = rga.get(i);
+                    if(item == null) continue;
+                    requestGrabber.add(group, item, context);
+                }
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
             RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
-                System.out.println("Priority "+i+" : empty");
-            else {
-                System.out.println("Priority "+i+" : "+prio.size());
-                    System.out.println("Clients: "+prio.size()+" for "+prio);
-                    for(int k=0;k<prio.size();k++) {
-                        RequestClient client = prio.getClient(k);
-                        System.out.println("Client "+k+" : "+client);
-                        ClientRequestRGANode requestGrabber = prio.getGrabber(client);
-                        System.out.println("SRGA for client: "+requestGrabber);
-                        for(int l=0;l<requestGrabber.size();l++) {
-                            ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
-                            System.out.println("Request "+l+" : "+cr);
-                            RandomGrabArray rga = requestGrabber.getGrabber(cr);
-                            System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
-                            long sendable = 0;
-                            long all = 0;
-                            for(int m=0;m<rga.size();m++) {
-                                SendableRequest req = (SendableRequest) rga.get(m);
-                                if(req == null) continue;
-                                sendable += req.countSendableKeys(context);
-                                all += req.countAllKeys(context);
+            synchronized(prio) {
+                if(prio.isEmpty())
+                    System.out.println("Priority "+i+" : empty");
+                else {
+                    System.out.println("Priority "+i+" : "+prio.size());
+                        System.out.println("Clients: "+prio.size()+" for "+prio);
+                        for(int k=0;k<prio.size();k++) {
+                            RequestClient client = prio.getClient(k);
+                            System.out.println("Client "+k+" : "+client);
+                            ClientRequestRGANode requestGrabber = prio.getGrabber(client);
+                            System.out.println("SRGA for client: "+requestGrabber);
+                            for(int l=0;l<requestGrabber.size();l++) {
+                                ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
+                                System.out.println("Request "+l+" : "+cr);
+                                RandomGrabArray rga = requestGrabber.getGrabber(cr);
+                                System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
+                                long sendable = 0;
+                                long all = 0;
+                                for(int m=0;m<rga.size();m++) {
+                                    SendableRequest req = (SendableRequest) rga.get(m);
+                                    if(req == null) continue;
+                                    sendable += req.countSendableKeys(context);
+                                    all += req.countAllKeys(context);
+                                }
+                                System.out.println("Sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
+                                total += all;
                             }
-                            System.out.println("Sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
-                            total += all;
                         }
-                    }
+                }
             }
         }
         return total;
@@ -0,0 +1,26 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.List;
+
+import freenet.keys.Key;
+
+/**
+ * A KeyListener which can list the keys it is listening for. KeyListenerTracker puts these in a
+ * KeyListenerIndex, so they are only asked about keys they probably want, rather than about
+ * every key which passes through the node.
+ */
+interface IndexableKeyListener extends KeyListener {
+
+	/**
+	 * @return All the keys we are listening for, or null if we can't list them. The list must
+	 * include every key for which probablyWantKey() could return true, but it may also include
+	 * keys we no longer want. LOCKING: May read from disk, so it is called off-thread and
+	 * without holding the tracker's lock.
+	 */
+	public List<Key> listKeys() throws IOException;
+
+}
@@ -20,6 +20,7 @@ import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.ParallelCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
@@ -85,6 +86,10 @@ public class InsertCompressor implements CompressJob {
 
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
+		if(ParallelCompressor.isEnabled()) {
+			tryCompressParallel(context);
+			return;
+		}
 		long origSize = origData.size();
 		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
 		COMPRESSOR_TYPE bestCodec = null;
@@ -108,23 +113,7 @@ public class InsertCompressor implements CompressJob {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
 					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					onStartCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -202,41 +191,7 @@ public class InsertCompressor implements CompressJob {
 				}
 			}
 			
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
-			
-			if(persistent) {
-			
-				context.jobRunner.queue(new PersistentJob() {
-					
-				    // This can wait until after the next checkpoint, because it's still in the
-				    // persistentInsertCompressors list, so will be restarted if necessary.
-					@Override
-					public boolean run(ClientContext context) {
-						inserter.onCompressed(output, context);
-						return true;
-					}
-					
-				}, NativeThread.NORM_PRIORITY+1);
-			} else {
-				// We do it off thread so that RealCompressor can release the semaphore
-				context.mainExecutor.execute(new PrioRunnable() {
-
-					@Override
-					public int getPriority() {
-						return NativeThread.NORM_PRIORITY;
-					}
-
-					@Override
-					public void run() {
-						try {
-							inserter.onCompressed(output, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Caught "+t+" running compression job", t);
-						}
-					}
-					
-				}, "Insert thread for "+this);
-			}
+			onCompressed(new CompressionOutput(bestCompressedData, bestCodec, hashes), context);
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
@@ -248,6 +203,84 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** Try all the codecs at once. See ParallelCompressor. */
+	private void tryCompressParallel(final ClientContext context) throws InsertException {
+		ParallelCompressor.Result result = null;
+		try {
+			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
+			for(COMPRESSOR_TYPE comp : comps)
+				onStartCompression(comp, context);
+			result = context.rc.getParallelCompressor().compress(origData, comps, minSize,
+					CHKBlock.DATA_LENGTH, bucketFactory, generateHashes);
+			onCompressed(new CompressionOutput(result.data, result.codec, result.hashes), context);
+		} catch (PersistenceDisabledException e) {
+			if(!context.jobRunner.shuttingDown())
+				Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			if(result != null && result.data != origData)
+				result.data.free();
+		} catch (InvalidCompressionCodecException e) {
+			fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context, null);
+		} catch (IOException e) {
+			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context, null);
+		}
+	}
+
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	private void onCompressed(final CompressionOutput output, final ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+		
+			context.jobRunner.queue(new PersistentJob() {
+				
+			    // This can wait until after the next checkpoint, because it's still in the
+			    // persistentInsertCompressors list, so will be restarted if necessary.
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onCompressed(output, context);
+					return true;
+				}
+				
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			// We do it off thread so that RealCompressor can release the semaphore
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				@Override
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+				@Override
+				public void run() {
+					try {
+						inserter.onCompressed(output, context);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running compression job", t);
+					}
+				}
+				
+			}, "Insert thread for "+this);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Map from globally salted keys to the KeyListener's which want them, so that KeyListenerTracker
+ * only needs to ask the listeners which probably want a key, rather than all of them.
+ *
+ * We store a 32-bit fingerprint of each salted key, and the listener it belongs to, in an open
+ * addressed hash table. A lookup may return listeners which don't want the key, if another key
+ * has the same fingerprint, or if the listener no longer wants it, so the caller must still call
+ * probablyWantKey() on each one. It never misses a listener which has added the key.
+ *
+ * Removing a listener just marks it as gone. Its entries are skipped by lookups and discarded the
+ * next time the table is rebuilt, which happens when it is full or when more than half the
+ * entries or listeners have been removed.
+ *
+ * Not thread-safe: KeyListenerTracker's lock protects it.
+ */
+class KeyListenerIndex {
+
+	private static final int MIN_CAPACITY = 1024;
+
+	/** Fingerprints, 0 meaning an empty slot. Length is a power of 2. */
+	private int[] fingerprints;
+	/** The listener number for each slot. */
+	private int[] owners;
+	/** Indexed listeners by number. Null for removed listeners. */
+	private final ArrayList<KeyListener> listeners = new ArrayList<KeyListener>();
+	/** Number for each indexed listener. */
+	private final IdentityHashMap<KeyListener, Integer> ids = new IdentityHashMap<KeyListener, Integer>();
+	/** Number of removed listeners still in the listeners list. */
+	private int removed;
+	/** Number of entries for each listener number. */
+	private int[] counts = new int[16];
+	/** Number of used slots, including those of removed listeners. */
+	private int used;
+	/** Number of used slots belonging to removed listeners. */
+	private int dead;
+
+	KeyListenerIndex() {
+		fingerprints = new int[MIN_CAPACITY];
+		owners = new int[MIN_CAPACITY];
+	}
+
+	private static int fingerprint(byte[] saltedKey) {
+		// The salted key is a SHA-256 hash, so any 4 bytes will do.
+		int f = ((saltedKey[0] & 0xff) << 24) | ((saltedKey[1] & 0xff) << 16) |
+			((saltedKey[2] & 0xff) << 8) | (saltedKey[3] & 0xff);
+		return f == 0 ? 1 : f;
+	}
+
+	/**
+	 * Index a listener's keys.
+	 * @param saltedKeys The listener's keys, salted with the tracker's global salt.
+	 * @return False if the listener was already indexed.
+	 */
+	boolean add(KeyListener listener, List<byte[]> saltedKeys) {
+		if(ids.containsKey(listener)) return false;
+		int needed = used + saltedKeys.size();
+		if(needed > (fingerprints.length >> 1) + (fingerprints.length >> 2))
+			rebuild(needed - dead);
+		int id = listeners.size();
+		listeners.add(listener);
+		ids.put(listener, id);
+		if(id >= counts.length)
+			counts = Arrays.copyOf(counts, Math.max(counts.length * 2, id + 1));
+		int count = 0;
+		int mask = fingerprints.length - 1;
+		for(byte[] saltedKey : saltedKeys) {
+			int f = fingerprint(saltedKey);
+			int i = f & mask;
+			while(fingerprints[i] != 0) {
+				// Don't add the same key twice for the same listener.
+				if(fingerprints[i] == f && owners[i] == id) break;
+				i = (i + 1) & mask;
+			}
+			if(fingerprints[i] != 0) continue;
+			fingerprints[i] = f;
+			owners[i] = id;
+			count++;
+		}
+		used += count;
+		counts[id] = count;
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return ids.containsKey(listener);
+	}
+
+	/** @return True if the listener was indexed. */
+	boolean remove(KeyListener listener) {
+		Integer id = ids.remove(listener);
+		if(id == null) return false;
+		listeners.set(id, null);
+		removed++;
+		dead += counts[id];
+		counts[id] = 0;
+		if((dead > MIN_CAPACITY / 2 && dead > used / 2) ||
+				(removed > 64 && removed > listeners.size() / 2))
+			rebuild(used - dead);
+		return true;
+	}
+
+	/**
+	 * Add the listeners which may want the key to the list, in the order they were added, without
+	 * duplicates.
+	 */
+	void lookup(byte[] saltedKey, List<KeyListener> out) {
+		int f = fingerprint(saltedKey);
+		int mask = fingerprints.length - 1;
+		int[] found = null;
+		int count = 0;
+		for(int i = f & mask; fingerprints[i] != 0; i = (i + 1) & mask) {
+			if(fingerprints[i] != f) continue;
+			if(listeners.get(owners[i]) == null) continue;
+			if(found == null)
+				found = new int[4];
+			else if(count == found.length)
+				found = Arrays.copyOf(found, count * 2);
+			found[count++] = owners[i];
+		}
+		if(count == 0) return;
+		if(count > 1) Arrays.sort(found, 0, count);
+		for(int i=0;i<count;i++) {
+			if(i > 0 && found[i] == found[i-1]) continue;
+			out.add(listeners.get(found[i]));
+		}
+	}
+
+	/** @return The number of indexed listeners. */
+	int countListeners() {
+		return ids.size();
+	}
+
+	/** @return The number of keys indexed for live listeners. */
+	int countKeys() {
+		return used - dead;
+	}
+
+	/**
+	 * Discard the entries for removed listeners, renumber the rest (keeping their order), and
+	 * resize the table for the given number of entries.
+	 */
+	private void rebuild(int entries) {
+		int[] renumber = new int[listeners.size()];
+		ArrayList<KeyListener> live = new ArrayList<KeyListener>(listeners.size());
+		int[] newCounts = new int[Math.max(16, counts.length)];
+		for(int i=0;i<listeners.size();i++) {
+			KeyListener l = listeners.get(i);
+			if(l == null) {
+				renumber[i] = -1;
+			} else {
+				renumber[i] = live.size();
+				newCounts[live.size()] = counts[i];
+				live.add(l);
+			}
+		}
+		int capacity = MIN_CAPACITY;
+		// Keep the load factor under 1/2 after rebuilding.
+		while(capacity < entries * 2) capacity <<= 1;
+		int[] oldFingerprints = fingerprints;
+		int[] oldOwners = owners;
+		fingerprints = new int[capacity];
+		owners = new int[capacity];
+		int mask = capacity - 1;
+		used = 0;
+		for(int i=0;i<oldFingerprints.length;i++) {
+			int f = oldFingerprints[i];
+			if(f == 0) continue;
+			int owner = renumber[oldOwners[i]];
+			if(owner == -1) continue;
+			int j = f & mask;
+			while(fingerprints[j] != 0) j = (j + 1) & mask;
+			fingerprints[j] = f;
+			owners[j] = owner;
+			used++;
+		}
+		dead = 0;
+		removed = 0;
+		listeners.clear();
+		listeners.addAll(live);
+		for(int i=0;i<live.size();i++)
+			ids.put(live.get(i), i);
+		counts = newCounts;
+	}
+
+}
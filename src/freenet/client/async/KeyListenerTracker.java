@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import static java.lang.String.format;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,6 +17,7 @@ import freenet.keys.KeyBlock;
 import freenet.keys.NodeSSK;
 import freenet.node.SendableGet;
 import freenet.node.SendableRequest;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -62,6 +64,12 @@ class KeyListenerTracker implements KeySalter {
 	protected final ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	private final ArrayList<KeyListener> keyListeners;
+	/** The listeners in keyListeners which have listed their keys, so we only need to ask them
+	 * about keys they have listed. */
+	private final KeyListenerIndex index;
+	/** The listeners in keyListeners which are not in the index. We must ask all of them about
+	 * every key. */
+	private final ArrayList<KeyListener> unindexedListeners;
 
 	final boolean persistent;
 	
@@ -75,6 +83,8 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		index = new KeyListenerIndex();
+		unindexedListeners = new ArrayList<KeyListener>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -102,15 +112,69 @@ class KeyListenerTracker implements KeySalter {
 			if(keyListeners.contains(listener))
 				return;
 			keyListeners.add(listener);
+			unindexedListeners.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+		if(listener instanceof IndexableKeyListener)
+			scheduleIndex((IndexableKeyListener) listener);
+	}
+	
+	private void scheduleIndex(final IndexableKeyListener listener) {
+		Executor executor = null;
+		if(sched != null && sched.clientContext != null)
+			executor = sched.clientContext.mainExecutor;
+		if(executor == null) {
+			index(listener);
+			return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				index(listener);
+			}
+			
+		}, "Indexing keys for "+listener);
+	}
+	
+	/** Move a listener from the unindexed list to the index. Until then it is asked about every key. */
+	void index(IndexableKeyListener listener) {
+		List<Key> keys;
+		try {
+			keys = listener.listKeys();
+		} catch (IOException e) {
+			Logger.error(this, format("Unable to list keys for %s: %s", listener, e), e);
+			return;
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in listKeys callback for %s", listener), t);
+			return;
+		}
+		if(keys == null) return;
+		List<byte[]> saltedKeys = new ArrayList<byte[]>(keys.size());
+		for(Key key : keys)
+			saltedKeys.add(saltKey(key));
+		synchronized(this) {
+			// It may have been removed while we were listing the keys.
+			if(!keyListeners.contains(listener)) return;
+			if(index.add(listener, saltedKeys))
+				unindexedListeners.remove(listener);
+		}
+		if(logMINOR)
+			Logger.minor(this, "Indexed "+saltedKeys.size()+" keys for "+listener+" on "+this);
+	}
+	
+	/** @return The number of listeners which are asked about every key. */
+	public synchronized int countUnindexedListeners() {
+		return unindexedListeners.size();
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			index.remove(listener);
+			unindexedListeners.remove(listener);
 		}
 		listener.onRemove();
 		if (logMINOR)
@@ -201,7 +265,10 @@ class KeyListenerTracker implements KeySalter {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
+		index.lookup(saltedKey, candidates);
+		candidates.addAll(unindexedListeners);
+		for (KeyListener listener : candidates) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
 					return true;
@@ -298,12 +365,16 @@ class KeyListenerTracker implements KeySalter {
 	}
 
 	/**
-	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
+	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey). Only asks
+	 * the indexed listeners which have listed the key, and the unindexed listeners.
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
+			index.lookup(saltedKey, candidates);
+			candidates.addAll(unindexedListeners);
+			for (KeyListener listener : candidates) {
 				try {
 					if (!listener.probablyWantKey(key, saltedKey)) {
 						continue;
@@ -1,5 +1,8 @@
 package freenet.client.async;
 
+import java.util.Collections;
+import java.util.List;
+
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeSSK;
@@ -7,7 +10,7 @@ import freenet.node.LowLevelGetException;
 import freenet.node.SendableGet;
 import freenet.support.Logger;
 
-public class SingleKeyListener implements KeyListener {
+public class SingleKeyListener implements IndexableKeyListener {
 	
 	private final Key key;
 	private final BaseSingleFileFetcher fetcher;
@@ -76,6 +79,11 @@ public class SingleKeyListener implements KeyListener {
 		return key.equals(this.key);
 	}
 
+	@Override
+	public List<Key> listKeys() {
+		return Collections.singletonList(key);
+	}
+
 	@Override
 	public synchronized void onRemove() {
 		done = true;
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -22,7 +24,7 @@ import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexableKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -256,6 +258,18 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return false;
     }
 
+    @Override
+    public List<Key> listKeys() throws IOException {
+        ArrayList<Key> keys = new ArrayList<Key>();
+        for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+            SplitFileSegmentKeys segmentKeys = segment.getSegmentKeys();
+            if(segmentKeys == null) return null;
+            for(int j=0;j<segmentKeys.totalKeys();j++)
+                keys.add(segmentKeys.getKey(j, null, false).getNodeKey(false));
+        }
+        return keys;
+    }
+
     @Override
     public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
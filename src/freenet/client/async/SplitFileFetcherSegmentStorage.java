@@ -6,6 +6,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -351,17 +352,29 @@ public class SplitFileFetcherSegmentStorage {
         }
         
         int totalBlocks = totalBlocks();
-        byte[][] allBlocks = readAllBlocks();
+        // The slots are read into the start of the buffer, and any blocks we don't have are 
+        // decoded or encoded into the rest of it.
+        byte[] segment = SplitFileSegmentBuffers.get(totalBlocks * CHKBlock.DATA_LENGTH);
+        try {
+            innerDecode(segment);
+        } finally {
+            SplitFileSegmentBuffers.release(segment);
+        }
+    }
+    
+    private void innerDecode(byte[] segment) throws IOException {
+        int totalBlocks = totalBlocks();
+        readAllBlocks(segment);
         SplitFileSegmentKeys keys = getSegmentKeys();
-        if(allBlocks == null || keys == null) {
+        if(keys == null) {
             return;
         }
         class MyBlock {
-            final byte[] buf;
+            final int offset;
             final int blockNumber;
             final int slot;
-            MyBlock(byte[] buf, int blockNumber, int slot) {
-                this.buf = buf;
+            MyBlock(int offset, int blockNumber, int slot) {
+                this.offset = offset;
                 this.blockNumber = blockNumber;
                 this.slot = slot;
             }
@@ -375,7 +388,7 @@ public class SplitFileFetcherSegmentStorage {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has bogus block number "+blocksFetched[i]);
                     if(blocksFetched[i] != -1)
                         blocksFetched[i] = -1;
-                    maybeBlocks.add(new MyBlock(allBlocks[i], (short)-1, i));
+                    maybeBlocks.add(new MyBlock(i * CHKBlock.DATA_LENGTH, (short)-1, i));
                     continue;
                 } else if(used[blocksFetched[i]]) {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has duplicate block number "+blocksFetched[i]);
@@ -383,7 +396,7 @@ public class SplitFileFetcherSegmentStorage {
                     continue;
                 } else {
                     if(logMINOR) Logger.minor(this, "Found block "+blocksFetched[i]+" in slot "+i);
-                    maybeBlocks.add(new MyBlock(allBlocks[i], blocksFetched[i], i));
+                    maybeBlocks.add(new MyBlock(i * CHKBlock.DATA_LENGTH, blocksFetched[i], i));
                     used[blocksFetched[i]] = true;
                     fetchedCount++;
                 }
@@ -413,18 +426,17 @@ public class SplitFileFetcherSegmentStorage {
         // Check the blocks and put them into the correct positions.
         int validBlocks = 0;
         int validDataBlocks = 0;
-        byte[][] dataBlocks = new byte[blocksForDecode()][];
-        byte[][] checkBlocks = new byte[this.checkBlocks][];
+        ByteBuffer[] dataBlocks = new ByteBuffer[blocksForDecode()];
+        ByteBuffer[] checkBlocks = new ByteBuffer[this.checkBlocks];
         
         for(MyBlock test : maybeBlocks) {
             boolean failed = false;
             int blockNumber = test.blockNumber;
-            byte[] buf = test.buf;
             ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
             // Encode it to check whether the key is the same.
             try {
                 ClientCHKBlock block =
-                    ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                    ClientCHKBlock.encodeSplitfileBlock(segment, test.offset, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
                 ClientCHK actualKey = block.getClientKey();
                 if(decodeKey == null || !decodeKey.equals(actualKey)) {
                     // Is it a different block?
@@ -455,13 +467,13 @@ public class SplitFileFetcherSegmentStorage {
                 validBlocks++;
                 if(blockNumber < blocksForDecode())
                     validDataBlocks++;
+                ByteBuffer buf = ByteBuffer.wrap(segment, test.offset, CHKBlock.DATA_LENGTH);
                 if(blockNumber < dataBlocks.length)
                     dataBlocks[blockNumber] = buf;
                 else
                     checkBlocks[blockNumber - dataBlocks.length] = buf;
             }
         }
-        allBlocks = null;
         maybeBlocks.clear();
         maybeBlocks = null;
         if(validBlocks < blocksForDecode()) {
@@ -477,20 +489,25 @@ public class SplitFileFetcherSegmentStorage {
         }
         boolean[] dataBlocksPresent = new boolean[dataBlocks.length];
         boolean[] checkBlocksPresent = new boolean[checkBlocks.length];
+        // The missing blocks go after the slots, which are all either valid or unused.
+        int spare = blocksForDecode() * CHKBlock.DATA_LENGTH;
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocks[i] == null) {
-                dataBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
+                dataBlocks[i] = ByteBuffer.wrap(segment, spare, CHKBlock.DATA_LENGTH);
+                spare += CHKBlock.DATA_LENGTH;
             } else {
                 dataBlocksPresent[i] = true;
             }
         }
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocks[i] == null) {
-                checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
+                checkBlocks[i] = ByteBuffer.wrap(segment, spare, CHKBlock.DATA_LENGTH);
+                spare += CHKBlock.DATA_LENGTH;
             } else {
                 checkBlocksPresent[i] = true;
             }
         }
+        assert(spare <= totalBlocks * CHKBlock.DATA_LENGTH);
         if(validDataBlocks < blocksForDecode()) {
             if(logMINOR) Logger.minor(this, "Decoding in memory for "+this);
             parent.fecCodec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
@@ -536,7 +553,7 @@ public class SplitFileFetcherSegmentStorage {
         if(logMINOR) Logger.minor(this, "Finished decoding "+this+" for "+parent);
     }
 
-    private void checkDecodedDataBlocks(byte[][] dataBlocks, boolean[] dataBlocksPresent, 
+    private void checkDecodedDataBlocks(ByteBuffer[] dataBlocks, boolean[] dataBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocksPresent[i]) continue;
@@ -544,7 +561,7 @@ public class SplitFileFetcherSegmentStorage {
             // Encode it to check whether the key is the same.
             ClientCHKBlock block;
             try {
-                block = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                block = encodeSplitfileBlock(dataBlocks[i], decodeKey);
                 ClientCHK actualKey = block.getClientKey();
                 if(!actualKey.equals(decodeKey)) {
                     if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
@@ -568,7 +585,7 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
-    private boolean checkEncodedDataBlocks(byte[][] checkBlocks, boolean[] checkBlocksPresent, 
+    private boolean checkEncodedDataBlocks(ByteBuffer[] checkBlocks, boolean[] checkBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocksPresent[i]) continue;
@@ -576,7 +593,7 @@ public class SplitFileFetcherSegmentStorage {
             // Encode it to check whether the key is the same.
             ClientCHKBlock block;
             try {
-                block = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                block = encodeSplitfileBlock(checkBlocks[i], decodeKey);
                 ClientCHK actualKey = block.getClientKey();
                 if(!actualKey.equals(decodeKey)) {
                     Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
@@ -594,7 +611,13 @@ public class SplitFileFetcherSegmentStorage {
         return true;
     }
 
-    private void queueHeal(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) throws IOException {
+    /** Encode a block which is a slice of the segment buffer. */
+    private static ClientCHKBlock encodeSplitfileBlock(ByteBuffer buf, ClientCHK key) throws CHKEncodeException {
+        return ClientCHKBlock.encodeSplitfileBlock(buf.array(), buf.arrayOffset() + buf.position(),
+                key.getCryptoKey(), key.getCryptoAlgorithm());
+    }
+
+    private void queueHeal(ByteBuffer[] dataBlocks, ByteBuffer[] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) throws IOException {
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocksPresent[i]) continue;
             if(blockChooser.getRetries(i) == 0) continue;
@@ -607,7 +630,10 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
-    private void queueHeal(int blockNumber, byte[] data) throws IOException {
+    private void queueHeal(int blockNumber, ByteBuffer block) throws IOException {
+        // The healing queue keeps the data, and the segment buffer will be reused.
+        byte[] data = new byte[CHKBlock.DATA_LENGTH];
+        block.duplicate().get(data);
         byte[] cryptoKey;
         byte cryptoAlgorithm;
         if(parent.splitfileSingleCryptoKey != null) {
@@ -621,14 +647,12 @@ public class SplitFileFetcherSegmentStorage {
         parent.fetcher.queueHeal(data, cryptoKey, cryptoAlgorithm);
     }
 
-    private synchronized byte[][] readAllBlocks() throws IOException {
+    /** Read every slot into the start of the segment buffer, in slot order. */
+    private synchronized void readAllBlocks(byte[] segment) throws IOException {
         RAFLock lock = parent.lockRAFOpen();
         try {
-            // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
+            for(int i=0;i<blocksForDecode();i++)
+                parent.readBlock(this, i, segment, i * CHKBlock.DATA_LENGTH);
         } finally {
             lock.unlock();
         }
@@ -648,13 +672,14 @@ public class SplitFileFetcherSegmentStorage {
     }
 
     /** Write a full set of data blocks to disk and update the metadata accordingly. */
-    private void writeAllDataBlocks(byte[][] dataBlocks) throws IOException {
+    private void writeAllDataBlocks(ByteBuffer[] dataBlocks) throws IOException {
         RAFLock lock = parent.lockRAFOpen();
         try {
             synchronized(this) {
                 assert(dataBlocks.length == blocksForDecode());
                 for(int i=0;i<dataBlocks.length;i++) {
-                    writeDownloadedBlock(i, dataBlocks[i]);
+                    ByteBuffer buf = dataBlocks[i];
+                    parent.writeBlock(this, i, buf.array(), buf.arrayOffset() + buf.position());
                     blockChooser.onSuccess(i);
                     blocksFetched[i] = (short)i;
                 }
@@ -1735,6 +1735,12 @@ public class SplitFileFetcherStorage {
         raf.pwrite(segment.blockOffset(slotNumber), data, 0, data.length);
     }
 
+    /** Write a block which starts at the given offset in a larger buffer. */
+    void writeBlock(SplitFileFetcherSegmentStorage segment, int slotNumber, byte[] buf, int offset) 
+    throws IOException {
+        raf.pwrite(segment.blockOffset(slotNumber), buf, offset, CHKBlock.DATA_LENGTH);
+    }
+
     byte[] readBlock(SplitFileFetcherSegmentStorage segment, int slotNumber) 
     throws IOException {
         long offset = segment.blockOffset(slotNumber);
@@ -1744,6 +1750,12 @@ public class SplitFileFetcherStorage {
         return buf;
     }
 
+    /** Read a block into a larger buffer at the given offset. */
+    void readBlock(SplitFileFetcherSegmentStorage segment, int slotNumber, byte[] buf, int bufOffset) 
+    throws IOException {
+        raf.pread(segment.blockOffset(slotNumber), buf, bufOffset, CHKBlock.DATA_LENGTH);
+    }
+
     /** Needed for resuming. */
     LockableRandomAccessBuffer getRAF() {
         return raf;
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -383,10 +384,6 @@ public class SplitFileInserterSegmentStorage {
         return parent.readSegmentDataBlock(segNo, blockNo);
     }
     
-    private void writeCheckBlock(int checkBlockNo, byte[] buf) throws IOException {
-        parent.writeSegmentCheckBlock(segNo, checkBlockNo, buf);
-    }
-    
     public byte[] readCheckBlock(int checkBlockNo) throws IOException {
         assert(checkBlockNo >= 0 && checkBlockNo < checkBlockCount);
         return parent.readSegmentCheckBlock(segNo, checkBlockNo);
@@ -443,21 +440,21 @@ public class SplitFileInserterSegmentStorage {
 
     private void innerEncode(MemoryLimitedChunk chunk) {
         RAFLock lock = null;
+        byte[] segment = null;
         try {
             synchronized(this) {
                 if(cancelled) return;
             }
             lock = parent.lockRAF();
             if(logMINOR) Logger.minor(this, "Encoding "+this+" for "+parent);
-            byte[][] dataBlocks = readDataAndCrossCheckBlocks();
+            // The data and cross-check blocks, then the check blocks, as slices of one buffer.
+            segment = SplitFileSegmentBuffers.get(totalBlockCount * CHKBlock.DATA_LENGTH);
+            ByteBuffer[] dataBlocks = slices(segment, 0, dataBlockCount + crossCheckBlockCount);
+            ByteBuffer[] checkBlocks = slices(segment, dataBlocks.length, checkBlockCount);
+            readDataAndCrossCheckBlocks(segment);
             generateKeys(dataBlocks, 0);
-            byte[][] checkBlocks = new byte[checkBlockCount][];
-            for(int i=0;i<checkBlocks.length;i++)
-                checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-            if(dataBlocks == null || checkBlocks == null) return; // Failed with disk error.
             parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
-            for(int i=0;i<checkBlocks.length;i++)
-                writeCheckBlock(i, checkBlocks[i]);
+            parent.writeSegmentCheckBlocks(segNo, segment, dataBlocks.length * CHKBlock.DATA_LENGTH);
             generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
             synchronized(this) {
                 encoded = true;
@@ -470,29 +467,39 @@ public class SplitFileInserterSegmentStorage {
             parent.fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, t, null));
         } finally {
             if(lock != null) lock.unlock();
+            if(segment != null) SplitFileSegmentBuffers.release(segment);
         }
     }
 
+    /** Consecutive blocks of the segment buffer, starting at block number first. */
+    private static ByteBuffer[] slices(byte[] segment, int first, int count) {
+        ByteBuffer[] blocks = new ByteBuffer[count];
+        for(int i=0;i<count;i++)
+            blocks[i] = ByteBuffer.wrap(segment, (first + i) * CHKBlock.DATA_LENGTH, CHKBlock.DATA_LENGTH);
+        return blocks;
+    }
+
     /** Generate keys for each block and record them. 
      * @throws IOException */
-    private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
-        for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+    private void generateKeys(ByteBuffer[] blocks, int offset) throws IOException {
+        for(int i=0;i<blocks.length;i++) {
+            ByteBuffer buf = blocks[i];
+            setKey(i + offset, encodeBlock(buf.array(), buf.arrayOffset() + buf.position()).getClientKey());
         }
     }
 
-    private byte[][] readDataAndCrossCheckBlocks() throws IOException {
-        byte[][] data = new byte[dataBlockCount + crossCheckBlockCount][];
+    /** Read the data blocks and then the cross-check blocks into the start of the buffer. */
+    private void readDataAndCrossCheckBlocks(byte[] segment) throws IOException {
         RAFLock lock = parent.lockUnderlying();
         try {
-            for(int i=0;i<dataBlockCount;i++)
-                data[i] = readDataBlock(i);
+            parent.readSegmentDataBlocks(segNo, segment, 0);
         } finally {
             lock.unlock();
         }
-        for(int i=0;i<crossCheckBlockCount;i++)
-            data[i+dataBlockCount] = readCrossCheckBlock(i);
-        return data;
+        for(int i=0;i<crossCheckBlockCount;i++) {
+            byte[] block = readCrossCheckBlock(i);
+            System.arraycopy(block, 0, segment, (i + dataBlockCount) * CHKBlock.DATA_LENGTH, block.length);
+        }
     }
 
     private byte[] readCrossCheckBlock(int blockNo) throws IOException {
@@ -536,9 +543,14 @@ public class SplitFileInserterSegmentStorage {
     
     ClientCHKBlock encodeBlock(byte[] buf) {
         assert (buf.length == CHKBlock.DATA_LENGTH);
+        return encodeBlock(buf, 0);
+    }
+
+    /** Encode the block at the given offset in a larger buffer. */
+    private ClientCHKBlock encodeBlock(byte[] buf, int offset) {
         ClientCHKBlock block;
         try {
-            block = ClientCHKBlock.encodeSplitfileBlock(buf, splitfileCryptoKey,
+            block = ClientCHKBlock.encodeSplitfileBlock(buf, offset, splitfileCryptoKey,
                     splitfileCryptoAlgorithm);
         } catch (CHKEncodeException e) {
             throw new Error(e); // Impossible!
@@ -1353,14 +1353,29 @@ public class SplitFileInserterStorage {
         return buf;
     }
 
-    public void writeSegmentCheckBlock(int segNo, int checkBlockNo, byte[] buf) throws IOException {
+    /** Read all the data blocks for a segment, one after another, into buf at bufOffset. */
+    void readSegmentDataBlocks(int segNo, byte[] buf, int bufOffset) throws IOException {
         assert (segNo >= 0 && segNo < segments.length);
-        assert (checkBlockNo >= 0 && checkBlockNo < segments[segNo].checkBlockCount);
-        assert (buf.length == CHKBlock.DATA_LENGTH);
-        long offset = offsetSegmentCheckBlocks[segNo] + checkBlockNo * CHKBlock.DATA_LENGTH;
-        raf.pwrite(offset, buf, 0, buf.length);
+        int blocks = segments[segNo].dataBlockCount;
+        if (hasPaddedLastBlock && segNo == segments.length - 1) {
+            // The padded last block is stored separately.
+            blocks--;
+            raf.pread(offsetPaddedLastBlock, buf, bufOffset + blocks * CHKBlock.DATA_LENGTH, CHKBlock.DATA_LENGTH);
+        }
+        if (blocks == 0) return;
+        long offset = underlyingOffsetDataSegments[segNo];
+        int length = blocks * CHKBlock.DATA_LENGTH;
+        assert(offset + length <= dataLength);
+        originalData.pread(offset, buf, bufOffset, length);
     }
-    
+
+    /** Write all the check blocks for a segment, one after another, from buf at bufOffset. */
+    void writeSegmentCheckBlocks(int segNo, byte[] buf, int bufOffset) throws IOException {
+        assert (segNo >= 0 && segNo < segments.length);
+        raf.pwrite(offsetSegmentCheckBlocks[segNo], buf, bufOffset, 
+                segments[segNo].checkBlockCount * CHKBlock.DATA_LENGTH);
+    }
+
     public byte[] readSegmentCheckBlock(int segNo, int checkBlockNo) throws IOException {
         assert (segNo >= 0 && segNo < segments.length);
         assert (checkBlockNo >= 0 && checkBlockNo < segments[segNo].checkBlockCount);
@@ -0,0 +1,49 @@
+package freenet.client.async;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/** Buffers holding a whole segment while it is FEC decoded or encoded. Each block is a slice of
+ * the buffer rather than an array of its own, and the buffers are reused between segments, so
+ * a 128+128 block segment does not allocate 8MB of blocks every time. Idle buffers are only
+ * softly reachable, like the codecs cached by OnionFECCodec; while in use they are accounted for
+ * by the MemoryLimitedJob doing the decode or encode. */
+final class SplitFileSegmentBuffers {
+
+    /** Maximum number of idle buffers to keep. Normally there are only a few FEC jobs at once. */
+    static final int MAX_IDLE = 4;
+
+    private static final ArrayDeque<SoftReference<byte[]>> idle =
+        new ArrayDeque<SoftReference<byte[]>>();
+
+    private SplitFileSegmentBuffers() {
+        // Static only.
+    }
+
+    /** Get a buffer of at least the given length. Its contents are undefined. */
+    static byte[] get(int length) {
+        synchronized(idle) {
+            Iterator<SoftReference<byte[]>> it = idle.iterator();
+            while(it.hasNext()) {
+                byte[] buf = it.next().get();
+                if(buf == null) {
+                    it.remove();
+                } else if(buf.length >= length) {
+                    it.remove();
+                    return buf;
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    /** Return a buffer from get() once nothing refers to it any more. */
+    static void release(byte[] buf) {
+        synchronized(idle) {
+            if(idle.size() >= MAX_IDLE) idle.removeFirst();
+            idle.addLast(new SoftReference<byte[]>(buf));
+        }
+    }
+
+}
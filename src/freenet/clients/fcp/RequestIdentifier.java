@@ -62,6 +62,11 @@ public final class RequestIdentifier {
         dos.writeShort(type.ordinal());
     }
     
+    /** Is the request on the global queue? */
+    public boolean isGlobalQueue() {
+        return globalQueue;
+    }
+    
     /** Only compare the identifier, not the type. */
     public boolean sameIdentifier(RequestIdentifier other) {
         if(globalQueue != other.globalQueue) return false;
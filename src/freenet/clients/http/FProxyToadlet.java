@@ -6,8 +6,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -67,7 +65,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -140,7 +137,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
-	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+	/** Send the data, or a warning page about it. Frees the data, once it has been sent if
+	 * necessary. */
+	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, String maybeCharset) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -215,6 +214,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				byte[] pageBytes = pageNode.generate().getBytes("UTF-8");
 				context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), "text/html; charset=utf-8", pageBytes.length);
 				context.writeData(pageBytes);
+				data.free();
 				return;
 			}
 		}
@@ -237,44 +237,72 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// Send the data, intact
 			MultiValueTable<String, String> hdr = context.getHeaders();
 			String rangeStr = hdr.get("range");
+			boolean cache = container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK());
+			String etag = cache ? getETag(key, requestedMimeType, maybeCharset, !force) : null;
+			String ifRange = hdr.get("if-range");
+			if (rangeStr != null && ifRange != null && !ifRange.equals(etag)) {
+				// The client's copy is out of date, so it wants all of it.
+				rangeStr = null;
+			}
 			// was a range request
 			if (rangeStr != null) {
 
-				long range[];
+				long ranges[][];
 				try {
-					range = parseRange(rangeStr);
+					ranges = getRanges(parseRange(rangeStr), size);
 				} catch (HTTPRangeException e) {
-					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
+					MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+					retHdr.put("Content-Range", "bytes */" + size);
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", retHdr, null, 0);
+					data.free();
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
-				}
 				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-                retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+				retHdr.put("X-Content-Type-Options", "nosniff");
+				if (etag != null) retHdr.put("ETag", etag);
+				if (ranges.length == 1) {
+					long first = ranges[0][0];
+					long length = ranges[0][1] - first + 1;
+					retHdr.put("Content-Range", "bytes " + first + "-" + ranges[0][1] + "/" + size);
+					context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, length);
+					// Sent straight from the data, without copying the range first.
+					context.writeData(data, first, length);
+				} else {
+					byte[] boundary = new byte[16];
+					core.node.fastWeakRandom.nextBytes(boundary);
+					String sep = HexUtil.bytesToHex(boundary);
+					byte[][] partHeaders = new byte[ranges.length][];
+					byte[] end = ("\r\n--" + sep + "--\r\n").getBytes("US-ASCII");
+					long length = end.length;
+					for (int i = 0; i < ranges.length; i++) {
+						partHeaders[i] = getPartHeader(sep, mimeType, ranges[i], size);
+						length += partHeaders[i].length + ranges[i][1] - ranges[i][0] + 1;
+					}
+					context.sendReplyHeadersFProxy(206, "Partial content", retHdr, "multipart/byteranges; boundary=" + sep, length);
+					boolean handedOver = false;
+					try {
+						for (int i = 0; i < ranges.length; i++) {
+							context.writeData(partHeaders[i]);
+							// The earlier parts are sent before writeData() returns. The last
+							// one hands the data over, to be freed once it has been sent.
+							if (i == ranges.length - 1) {
+								handedOver = true;
+								context.writeData(data, ranges[i][0], ranges[i][1] - ranges[i][0] + 1);
+							} else {
+								context.writeData(new NoFreeBucket(data), ranges[i][0], ranges[i][1] - ranges[i][0] + 1);
+							}
+						}
+					} finally {
+						if (!handedOver) data.free();
+					}
+					context.writeData(end);
+				}
 			} else {
                 MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
                 retHdr.put("X-Content-Type-Options", "nosniff");
-                if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
+                retHdr.put("Accept-Ranges", "bytes");
+                if (cache) {
+                    retHdr.put("ETag", etag);
                     context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
                 } else {
                     context.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
@@ -284,6 +312,61 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	/** The data of a result from the FProxyFetchTracker. Freeing it closes the result, which
+	 * lets the tracker cancel the fetch and free the data, so it must not be freed until the
+	 * reply has been sent. */
+	static class FetchResultBucket extends NoFreeBucket {
+
+		private static final long serialVersionUID = 1L;
+		private transient FProxyFetchResult result;
+
+		FetchResultBucket(FProxyFetchResult result) {
+			super(result.data);
+			this.result = result;
+		}
+
+		@Override
+		public void free() {
+			FProxyFetchResult r;
+			synchronized(this) {
+				r = result;
+				result = null;
+			}
+			if(r != null) r.close();
+		}
+
+	}
+
+	/** The header of one part of a multipart/byteranges reply. */
+	static byte[] getPartHeader(String boundary, String mimeType, long[] range, long size) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\r\n--").append(boundary).append("\r\n");
+		if (mimeType != null)
+			sb.append("Content-Type: ").append(mimeType).append("\r\n");
+		sb.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(size).append("\r\n");
+		sb.append("\r\n");
+		return sb.toString().getBytes("US-ASCII");
+	}
+
+	/**
+	 * Entity tag for the content of a CHK or SSK. The key's data never changes, but what we send
+	 * depends on the type we are asked for and whether it is filtered, and the filter may change
+	 * between builds, so like the force value it is salted with the random value chosen at startup.
+	 */
+	private static String getETag(FreenetURI key, String requestedMimeType, String maybeCharset, boolean filtered) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		try{
+			bos.write(random);
+			bos.write(key.toString().getBytes("UTF-8"));
+			bos.write(("\n" + requestedMimeType + "\n" + maybeCharset + "\n" + filtered).getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+
+		return '"' + HexUtil.bytesToHex(Arrays.copyOf(SHA256.digest(bos.toByteArray()), 16)) + '"';
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -683,6 +766,17 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			else override = override+"&forcedownload";
 		}
 
+		if(container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
+			// The data can't have changed, so if the browser has it, don't fetch it again.
+			String etag = getETag(key, requestedMimeType, maybeCharset, !force && !httprequest.isParameterSet("forcedownload"));
+			if(ToadletContextImpl.etagMatches(ctx.getHeaders().get("if-none-match"), etag)) {
+				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+				retHdr.put("ETag", etag);
+				ctx.sendReplyHeadersStatic(304, "Not Modified", retHdr, null, -1, new Date());
+				return;
+			}
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -717,8 +811,10 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 
 				if(logMINOR) Logger.minor(this, "Found data");
-				data = new NoFreeBucket(fr.data);
+				// Closes fr once it has been sent, so the fetch can't free the data before then.
 				mimeType = fr.mimeType;
+				data = new FetchResultBucket(fr);
+				fr = null;
 				fetch.close(); // Not waiting any more, but still locked the results until sent
 				break;
 			} else if(fr.failed != null) {
@@ -828,7 +924,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, maybeCharset);
+			// The reply may still be being sent, and will free it when done.
+			data = null;
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1002,7 +1100,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		} catch (Throwable t) {
 			writeInternalError(t, ctx);
 		} finally {
-			if(fr == null && data != null) data.free();
+			if(data != null) data.free();
 			if(fr != null) fr.close();
 		}
 	}
@@ -1300,33 +1398,79 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/** The most ranges we will send in one reply. */
+	static final int MAX_RANGES = 16;
+
+	/**
+	 * Parse a Range header, e.g. "bytes=0-499", "bytes=500-,0-99" or "bytes=-500".
+	 * @return {from, to} for each range, in the order given. from is -1 for a suffix range,
+	 * meaning the last "to" bytes, and to is -1 if the range runs to the end.
+	 */
+	static long[][] parseRange(String hdrrange) throws HTTPRangeException {
 
-		long result[] = new long[2];
 		try {
 			String[] units = hdrrange.split("=", 2);
 			// FIXME are MBytes and co valid? if so, we need to adjust the values and
 			// return always bytes
-			if (!"bytes".equals(units[0])) {
+			if (!"bytes".equals(units[0].trim())) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			} else {
-				result[1] = -1;
+			String[] specs = units[1].split(",");
+			if (specs.length > MAX_RANGES)
+				throw new HTTPRangeException("Too many ranges");
+			long result[][] = new long[specs.length][2];
+			for (int i = 0; i < specs.length; i++) {
+				String[] range = specs[i].split("-", 2);
+				String from = range[0].trim();
+				String to = range[1].trim();
+				if (from.length() == 0) {
+					result[i][0] = -1;
+					result[i][1] = Long.parseLong(to);
+					if (result[i][1] <= 0)
+						throw new HTTPRangeException("Empty suffix range");
+					continue;
+				}
+				result[i][0] = Long.parseLong(from);
+				if (result[i][0] < 0)
+					throw new HTTPRangeException("Negative 'from' value");
+				if (to.length() > 0) {
+					result[i][1] = Long.parseLong(to);
+					if (result[i][1] < result[i][0])
+						throw new HTTPRangeException("'to' value must not be less than 'from' value");
+				} else {
+					result[i][1] = -1;
+				}
 			}
+			return result;
 		} catch (NumberFormatException nfe) {
 			throw new HTTPRangeException(nfe);
 		} catch (IndexOutOfBoundsException ioobe) {
 			throw new HTTPRangeException(ioobe);
 		}
-		return result;
+	}
+
+	/**
+	 * Work out which bytes to send for the ranges from parseRange().
+	 * @return {first, last} for each range which overlaps the data.
+	 * @throws HTTPRangeException If none of them do.
+	 */
+	static long[][] getRanges(long[][] ranges, long size) throws HTTPRangeException {
+		List<long[]> result = new ArrayList<long[]>(ranges.length);
+		for (long[] range : ranges) {
+			long first = range[0];
+			long last = range[1];
+			if (first == -1) {
+				first = Math.max(0, size - last);
+				last = size - 1;
+			} else if (last == -1 || last >= size) {
+				last = size - 1;
+			}
+			if (first > last) continue;
+			result.add(new long[] { first, last });
+		}
+		if (result.isEmpty())
+			throw new HTTPRangeException("No satisfiable range");
+		return result.toArray(new long[result.size()][]);
 	}
 
 	@Override
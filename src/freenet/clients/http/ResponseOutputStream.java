@@ -0,0 +1,419 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+/**
+ * The reply side of a connection handled by ToadletSelector. Toadlets write to it from their own
+ * thread just as they would to a socket, but the data is only queued, and the selector sends it
+ * as fast as the client accepts it. Buckets are queued rather than copied, and either sent
+ * straight from their file by the selector or read a chunk at a time on the executor, so a slow
+ * client downloading a big file ties up neither a thread nor the selector, and a range of a file
+ * is sent without reading what comes before it.
+ *
+ * Byte arrays are copied, so writers block once MAX_BUFFERED bytes are waiting to be sent.
+ *
+ * LOCKING: Everything is synchronized on the stream. The queued ByteBuffers are not touched by
+ * writers after they are queued.
+ */
+class ResponseOutputStream extends OutputStream {
+
+	/** Writers block when this much is queued in byte arrays. Buckets don't count. */
+	static final int MAX_BUFFERED = 256*1024;
+	/** How much of a Bucket to read at once. */
+	static final int BUCKET_CHUNK = 32*1024;
+	/** The most to send straight from a file in one writeTo(), so a slow disk holds up the
+	 * other connections for at most this much. */
+	static final int MAX_TRANSFER = 8*BUCKET_CHUNK;
+	/** The most buffers to send in one gathering write. */
+	private static final int MAX_GATHER = 16;
+
+	/** Told when there is something new to send. */
+	interface Listener {
+
+		/** There is data to send. Called at most once until the next writeTo(). */
+		void dataReady();
+
+		/** Reading a Bucket failed. The connection must be closed, as the reply is incomplete. */
+		void failed(IOException e);
+
+	}
+
+	private final Executor executor;
+	private final Listener listener;
+	/** ByteBuffers and Slices, in the order they must be sent. */
+	private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+	/** Bytes queued in ByteBuffers. */
+	private long buffered;
+	/** Chunks of Buckets are read into this, one Slice at a time. */
+	private byte[] chunkBuf;
+	/** True while the Slice at the head of the queue is being opened or read on the executor. */
+	private boolean reading;
+	/** True if the listener has been told there is data and writeTo() has not run since. */
+	private boolean signalled;
+	private boolean closed;
+	private long totalWritten;
+
+	ResponseOutputStream(Executor executor, Listener listener) {
+		this.executor = executor;
+		this.listener = listener;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		if(length == 0) return;
+		byte[] copy = new byte[length];
+		System.arraycopy(buf, offset, copy, 0, length);
+		synchronized(this) {
+			while(buffered >= MAX_BUFFERED && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(closed) throw new IOException("Connection closed");
+			queue.add(ByteBuffer.wrap(copy));
+			buffered += length;
+			if(!shouldSignal()) return;
+		}
+		listener.dataReady();
+	}
+
+	/** Queue a Bucket to be sent. We take ownership of it, and free it once it has been sent. */
+	public void write(Bucket data) throws IOException {
+		write(data, 0, -1);
+	}
+
+	/**
+	 * Queue part of a Bucket to be sent. We take ownership of it, and free it once it has been
+	 * sent. If the data is kept unencrypted in a file, it is sent straight from the file with
+	 * FileChannel.transferTo(); otherwise we skip to the offset and read a chunk at a time.
+	 * @param length The number of bytes to send, or -1 for the rest of the Bucket. If the Bucket
+	 * is shorter than that, the reply is incomplete and the connection is closed.
+	 */
+	public void write(Bucket data, long offset, long length) throws IOException {
+		synchronized(this) {
+			if(!closed) {
+				queue.add(new Slice(data, offset, length));
+				if(!shouldSignal()) return;
+				data = null;
+			}
+		}
+		if(data != null) {
+			data.free();
+			throw new IOException("Connection closed");
+		}
+		listener.dataReady();
+	}
+
+	/**
+	 * Queue part of a Bucket which the caller still owns, e.g. a NoFreeBucket, and wait until it
+	 * has been sent. The caller may free the data as soon as this returns.
+	 * @param length The number of bytes to send, or -1 for the rest of the Bucket.
+	 * @throws IOException If the connection is closed before all of it has been sent.
+	 */
+	public void writeBorrowed(Bucket data, long offset, long length) throws IOException {
+		Slice slice = new Slice(data, offset, length);
+		boolean signal;
+		synchronized(this) {
+			if(closed) throw new IOException("Connection closed");
+			queue.add(slice);
+			signal = shouldSignal();
+		}
+		if(signal) listener.dataReady();
+		synchronized(this) {
+			while(!slice.done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(!slice.sent) throw new IOException("Connection closed");
+		}
+	}
+
+	/** Close a slice and wake up anyone waiting for it to be sent.
+	 * LOCKING: Must be called with the lock held. */
+	private void finish(Slice slice) {
+		slice.close();
+		notifyAll();
+	}
+
+	/** LOCKING: Must be called with the lock held. */
+	private boolean shouldSignal() {
+		if(signalled) return false;
+		signalled = true;
+		return true;
+	}
+
+	/**
+	 * Send as much as possible. Called by the selector thread.
+	 * @return True if the channel is full and we should be called again when it is writable.
+	 * False if we have sent everything we have so far, in which case the listener will be told
+	 * when there is more.
+	 */
+	synchronized boolean writeTo(GatheringByteChannel channel) throws IOException {
+		signalled = false;
+		ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		while(!closed) {
+			Object head = queue.peek();
+			if(head == null) return false;
+			if(head instanceof Slice) {
+				Slice slice = (Slice) head;
+				if(reading) return false;
+				if(slice.file != null) {
+					if(!transfer(slice, channel)) return true;
+				} else {
+					if(slice.chunk != null && slice.chunk.hasRemaining()) {
+						totalWritten += channel.write(slice.chunk);
+						if(slice.chunk.hasRemaining()) return true;
+					}
+					if(!slice.eof) {
+						reading = true;
+						executor.execute(new ChunkReader(slice), "Reading reply for HTTP client");
+						return false;
+					}
+				}
+				queue.poll();
+				slice.sent = true;
+				finish(slice);
+				continue;
+			}
+			int count = 0;
+			for(Iterator<Object> it = queue.iterator(); it.hasNext() && count < MAX_GATHER;) {
+				Object o = it.next();
+				if(!(o instanceof ByteBuffer)) break;
+				gather[count++] = (ByteBuffer) o;
+			}
+			long written = channel.write(gather, 0, count);
+			totalWritten += written;
+			buffered -= written;
+			if(written > 0) notifyAll();
+			for(int i=0;i<count;i++) {
+				if(gather[i].hasRemaining()) return true;
+				queue.poll();
+			}
+		}
+		return false;
+	}
+
+	/** Send a slice straight from its file. The kernel copies from the page cache to the socket,
+	 * but if the file is not cached it reads from disk first, on the selector thread. So each
+	 * call sends at most BUCKET_CHUNK, and we stop after MAX_TRANSFER and let the selector get
+	 * on with other connections before coming back for more.
+	 * LOCKING: Must be called with the lock held.
+	 * @return True if all of it has been sent, false if the channel is full or we have sent
+	 * enough for now. */
+	private boolean transfer(Slice slice, WritableByteChannel channel) throws IOException {
+		long transferred = 0;
+		while(slice.remaining > 0) {
+			if(transferred >= MAX_TRANSFER) return false;
+			long sent = slice.file.transferTo(slice.position, Math.min(slice.remaining, BUCKET_CHUNK), channel);
+			if(sent <= 0) {
+				if(slice.position >= slice.file.size())
+					throw new IOException("File is shorter than the reply: "+slice.bucket);
+				return false;
+			}
+			slice.position += sent;
+			slice.remaining -= sent;
+			totalWritten += sent;
+			transferred += sent;
+		}
+		return true;
+	}
+
+	/** Part of a Bucket which is queued to be sent, and how far we have got with it. Only the
+	 * head of the queue is ever opened. */
+	private static class Slice {
+
+		final Bucket bucket;
+		/** Where to read from next. */
+		long position;
+		/** Bytes left to send, or -1 to send to the end of the Bucket. */
+		long remaining;
+		/** Set if the data is sent straight from a file. */
+		FileChannel file;
+		/** Set if the data is read a chunk at a time. */
+		InputStream in;
+		/** The chunk being sent. */
+		ByteBuffer chunk;
+		/** True once the last chunk has been read. */
+		boolean eof;
+		/** True once all of it has been sent. */
+		boolean sent;
+		/** True once it has been closed, whether or not it was all sent. */
+		boolean done;
+
+		Slice(Bucket bucket, long offset, long length) {
+			this.bucket = bucket;
+			this.position = offset;
+			this.remaining = length;
+		}
+
+		void close() {
+			try (InputStream is = in; FileChannel fc = file) {
+				in = null;
+				file = null;
+			} catch (IOException e) {
+				// Ignore, we are done with it.
+			}
+			done = true;
+			bucket.free();
+		}
+
+	}
+
+	/** Opens a slice and reads its next chunk. */
+	private class ChunkReader implements Runnable {
+
+		private final Slice slice;
+
+		ChunkReader(Slice slice) {
+			this.slice = slice;
+		}
+
+		@Override
+		public void run() {
+			InputStream is;
+			FileChannel fc = null;
+			long position;
+			long remaining;
+			byte[] buf;
+			synchronized(ResponseOutputStream.this) {
+				is = slice.in;
+				position = slice.position;
+				remaining = slice.remaining;
+				if(chunkBuf == null) chunkBuf = new byte[BUCKET_CHUNK];
+				buf = chunkBuf;
+			}
+			int length = 0;
+			boolean eof = false;
+			try {
+				if(is == null) {
+					File f = BucketTools.getPlainFile(slice.bucket);
+					if(f != null) {
+						fc = new FileInputStream(f).getChannel();
+						if(remaining < 0) remaining = Math.max(0, fc.size() - position);
+					} else {
+						is = slice.bucket.getInputStream();
+						if(position > 0) FileUtil.skipFully(is, position);
+					}
+				}
+				if(fc == null) {
+					int max = remaining < 0 ? buf.length : (int) Math.min(buf.length, remaining);
+					while(length < max) {
+						int read = is.read(buf, length, max - length);
+						if(read < 0) {
+							if(remaining >= 0)
+								throw new EOFException("Bucket is shorter than the reply: "+slice.bucket);
+							eof = true;
+							break;
+						}
+						length += read;
+					}
+					if(remaining >= 0) {
+						remaining -= length;
+						eof = remaining == 0;
+					}
+				}
+			} catch (IOException e) {
+				Logger.normal(this, "Unable to read reply for HTTP client: "+e, e);
+				try (InputStream in = is; FileChannel channel = fc) {
+					// Only closing them.
+				} catch (IOException e1) {
+					// Ignore.
+				}
+				synchronized(ResponseOutputStream.this) {
+					reading = false;
+					slice.in = null;
+					if(closed) finish(slice);
+				}
+				listener.failed(e);
+				return;
+			}
+			synchronized(ResponseOutputStream.this) {
+				reading = false;
+				slice.in = is;
+				slice.file = fc;
+				slice.remaining = remaining;
+				if(closed) {
+					// Nobody else will free it.
+					finish(slice);
+					return;
+				}
+				if(fc == null) {
+					slice.position += length;
+					slice.chunk = ByteBuffer.wrap(buf, 0, length);
+					slice.eof = eof;
+				}
+				if(!shouldSignal()) return;
+			}
+			listener.dataReady();
+		}
+
+	}
+
+	/** @return True if nothing is waiting to be sent. */
+	synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/** @return The number of bytes sent so far. */
+	synchronized long totalWritten() {
+		return totalWritten;
+	}
+
+	/** Nothing more will be sent. Free everything which is queued, and fail any further writes.
+	 * Called when the connection is closed. */
+	void abort() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			notifyAll();
+			for(Object o : queue) {
+				if(!(o instanceof Slice)) continue;
+				// The chunk reader will free the head if it is running.
+				if(reading && o == queue.peek()) continue;
+				finish((Slice) o);
+			}
+			queue.clear();
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Sent as soon as possible anyway.
+	}
+
+	@Override
+	public void close() {
+		// The connection is closed by the selector.
+	}
+
+}
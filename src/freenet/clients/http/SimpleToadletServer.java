@@ -82,6 +82,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private NetworkInterface networkInterface;
 	private boolean ssl = false;
 	public static final int DEFAULT_FPROXY_PORT = 8888;
+	/** Set this system property to true to handle each connection on its own thread, as before
+	 * ToadletSelector. Always the case with SSL. */
+	public static final String BLOCKING_IO_PROPERTY = "freenet.fproxy.blockingIO";
 	
 	// ACL
 	private final AllowedHosts allowedFullAccess;
@@ -97,6 +100,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	// Control
 	private Thread myThread;
+	/** Handles connections once we have started up, unless we use blocking I/O. Created lazily. */
+	private ToadletSelector selector;
 	private final Executor executor;
 	private final Random random;
 	private BucketFactory bf;
@@ -319,6 +324,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				} else {
 					myThread.interrupt();
 					myThread = null;
+					if(selector != null) {
+						selector.close();
+						selector = null;
+					}
 					SimpleToadletServer.this.notifyAll();
 					return;
 				}
@@ -827,7 +836,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, !Boolean.getBoolean(BLOCKING_IO_PROPERTY));
 		}
 	}		
 
@@ -1003,11 +1012,45 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(finishedStartup && conn.getChannel() != null) {
+                // Only uses a thread while a toadlet is running.
+                synchronized(this) {
+                    fproxyConnections++;
+                }
+                try {
+                    getSelector().register(conn.getChannel());
+                } catch (IOException e) {
+                    Logger.error(this, "Unable to handle connection: "+e, e);
+                    connectionClosed();
+                    try {
+                        conn.close();
+                    } catch (IOException e1) {
+                        // Ignore
+                    }
+                }
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	private synchronized ToadletSelector getSelector() throws IOException {
+		if(selector == null) {
+			selector = new ToadletSelector(this, executor);
+			selector.start();
+		}
+		return selector;
+	}
+	
+	/** Called when we have finished with a connection. */
+	void connectionClosed() {
+		synchronized(this) {
+			fproxyConnections--;
+			notifyAll();
+		}
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1039,10 +1082,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				t.printStackTrace();
 				Logger.error(this, "Caught in SimpleToadletServer: "+t, t);
 			} finally {
-	            synchronized(SimpleToadletServer.this) {
-	            	fproxyConnections--;
-	            	SimpleToadletServer.this.notifyAll();
-	            }
+				connectionClosed();
 			}
 			if(logMINOR) Logger.minor(this, "Handled connection");
 		}
@@ -5,11 +5,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Date;
 
 import freenet.client.DefaultMIMETypes;
 import freenet.l10n.NodeL10n;
+import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.FileBucket;
@@ -75,7 +77,12 @@ public class StaticToadlet extends Toadlet {
 			}
 			try {
 				FileBucket fb = new FileBucket(from, true, false, false, false);
-				ctx.sendReplyHeadersStatic(200, "OK", null, DefaultMIMETypes.guessMIMEType(path, false), fb.size(), new Date(System.currentTimeMillis() - 1000)); // Already expired, we want it to reload it.
+				Date mTime = new Date(System.currentTimeMillis() - 1000); // Already expired, we want it to reload it.
+				// But it only needs to fetch it again if it has changed.
+				MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+				if(sendNotModified(ctx, headers, getETag(from.lastModified(), fb.size()), mTime))
+					return;
+				ctx.sendReplyHeadersStatic(200, "OK", headers, DefaultMIMETypes.guessMIMEType(path, false), fb.size(), mTime);
 				ctx.writeData(fb);
 				return;
 			} catch (IOException e) {
@@ -85,32 +92,67 @@ public class StaticToadlet extends Toadlet {
 			}
 		}
 		
-		InputStream strm = getClass().getResourceAsStream(ROOT_PATH+path);
-		if (strm == null) {
+		URL url = getClass().getResource(ROOT_PATH+path);
+		if (url == null) {
 			this.sendErrorPage(ctx, 404, l10n("pathNotFoundTitle"), l10n("pathNotFound"));
 			return;
 		}
-		Bucket data = ctx.getBucketFactory().makeBucket(strm.available());
-		OutputStream os = data.getOutputStream();
-		try {
-		byte[] cbuf = new byte[4096];
-		while(true) {
-			int r = strm.read(cbuf);
-			if(r == -1) break;
-			os.write(cbuf, 0, r);
+		Date mTime = getUrlMTime(url);
+		File file = toFile(url);
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		if (mTime != null) {
+			// Resources in the jar change when the jar does.
+			String etag = getETag(mTime.getTime(), file != null ? file.length() : -1);
+			if (sendNotModified(ctx, headers, etag, mTime))
+				return;
 		}
-		} finally {
-			strm.close();
-			os.close();
+
+		Bucket data;
+		if (file != null && file.isFile()) {
+			// Sent straight from the file.
+			data = new FileBucket(file, true, false, false, false);
+		} else {
+			InputStream strm = url.openStream();
+			data = ctx.getBucketFactory().makeBucket(strm.available());
+			OutputStream os = data.getOutputStream();
+			try {
+			byte[] cbuf = new byte[4096];
+			while(true) {
+				int r = strm.read(cbuf);
+				if(r == -1) break;
+				os.write(cbuf, 0, r);
+			}
+			} finally {
+				strm.close();
+				os.close();
+			}
 		}
 		
-		URL url = getClass().getResource(ROOT_PATH+path);
-		Date mTime = getUrlMTime(url);
-		
-		ctx.sendReplyHeadersStatic(200, "OK", null, DefaultMIMETypes.guessMIMEType(path, false), data.size(), mTime);
+		ctx.sendReplyHeadersStatic(200, "OK", headers, DefaultMIMETypes.guessMIMEType(path, false), data.size(), mTime);
 
 		ctx.writeData(data);
 	}
+
+	/** Entity tag for a static file, which changes whenever the file does. */
+	private static String getETag(long mTime, long size) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('"').append(Long.toHexString(mTime));
+		if (size >= 0)
+			sb.append('-').append(Long.toHexString(size));
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Add the ETag header, and if the browser already has this version of the file, tell it so.
+	 * @return True if we have sent 304 Not Modified, so there is nothing more to do.
+	 */
+	private static boolean sendNotModified(ToadletContext ctx, MultiValueTable<String, String> headers, String etag, Date mTime) throws ToadletContextClosedException, IOException {
+		headers.put("ETag", etag);
+		if (!ToadletContextImpl.etagMatches(ctx.getHeaders().get("if-none-match"), etag))
+			return false;
+		ctx.sendReplyHeadersStatic(304, "Not Modified", headers, null, -1, mTime);
+		return true;
+	}
 	
 	/**
 	 * Try to find the modification time for a URL, or return null if not possible
@@ -122,12 +164,25 @@ public class StaticToadlet extends Toadlet {
 			File f = new File(url.getPath().substring(0, url.getPath().indexOf('!')));
 			return new Date(f.lastModified());
 		} else if (url.getProtocol().equals("file")) {
-			File f = new File(url.getPath());
-			return new Date(f.lastModified());
+			File f = toFile(url);
+			return f == null ? null : new Date(f.lastModified());
 		} else {
 			return null;
 		}
 	}
+
+	/** @return The file a file: URL points to, or null if it isn't one. The path of the URL is
+	 * escaped, e.g. spaces are %20, so it can't be used as a filename directly. */
+	private static File toFile(URL url) {
+		if (!url.getProtocol().equals("file")) return null;
+		try {
+			return new File(url.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
 	
 	private String l10n(String key) {
 		return NodeL10n.getBase().getString("StaticToadlet."+key);
@@ -47,6 +47,7 @@ import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.io.SlabPool;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -733,6 +734,7 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("lockContention"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -794,6 +796,12 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", access);
 			row.addChild("td", thousandPoint.format(sessionAccess.falsePos()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.falsePos())+")")));
+			if(sessionAccess.lockAcquisitions() > 0)
+				row.addChild("td", thousandPoint.format(sessionAccess.lockContentions()) + " / " +
+						thousandPoint.format(sessionAccess.lockAcquisitions()) + " (" +
+						fix1p2.format(sessionAccess.lockWaitNanos() / 1000000.0 / Math.max(1, sessionAccess.lockContentions())) + "ms)");
+			else
+				row.addChild("td", "N/A");
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -1277,7 +1285,18 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.getUSM().getFilterCount());
+		overviewList.addChild("li", "averageFilterMatchTime:\u00a0" + fix1p2.format(node.getUSM().getAverageFilterMatchNanos() / 1000.0) + "\u00a0\u00b5s");
+		overviewList.addChild("li", "packetSenderLoopTime:\u00a0" + fix1p2.format(node.ps.getAverageLoopTimeNanos() / 1000.0) + "\u00a0\u00b5s (" + fix1p2.format(node.ps.getAveragePeersCheckedPerLoop()) + "\u00a0peers)");
+		long[] packets = node.collector.getTotalPackets();
+		double[] packetRates = node.collector.getPacketRates();
+		long[] droppedPackets = node.collector.getDroppedPackets();
+		overviewList.addChild("li", "udpPacketsIn:\u00a0" + packets[1] + " (" + fix1p2.format(packetRates[1]) + "/sec, " + droppedPackets[1] + "\u00a0dropped, " + fix1p2.format(node.collector.getAverageReceiveBatchSize()) + "\u00a0per\u00a0read)");
+		overviewList.addChild("li", "udpPacketsOut:\u00a0" + packets[0] + " (" + fix1p2.format(packetRates[0]) + "/sec, " + droppedPackets[0] + "\u00a0dropped)");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		SlabPool slabPool = core.tempBucketFactory.getSlabPool();
+		overviewList.addChild("li", "RAMBucketSlabs:\u00a0" + SizeUtil.formatSize(slabPool.getBytesInUse()) + " / " + SizeUtil.formatSize(slabPool.getBytesAllocated()) + "\u00a0direct, " + SizeUtil.formatSize(slabPool.getHeapBytesInUse()) + "\u00a0on\u00a0heap");
+		overviewList.addChild("li", "RAMBucketMigrations:\u00a0" + core.tempBucketFactory.getBackgroundMigrations() + "\u00a0background, " + core.tempBucketFactory.getWriterMigrations() + "\u00a0by\u00a0writer, " + core.tempBucketFactory.getWriterWaits() + "\u00a0writer\u00a0waits");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
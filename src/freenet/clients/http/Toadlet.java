@@ -207,7 +207,8 @@ public abstract class Toadlet {
 	 * @param data The Bucket which contains the reply data. This
 	 *        function assumes ownership of the Bucket, calling free()
 	 *        on it when done. If this behavior is undesired, callers
-	 *        can wrap their Bucket in a NoFreeBucket.
+	 *        can wrap their Bucket in a NoFreeBucket, and may free it
+	 *        once this returns.
 	 *
 	 * @see freenet.support.io.NoFreeBucket
 	 */
@@ -226,7 +227,8 @@ public abstract class Toadlet {
 	 * @param data The Bucket which contains the reply data. This
 	 *        function assumes ownership of the Bucket, calling free()
 	 *        on it when done. If this behavior is undesired, callers
-	 *        can wrap their Bucket in a NoFreeBucket.
+	 *        can wrap their Bucket in a NoFreeBucket, and may free it
+	 *        once this returns.
 	 *
 	 * @see freenet.support.io.NoFreeBucket
 	 */
@@ -0,0 +1,548 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.node.PrioRunnable;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.NativeThread;
+import freenet.support.io.TooLongException;
+
+/**
+ * A connection handled by ToadletSelector. Reads requests without blocking, spooling the body
+ * (if any) to a Bucket on the executor, and then runs the request on the executor through
+ * ToadletContextImpl.handle(), exactly as the blocking handler does, with the reply going to a
+ * ResponseOutputStream. Requests are handled one at a time and in order, so pipelined requests
+ * wait in the buffer until the previous one has been handled.
+ *
+ * LOCKING: Everything except the body spool is only accessed by the selector thread. Other
+ * threads use ToadletSelector.execute(). The spool is only accessed by the executor job writing
+ * the body or handling the request, which the selector thread hands over to and back from.
+ */
+final class ToadletConnection implements ResponseOutputStream.Listener, ToadletContextImpl.RequestBody {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum length of a line of the request head, as with the blocking handler. */
+	static final int MAX_LINE_LENGTH = 32768;
+	/** Maximum length of the request line and headers together. */
+	static final int MAX_HEAD_LENGTH = 65536;
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	/** Buffer size while reading a big body, i.e. how much is written to the spool at once. */
+	private static final int BODY_BUFFER_SIZE = 65536;
+
+	private enum State {
+		/** Waiting for the request line and headers. */
+		HEAD,
+		/** Reading the body. */
+		BODY,
+		/** The request is being handled on the executor. */
+		HANDLING
+	}
+
+	private final ToadletSelector selector;
+	private final SocketChannel channel;
+	private final InetAddress remoteAddr;
+	private final ResponseOutputStream out;
+	private SelectionKey key;
+	/** Data read from the client but not parsed yet. In write mode between calls. */
+	private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private State state = State.HEAD;
+	private String firstLine;
+	private List<String> headerLines;
+	/** Bytes of the body still to be read. */
+	private long bodyRemaining;
+	private long bodyLength;
+	/** If true, the body is read and thrown away, because we won't accept it. */
+	private boolean discardBody;
+	/** True while the executor is writing part of the body to the spool. */
+	private boolean spooling;
+	private Bucket spool;
+	private OutputStream spoolStream;
+	/** The client has closed its side of the connection. */
+	private boolean inputClosed;
+	/** Close the connection once the reply has been sent. */
+	private boolean closing;
+	/** The reply can't be sent yet because the client isn't reading it. */
+	private boolean writeBlocked;
+	private boolean closed;
+	private long lastActivity;
+
+	ToadletConnection(ToadletSelector selector, SocketChannel channel) {
+		this.selector = selector;
+		this.channel = channel;
+		this.remoteAddr = channel.socket().getInetAddress();
+		this.out = new ResponseOutputStream(selector.executor, this);
+		lastActivity = System.currentTimeMillis();
+	}
+
+	void register(Selector sel) throws IOException {
+		key = channel.register(sel, SelectionKey.OP_READ, this);
+	}
+
+	/** The channel is readable or writable. */
+	void ready(SelectionKey key) {
+		if(!key.isValid()) {
+			close();
+			return;
+		}
+		if(key.isWritable()) {
+			flush();
+			if(closed) return;
+		}
+		if(key.isReadable()) {
+			read();
+			if(closed) return;
+		}
+		updateInterest();
+	}
+
+	private void read() {
+		int read;
+		try {
+			read = channel.read(in);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Read failed: "+e+" on "+this);
+			close();
+			return;
+		}
+		if(read > 0) {
+			lastActivity = System.currentTimeMillis();
+			process();
+		} else if(read < 0) {
+			inputClosed = true;
+			if(state == State.BODY) {
+				// Incomplete request.
+				close();
+			} else if(state == State.HEAD) {
+				process();
+				if(state == State.HEAD) closeWhenSent();
+			}
+		}
+	}
+
+	/** Parse and handle as much as we can of what is in the buffer. */
+	private void process() {
+		while(!closed && !closing) {
+			switch(state) {
+			case HEAD:
+				List<String> lines = new ArrayList<String>();
+				in.flip();
+				boolean found;
+				try {
+					found = parseHead(in, lines);
+				} catch (TooLongException e) {
+					in.compact();
+					sendHeadTooLong();
+					return;
+				}
+				in.compact();
+				if(!found) {
+					if(!in.hasRemaining()) {
+						if(in.capacity() >= MAX_HEAD_LENGTH) {
+							sendHeadTooLong();
+						} else {
+							grow(Math.min(MAX_HEAD_LENGTH, in.capacity() * 2));
+						}
+					}
+					return;
+				}
+				firstLine = lines.get(0);
+				headerLines = lines.subList(1, lines.size());
+				bodyLength = getBodyLength(firstLine, headerLines);
+				bodyRemaining = bodyLength;
+				if(bodyLength > 0) {
+					discardBody = !ToadletContextImpl.acceptsData(selector.server, remoteAddr);
+					state = State.BODY;
+					if(bodyLength > in.capacity() && in.capacity() < BODY_BUFFER_SIZE)
+						grow(BODY_BUFFER_SIZE);
+				} else {
+					dispatch();
+					return;
+				}
+				break;
+			case BODY:
+				if(spooling) return;
+				in.flip();
+				int length = (int) Math.min(in.remaining(), bodyRemaining);
+				if(length == 0) {
+					in.compact();
+					return;
+				}
+				bodyRemaining -= length;
+				if(discardBody) {
+					in.position(in.position() + length);
+					in.compact();
+					if(bodyRemaining == 0) {
+						dispatch();
+						return;
+					}
+					break;
+				}
+				byte[] chunk = new byte[length];
+				in.get(chunk);
+				in.compact();
+				spooling = true;
+				selector.executor.execute(new BodyWriter(chunk, bodyRemaining == 0), "Reading HTTP request body");
+				return;
+			case HANDLING:
+				return;
+			}
+		}
+	}
+
+	private void grow(int size) {
+		in.flip();
+		ByteBuffer bigger = ByteBuffer.allocate(size);
+		bigger.put(in);
+		in = bigger;
+	}
+
+	/**
+	 * Find the request line and headers at the start of a buffer. Empty lines before the request
+	 * line are skipped, as with the blocking handler.
+	 * @param buf The data, in read mode. If the whole head is there, it is moved past it,
+	 * otherwise only past any empty lines at the start.
+	 * @param lines Where to put the request line and the headers, decoded as ISO-8859-1.
+	 * @return True if the whole head was found.
+	 * @throws TooLongException If a line is longer than MAX_LINE_LENGTH.
+	 */
+	static boolean parseHead(ByteBuffer buf, List<String> lines) throws TooLongException {
+		int start = buf.position();
+		int limit = buf.limit();
+		int lineStart = start;
+		for(int i=start;i<limit;i++) {
+			if(buf.get(i) != '\n') {
+				if(i - lineStart >= MAX_LINE_LENGTH + 1)
+					throw new TooLongException("Line too long");
+				continue;
+			}
+			int lineEnd = i;
+			if(lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') lineEnd--;
+			if(lineEnd - lineStart > MAX_LINE_LENGTH)
+				throw new TooLongException("Line too long");
+			if(lineEnd == lineStart) {
+				if(lines.isEmpty()) {
+					// Empty line before the request.
+					start = i + 1;
+					buf.position(start);
+				} else {
+					buf.position(i + 1);
+					return true;
+				}
+			} else {
+				lines.add(decode(buf, lineStart, lineEnd - lineStart));
+			}
+			lineStart = i + 1;
+		}
+		lines.clear();
+		return false;
+	}
+
+	private static String decode(ByteBuffer buf, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for(int i=0;i<length;i++)
+			bytes[i] = buf.get(offset + i);
+		try {
+			// ISO-8859-1 or US-ASCII, _not_ UTF-8
+			return new String(bytes, "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	/** @return The length of the body we must read before handling the request. Zero if it has
+	 * none, or if the request will be rejected before reading it, e.g. a GET with a body or an
+	 * invalid Content-Length. */
+	static long getBodyLength(String firstLine, List<String> headerLines) {
+		int index = firstLine.indexOf(' ');
+		if(index < 0 || !ToadletContextImpl.mayHaveData(firstLine.substring(0, index)))
+			return 0;
+		for(String line : headerLines) {
+			index = line.indexOf(':');
+			if(index < 0) return 0;
+			if(!line.substring(0, index).equalsIgnoreCase("content-length")) continue;
+			try {
+				long len = Integer.parseInt(line.substring(index+1).trim());
+				return len < 0 ? 0 : len;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/** Writes part of the body to the spool, and handles the request once it is all there. */
+	private class BodyWriter implements Runnable {
+
+		private final byte[] chunk;
+		private final boolean last;
+
+		BodyWriter(byte[] chunk, boolean last) {
+			this.chunk = chunk;
+			this.last = last;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(spool == null) {
+					BucketFactory bf = selector.server.getBucketFactory();
+					spool = bf.makeBucket(bodyLength);
+					spoolStream = spool.getOutputStream();
+				}
+				spoolStream.write(chunk);
+				if(last) {
+					spoolStream.close();
+					spoolStream = null;
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Unable to store HTTP request body: "+e, e);
+				freeSpool();
+				selector.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						close();
+					}
+
+				});
+				return;
+			}
+			if(last) {
+				// Already on the executor, so handle it here.
+				handleRequest();
+			} else {
+				selector.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						spooling = false;
+						if(closed) {
+							freeSpool();
+							return;
+						}
+						process();
+						updateInterest();
+					}
+
+				});
+			}
+		}
+
+	}
+
+	/** Handle the request we have just read. */
+	private void dispatch() {
+		state = State.HANDLING;
+		selector.executor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				handleRequest();
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.PriorityLevel.HIGH_PRIORITY.value-1;
+			}
+
+		}, "HTTP request handler for "+remoteAddr);
+	}
+
+	/** Called on the executor once the whole request has arrived. */
+	private void handleRequest() {
+		boolean keepAlive = false;
+		try {
+			keepAlive = ToadletContextImpl.handle(firstLine, headerLines, this, out, remoteAddr, selector.server,
+					selector.server.getPageMaker(), selector.server.getUserAlertManager(), selector.server.getBookmarks());
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" handling HTTP request", t);
+		} finally {
+			freeSpool();
+		}
+		final boolean keep = keepAlive;
+		selector.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				requestDone(keep);
+			}
+
+		});
+	}
+
+	private void requestDone(boolean keepAlive) {
+		if(closed) return;
+		lastActivity = System.currentTimeMillis();
+		state = State.HEAD;
+		if(!keepAlive || inputClosed) {
+			closeWhenSent();
+		} else {
+			process();
+		}
+		if(!closed) updateInterest();
+	}
+
+	private void sendHeadTooLong() {
+		state = State.HANDLING;
+		selector.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ToadletContextImpl.sendHeadersTooLong(out);
+				} catch (IOException e) {
+					// Ignore
+				}
+				selector.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						requestDone(false);
+					}
+
+				});
+			}
+
+		}, "HTTP error for "+remoteAddr);
+	}
+
+	@Override
+	public Bucket read(BucketFactory bf, long len) throws IOException {
+		if(len == 0 && bodyLength == 0)
+			return bf.makeBucket(0);
+		if(spool == null || len != bodyLength)
+			throw new IOException("Request body was not stored");
+		Bucket data = spool;
+		spool = null;
+		return data;
+	}
+
+	@Override
+	public void skip(long len) {
+		// Already read, and freed once the request has been handled.
+	}
+
+	/** Close the stream to the spool, if it is still open, and free the spool. */
+	private void freeSpool() {
+		try (OutputStream os = spoolStream) {
+			spoolStream = null;
+		} catch (IOException e) {
+			// Ignore, it is being freed anyway.
+		}
+		if(spool != null) {
+			spool.free();
+			spool = null;
+		}
+	}
+
+	@Override
+	public void dataReady() {
+		selector.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if(closed) return;
+				flush();
+				if(!closed) updateInterest();
+			}
+
+		});
+	}
+
+	@Override
+	public void failed(IOException e) {
+		selector.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				close();
+			}
+
+		});
+	}
+
+	/** Send as much of the reply as we can. */
+	private void flush() {
+		long written = out.totalWritten();
+		try {
+			writeBlocked = out.writeTo(channel);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Write failed: "+e+" on "+this);
+			close();
+			return;
+		}
+		if(out.totalWritten() != written)
+			lastActivity = System.currentTimeMillis();
+		if(closing && !writeBlocked && out.isEmpty())
+			close();
+	}
+
+	private void closeWhenSent() {
+		closing = true;
+		if(out.isEmpty()) close();
+	}
+
+	/** Only wait for what we can deal with now. */
+	private void updateInterest() {
+		if(key == null || !key.isValid()) return;
+		int ops = 0;
+		if(writeBlocked) ops |= SelectionKey.OP_WRITE;
+		if(!inputClosed && !closing && in.hasRemaining() &&
+				(state == State.HEAD || (state == State.BODY && !spooling)))
+			ops |= SelectionKey.OP_READ;
+		key.interestOps(ops);
+	}
+
+	/** @return True if the connection has made no progress for too long. A toadlet still
+	 * working on a reply doesn't count, unless the client isn't reading what it has sent. */
+	boolean timedOut(long now) {
+		if(now - lastActivity < ToadletSelector.IDLE_TIMEOUT) return false;
+		if(spooling) return false;
+		return state != State.HANDLING || writeBlocked;
+	}
+
+	void close() {
+		if(closed) return;
+		closed = true;
+		if(key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		out.abort();
+		selector.closed(this);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+remoteAddr+" state "+state;
+	}
+
+}
@@ -105,12 +105,30 @@ public interface ToadletContext {
 	 *
 	 * @param data The Bucket which contains the data. This function
 	 *        assumes ownership of the Bucket, calling free() on it
-	 *        when done. If this behavior is undesired, callers can
-	 *        wrap their Bucket in a NoFreeBucket.
+	 *        when done, which may be after it returns. If this behavior
+	 *        is undesired, callers can wrap their Bucket in a
+	 *        NoFreeBucket; the data is then sent before this returns,
+	 *        so they may free it straight away.
 	 *
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, e.g. for a Range request. You must send reply headers first.
+	 * Where the data is kept unencrypted in a file it is sent straight from the file, and
+	 * otherwise the part before the offset is skipped rather than copied.
+	 *
+	 * @param data The Bucket which contains the data. As with
+	 *        {@link #writeData(Bucket)}, this function assumes ownership of
+	 *        the Bucket. To send several parts of one Bucket, wrap it in a
+	 *        NoFreeBucket for all but the last part, and pass the Bucket
+	 *        itself for the last part. Each NoFreeBucket part is sent
+	 *        before the call returns.
+	 * @param offset The first byte to send.
+	 * @param length The number of bytes to send.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
 	/**
 	 * Get the page maker object.
@@ -18,6 +18,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -40,6 +41,7 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoFreeBucket;
 import freenet.support.io.TooLongException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -100,13 +102,17 @@ public class ToadletContextImpl implements ToadletContext {
 	private boolean shouldDisconnect;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock.getOutputStream(), sock.getInetAddress(), headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID);
+	}
+	
+	ToadletContextImpl(OutputStream sockOutputStream, InetAddress remoteAddr, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -457,6 +463,23 @@ public class ToadletContextImpl implements ToadletContext {
         return sb.toString();
     }
 
+	/**
+	 * @param ifNoneMatch The If-None-Match header of the request, or null.
+	 * @param etag The entity tag of the reply, quoted.
+	 * @return True if the client already has the reply, so we can send 304 Not Modified
+	 * instead.
+	 */
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) return false;
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// Weak comparison is fine for GETs.
+			if(tag.startsWith("W/")) tag = tag.substring(2);
+			if(tag.equals("*") || tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
     static TimeZone TZ_UTC = TimeZone.getTimeZone("UTC");
 	
 	public static Date parseHTTPDate(String httpDate) throws java.text.ParseException{
@@ -492,38 +515,20 @@ public class ToadletContextImpl implements ToadletContext {
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
+			OutputStream os = sock.getOutputStream();
+			
+			RequestBody body = new StreamRequestBody(is);
+			
 			while(true) {
 				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
-					sock.close();
-					return;
+					break;
 				} else if (firstLine.equals("")) {
 					continue;
 				}
 				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
-				
-				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
+				List<String> headerLines = new ArrayList<String>();
 				
 				while(true) {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
@@ -533,156 +538,205 @@ public class ToadletContextImpl implements ToadletContext {
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+					headerLines.add(line);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				if(!handle(firstLine, headerLines, body, os, sock.getInetAddress(), container, pageMaker, userAlertManager, bookmarkManager))
+					break;
+			}
+			
+		} catch (TooLongException e) {
+			try {
+				sendHeadersTooLong(sock.getOutputStream());
+			} catch (IOException e1) {
+				// Ignore
+			}
+		} catch (IOException e) {
+			// ignore and return
+		}
+		try {
+			sock.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+	
+	/**
+	 * Handle one request, once its request line and headers have been read. Used both by the
+	 * blocking handler above and by ToadletSelector.
+	 * @param firstLine The request line.
+	 * @param headerLines The header lines, not including the blank line which ends them.
+	 * @param body Where to get the body of the request from, if it has one.
+	 * @param os Where to send the reply.
+	 * @param remoteAddr The address of the client.
+	 * @return True if the connection can be used for further requests, false if it must be
+	 * closed.
+	 */
+	static boolean handle(String firstLine, List<String> headerLines, RequestBody body, OutputStream os, InetAddress remoteAddr, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		try {
+			if(logMINOR)
+				Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+			
+			String[] split = firstLine.split(" ");
+			
+			if(split.length != 3)
+				throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+			
+			if(!split[2].startsWith("HTTP/1."))
+				throw new ParseException("Unrecognized protocol "+split[2], -1);
+			
+			URI uri;
+			try {
+				uri = URIPreEncoder.encodeURI(split[1]).normalize();
+				if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+			} catch (URISyntaxException e) {
+				sendURIParseError(os, true, e);
+				return false;
+			}
+			String method = split[0];
+			
+			MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
+			
+			for(String line : headerLines) {
+				int index = line.indexOf(':');
+				if (index < 0) {
+					throw new ParseException("Missing ':' in request header field", -1);
+				}
+				String before = line.substring(0, index).toLowerCase();
+				String after = line.substring(index+1);
+				after = after.trim();
+				headers.put(before, after);
+			}
+			
+			boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+			BucketFactory bf = container.getBucketFactory();
+			
+			ToadletContextImpl ctx = new ToadletContextImpl(os, remoteAddr, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+			ctx.shouldDisconnect = disconnect;
+			
+			/*
+			 * copy the data into a bucket now,
+			 * before we go into the redirect loop
+			 */
+			
+			Bucket data;
 
-				boolean methodIsConfigurable = true;
+			boolean methodIsConfigurable = true;
 
-				String slen = headers.get("content-length");
+			String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					methodIsConfigurable = false;
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					methodIsConfigurable = false;
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
+			if (METHODS_MUST_HAVE_DATA.contains(method)) {
+				// <method> must have data
+				methodIsConfigurable = false;
+				if (slen == null) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
 				}
-
+			} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+				// <method> can not have data
+				methodIsConfigurable = false;
 				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+			}
+
+			if (slen != null) {
+				long len;
+				try {
+					len = Integer.parseInt(slen);
+					if(len < 0) throw new NumberFormatException("content-length less than 0");
+				} catch (NumberFormatException e) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+				if(acceptsData(container, remoteAddr)) {
+					data = body.read(bf, len);
+				} else {
+					body.skip(len);
+					if (method.equals("POST")) {
+						ctx.sendMethodNotAllowed("POST", true);
 					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
+						sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					ctx.close();
+					return false;
 				}
+			} else {
+				// we're not doing to use it, but we have to keep
+				// the compiler happy
+				data = null;
+			}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
+			if (!container.enableExtendedMethodHandling()) {
+				if (!METHODS_RESTRICTED_MODE.contains(method)) {
+					sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+					if(data != null) data.free();
+					return false;
 				}
+			}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
+			// Handle it.
+			try {
+				boolean redirect = true;
+				while (redirect) {
+					// don't go around the loop unless set explicitly
+					redirect = false;
 					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
+					Toadlet t;
+					try {
+						t = container.findToadlet(uri);
+					} catch (PermanentRedirectException e) {
+						Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+						break;
+					}
+				
+					if(t == null) {
+						ctx.sendNoToadletError(ctx.shouldDisconnect);
+						break;
+					}
 
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
+					// if the Toadlet does not support the method, we don't need to parse the data
+					// also due this pre check a 'NoSuchMethodException' should never appear
+					if (!(t.findSupportedMethods().contains(method))) {
+						ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+						break;
+					}
 
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
+					HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					
+					// require form password if it's a POST, unless the toadlet requests otherwise
+					if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+						if (!ctx.checkFormPassword(req, t.path())) {
+							break;
 						}
 					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+					
+					if(ctx.isAllowedFullAccess()) {
+						ctx.getPageMaker().parseMode(req, container);
+					}
+					
+					try {
+						callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
+					} catch (RedirectException re) {
+						uri = re.newuri;
+						redirect = true;
+					} finally {
+						req.freeParts();
 					}
-				} finally {
-					if(data != null) data.free();
 				}
+				return !ctx.shouldDisconnect;
+			} finally {
+				if(data != null) data.free();
 			}
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
-			} catch (IOException e1) {
-				// Ignore
-			}
-		} catch (TooLongException e) {
-			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -701,21 +755,71 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw.toString() + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
+	}
+	
+	/** Reply to a request whose headers are too long. The connection must then be closed. */
+	static void sendHeadersTooLong(OutputStream os) throws IOException {
+		sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+	}
+	
+	/** @return False if a request using this method is rejected if it has a body. */
+	static boolean mayHaveData(String method) {
+		return !METHODS_CANNOT_HAVE_DATA.contains(method);
+	}
+	
+	/** @return True if we accept a request body from this client, false if we discard it. */
+	static boolean acceptsData(ToadletContainer container, InetAddress remoteAddr) {
+		return container.allowPosts() && ((!container.publicGatewayMode()) || container.isAllowedFullAccess(remoteAddr));
+	}
+	
+	/** The body of a request. Only read once we know whether we accept it. */
+	interface RequestBody {
+		
+		/** @return The next len bytes of the request, in a Bucket which the caller must free. */
+		Bucket read(BucketFactory bf, long len) throws IOException;
+		
+		/** Discard the next len bytes of the request. */
+		void skip(long len) throws IOException;
+		
+	}
+	
+	/** Reads the body straight from the connection. */
+	private static class StreamRequestBody implements RequestBody {
+		
+		private final InputStream is;
+		
+		StreamRequestBody(InputStream is) {
+			this.is = is;
+		}
+		
+		@Override
+		public Bucket read(BucketFactory bf, long len) throws IOException {
+			Bucket data = bf.makeBucket(len);
+			BucketTools.copyFrom(data, is, len);
+			return data;
+		}
+		
+		@Override
+		public void skip(long len) throws IOException {
+			FileUtil.skipFully(is, len);
+		}
+		
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -730,13 +834,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -796,17 +900,43 @@ public class ToadletContextImpl implements ToadletContext {
 	 * @param data The Bucket which contains the reply data. This
 	 *        function assumes ownership of the Bucket, calling free()
 	 *        on it when done. If this behavior is undesired, callers
-	 *        can wrap their Bucket in a NoFreeBucket.
+	 *        can wrap their Bucket in a NoFreeBucket, and may free it
+	 *        as soon as this returns.
 	 *
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
+		writeData(data, 0, -1);
+	}
+
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
-		data.free();
+		if(sockOutputStream instanceof ResponseOutputStream) {
+			ResponseOutputStream out = (ResponseOutputStream) sockOutputStream;
+			if(isBorrowed(data)) {
+				// The caller frees it when we return, so wait until it has been sent.
+				out.writeBorrowed(data, offset, length);
+			} else {
+				// Sent, and freed, by the selector, without tying up this thread.
+				out.write(data, offset, length);
+			}
+			return;
+		}
+		try {
+			BucketTools.copyTo(data, sockOutputStream, offset, length);
+		} finally {
+			data.free();
+		}
 	}
 	
+	/** @return True if the caller still owns the data, so it must be sent before we return. A
+	 * FetchResultBucket only closes its result when freed, so it is handed over like any other. */
+	private static boolean isBorrowed(Bucket data) {
+		return data instanceof NoFreeBucket && !(data instanceof FProxyToadlet.FetchResultBucket);
+	}
+
 	@Override
 	public BucketFactory getBucketFactory() {
 		return bf;
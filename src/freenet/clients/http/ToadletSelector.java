@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Non-blocking front end for the web interface. One thread reads requests from all the
+ * connections as the data arrives, and only hands a request to the executor once all of it has
+ * arrived; the reply is queued and sent by the same thread as the client accepts it. So a
+ * connection only uses a thread while a toadlet is actually running, not while it is idle
+ * between requests on a keep-alive connection, or while a slow client sends a request or
+ * receives a reply.
+ *
+ * Toadlets see the same ToadletContext as with the blocking handler, see ToadletConnection.
+ */
+final class ToadletSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Close connections which have made no progress for this long, unless a toadlet is still
+	 * working on a reply. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	private static final long TIMEOUT_CHECK_INTERVAL = SECONDS.toMillis(10);
+
+	final SimpleToadletServer server;
+	final Executor executor;
+	private final Selector selector;
+	/** Run on the selector thread, e.g. registering a connection or changing what it waits for. */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Only accessed by the selector thread. */
+	private final Set<ToadletConnection> connections = new HashSet<ToadletConnection>();
+	private volatile boolean closed;
+
+	ToadletSelector(SimpleToadletServer server, Executor executor) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		Thread t = new Thread(this, "HTTP selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Handle a newly accepted connection. */
+	void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		final ToadletConnection conn = new ToadletConnection(this, channel);
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if(closed) {
+					conn.close();
+					return;
+				}
+				try {
+					conn.register(selector);
+					connections.add(conn);
+				} catch (IOException e) {
+					Logger.normal(this, "Unable to register HTTP connection: "+e, e);
+					conn.close();
+				}
+			}
+
+		});
+	}
+
+	/** Run a task on the selector thread. */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/** Called by the connection when it closes. Selector thread only. */
+	void closed(ToadletConnection conn) {
+		connections.remove(conn);
+		server.connectionClosed();
+	}
+
+	/** Stop the selector thread and close all the connections. */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+		try {
+			while(!closed) {
+				try {
+					selector.select(TIMEOUT_CHECK_INTERVAL);
+				} catch (IOException e) {
+					Logger.error(this, "Selector failed: "+e, e);
+					break;
+				}
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running "+task, t);
+					}
+				}
+				for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					ToadletConnection conn = (ToadletConnection) key.attachment();
+					try {
+						conn.ready(key);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" handling "+conn, t);
+						conn.close();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if(now >= nextTimeoutCheck) {
+					nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+					for(ToadletConnection conn : new ArrayList<ToadletConnection>(connections)) {
+						if(conn.timedOut(now)) {
+							if(logMINOR) Logger.minor(this, "Timed out "+conn);
+							conn.close();
+						}
+					}
+				}
+			}
+		} finally {
+			closed = true;
+			for(ToadletConnection conn : new ArrayList<ToadletConnection>(connections))
+				conn.close();
+			connections.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			// Run what is left, which closes anything registered since.
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+}
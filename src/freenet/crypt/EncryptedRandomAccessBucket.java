@@ -290,6 +290,14 @@ public class EncryptedRandomAccessBucket implements RandomAccessBucket, Serializ
             return readBytes;
         }
         
+        @Override
+        public long skip(long n) throws IOException {
+            // Skip the ciphertext without reading it, and keep the keystream in step.
+            long skipped = in.skip(n);
+            if(skipped > 0) cipherRead.skip(skipped);
+            return skipped;
+        }
+        
     }
 
     @Override
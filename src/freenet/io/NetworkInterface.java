@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -97,12 +98,23 @@ public class NetworkInterface implements Closeable {
 	private volatile boolean shutdown = false;
 	
 	private final Executor executor;
+	
+	/** Whether to accept sockets through a ServerSocketChannel. */
+	private final boolean channels;
 
 	// FIXME make configurable
 	static final int maxQueueLength = 100;
 
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
-		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+	
+	/**
+	 * @param channels If true, accepted sockets have a SocketChannel, so they can be used
+	 * with a Selector.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean channels) throws IOException {
+		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor, channels);
 		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		if(failedBind != null) {
 			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
@@ -120,12 +132,19 @@ public class NetworkInterface implements Closeable {
 	 *            A comma-separated list of allowed addresses
 	 */
 	protected NetworkInterface(int port, String allowedHosts, Executor executor) throws IOException {
+		this(port, allowedHosts, executor, false);
+	}
+
+	private NetworkInterface(int port, String allowedHosts, Executor executor, boolean channels) throws IOException {
 		this.port = port;
 		this.allowedHosts = new AllowedHosts(allowedHosts);
 		this.executor = executor;
+		this.channels = channels;
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(channels)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
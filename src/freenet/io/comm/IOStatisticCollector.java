@@ -21,6 +21,19 @@ public class IOStatisticCollector {
 	private static boolean logDEBUG;
 	private long totalbytesin;
 	private long totalbytesout;
+	private long totalpacketsin;
+	private long totalpacketsout;
+	/** Packets per second over the last complete STATISTICS_DURATION. */
+	private double packetrateout;
+	private double packetratein;
+	private long lastrotatepacketsin;
+	private long lastrotatepacketsout;
+	/** Packets we read from the socket but could not process. */
+	private long receivedropped;
+	/** Packets we could not send because the socket was not ready. */
+	private long senddropped;
+	private long receivebatches;
+	private long receivebatchpackets;
 	private final LinkedHashMap<String, StatisticEntry> targets;
 	static boolean ENABLE_PER_ADDRESS_TRACKING = false;
 	
@@ -58,6 +71,8 @@ public class IOStatisticCollector {
 			synchronized(this) {
 				totalbytesout += (outbytes>0)?outbytes:0;
 				totalbytesin += (inbytes>0)?inbytes:0;
+				if(outbytes > 0) totalpacketsout++;
+				if(inbytes > 0) totalpacketsin++;
 				if(logDEBUG)
 					Logger.debug(IOStatisticCollector.class, "Add("+addr+":"+port+ ',' +inbytes+ ',' +outbytes+" -> "+totalbytesin+" : "+totalbytesout);
 			}
@@ -85,6 +100,41 @@ public class IOStatisticCollector {
 		return ret;
 	}
 	
+	/** @return The number of packets sent and received, excluding local traffic, in the same order as getTotalIO(). */
+	public synchronized long[] getTotalPackets() {
+		return new long[] { totalpacketsout, totalpacketsin };
+	}
+
+	/** @return Packets per second sent and received over the last STATISTICS_DURATION. */
+	public synchronized double[] getPacketRates() {
+		rotate();
+		return new double[] { packetrateout, packetratein };
+	}
+
+	public synchronized void addReceiveDropped() {
+		receivedropped++;
+	}
+
+	public synchronized void addSendDropped() {
+		senddropped++;
+	}
+
+	/** @return The number of packets dropped locally when sending and when receiving. */
+	public synchronized long[] getDroppedPackets() {
+		return new long[] { senddropped, receivedropped };
+	}
+
+	/** Record how many packets were read from the socket in one go. */
+	public synchronized void addReceiveBatch(int packets) {
+		receivebatches++;
+		receivebatchpackets += packets;
+	}
+
+	public synchronized double getAverageReceiveBatchSize() {
+		if(receivebatches == 0) return 0.0;
+		return ((double)receivebatchpackets) / receivebatches;
+	}
+
 	public int[][] getTotalStatistics() {
 		synchronized (this) {
 			return _getTotalStatistics();
@@ -144,6 +194,13 @@ public class IOStatisticCollector {
 	private void rotate() {
 		long now = System.currentTimeMillis();
 		if ((now - lastrotate) >= STATISTICS_DURATION) {
+			if(lastrotate != 0) {
+				double seconds = (now - lastrotate) / 1000.0;
+				packetrateout = (totalpacketsout - lastrotatepacketsout) / seconds;
+				packetratein = (totalpacketsin - lastrotatepacketsin) / seconds;
+			}
+			lastrotatepacketsout = totalpacketsout;
+			lastrotatepacketsin = totalpacketsin;
 			lastrotate = now;
 			Object[] keys = targets.keySet().toArray();
 			if(keys == null) return; // Why aren't we iterating there ?
@@ -19,16 +19,22 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
+import freenet.keys.NodeCHK;
+import freenet.keys.NodeSSK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
@@ -36,6 +42,7 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NullOutputStream;
 
 /**
  * A Message which can be read from and written to a DatagramPacket.
@@ -49,6 +56,10 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * Field values are kept in fixed slots compiled by the MessageType: primitives are stored
+ * unboxed in a long[], everything else in an Object[]. Encoding and decoding go straight
+ * between the slots and a ByteBuffer, without a map or reflection.
+ *
  * @author ian
  */
 public class Message {
@@ -67,10 +78,23 @@ public class Message {
 		});
 	}
 
+	private static final long[] NO_PRIMITIVES = new long[0];
+	private static final Object[] NO_OBJECTS = new Object[0];
+
+	/** Boxed types of the primitive kinds, for error messages. */
+	private static final Class<?>[] PRIMITIVE_TYPES = new Class<?>[] {
+		Boolean.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class
+	};
+
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive field values as raw bits, indexed by MessageType.Field.slot. */
+	private long[] _primitives;
+	/** Bit i is set if primitive slot i has been set. */
+	private long _primitivesSet;
+	/** Other field values, indexed by MessageType.Field.slot. Null if not set. */
+	private Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -79,20 +103,38 @@ public class Message {
 	private boolean needsLoadBulk;
 	
 	public static Message decodeMessageFromPacket(byte[] buf, int offset, int length, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf, offset, length);
-		return decodeMessage(bb, peer, length + overhead, true, false, false);
+		return decodeMessageFromBuffer(ByteBuffer.wrap(buf, offset, length), peer, overhead);
+	}
+	
+	/**
+	 * Decode a message, and any sub-messages, from the remaining bytes of the buffer. The
+	 * buffer's position is advanced past whatever was read. Every message received goes through
+	 * here, via decodeMessageFromPacket().
+	 */
+	public static Message decodeMessageFromBuffer(ByteBuffer buf, PeerContext peer, int overhead) {
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		try {
+			return decodeMessage(new ByteBufferInputStream(buf), buf, peer, buf.remaining() + overhead, true, false, false);
+		} finally {
+			buf.order(order);
+		}
 	}
 	
 	public static Message decodeMessageLax(byte[] buf, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
-		return decodeMessage(bb, peer, buf.length + overhead, true, false, true);
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		return decodeMessage(new ByteBufferInputStream(bb), bb, peer, buf.length + overhead, true, false, true);
 	}
 
-	private static Message decodeMessage(ByteBufferInputStream bb, PeerContext peer, int recvByteCount,
+	/**
+	 * @param in Reads from buf. Used for the field types which know how to read themselves.
+	 * @param buf The buffer to read from, big-endian.
+	 */
+	private static Message decodeMessage(ByteBufferInputStream in, ByteBuffer buf, PeerContext peer, int recvByteCount,
 	        boolean mayHaveSubMessages, boolean inSubMessage, boolean veryLax) {
 		MessageType mspec;
 		try {
-			mspec = MessageType.getSpec(bb.readInt(), veryLax);
+			mspec = MessageType.getSpec(in.readInt(), veryLax);
 		} catch (IOException e1) {
 			if (logMINOR) Logger.minor(Message.class,"Failed to read message type: "+e1, e1);
 			return null;
@@ -107,28 +149,19 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
+			for (MessageType.Field field : mspec.getCompiledFields()) {
+				m.readField(field, in, buf);
 			}
 			if (mayHaveSubMessages) {
-				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
-					ByteBufferInputStream bb2;
+				while (buf.remaining() > 2) { // sizeof(unsigned short) == 2
+					ByteBuffer buf2;
+					int size = buf.getShort() & 0xFFFF;
+					if (buf.remaining() < size) return m;
+					buf2 = buf.slice();
+					buf2.limit(size);
+					buf.position(buf.position() + size);
 					try {
-						int size = bb.readUnsignedShort();
-						if (bb.remaining() < size) return m;
-						bb2 = bb.slice(size);
-					} catch (EOFException e) {
-						if (logMINOR) Logger.minor(Message.class, "No submessages, returning: "+m);
-						return m;
-					}
-					try {
-						Message subMessage = decodeMessage(bb2, peer, 0, false, true, veryLax);
+						Message subMessage = decodeMessage(new ByteBufferInputStream(buf2), buf2, peer, 0, false, true, veryLax);
 						if (subMessage == null) return m;
 						if (logMINOR) Logger.minor(Message.class, "Adding submessage: "+subMessage);
 						m.addSubMessage(subMessage);
@@ -151,6 +184,78 @@ public class Message {
 		return m;
 	}
 
+	/** Read a single field. Mirrors Serializer.readFromDataInputStream(). */
+	private void readField(MessageType.Field field, ByteBufferInputStream in, ByteBuffer buf) throws IOException {
+		try {
+			switch(field.kind) {
+			case MessageType.KIND_BOOLEAN:
+				/* Using a byte rather than a boolean because values other than 0 or 1 indicate
+				 * problems: only 0 and 1 are written. */
+				final byte bool = buf.get();
+				if(bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: " + bool);
+				setPrimitive(field, bool);
+				return;
+			case MessageType.KIND_BYTE:
+				setPrimitive(field, buf.get());
+				return;
+			case MessageType.KIND_SHORT:
+				setPrimitive(field, buf.getShort());
+				return;
+			case MessageType.KIND_INT:
+				setPrimitive(field, buf.getInt());
+				return;
+			case MessageType.KIND_LONG:
+				setPrimitive(field, buf.getLong());
+				return;
+			case MessageType.KIND_FLOAT:
+				setPrimitive(field, buf.getInt());
+				return;
+			case MessageType.KIND_DOUBLE:
+				setPrimitive(field, buf.getLong());
+				return;
+			case MessageType.KIND_STRING:
+				final int length = buf.getInt();
+				if (length < 0 || length > Serializer.MAX_ARRAY_LENGTH) {
+					throw new IOException("Invalid string length: " + length);
+				}
+				char[] chars = new char[length];
+				buf.asCharBuffer().get(chars);
+				buf.position(buf.position() + length * 2);
+				setObject(field, new String(chars));
+				return;
+			case MessageType.KIND_BUFFER:
+				setObject(field, new Buffer(in));
+				return;
+			case MessageType.KIND_SHORT_BUFFER:
+				setObject(field, new ShortBuffer(in));
+				return;
+			case MessageType.KIND_DOUBLE_ARRAY:
+				// & 0xFF for unsigned byte. Can be up to 255, no negatives.
+				double[] doubles = new double[buf.get() & 0xFF];
+				for (int i = 0; i < doubles.length; i++) doubles[i] = buf.getDouble();
+				setObject(field, doubles);
+				return;
+			case MessageType.KIND_FLOAT_ARRAY:
+				final short floatsLength = buf.getShort();
+				if (floatsLength < 0 || floatsLength > Serializer.MAX_ARRAY_LENGTH/4) {
+					throw new IOException("Invalid flat array length: " + floatsLength);
+				}
+				float[] floats = new float[floatsLength];
+				for (int i = 0; i < floats.length; i++) floats[i] = buf.getFloat();
+				setObject(field, floats);
+				return;
+			case MessageType.KIND_LIST:
+				setObject(field, Serializer.readListFromDataInputStream(field.elementType, in));
+				return;
+			default:
+				setObject(field, Serializer.readFromDataInputStream(field.type, in));
+			}
+		} catch (BufferUnderflowException e) {
+			throw (EOFException)new EOFException().initCause(e);
+		}
+	}
+
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
@@ -167,6 +272,10 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		int slots = spec.getPrimitiveSlots();
+		_primitives = slots == 0 ? NO_PRIMITIVES : new long[slots];
+		slots = spec.getObjectSlots();
+		_objects = slots == 0 ? NO_OBJECTS : new Object[slots];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +283,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.length == 0 ? NO_PRIMITIVES : m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.length == 0 ? NO_OBJECTS : m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +294,120 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	private boolean isSet(MessageType.Field field) {
+		if(field.isPrimitive())
+			return (_primitivesSet & (1L << field.slot)) != 0;
+		else
+			return field.slot < _objects.length && _objects[field.slot] != null;
+	}
+
+	/** @return The raw bits of a primitive field, which must be set and of the given kind. */
+	private long getPrimitive(String key, int kind) {
+		MessageType.Field field = _spec.getField(key);
+		if(field == null || !isSet(field))
+			throw new FieldNotSetException(key+" not set");
+		if(field.kind != kind)
+			throw new IncorrectTypeException("Field " + key + " is " + field.type + ", not " + PRIMITIVE_TYPES[kind]);
+		return _primitives[field.slot];
+	}
+
+	private void setPrimitive(String key, int kind, long bits) {
+		MessageType.Field field = _spec.getField(key);
+		if(field == null)
+			throw new IllegalStateException("Cannot set field \"" + key + "\" which is not defined" +
+			                                " in the message type \"" + _spec.getName() + "\".");
+		if(field.kind != kind)
+			throw new IncorrectTypeException("Got " + PRIMITIVE_TYPES[kind] + ", expected " + field.type);
+		setPrimitive(field, bits);
+	}
+
+	private void setPrimitive(MessageType.Field field, long bits) {
+		if(field.slot >= _primitives.length) {
+			// Field added to the type after the message was created.
+			long[] newPrimitives = new long[_spec.getPrimitiveSlots()];
+			System.arraycopy(_primitives, 0, newPrimitives, 0, _primitives.length);
+			_primitives = newPrimitives;
+		}
+		_primitives[field.slot] = bits;
+		_primitivesSet |= 1L << field.slot;
+	}
+
+	private void setObject(MessageType.Field field, Object value) {
+		if(field.slot >= _objects.length) {
+			Object[] newObjects = new Object[_spec.getObjectSlots()];
+			System.arraycopy(_objects, 0, newObjects, 0, _objects.length);
+			_objects = newObjects;
+		}
+		_objects[field.slot] = value;
+	}
+
+	/** @return The value of a set field, boxing primitives. */
+	private Object box(MessageType.Field field) {
+		if(!field.isPrimitive()) return _objects[field.slot];
+		long bits = _primitives[field.slot];
+		switch(field.kind) {
+		case MessageType.KIND_BOOLEAN:
+			return Boolean.valueOf(bits != 0);
+		case MessageType.KIND_BYTE:
+			return Byte.valueOf((byte) bits);
+		case MessageType.KIND_SHORT:
+			return Short.valueOf((short) bits);
+		case MessageType.KIND_INT:
+			return Integer.valueOf((int) bits);
+		case MessageType.KIND_LONG:
+			return Long.valueOf(bits);
+		case MessageType.KIND_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) bits));
+		default:
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		}
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getPrimitive(key, MessageType.KIND_BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return (byte) getPrimitive(key, MessageType.KIND_BYTE);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return (short) getPrimitive(key, MessageType.KIND_SHORT);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return (int) getPrimitive(key, MessageType.KIND_INT);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getPrimitive(key, MessageType.KIND_LONG);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return Double.longBitsToDouble(getPrimitive(key, MessageType.KIND_DOUBLE));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return Float.intBitsToFloat((int) getPrimitive(key, MessageType.KIND_FLOAT));
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, or null if it is not set. Primitives are boxed. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		MessageType.Field field = _spec.getField(key);
+		if(field == null || !isSet(field)) return null;
+		return box(field);
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +416,31 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageType.KIND_BOOLEAN, b ? 1 : 0);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageType.KIND_BYTE, b);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageType.KIND_SHORT, s);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageType.KIND_INT, i);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageType.KIND_LONG, l);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		setPrimitive(key, MessageType.KIND_DOUBLE, Double.doubleToRawLongBits(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		setPrimitive(key, MessageType.KIND_FLOAT, Float.floatToRawIntBits(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,45 +450,224 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		MessageType.Field field = _spec.getField(key);
+		switch(field.kind) {
+		case MessageType.KIND_BOOLEAN:
+			setPrimitive(field, ((Boolean) value) ? 1 : 0);
+			break;
+		case MessageType.KIND_BYTE:
+			setPrimitive(field, (Byte) value);
+			break;
+		case MessageType.KIND_SHORT:
+			setPrimitive(field, (Short) value);
+			break;
+		case MessageType.KIND_INT:
+			setPrimitive(field, (Integer) value);
+			break;
+		case MessageType.KIND_LONG:
+			setPrimitive(field, (Long) value);
+			break;
+		case MessageType.KIND_FLOAT:
+			setPrimitive(field, Float.floatToRawIntBits((Float) value));
+			break;
+		case MessageType.KIND_DOUBLE:
+			setPrimitive(field, Double.doubleToRawLongBits((Double) value));
+			break;
+		default:
+			setObject(field, value);
+		}
 	}
 
 	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
+		byte[] buf = new byte[encodedLength(true)];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		encodeToBuffer(bb);
+		assert(!bb.hasRemaining());
+		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+	/** @return The number of bytes encodeToPacket() and encodeToBuffer() will write. */
+	public int encodedLength() {
+		return encodedLength(true);
+	}
 
-		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+	/**
+	 * Encode the message, including any sub-messages, at the buffer's current position, in the
+	 * same format as encodeToPacket(). Does not allocate for the common field types.
+	 * FIXME: Nothing sends this way yet. MessageItem keeps the array from encodeToPacket(),
+	 * because it is queued, split between packets and retransmitted from that array.
+	 * @throws BufferOverflowException If there is not enough space. The buffer's position is
+	 * then undefined.
+	 */
+	public void encodeToBuffer(ByteBuffer buf) {
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.BIG_ENDIAN);
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
+			encode(buf, true);
+		} finally {
+			buf.order(order);
 		}
+	}
 
+	private int encodedLength(boolean includeSubMessages) {
+		int length = 4; // _spec.getName().hashCode()
+		for (MessageType.Field field : _spec.getCompiledFields()) {
+			length += fieldLength(field);
+		}
 		if (_subMessages != null && includeSubMessages) {
 			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
+				length += 2 + _subMessage.encodedLength(false);
+			}
+		}
+		return length;
+	}
+
+	private int fieldLength(MessageType.Field field) {
+		switch(field.kind) {
+		case MessageType.KIND_BOOLEAN:
+		case MessageType.KIND_BYTE:
+			return 1;
+		case MessageType.KIND_SHORT:
+			return 2;
+		case MessageType.KIND_INT:
+		case MessageType.KIND_FLOAT:
+			return 4;
+		case MessageType.KIND_LONG:
+		case MessageType.KIND_DOUBLE:
+			return 8;
+		}
+		Object o = getSetObject(field);
+		switch(field.kind) {
+		case MessageType.KIND_STRING:
+			return 4 + ((String) o).length() * 2;
+		case MessageType.KIND_BUFFER:
+			return 4 + ((Buffer) o).getLength();
+		case MessageType.KIND_SHORT_BUFFER:
+			return 2 + ((ShortBuffer) o).getLength();
+		case MessageType.KIND_DOUBLE_ARRAY:
+			return 1 + ((double[]) o).length * 8;
+		case MessageType.KIND_FLOAT_ARRAY:
+			return 2 + ((float[]) o).length * 4;
+		}
+		Class<?> type = o.getClass();
+		if(type == NodeCHK.class) return NodeCHK.FULL_KEY_LENGTH;
+		if(type == NodeSSK.class) return NodeSSK.FULL_KEY_LENGTH;
+		if(type == BitArray.class) return BitArray.serializedLength(((BitArray) o).getSize());
+		// Rare types: count the bytes written.
+		DataOutputStream dos = new DataOutputStream(new NullOutputStream());
+		try {
+			Serializer.writeToDataOutputStream(o, dos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		return dos.size();
+	}
+
+	private Object getSetObject(MessageType.Field field) {
+		Object o = field.slot < _objects.length ? _objects[field.slot] : null;
+		if(o == null) throw new FieldNotSetException(field.name+" not set in "+_spec.getName());
+		return o;
+	}
+
+	private void encode(ByteBuffer buf, boolean includeSubMessages) {
+		buf.putInt(_spec.getName().hashCode());
+		DataOutputStream dos = null;
+		for (MessageType.Field field : _spec.getCompiledFields()) {
+			if(field.isPrimitive()) {
+				if(!isSet(field)) throw new FieldNotSetException(field.name+" not set in "+_spec.getName());
+				long bits = _primitives[field.slot];
+				switch(field.kind) {
+				case MessageType.KIND_BOOLEAN:
+				case MessageType.KIND_BYTE:
+					buf.put((byte) bits);
+					break;
+				case MessageType.KIND_SHORT:
+					buf.putShort((short) bits);
+					break;
+				case MessageType.KIND_INT:
+				case MessageType.KIND_FLOAT:
+					buf.putInt((int) bits);
+					break;
+				default:
+					buf.putLong(bits);
+				}
+				continue;
+			}
+			Object o = getSetObject(field);
+			switch(field.kind) {
+			case MessageType.KIND_STRING:
+				String s = (String) o;
+				buf.putInt(s.length());
+				for (int x = 0; x < s.length(); x++) {
+					buf.putChar(s.charAt(x));
+				}
+				break;
+			case MessageType.KIND_BUFFER:
+				Buffer b = (Buffer) o;
+				buf.putInt(b.getLength());
+				b.copyTo(buf);
+				break;
+			case MessageType.KIND_SHORT_BUFFER:
+				ShortBuffer sb = (ShortBuffer) o;
+				buf.putShort((short) sb.getLength());
+				sb.copyTo(buf);
+				break;
+			case MessageType.KIND_DOUBLE_ARRAY:
+				// The length is written as a byte - capped to 255.
+				final double[] doubles = (double[]) o;
+				if (doubles.length > 255) {
+					throw new IllegalArgumentException("Cannot serialize an array of more than 255 doubles; attempted to " +
+					                                   "serialize " + doubles.length + ".");
+				}
+				buf.put((byte) doubles.length);
+				for (double element : doubles) buf.putDouble(element);
+				break;
+			case MessageType.KIND_FLOAT_ARRAY:
+				final float[] floats = (float[]) o;
+				buf.putShort((short) floats.length);
+				for (float element : floats) buf.putFloat(element);
+				break;
+			default:
+				if(dos == null) dos = new DataOutputStream(new ByteBufferOutputStream(buf));
 				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
+					Serializer.writeToDataOutputStream(o, dos);
 				} catch (IOException e) {
-					e.printStackTrace();
 					throw new IllegalStateException(e.getMessage());
 				}
 			}
 		}
 
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+		if (_subMessages != null && includeSubMessages) {
+			for (Message _subMessage : _subMessages) {
+				// Fill in the length afterwards.
+				int lengthPos = buf.position();
+				buf.position(lengthPos + 2);
+				_subMessage.encode(buf, false);
+				buf.putShort(lengthPos, (short) (buf.position() - lengthPos - 2));
+			}
+		}
+	}
+
+	/** Writes straight into a ByteBuffer, for field types which can only write to a stream. */
+	private static class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
 	}
 
 	@Override
@@ -313,9 +675,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (MessageType.Field field : _spec.getCompiledFields()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(field.name).append('=').append(isSet(field) ? box(field) : null);
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +697,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		MessageType.Field field = _spec.getField(fieldName);
+		return field != null && isSet(field);
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -24,10 +24,9 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
@@ -57,15 +56,22 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessageIndex _unclaimed = new UnclaimedMessageIndex();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
 	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
 	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
+	/** When we last asked the async callbacks whether their filters should time out early.
+	 * Protected by _filters. */
+	private long lastShouldTimeoutCheck;
 	private long startedTime;
+	/** Number of messages checked against the filters, and the total time taken, including
+	 * waiting for the lock. */
+	private final AtomicLong filterChecks = new AtomicLong();
+	private final AtomicLong filterCheckNanos = new AtomicLong();
 	
 	public synchronized long getStartedTime() {
 		return startedTime;
@@ -123,42 +129,41 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		List<MessageFilter> timedOutFilters;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			// Filters past their timeout are at the front of the index, pop just those.
+			timedOutFilters = new ArrayList<MessageFilter>(_filters.removeExpired(tStart));
+			// Client callbacks may also ask for a filter to time out early, so we need to ask them.
+			// That means asking every callback, so only do it every MAX_FILTER_REMOVE_TIME rather
+			// than on every run. In between, match() still checks shouldTimeout(), so a filter
+			// which wants to time out will not match anything, it just lingers a bit longer.
+			// See also the end of waitFor() for another weird case.
+			if(tStart - lastShouldTimeoutCheck >= MAX_FILTER_REMOVE_TIME) {
+				lastShouldTimeoutCheck = tStart;
+				for (MessageFilter f : _filters.withCallbacks()) {
+					if (f.timedOut(tStart)) {
+						_filters.remove(f);
+						timedOutFilters.add(f);
+					}
+				}
+			}
+			nextTimeout = Math.min(nextTimeout, _filters.earliestCallbackTimeout());
+			for (MessageFilter f : timedOutFilters) {
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+f);
+					for (Message m : _unclaimed.messages()) {
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
+		if(!timedOutFilters.isEmpty()) {
 			for(MessageFilter f : timedOutFilters) {
 				f.setMessage(null);
 				f.onTimedOut(_executor);
@@ -196,12 +201,12 @@ public class MessageCore {
 		}
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
+		long checkStart = System.nanoTime();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			for (MessageFilter f : _filters.candidates(m)) {
 				if (f.matched()) {
 					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				}
 				MATCHED status = f.match(m, tStart);
@@ -209,11 +214,11 @@ public class MessageCore {
 					if(timedOut == null)
 						timedOut = new ArrayList<MessageFilter>();
 					timedOut.add(f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				} else if(status == MATCHED.MATCHED) {
 					matched = true;
-					i.remove();
+					_filters.remove(f);
 					match = f;
 					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
 					f.setMessage(m);
@@ -222,6 +227,8 @@ public class MessageCore {
 				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
 			}
 		}
+		filterChecks.incrementAndGet();
+		filterCheckNanos.addAndGet(System.nanoTime() - checkStart);
 		if(timedOut != null) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
@@ -268,13 +275,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
+				for (MessageFilter f : _filters.candidates(m)) {
 					MATCHED status = f.match(m, tStart);
 					if(status == MATCHED.MATCHED) {
 						matched = true;
 						match = f;
-						i.remove();
+						_filters.remove(f);
 						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
 						match.setMessage(m);
 						break; // Only one match permitted per message
@@ -282,13 +288,14 @@ public class MessageCore {
 						if(timedOut == null)
 							timedOut = new ArrayList<MessageFilter>();
 						timedOut.add(f);
-						i.remove();
+						_filters.remove(f);
 						continue;
 					}
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
 				        Message removed = _unclaimed.removeFirst();
+				        if(removed == null) break;
 				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
 				        if ((removed.getSource()) instanceof PeerNode) {
 				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
@@ -324,14 +331,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.all()) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -346,14 +351,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.all()) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -381,7 +384,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -392,43 +394,16 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			ret = _unclaimed.removeMatch(filter, now);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(messageDropTime, now);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// The index keeps the filters in order of timeout.
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -473,45 +448,16 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = _unclaimed.removeMatch(filter, startTime);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(messageDropTime, now);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// The index keeps the filters in order of timeout.
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -563,10 +509,7 @@ public class MessageCore {
 			}
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// it will be in the list twice.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -612,8 +555,7 @@ public class MessageCore {
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
+			for (Message m : _unclaimed.messages()) {
 				String messageName = m.getSpec().getName();
 				Integer messageCount = messageCounts.get(messageName);
 				if (messageCount == null) {
@@ -627,6 +569,38 @@ public class MessageCore {
 		return messageCounts;
 	}
 
+	/**
+	 * @return the number of filters currently waiting for a message
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
+		}
+	}
+	
+	/**
+	 * @return the average time taken to find the filter for an incoming message, including
+	 * waiting for the lock, in nanoseconds
+	 */
+	public long getAverageFilterMatchNanos() {
+		long checks = filterChecks.get();
+		if(checks == 0) return 0;
+		return filterCheckNanos.get() / checks;
+	}
+	
+	/** Drop _unclaimed messages older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME. Caller must hold 
+	 * the _filters lock. */
+	private void dropOldUnclaimed(long messageDropTime, long now) {
+		for (Message m : _unclaimed.removeOlderThan(messageDropTime)) {
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+	}
+
 	public Executor getExecutor() {
 		return _executor;
 	}
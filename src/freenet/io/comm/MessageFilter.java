@@ -138,6 +138,22 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	/** @return The value a field must have to match, or null if it is not specified. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i >= 0 ? _fields.get(i) : null;
+		}
+	}
+
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -0,0 +1,249 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.support.Logger;
+
+/**
+ * The pending MessageFilter's of a MessageCore, indexed so that the filters which might match an
+ * incoming message can be found without looking at every filter.
+ *
+ * Each filter in an or() chain is indexed by its source, message type and UID field, any of which
+ * may be unset. A message is looked up under the (up to) four combinations of its own source,
+ * type and UID with the source and UID left unset. Filters without a message type are rare, and
+ * are always candidates.
+ *
+ * Filters are also kept in order of timeout, which is the order in which they have priority
+ * when more than one matches, and lets us find timed out filters without a full scan. Filters
+ * with an async callback are kept in a second set in the same order, because only they need to
+ * be polled for an early timeout, and only their timeouts need to wake up the timeout thread.
+ *
+ * Not thread-safe: MessageCore's lock protects it.
+ */
+class MessageFilterIndex {
+
+	/** Index key. Any of the fields may be null, meaning "not specified". */
+	static final class Key {
+		final PeerContext source;
+		final MessageType type;
+		final Object uid;
+		private final int hashCode;
+
+		Key(PeerContext source, MessageType type, Object uid) {
+			this.source = source;
+			this.type = type;
+			this.uid = uid;
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode) return false;
+			return type.equals(k.type) &&
+				(source == null ? k.source == null : source.equals(k.source)) &&
+				(uid == null ? k.uid == null : uid.equals(k.uid));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/** @return The keys a message can be found under, or null if it has no type. */
+	static Key[] keysFor(Message m) {
+		MessageType type = m.getSpec();
+		if(type == null) return null;
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		if(source == null && uid == null)
+			return new Key[] { new Key(null, type, null) };
+		if(source == null)
+			return new Key[] { new Key(null, type, uid), new Key(null, type, null) };
+		if(uid == null)
+			return new Key[] { new Key(source, type, null), new Key(null, type, null) };
+		return new Key[] { new Key(source, type, uid), new Key(source, type, null),
+				new Key(null, type, uid), new Key(null, type, null) };
+	}
+
+	/** @return The key for a single filter (ignoring any or()), or null if it has no type. */
+	static Key keyFor(MessageFilter filter) {
+		MessageType type = filter.getType();
+		if(type == null) return null;
+		return new Key(filter.getSource(), type, filter.getField(DMT.UID));
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The timeout when the filter was added. */
+		final long timeout;
+		/** Tie breaker: the first added gets priority. */
+		final long seq;
+		final List<Key> keys;
+		final boolean wildcard;
+		final boolean callback;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.callback = filter.hasCallback();
+			List<Key> keys = new ArrayList<Key>(1);
+			boolean wildcard = false;
+			for(MessageFilter f = filter; f != null; f = f.getOr()) {
+				Key key = keyFor(f);
+				if(key == null)
+					wildcard = true;
+				else if(!keys.contains(key))
+					keys.add(key);
+			}
+			this.keys = keys;
+			this.wildcard = wildcard;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			if(seq != e.seq) return seq < e.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final HashMap<Key, LinkedHashSet<Entry>> byKey = new HashMap<Key, LinkedHashSet<Entry>>();
+	private final LinkedHashSet<Entry> wildcards = new LinkedHashSet<Entry>();
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	private final TreeSet<Entry> callbacksByTimeout = new TreeSet<Entry>();
+	private long seq;
+
+	void add(MessageFilter filter) {
+		if(entries.containsKey(filter)) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+			remove(filter);
+		}
+		Entry e = new Entry(filter, seq++);
+		entries.put(filter, e);
+		byTimeout.add(e);
+		if(e.callback)
+			callbacksByTimeout.add(e);
+		for(Key key : e.keys) {
+			LinkedHashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Entry>();
+				byKey.put(key, bucket);
+			}
+			bucket.add(e);
+		}
+		if(e.wildcard)
+			wildcards.add(e);
+	}
+
+	/** @return True if the filter was present. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		byTimeout.remove(e);
+		if(e.callback)
+			callbacksByTimeout.remove(e);
+		for(Key key : e.keys) {
+			LinkedHashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) continue;
+			bucket.remove(e);
+			if(bucket.isEmpty())
+				byKey.remove(key);
+		}
+		if(e.wildcard)
+			wildcards.remove(e);
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The filters which might match the message, in priority order. The caller must still
+	 * call match() on them.
+	 */
+	List<MessageFilter> candidates(Message m) {
+		Key[] keys = keysFor(m);
+		ArrayList<Entry> found = null;
+		if(keys != null) {
+			for(Key key : keys) {
+				LinkedHashSet<Entry> bucket = byKey.get(key);
+				if(bucket == null) continue;
+				if(found == null) found = new ArrayList<Entry>(bucket.size());
+				found.addAll(bucket);
+			}
+		}
+		if(!wildcards.isEmpty()) {
+			if(found == null) found = new ArrayList<Entry>(wildcards.size());
+			found.addAll(wildcards);
+		}
+		if(found == null) return Collections.emptyList();
+		if(found.size() > 1) Collections.sort(found);
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(found.size());
+		Entry prev = null;
+		for(Entry e : found) {
+			// A filter can be in more than one bucket if it has an or().
+			if(e != prev) ret.add(e.filter);
+			prev = e;
+		}
+		return ret;
+	}
+
+	/** @return All the filters, in order of timeout. */
+	List<MessageFilter> all() {
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(byTimeout.size());
+		for(Entry e : byTimeout)
+			ret.add(e.filter);
+		return ret;
+	}
+
+	/** @return The filters with an async callback, in order of timeout. */
+	List<MessageFilter> withCallbacks() {
+		ArrayList<MessageFilter> ret = new ArrayList<MessageFilter>(callbacksByTimeout.size());
+		for(Entry e : callbacksByTimeout)
+			ret.add(e.filter);
+		return ret;
+	}
+
+	/** @return The earliest timeout of a filter with an async callback, or Long.MAX_VALUE. */
+	long earliestCallbackTimeout() {
+		return callbacksByTimeout.isEmpty() ? Long.MAX_VALUE : callbacksByTimeout.first().timeout;
+	}
+
+	/**
+	 * Remove and return the filters whose timeout has passed, without looking at the rest. Does
+	 * not check callbacks, see MessageCore.removeTimedOutFilters().
+	 */
+	List<MessageFilter> removeExpired(long now) {
+		List<MessageFilter> ret = null;
+		for(Iterator<Entry> i = byTimeout.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			if(e.timeout >= now) break;
+			if(ret == null) ret = new ArrayList<MessageFilter>();
+			ret.add(e.filter);
+		}
+		if(ret == null) return Collections.emptyList();
+		for(MessageFilter f : ret)
+			remove(f);
+		return ret;
+	}
+}
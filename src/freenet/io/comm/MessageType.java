@@ -19,10 +19,13 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
+import freenet.io.WritableToDataOutputStream;
+import freenet.support.Buffer;
 import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
@@ -41,6 +44,84 @@ public class MessageType {
 	private final short priority;
 	private final boolean isLossyPacketMessage;
 
+	/** Compiled form of the fields, in wire order. */
+	private Field[] _compiledFields = new Field[0];
+	private final HashMap<String, Field> _fieldsByName = new HashMap<String, Field>();
+	private int primitiveSlots;
+	private int objectSlots;
+
+	/** Kinds of field. The primitive kinds are stored unboxed in a Message. */
+	static final int KIND_BOOLEAN = 0;
+	static final int KIND_BYTE = 1;
+	static final int KIND_SHORT = 2;
+	static final int KIND_INT = 3;
+	static final int KIND_LONG = 4;
+	static final int KIND_FLOAT = 5;
+	static final int KIND_DOUBLE = 6;
+	static final int KIND_STRING = 7;
+	static final int KIND_BUFFER = 8;
+	static final int KIND_SHORT_BUFFER = 9;
+	static final int KIND_DOUBLE_ARRAY = 10;
+	static final int KIND_FLOAT_ARRAY = 11;
+	static final int KIND_LIST = 12;
+	/** Anything else: read with Serializer, written with WritableToDataOutputStream. */
+	static final int KIND_OTHER = 13;
+
+	/** Primitive slots are tracked in a long bitmask in each Message. */
+	static final int MAX_PRIMITIVE_FIELDS = 64;
+
+	/**
+	 * A field of a message type, compiled when the field is added so that a Message can keep its
+	 * values in fixed slots rather than a map, and encode and decode them without reflection.
+	 */
+	static final class Field {
+		final String name;
+		/** Position in the wire format. */
+		final int ordinal;
+		final int kind;
+		/** Index into the Message's primitive array if isPrimitive(), otherwise its object array. */
+		final int slot;
+		final Class<?> type;
+		/** For lists, the type of the elements. */
+		final Class<?> elementType;
+
+		Field(String name, int ordinal, int kind, int slot, Class<?> type, Class<?> elementType) {
+			this.name = name;
+			this.ordinal = ordinal;
+			this.kind = kind;
+			this.slot = slot;
+			this.type = type;
+			this.elementType = elementType;
+		}
+
+		boolean isPrimitive() {
+			return kind <= KIND_DOUBLE;
+		}
+
+		@Override
+		public String toString() {
+			return name+'('+type.getSimpleName()+')';
+		}
+	}
+
+	static int kindOf(Class<?> type) {
+		if(type == Boolean.class) return KIND_BOOLEAN;
+		if(type == Byte.class) return KIND_BYTE;
+		if(type == Short.class) return KIND_SHORT;
+		if(type == Integer.class) return KIND_INT;
+		if(type == Long.class) return KIND_LONG;
+		if(type == Float.class) return KIND_FLOAT;
+		if(type == Double.class) return KIND_DOUBLE;
+		if(type == String.class) return KIND_STRING;
+		if(type == Buffer.class) return KIND_BUFFER;
+		if(type == ShortBuffer.class) return KIND_SHORT_BUFFER;
+		if(type == double[].class) return KIND_DOUBLE_ARRAY;
+		if(type == float[].class) return KIND_FLOAT_ARRAY;
+		if(type == LinkedList.class) return KIND_LIST;
+		if(WritableToDataOutputStream.class.isAssignableFrom(type)) return KIND_OTHER;
+		throw new IllegalArgumentException("Unrecognised field type: " + type);
+	}
+
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
 	}
@@ -68,6 +149,20 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_fieldsByName.containsKey(name))
+			throw new IllegalArgumentException("Field "+name+" already exists in "+_name);
+		int kind = kindOf(type);
+		int slot;
+		if(kind <= KIND_DOUBLE) {
+			if(primitiveSlots == MAX_PRIMITIVE_FIELDS)
+				throw new IllegalStateException("Too many primitive fields in "+_name);
+			slot = primitiveSlots++;
+		} else
+			slot = objectSlots++;
+		Field field = new Field(name, _compiledFields.length, kind, slot, type, _linkedListTypes.get(name));
+		_compiledFields = Arrays.copyOf(_compiledFields, _compiledFields.length + 1);
+		_compiledFields[field.ordinal] = field;
+		_fieldsByName.put(name, field);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
 	}
@@ -94,6 +189,24 @@ public class MessageType {
 		return false;
 	}
 
+	/** @return The compiled field, or null if there is no such field. */
+	Field getField(String name) {
+		return _fieldsByName.get(name);
+	}
+
+	/** @return The compiled fields in wire order. Do not modify. */
+	Field[] getCompiledFields() {
+		return _compiledFields;
+	}
+
+	int getPrimitiveSlots() {
+		return primitiveSlots;
+	}
+
+	int getObjectSlots() {
+		return objectSlots;
+	}
+
 	public Class<?> typeOf(String field) {
 		return _fields.get(field);
 	}
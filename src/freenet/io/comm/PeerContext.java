@@ -6,6 +6,7 @@ package freenet.io.comm;
 import java.lang.ref.WeakReference;
 
 import freenet.io.xfer.PacketThrottle;
+import freenet.io.xfer.TransferMultiplexer;
 import freenet.node.MessageItem;
 import freenet.node.OutgoingPacketMangler;
 
@@ -63,4 +64,7 @@ public interface PeerContext {
 	void reportThrottledPacketSendTime(long time, boolean realTime);
 
 	int getThrottleWindowSize();
+
+	/** Get the TransferMultiplexer which schedules block and bulk transfers to this node. */
+	TransferMultiplexer getTransferMultiplexer();
 }
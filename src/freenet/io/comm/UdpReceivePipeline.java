@@ -0,0 +1,264 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+import freenet.support.transport.ip.IPUtil;
+
+/**
+ * Receives datagrams from a non-blocking DatagramChannel and decrypts and dispatches them on a
+ * pool of worker threads, instead of doing everything on the socket's thread.
+ *
+ * The receiving thread reads as many datagrams as are waiting (up to the batch size) each time
+ * the selector wakes it up, into a fixed pool of direct buffers, so the JDK does not need to copy
+ * through a temporary buffer of its own. Each datagram is then queued for the worker chosen by
+ * the sender's address and port, so packets from any one peer are still processed in the order
+ * they arrived. A worker copies the datagram into its own array, returns the buffer to the pool,
+ * and passes it to the IncomingPacketFilter. The same peer can still be processed on two workers
+ * at once if it changes address, or when an unmatched packet is tried against every peer, so the
+ * node serializes per-peer processing itself (PeerNode.receiveLock).
+ *
+ * If all the buffers are in use, the workers are not keeping up. We still read the datagram, so
+ * the socket's receive buffer does not fill up, but drop it and count it in the
+ * IOStatisticCollector.
+ */
+class UdpReceivePipeline {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(UdpReceivePipeline.class);
+	}
+
+	/** Maximum number of datagrams to read per wakeup. */
+	static final int DEFAULT_BATCH_SIZE = 32;
+	/** Number of buffers in the pool per worker thread. */
+	static final int BUFFERS_PER_THREAD = 256;
+
+	/** A received datagram, and the direct buffer it was read into. */
+	private static final class Datagram {
+		final ByteBuffer buf;
+		Peer peer;
+		long time;
+
+		Datagram(int size) {
+			buf = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final IncomingPacketFilter filter;
+	private final IOStatisticCollector collector;
+	private final int maxPacketSize;
+	private final int batchSize;
+	private final Worker[] workers;
+	private final ArrayBlockingQueue<Datagram> freeBuffers;
+	/** Used to read and discard datagrams when the pool is empty. */
+	private final ByteBuffer discard;
+	private volatile boolean running = true;
+
+	/**
+	 * @param channel The channel to read from. It will be put in non-blocking mode.
+	 * @param threads The number of worker threads.
+	 * @param maxPacketSize The size of each buffer. Larger datagrams are truncated.
+	 */
+	UdpReceivePipeline(DatagramChannel channel, IncomingPacketFilter filter, IOStatisticCollector collector,
+			int threads, int batchSize, int maxPacketSize) throws IOException {
+		if(threads < 1) throw new IllegalArgumentException();
+		if(batchSize < 1) throw new IllegalArgumentException();
+		this.channel = channel;
+		this.filter = filter;
+		this.collector = collector;
+		this.batchSize = batchSize;
+		this.maxPacketSize = maxPacketSize;
+		int buffers = threads * BUFFERS_PER_THREAD;
+		freeBuffers = new ArrayBlockingQueue<Datagram>(buffers);
+		for(int i=0;i<buffers;i++)
+			freeBuffers.add(new Datagram(maxPacketSize));
+		discard = ByteBuffer.allocateDirect(maxPacketSize);
+		workers = new Worker[threads];
+		// Every buffer can be queued on the same worker, so add() never fails.
+		for(int i=0;i<threads;i++)
+			workers[i] = new Worker(buffers);
+		selector = Selector.open();
+		try {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			selector.close();
+			channel.configureBlocking(true);
+			throw e;
+		}
+	}
+
+	/** Start the worker threads. The caller must then call run() on the receiving thread. */
+	void start(Executor executor, String name) {
+		for(int i=0;i<workers.length;i++)
+			executor.execute(workers[i], name + " worker " + i);
+	}
+
+	/** Receive datagrams until close() is called. */
+	void run() {
+		try {
+			while(running) {
+				try {
+					receiveBatch();
+				} catch (ClosedChannelException e) {
+					if(!running) return;
+					throw new RuntimeException(e);
+				} catch (ClosedSelectorException e) {
+					if(!running) return;
+					throw e;
+				} catch (IOException e) {
+					if(!running) return;
+					Logger.error(this, "Caught " + e, e);
+				}
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Wait for datagrams, then read up to batchSize of them and queue them for the workers.
+	 * @return The number of datagrams read.
+	 */
+	int receiveBatch() throws IOException {
+		selector.select();
+		selector.selectedKeys().clear();
+		long now = System.currentTimeMillis();
+		int count = 0;
+		while(count < batchSize && running) {
+			Datagram d = freeBuffers.poll();
+			ByteBuffer buf = d == null ? discard : d.buf;
+			buf.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(buf);
+			if(from == null) {
+				if(d != null) freeBuffers.add(d);
+				break;
+			}
+			count++;
+			buf.flip();
+			InetAddress address = from.getAddress();
+			int length = buf.remaining();
+			boolean isLocal = !IPUtil.isValidAddress(address, false);
+			collector.addInfo(address, from.getPort(),
+					UdpSocketHandler.headersLength(address) + length, 0, isLocal);
+			if(d == null) {
+				collector.addReceiveDropped();
+				if(logMINOR) Logger.minor(this, "Dropped packet of length "+length+" from "+from+": all buffers in use");
+				continue;
+			}
+			Peer peer = new Peer(address, from.getPort());
+			received(peer);
+			d.peer = peer;
+			d.time = now;
+			workerFor(address, from.getPort()).queue.add(d);
+		}
+		if(count > 0) collector.addReceiveBatch(count);
+		return count;
+	}
+
+	private Worker workerFor(InetAddress address, int port) {
+		int h = address.hashCode() * 31 + port;
+		h ^= (h >>> 16);
+		return workers[(h & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/** Called on the receiving thread for each datagram which will be processed. */
+	protected void received(Peer peer) {
+		// Do nothing by default.
+	}
+
+	/** Stop receiving. The caller should close the channel too. */
+	void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	int getFreeBuffers() {
+		return freeBuffers.size();
+	}
+
+	private class Worker implements PrioRunnable {
+
+		final ArrayBlockingQueue<Datagram> queue;
+		private final byte[] data = new byte[maxPacketSize];
+		private final ArrayList<Datagram> batch = new ArrayList<Datagram>(batchSize);
+
+		Worker(int capacity) {
+			queue = new ArrayBlockingQueue<Datagram>(capacity);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					Datagram d = queue.poll(1, TimeUnit.SECONDS);
+					if(d == null) continue;
+					batch.add(d);
+					queue.drainTo(batch, batchSize - 1);
+					for(int i=0;i<batch.size();i++)
+						process(batch.get(i));
+				} catch (InterruptedException e) {
+					// Ignore
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+
+		private void process(Datagram d) {
+			int length = d.buf.remaining();
+			d.buf.get(data, 0, length);
+			Peer peer = d.peer;
+			long time = d.time;
+			d.peer = null;
+			freeBuffers.add(d);
+			try {
+				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+				long startTime = System.currentTimeMillis();
+				filter.process(data, 0, length, peer, time);
+				long endTime = System.currentTimeMillis();
+				if(endTime - startTime > 50) {
+					if(endTime-startTime > 3000) {
+						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+					} else {
+						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+					}
+				}
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " from " + filter, t);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+	}
+
+}
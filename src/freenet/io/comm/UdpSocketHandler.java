@@ -1,5 +1,7 @@
 package freenet.io.comm;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import com.sun.jna.LastErrorException;
 import com.sun.jna.Native;
 import com.sun.jna.Platform;
@@ -15,8 +17,11 @@ import java.net.DatagramSocket;
 import java.net.DatagramSocketImpl;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
 
 import freenet.io.AddressTracker;
@@ -30,6 +35,10 @@ import freenet.support.transport.ip.IPUtil;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final DatagramSocket _sock;
+	/** Non-null if packets are received on a pool of threads. _sock is then its socket. */
+	private final DatagramChannel _channel;
+	private final int receiveThreads;
+	private UdpReceivePipeline pipeline;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -50,6 +59,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Packets dropped because the send buffer was full, since we last logged it. */
+	private int sendDropped;
+	private long lastLoggedSendDropped;
+	private static final long LOG_SEND_DROPPED_INTERVAL = MINUTES.toMillis(1);
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -94,6 +107,21 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			}
 		}
 
+		private static int getFd(DatagramChannel c) {
+			int ret = -1;
+			try {
+				Field f = c.getClass().getDeclaredField("fd");
+				f.setAccessible(true);
+				FileDescriptor fdi = (FileDescriptor)f.get(c);
+				f = FileDescriptor.class.getDeclaredField("fd");
+				f.setAccessible(true);
+				ret = f.getInt(fdi);
+			} catch (Exception e) {
+			   Logger.error(UdpSocketHandler.class, e.getMessage(), e);
+			}
+			return ret;
+		}
+
 		private static int getFd(DatagramSocket s) {
 			int ret = -1;
 			try {
@@ -115,7 +143,16 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		public static boolean setAddressPreference(DatagramSocket s, SOCKET_ADDR_PREFERENCE p) {
 			if(!Platform.isLinux())
 			    return false;
-			int fd = getFd(s);
+			return setAddressPreference(getFd(s), p);
+		}
+
+		public static boolean setAddressPreference(DatagramChannel c, SOCKET_ADDR_PREFERENCE p) {
+			if(!Platform.isLinux())
+			    return false;
+			return setAddressPreference(getFd(c), p);
+		}
+
+		private static boolean setAddressPreference(int fd, SOCKET_ADDR_PREFERENCE p) {
 			if(fd <= 2)
 			    return false;
 			int ret = -1;
@@ -137,7 +174,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		receiveThreads = node.getReceiveThreads();
+		if(receiveThreads > 0) {
+			try {
+				_channel = DatagramChannel.open();
+				_sock = _channel.socket();
+				_sock.bind(new InetSocketAddress(bindto, listenPort));
+			} catch (SocketException e) {
+				throw e;
+			} catch (IOException e) {
+				SocketException se = new SocketException("Could not open channel: "+e);
+				se.initCause(e);
+				throw se;
+			}
+		} else {
+			_channel = null;
+			_sock = new DatagramSocket(listenPort, bindto);
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -153,7 +206,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		boolean r;
+		if(_channel != null)
+			r = socketOptions.setAddressPreference(_channel, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		else
+			r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
 		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
 		// Only used for debugging, no need to seed from Yarrow
@@ -219,6 +276,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
+		if(pipeline != null) {
+			pipeline.run();
+			return;
+		}
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -282,7 +343,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			InetAddress address = packet.getAddress();
 			boolean isLocal = !IPUtil.isValidAddress(address, false);
 			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
+					headersLength(address) + packet.getLength(), 0, isLocal);
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -333,10 +394,20 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		packet.setPort(port);
 
 		try {
-			_sock.send(packet);
+			if(_channel != null) {
+				// Non-blocking: if the socket's send buffer is full, the packet is dropped.
+				if(_channel.send(ByteBuffer.wrap(blockToSend), new InetSocketAddress(address, port)) == 0) {
+					collector.addSendDropped();
+					if(logMINOR) Logger.minor(this, "Dropped packet length "+blockToSend.length+" to "+address+':'+port+": send buffer full");
+					onSendDropped();
+					return;
+				}
+			} else {
+				_sock.send(packet);
+			}
 			tracker.sentPacketTo(destination);
 			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
+			collector.addInfo(address, port, 0, headersLength(address) + blockToSend.length, isLocal);
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException e) {
 			if(packet.getAddress() instanceof Inet6Address) {
@@ -394,8 +465,38 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return getMaxPacketSize() - 100;
 	}
 
+	/** Log dropped sends now and then. They are also counted in the IOStatisticCollector. */
+	private void onSendDropped() {
+		long now = System.currentTimeMillis();
+		int dropped;
+		synchronized(this) {
+			sendDropped++;
+			if(now < lastLoggedSendDropped + LOG_SEND_DROPPED_INTERVAL) return;
+			lastLoggedSendDropped = now;
+			dropped = sendDropped;
+			sendDropped = 0;
+		}
+		Logger.normal(this, "Dropped "+dropped+" outgoing packets on port "+listenPort+" because the socket's send buffer was full");
+	}
+
 	public void start() {
 		if(!_active) return;
+		if(_channel != null) {
+			try {
+				pipeline = new UdpReceivePipeline(_channel, lowLevelFilter, collector, receiveThreads,
+						UdpReceivePipeline.DEFAULT_BATCH_SIZE, MAX_RECEIVE_SIZE) {
+					@Override
+					protected void received(Peer peer) {
+						tracker.receivedPacketFrom(peer);
+					}
+				};
+				pipeline.start(node.executor, "UdpSocketHandler for port "+listenPort);
+			} catch (IOException e) {
+				// The channel is still in blocking mode, so fall back to receiving on one thread.
+				Logger.error(this, "Unable to start receive threads for port "+listenPort+": "+e, e);
+				System.err.println("Unable to start receive threads for port "+listenPort+": "+e);
+			}
+		}
 		synchronized(this) {
 			_started = true;
 			startTime = System.currentTimeMillis();
@@ -407,6 +508,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
+			if(pipeline != null) pipeline.close();
 			_sock.close();
 
 			if(!_started) return;
@@ -449,6 +551,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	int getHeadersLength(InetAddress addr) {
+		return headersLength(addr);
+	}
+
+	static int headersLength(InetAddress addr) {
 		return addr == null || addr instanceof Inet6Address ? UDPv6_HEADERS_LENGTH : UDPv4_HEADERS_LENGTH;
 	}
 
@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.io.comm.MessageFilterIndex.Key;
+
+/**
+ * Recently received messages which no filter or the dispatcher wanted, in order of arrival, and
+ * indexed the same way as {@link MessageFilterIndex} so a new filter can find the messages it
+ * might match without looking at all of them.
+ *
+ * Not thread-safe: MessageCore's lock protects it.
+ */
+class UnclaimedMessageIndex {
+
+	private static final class Entry implements Comparable<Entry> {
+		final Message m;
+		final long seq;
+		/** Computed on adding: the source is only weakly referenced by the message. */
+		final Key[] keys;
+
+		Entry(Message m, long seq) {
+			this.m = m;
+			this.seq = seq;
+			this.keys = MessageFilterIndex.keysFor(m);
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			return seq < e.seq ? -1 : (seq == e.seq ? 0 : 1);
+		}
+	}
+
+	private final LinkedHashSet<Entry> fifo = new LinkedHashSet<Entry>();
+	private final HashMap<Key, LinkedHashSet<Entry>> byKey = new HashMap<Key, LinkedHashSet<Entry>>();
+	private long seq;
+
+	void addLast(Message m) {
+		Entry e = new Entry(m, seq++);
+		fifo.add(e);
+		if(e.keys == null) return;
+		for(Key key : e.keys) {
+			LinkedHashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Entry>();
+				byKey.put(key, bucket);
+			}
+			bucket.add(e);
+		}
+	}
+
+	private void remove(Entry e) {
+		fifo.remove(e);
+		if(e.keys == null) return;
+		for(Key key : e.keys) {
+			LinkedHashSet<Entry> bucket = byKey.get(key);
+			if(bucket == null) continue;
+			bucket.remove(e);
+			if(bucket.isEmpty())
+				byKey.remove(key);
+		}
+	}
+
+	/** @return The oldest message, which has been removed, or null if there are none. */
+	Message removeFirst() {
+		Iterator<Entry> i = fifo.iterator();
+		if(!i.hasNext()) return null;
+		Entry e = i.next();
+		remove(e);
+		return e.m;
+	}
+
+	int size() {
+		return fifo.size();
+	}
+
+	/** @return All the messages, oldest first. */
+	List<Message> messages() {
+		ArrayList<Message> ret = new ArrayList<Message>(fifo.size());
+		for(Entry e : fifo)
+			ret.add(e.m);
+		return ret;
+	}
+
+	/**
+	 * Find the oldest message which matches the filter, ignoring the filter's timeout (these
+	 * messages have already arrived).
+	 * @return The message, which has been removed, or null.
+	 */
+	Message removeMatch(MessageFilter filter, long now) {
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key key = MessageFilterIndex.keyFor(f);
+			if(key == null) {
+				// No type, could match anything.
+				found.clear();
+				found.addAll(fifo);
+				break;
+			}
+			LinkedHashSet<Entry> bucket = byKey.get(key);
+			if(bucket != null)
+				found.addAll(bucket);
+		}
+		if(found.size() > 1) Collections.sort(found);
+		Entry prev = null;
+		for(Entry e : found) {
+			if(e == prev) continue;
+			prev = e;
+			if(filter.match(e.m, true, now) == MATCHED.MATCHED) {
+				remove(e);
+				return e.m;
+			}
+		}
+		return null;
+	}
+
+	/** Remove and return the messages created before the given time. */
+	List<Message> removeOlderThan(long time) {
+		List<Message> ret = null;
+		for(Iterator<Entry> i = fifo.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			// Messages are added in order of arrival, so this is (nearly) in order of time.
+			if(e.m.localInstantiationTime >= time) break;
+			if(ret == null) ret = new ArrayList<Message>();
+			ret.add(e.m);
+		}
+		if(ret == null) return Collections.emptyList();
+		for(int i = 0; i < ret.size(); i++)
+			removeFirst();
+		return ret;
+	}
+}
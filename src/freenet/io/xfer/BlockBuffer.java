@@ -0,0 +1,167 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import freenet.support.Buffer;
+
+/**
+ * The data of a block being received and relayed, shared by the PartiallyReceivedBlock, every
+ * BlockTransmitter sending it and whoever stores it. Each packet is written once, after which it
+ * is read-only, and is handed out as a Buffer view of the shared memory, created when the
+ * BlockBuffer is, so sending a packet to many peers neither copies nor allocates nor locks.
+ *
+ * The memory is on the heap by default, or in direct memory if OFF_HEAP_PROPERTY is set, which
+ * keeps large numbers of blocks in flight out of the Java heap. Users hold a reference while
+ * they read: whoever creates the BlockBuffer holds the first, anyone else must retain() one, and
+ * every reference must be release()d exactly once. When the last is released we drop the
+ * memory, so an aborted block can be collected as soon as its transmitters have finished, even
+ * if e.g. a RequestSender still refers to the PRB. The memory is not pooled, so a view which has
+ * already been handed out stays valid and can never show another block's data.
+ */
+public class BlockBuffer {
+
+	/** Set this system property to true to keep the data of new blocks in direct memory. */
+	public static final String OFF_HEAP_PROPERTY = "freenet.xfer.offHeapBlocks";
+
+	public final int packets;
+	public final int packetSize;
+	/** The data, if on the heap. Null once released. */
+	private volatile byte[] array;
+	/** The data, if off the heap. Null once released. */
+	private volatile ByteBuffer direct;
+	/** A view of each packet. Cleared once released. */
+	private final Buffer[] views;
+	/** The view of each packet, once it has been written. Publishing it here makes the data
+	 * visible to other threads. */
+	private final AtomicReferenceArray<Buffer> written;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	/** Create an empty BlockBuffer. Whether it is off the heap depends on OFF_HEAP_PROPERTY. */
+	public BlockBuffer(int packets, int packetSize) {
+		this(packets, packetSize, Boolean.getBoolean(OFF_HEAP_PROPERTY));
+	}
+
+	public BlockBuffer(int packets, int packetSize, boolean offHeap) {
+		this.packets = packets;
+		this.packetSize = packetSize;
+		views = new Buffer[packets];
+		written = new AtomicReferenceArray<Buffer>(packets);
+		if(offHeap) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(packets * packetSize);
+			direct = buf;
+			for(int i=0;i<packets;i++) {
+				buf.limit((i+1)*packetSize);
+				buf.position(i*packetSize);
+				views[i] = new Buffer(buf);
+			}
+			buf.clear();
+		} else {
+			byte[] data = new byte[packets * packetSize];
+			array = data;
+			for(int i=0;i<packets;i++)
+				views[i] = new Buffer(data, i*packetSize, packetSize);
+		}
+	}
+
+	/** Wrap a complete block, on the heap, without copying it. */
+	public BlockBuffer(int packets, int packetSize, byte[] data) {
+		if (data.length != packets * packetSize) {
+			throw new IllegalArgumentException("Length of data ("+data.length+") doesn't match packet number and size");
+		}
+		this.packets = packets;
+		this.packetSize = packetSize;
+		array = data;
+		views = new Buffer[packets];
+		written = new AtomicReferenceArray<Buffer>(packets);
+		for(int i=0;i<packets;i++) {
+			views[i] = new Buffer(data, i*packetSize, packetSize);
+			written.set(i, views[i]);
+		}
+	}
+
+	public boolean isOffHeap() {
+		return direct != null;
+	}
+
+	/**
+	 * Write a packet. Each packet may only be written once, and callers must not write the same
+	 * packet concurrently; PartiallyReceivedBlock ensures this.
+	 * @throws IllegalStateException If the packet has already been written, or the BlockBuffer
+	 * has been released.
+	 */
+	public void write(int packetNo, Buffer packet) {
+		if(packet.getLength() != packetSize)
+			throw new IllegalArgumentException("New packet size "+packet.getLength()+" but expecting packet of size "+packetSize);
+		if(written.get(packetNo) != null)
+			throw new IllegalStateException("Packet "+packetNo+" already written");
+		ByteBuffer buf = direct;
+		byte[] data = array;
+		if(buf != null) {
+			buf = buf.duplicate();
+			buf.position(packetNo * packetSize);
+			packet.copyTo(buf);
+		} else if(data != null) {
+			packet.copyTo(data, packetNo * packetSize);
+		} else {
+			throw new IllegalStateException("Already released");
+		}
+		written.set(packetNo, views[packetNo]);
+	}
+
+	/** @return A read-only view of the packet, or null if it hasn't been written yet. The view
+	 * is only valid while the caller holds a reference. Does not lock or allocate. */
+	public Buffer getPacket(int packetNo) {
+		return written.get(packetNo);
+	}
+
+	/**
+	 * Get the whole block as a byte[], e.g. to store it. The caller must hold a reference and
+	 * all the packets must have been written. If the data is on the heap, this is the shared
+	 * array itself, which must not be modified; otherwise it is a copy.
+	 */
+	public byte[] getData() {
+		byte[] data = array;
+		if(data != null) return data;
+		ByteBuffer buf = direct;
+		if(buf == null) throw new IllegalStateException("Already released");
+		data = new byte[packets * packetSize];
+		buf.duplicate().get(data);
+		return data;
+	}
+
+	/** Take another reference.
+	 * @return False if the BlockBuffer has already been released, in which case the caller
+	 * must not use it. */
+	public boolean retain() {
+		while(true) {
+			int count = refs.get();
+			if(count == 0) return false;
+			if(refs.compareAndSet(count, count+1)) return true;
+		}
+	}
+
+	/** Give up a reference. Drops the memory when the last reference is released. */
+	public void release() {
+		int count = refs.decrementAndGet();
+		if(count == 0) {
+			array = null;
+			direct = null;
+			for(int i=0;i<packets;i++) {
+				views[i] = null;
+				written.set(i, null);
+			}
+		} else if(count < 0) {
+			throw new IllegalStateException("Released too many times");
+		}
+	}
+
+	public boolean isReleased() {
+		return refs.get() <= 0;
+	}
+
+}
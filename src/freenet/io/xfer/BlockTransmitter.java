@@ -91,6 +91,7 @@ public class BlockTransmitter {
 	
 	private final Ticker _ticker;
 	private final Executor _executor;
+	private final TransferMultiplexer _transfers;
 	private final BlockTransmitterCompletion _callback;
 	
 	public interface BlockTimeCallback {
@@ -111,43 +112,37 @@ public class BlockTransmitter {
 	
 	static int runningBlockTransmits = 0;
 	
-	class BlockSenderJob implements PrioRunnable {
-		
-		private boolean running = false;
+	/** Sends packets when the peer's TransferMultiplexer asks for them. Also the lock for most
+	 * of our state. */
+	class BlockSenderJob implements TransferMultiplexer.Transfer {
 		
 		@Override
-		public void run() {
-			synchronized(this) {
-				if(running) return;
-				running = true;
-			}
-			try {
+		public boolean sendPacket() {
+			int packetNo = -1;
+			BitArray copy;
+			synchronized(_senderThread) {
 				while(true) {
-					int packetNo = -1;
-					BitArray copy;
-					synchronized(_senderThread) {
-						if(_failed || _receivedSendCompletion || _completed) return;
-						if(_unsent.size() == 0) {
-							// Wait for PRB callback to tell us we have more packets.
-							return;
-						}
-						else {
-							packetNo = _unsent.removeFirst();
-							if(_sentPackets.bitAt(packetNo)) {
-								Logger.error(this, "Already sent packet in run(): "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
-								continue;
-							}
-						}
-						copy = _sentPackets.copy();
-						_sentPackets.setBit(packetNo, true);
+					if(_failed || _receivedSendCompletion || _completed) return false;
+					if(_unsent.size() == 0) {
+						// Wait for PRB callback to tell us we have more packets.
+						return false;
 					}
-					if(!innerRun(packetNo, copy)) return;
-				}
-			} finally {
-				synchronized(this) {
-					running = false;
+					packetNo = _unsent.removeFirst();
+					if(_sentPackets.bitAt(packetNo)) {
+						Logger.error(this, "Already sent packet in sendPacket(): "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
+						continue;
+					}
+					break;
 				}
+				copy = _sentPackets.copy();
+				_sentPackets.setBit(packetNo, true);
 			}
+			return innerRun(packetNo, copy);
+		}
+		
+		@Override
+		public boolean isRealTime() {
+			return realTime;
 		}
 		
 		public void schedule() {
@@ -156,7 +151,7 @@ public class BlockTransmitter {
 						(_failed ? "(failed) " : "") + (_receivedSendCompletion ? "(receivedSendCompletion) " : "") + (_completed ? "(completed) " : ""));
 				return;
 			}
-			_executor.execute(this, "BlockTransmitter block sender for "+_uid+" to "+_destination);
+			_transfers.wakeUp(this);
 		}
 
 		/** @return True . */
@@ -166,7 +161,7 @@ public class BlockTransmitter {
 				MyAsyncMessageCallback cb = new MyAsyncMessageCallback();
 				MessageItem item;
 				// Everything is throttled.
-				item = _destination.sendAsync(msg, cb, _ctr);
+				item = _transfers.send(msg, cb, _ctr, realTime);
 				synchronized(itemsPending) {
 					itemsPending.add(item);
 				}
@@ -200,11 +195,6 @@ public class BlockTransmitter {
 			}
 			return true; // More blocks to send.
 		}
-
-		@Override
-		public int getPriority() {
-			return NativeThread.HIGH_PRIORITY;
-		}
 		
 	}
 	
@@ -212,6 +202,7 @@ public class BlockTransmitter {
 		this.realTime = realTime;
 		_ticker = ticker;
 		_executor = _ticker.getExecutor();
+		_transfers = destination.getTransferMultiplexer();
 		_callback = callback;
 		this.abortHandler = abortHandler;
 		_usm = usm;
@@ -611,6 +602,9 @@ public class BlockTransmitter {
 	}
 
 	private long startTime;
+	/** True if we hold a reference to the PRB's BlockBuffer, which cleanup() releases. Messages
+	 * are encoded when they are queued, so we don't need it after we have finished. */
+	private boolean holdingBuffer;
 	
 	/** Send the data, off-thread. */
 	public void sendAsync() {
@@ -620,6 +614,12 @@ public class BlockTransmitter {
 		incRunningBlockTransmits();
 		
 		try {
+			// Keep the data while we are sending it, even if the PRB is aborted meanwhile.
+			if(!_prb.getBlockBuffer().retain())
+				throw new AbortedException("PRB already released");
+			synchronized(this) {
+				holdingBuffer = true;
+			}
 			synchronized(_prb) {
 				_unsent = _prb.addListener(myListener = new PartiallyReceivedBlock.PacketReceivedListener() {;
 
@@ -695,6 +695,13 @@ public class BlockTransmitter {
 		// shouldTimeout() should deal with them adequately, maybe we don't need to explicitly remove them.
 		if (myListener!=null)
 			_prb.removeListener(myListener);
+		boolean release;
+		synchronized(this) {
+			release = holdingBuffer;
+			holdingBuffer = false;
+		}
+		if(release)
+			_prb.getBlockBuffer().release();
 	}
 
 	private class MyAsyncMessageCallback implements AsyncMessageCallback {
@@ -61,6 +61,26 @@ public class BulkTransmitter {
 	private String cancelReason;
 	private final ByteCounter ctr;
 	private final boolean realTime;
+	private final TransferMultiplexer transfers;
+	/** True once send() has been called. */
+	private boolean sending;
+	/** Set if we couldn't queue a packet because the peer is not connected. */
+	private boolean disconnected;
+	private volatile long lastSentPacket;
+	
+	private final TransferMultiplexer.Transfer sender = new TransferMultiplexer.Transfer() {
+
+		@Override
+		public boolean isRealTime() {
+			return realTime;
+		}
+
+		@Override
+		public boolean sendPacket() {
+			return BulkTransmitter.this.sendPacket();
+		}
+		
+	};
 	
 	private static long transfersCompleted;
 	private static long transfersSucceeded;
@@ -95,6 +115,7 @@ public class BulkTransmitter {
 		this.ctr = ctr;
 		this.realTime = realTime;
 		this.allSentCallback = cb;
+		this.transfers = peer.getTransferMultiplexer();
 		if(ctr == null) throw new NullPointerException();
 		peerBootID = peer.getBootID();
 		// Need to sync on prb while doing both operations, to avoid race condition.
@@ -175,9 +196,13 @@ public class BulkTransmitter {
 	 * it yet. **Only called by PartiallyReceivedBulk.**
 	 * @param block The block number that has been received.
 	 */
-	synchronized void blockReceived(int block) {
-		blocksNotSentButPresent.setBit(block, true);
-		notifyAll();
+	void blockReceived(int block) {
+		synchronized(this) {
+			blocksNotSentButPresent.setBit(block, true);
+			notifyAll();
+			if(!sending) return;
+		}
+		transfers.wakeUp(sender);
 	}
 
 	/**
@@ -239,25 +264,23 @@ public class BulkTransmitter {
 	}
 	
 	/**
-	 * Send the file.
+	 * Send the file. The peer's TransferMultiplexer queues the packets, via sendPacket(); we
+	 * wait for it, and for the transfer to finish.
 	 * @return True if the file was successfully sent. False otherwise.
 	 * @throws DisconnectedException 
 	 */
 	public boolean send() throws DisconnectedException {
-		long lastSentPacket = System.currentTimeMillis();
+		synchronized(this) {
+			sending = true;
+			lastSentPacket = System.currentTimeMillis();
+		}
+		transfers.wakeUp(sender);
 outer:	while(true) {
-			int max = Math.min(Integer.MAX_VALUE, prb.blocks);
-			max = Math.min(max, peer.getThrottleWindowSize());
-			// FIXME Need to introduce the global limiter of [code]max[/code] for memory management instead of hard-code for each, no? 
-			max = Math.min(max, 100); 
-			if(max < 1) max = 1;
-			
 			if(prb.isAborted()) {
 				if(logMINOR)
 					Logger.minor(this, "Aborted "+this);
 				return false;
 			}
-			int blockNo;
 			if(peer.getBootID() != peerBootID) {
 				synchronized(this) {
 					cancelled = true;
@@ -269,89 +292,115 @@ outer:	while(true) {
 				throw new DisconnectedException();
 			}
 			synchronized(this) {
+				if(disconnected) throw new DisconnectedException();
 				if(finished) return true;
 				if(cancelled) return false;
-				blockNo = blocksNotSentButPresent.firstOne();
-			}
-			if(blockNo < 0) {
-				setAllQueued();
-				if(noWait && prb.hasWholeFile()) {
-					completed();
-					return true;
+				if(blocksNotSentButPresent.firstOne() >= 0) {
+					// Still being sent.
+					try {
+						wait(1000);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					continue;
 				}
-				synchronized(this) {
-					// Wait for all packets to complete
-					while(true) {
+			}
+			setAllQueued();
+			if(noWait && prb.hasWholeFile()) {
+				completed();
+				return true;
+			}
+			synchronized(this) {
+				// Wait for all packets to complete
+				while(true) {
+					if(failedPacket) {
+						cancel("Packet send failed");
+						return false;
+					}
+					if(logMINOR)
+						Logger.minor(this, "Waiting for packets: remaining: "+inFlightPackets);
+					if(inFlightPackets == 0) break;
+					try {
+						wait();
 						if(failedPacket) {
 							cancel("Packet send failed");
 							return false;
 						}
-						if(logMINOR)
-							Logger.minor(this, "Waiting for packets: remaining: "+inFlightPackets);
 						if(inFlightPackets == 0) break;
-						try {
-							wait();
-							if(failedPacket) {
-								cancel("Packet send failed");
-								return false;
-							}
-							if(inFlightPackets == 0) break;
-							continue outer; // Might be a packet...
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-					}
-					
-					// Wait for a packet to come in, BulkReceivedAll or BulkReceiveAborted
-					try {
-						wait(SECONDS.toMillis(60));
+						continue outer; // Might be a packet...
 					} catch (InterruptedException e) {
-						// No problem
-						continue;
+						// Ignore
 					}
 				}
-				long end = System.currentTimeMillis();
-				if(end - lastSentPacket > TIMEOUT) {
-					Logger.error(this, "Send timed out on "+this);
-					cancel("Timeout awaiting BulkReceivedAll");
-					return false;
+				
+				// Wait for a packet to come in, BulkReceivedAll or BulkReceiveAborted
+				try {
+					wait(SECONDS.toMillis(60));
+				} catch (InterruptedException e) {
+					// No problem
+					continue;
 				}
-				continue;
 			}
-			// Send a packet
-			byte[] buf = prb.getBlockData(blockNo);
-			if(buf == null) {
-				if(logMINOR)
-					Logger.minor(this, "Block "+blockNo+" is null, presumably the send is cancelled: "+this);
-				// Already cancelled, quit
+			long end = System.currentTimeMillis();
+			if(end - lastSentPacket > TIMEOUT) {
+				Logger.error(this, "Send timed out on "+this);
+				cancel("Timeout awaiting BulkReceivedAll");
 				return false;
 			}
-			
-			// Congestion control and bandwidth limiting
-			try {
-				if(logMINOR) Logger.minor(this, "Sending packet "+blockNo);
-				Message msg = DMT.createFNPBulkPacketSend(uid, blockNo, buf, realTime);
-				UnsentPacketTag tag = new UnsentPacketTag();
-				peer.sendAsync(msg, tag, ctr);
-				synchronized(this) {
-					while(inFlightPackets >= max && !failedPacket)
-						try {
-							wait(1000);
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-				}
-				synchronized(this) {
-					blocksNotSentButPresent.setBit(blockNo, false);
-				}
-				lastSentPacket = System.currentTimeMillis();
-			} catch (NotConnectedException e) {
-				cancel("Disconnected");
-				if(logMINOR)
-					Logger.minor(this, "Cancelled: not connected "+this);
-				throw new DisconnectedException();
+		}
+	}
+	
+	/** Queue the next block, if we have one and not too many are in flight. Called by the
+	 * TransferMultiplexer.
+	 * @return False if there is nothing to send now. */
+	private boolean sendPacket() {
+		int blockNo;
+		synchronized(this) {
+			if(cancelled || finished) return false;
+			int max = Math.min(Integer.MAX_VALUE, prb.blocks);
+			max = Math.min(max, peer.getThrottleWindowSize());
+			// FIXME Need to introduce the global limiter of [code]max[/code] for memory management instead of hard-code for each, no? 
+			max = Math.min(max, 100); 
+			if(max < 1) max = 1;
+			// UnsentPacketTag will wake us up when a packet completes.
+			if(inFlightPackets >= max && !failedPacket) return false;
+			blockNo = blocksNotSentButPresent.firstOne();
+			if(blockNo < 0) return false;
+		}
+		byte[] buf = prb.getBlockData(blockNo);
+		if(buf == null) {
+			if(logMINOR)
+				Logger.minor(this, "Block "+blockNo+" is null, presumably the send is cancelled: "+this);
+			// Already cancelled, send() will quit.
+			return false;
+		}
+		UnsentPacketTag tag;
+		synchronized(this) {
+			if(cancelled || finished) return false;
+			// Clear the bit and count the packet at once, so send() doesn't think everything has
+			// been sent while we are still queueing it.
+			blocksNotSentButPresent.setBit(blockNo, false);
+			tag = new UnsentPacketTag();
+		}
+		try {
+			if(logMINOR) Logger.minor(this, "Sending packet "+blockNo);
+			Message msg = DMT.createFNPBulkPacketSend(uid, blockNo, buf, realTime);
+			transfers.send(msg, tag, ctr, realTime);
+		} catch (NotConnectedException e) {
+			synchronized(this) {
+				disconnected = true;
 			}
+			cancel("Disconnected");
+			if(logMINOR)
+				Logger.minor(this, "Cancelled: not connected "+this);
+			return false;
+		}
+		synchronized(this) {
+			lastSentPacket = System.currentTimeMillis();
+			if(blocksNotSentButPresent.firstOne() < 0)
+				notifyAll();
 		}
+		return true;
 	}
 	
 	private void setAllQueued() {
@@ -432,6 +481,8 @@ outer:	while(true) {
 					if(logMINOR) Logger.minor(this, "Packet sent "+BulkTransmitter.this+" remaining in flight: "+inFlightPackets);
 				}
 			}
+			// We may have been waiting for a packet to complete.
+			transfers.wakeUp(sender);
 			sent(true);
 		}
 
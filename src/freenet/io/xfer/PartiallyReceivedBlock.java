@@ -18,7 +18,7 @@
  */
 package freenet.io.xfer;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
 
@@ -48,21 +48,25 @@ public class PartiallyReceivedBlock {
 		});
 	}
 	
-	byte[] _data;
+	/** The data, shared with the BlockTransmitters sending it. We hold one reference, which we
+	 * release if we are aborted. */
+	final BlockBuffer _buffer;
 	boolean[] _received;
 	int _receivedCount;
 	public final int _packets, _packetSize;
-	boolean _aborted;
+	/** Volatile so getPacket() doesn't need to lock. */
+	volatile boolean _aborted;
 	boolean _abortedLocally;
 	int _abortReason;
 	String _abortDescription;
-	ArrayList<PacketReceivedListener> _packetReceivedListeners = new ArrayList<PacketReceivedListener>();
+	/** Replaced rather than changed, so we can notify the listeners outside the lock. */
+	private PacketReceivedListener[] _packetReceivedListeners = new PacketReceivedListener[0];
 
 	public PartiallyReceivedBlock(int packets, int packetSize, byte[] data) {
 		if (data.length != packets * packetSize) {
 			throw new RuntimeException("Length of data ("+data.length+") doesn't match packet number and size");
 		}
-		_data = data;
+		_buffer = new BlockBuffer(packets, packetSize, data);
 		_received = new boolean[packets];
 		for (int x=0; x<_received.length; x++) {
 			_received[x] = true;
@@ -72,8 +76,10 @@ public class PartiallyReceivedBlock {
 		_packetSize = packetSize;
 	}
 	
+	/** Create an empty PRB. The data is kept off the heap if BlockBuffer.OFF_HEAP_PROPERTY is
+	 * set. */
 	public PartiallyReceivedBlock(int packets, int packetSize) {
-		_data = new byte[packets * packetSize];
+		_buffer = new BlockBuffer(packets, packetSize);
 		_received = new boolean[packets];
 		_packets = packets;
 		_packetSize = packetSize;
@@ -83,7 +89,9 @@ public class PartiallyReceivedBlock {
 		if (_aborted) {
 			throw new AbortedException("Adding listener to aborted PRB");
 		}
-		_packetReceivedListeners.add(listener);
+		PacketReceivedListener[] listeners = Arrays.copyOf(_packetReceivedListeners, _packetReceivedListeners.length+1);
+		listeners[listeners.length-1] = listener;
+		_packetReceivedListeners = listeners;
 		Deque<Integer> ret = new LinkedList<Integer>();
 		for (int x = 0; x < _packets; x++) {
 			if (_received[x]) {
@@ -129,11 +137,10 @@ public class PartiallyReceivedBlock {
 				return;
 			
 			_receivedCount++;
-			packet.copyTo(_data, position * _packetSize);
+			_buffer.write(position, packet);
 			_received[position] = true;
 			
-			// FIXME keep it as as an array
-			prls = _packetReceivedListeners.toArray(new PacketReceivedListener[_packetReceivedListeners.size()]);
+			prls = _packetReceivedListeners;
 		}
 		
 		
@@ -157,24 +164,43 @@ public class PartiallyReceivedBlock {
 		return false;
 	}
 	
+	/** @return The block. If it is on the heap this is shared with everyone else using the PRB,
+	 * so it must not be modified. */
 	public synchronized byte[] getBlock() throws AbortedException {
-		if(allReceived()) return _data;
+		if(allReceived()) return _buffer.getData();
 		throw new RuntimeException("Tried to get block before all packets received");
 	}
 	
-	public synchronized Buffer getPacket(int x) throws AbortedException {
+	/** @return A view of a received packet. Does not lock or copy the data. The caller must hold
+	 * a reference to the data, see getBlockBuffer(). */
+	public Buffer getPacket(int x) throws AbortedException {
 		if (_aborted) {
 			throw new AbortedException("PRB is aborted");
 		}
-		if (!_received[x]) {
+		Buffer packet = _buffer.getPacket(x);
+		if (packet == null) {
 			throw new IllegalStateException("that packet is not received");
 		}
-		return new Buffer(_data, x * _packetSize, _packetSize);
+		return packet;
 	}
 	
+	/** @return The shared data. Callers which read packets while the PRB might be aborted, such
+	 * as BlockTransmitter, must retain() it first and release() it when done. */
+	public BlockBuffer getBlockBuffer() {
+		return _buffer;
+	}
 
 	public synchronized void removeListener(PacketReceivedListener listener) {
-		_packetReceivedListeners.remove(listener);
+		PacketReceivedListener[] listeners = _packetReceivedListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				PacketReceivedListener[] newListeners = new PacketReceivedListener[listeners.length-1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i+1, newListeners, i, listeners.length-i-1);
+				_packetReceivedListeners = newListeners;
+				return;
+			}
+		}
 	}
 
 	/**
@@ -194,16 +220,19 @@ public class PartiallyReceivedBlock {
 			}
 			if(_receivedCount == _packets) {
 				if(logMINOR) Logger.minor(this, "Already received");
-				return _data;
+				return _buffer.getData();
 			}
 			Logger.normal(this, "Aborting PRB: "+reason+" : "+description+" on "+this, new Exception("debug"));
 			_aborted = true;
 			_abortedLocally = cancelledLocally;
 			_abortReason = reason;
 			_abortDescription = description;
-			listeners = _packetReceivedListeners.toArray(new PacketReceivedListener[_packetReceivedListeners.size()]);
-			_packetReceivedListeners.clear();
+			listeners = _packetReceivedListeners;
+			_packetReceivedListeners = new PacketReceivedListener[0];
 		}
+		// Nothing will be sent or stored now, so the memory can go as soon as the transmitters
+		// still holding it have finished.
+		_buffer.release();
 		for (PacketReceivedListener prl : listeners) {
 			prl.receiveAborted(reason, description);
 		}
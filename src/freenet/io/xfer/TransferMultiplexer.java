@@ -0,0 +1,305 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.Message;
+import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PeerContext;
+import freenet.node.MessageItem;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Schedules all the block and bulk transfers to one peer. Rather than every transfer scheduling
+ * its own job whenever it has packets, transfers tell us when they have something to send, and
+ * a single job per peer asks them for packets one at a time and queues them on the peer's
+ * message queue.
+ *
+ * Realtime and bulk transfers share the link by weighted fair queueing: each class is charged
+ * for the bytes it sends divided by its weight, and the class which has been charged least goes
+ * next, so when both are busy realtime gets REALTIME_WEIGHT / BULK_WEIGHT times the bandwidth.
+ * Within a class, transfers take turns. We only keep about two congestion windows of transfer
+ * data in the message queue, so the choice is made here rather than by whatever happened to be
+ * queued first, and refill it as packets are sent.
+ *
+ * We also measure how fast transfer data is being sent to the peer.
+ */
+public class TransferMultiplexer {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** A transfer to the peer. */
+	public interface Transfer {
+
+		boolean isRealTime();
+
+		/**
+		 * Queue the next packet, via TransferMultiplexer.send(). Only called by the
+		 * multiplexer's job, so never concurrently for the same transfer.
+		 * @return False if there is nothing to send now. The transfer must call wakeUp() when
+		 * it has something to send again.
+		 */
+		boolean sendPacket();
+
+	}
+
+	static final int REALTIME_WEIGHT = 4;
+	static final int BULK_WEIGHT = 1;
+	/** Minimum transfer data to keep in the message queue. */
+	static final int MIN_QUEUED_BYTES = 64*1024;
+	/** Maximum transfer data to keep in the message queue. */
+	static final int MAX_QUEUED_BYTES = 1024*1024;
+	/** Rough size of a packet, for converting the congestion window to bytes. */
+	static final int WINDOW_PACKET_SIZE = 1024;
+	/** Time constant of the throughput averages. */
+	static final long RATE_PERIOD = SECONDS.toMillis(10);
+
+	private final PeerContext peer;
+	private final Executor executor;
+	/** Transfers with something to send, in the order they will be asked. */
+	private final LinkedHashSet<Transfer> readyRT = new LinkedHashSet<Transfer>();
+	private final LinkedHashSet<Transfer> readyBulk = new LinkedHashSet<Transfer>();
+	/** Bytes sent by each class divided by its weight, for fair queueing. */
+	private double chargedRT;
+	private double chargedBulk;
+	/** Bytes queued on the peer but not sent yet. */
+	private long queuedBytes;
+	private boolean running;
+	private final Rate rateRT = new Rate();
+	private final Rate rateBulk = new Rate();
+
+	public TransferMultiplexer(PeerContext peer, Executor executor) {
+		this.peer = peer;
+		this.executor = executor;
+	}
+
+	/** Tell us that a transfer has something to send. Cheap if it is already waiting. */
+	public void wakeUp(Transfer transfer) {
+		synchronized(this) {
+			boolean realTime = transfer.isRealTime();
+			LinkedHashSet<Transfer> ready = realTime ? readyRT : readyBulk;
+			if(!ready.add(transfer)) return;
+			if(ready.size() == 1) {
+				// A class which has been idle doesn't get credit for the time it was idle.
+				if(realTime && !readyBulk.isEmpty())
+					chargedRT = Math.max(chargedRT, chargedBulk);
+				else if(!realTime && !readyRT.isEmpty())
+					chargedBulk = Math.max(chargedBulk, chargedRT);
+			}
+			if(!shouldRun()) return;
+			running = true;
+		}
+		executor.execute(job, "Transfers to "+peer.shortToString());
+	}
+
+	/**
+	 * Queue a packet for a transfer. Transfers call this from sendPacket() instead of sending to
+	 * the peer directly.
+	 * @param cb Called as if passed to PeerContext.sendAsync(). May be null.
+	 */
+	public MessageItem send(Message msg, AsyncMessageCallback cb, ByteCounter ctr, boolean realTime) throws NotConnectedException {
+		int bytes = msg.encodedLength();
+		synchronized(this) {
+			queuedBytes += bytes;
+			if(realTime)
+				chargedRT += (double) bytes / REALTIME_WEIGHT;
+			else
+				chargedBulk += (double) bytes / BULK_WEIGHT;
+		}
+		return peer.sendAsync(msg, new QueuedPacket(cb, bytes, realTime), ctr);
+	}
+
+	/** @return The average rate at which transfer data has been sent to the peer recently, in
+	 * bytes per second. */
+	public synchronized double getRate(boolean realTime) {
+		return (realTime ? rateRT : rateBulk).get(System.currentTimeMillis());
+	}
+
+	/** @return Transfer data queued on the peer but not yet sent. */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/** LOCKING: Must be called with the lock held. */
+	private boolean shouldRun() {
+		if(running) return false;
+		if(readyRT.isEmpty() && readyBulk.isEmpty()) return false;
+		return queuedBytes < queueLimit();
+	}
+
+	private long queueLimit() {
+		long window = peer.getThrottleWindowSize();
+		return Math.max(MIN_QUEUED_BYTES, Math.min(MAX_QUEUED_BYTES, window * 2 * WINDOW_PACKET_SIZE));
+	}
+
+	/** Choose the next transfer to ask for a packet and take it off the ready list.
+	 * LOCKING: Must be called with the lock held.
+	 * @return Null if there is nothing to send or enough is queued already. */
+	private Transfer next() {
+		if(queuedBytes >= queueLimit()) return null;
+		LinkedHashSet<Transfer> ready;
+		if(readyRT.isEmpty()) {
+			if(readyBulk.isEmpty()) return null;
+			ready = readyBulk;
+		} else if(readyBulk.isEmpty()) {
+			ready = readyRT;
+		} else {
+			// Ties go to realtime, which is supposed to be bursty.
+			ready = chargedRT <= chargedBulk ? readyRT : readyBulk;
+		}
+		Iterator<Transfer> it = ready.iterator();
+		Transfer transfer = it.next();
+		it.remove();
+		return transfer;
+	}
+
+	private final PrioRunnable job = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			while(true) {
+				Transfer transfer;
+				synchronized(TransferMultiplexer.this) {
+					transfer = next();
+					if(transfer == null) {
+						running = false;
+						return;
+					}
+				}
+				boolean more = false;
+				try {
+					more = transfer.sendPacket();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" sending packet for "+transfer+" to "+peer.shortToString(), t);
+				}
+				if(more) {
+					// Go to the back of the queue.
+					synchronized(TransferMultiplexer.this) {
+						(transfer.isRealTime() ? readyRT : readyBulk).add(transfer);
+					}
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
+
+	private void onDone(int bytes, boolean sent, boolean realTime) {
+		synchronized(this) {
+			queuedBytes -= bytes;
+			if(sent)
+				(realTime ? rateRT : rateBulk).report(bytes, System.currentTimeMillis());
+			if(!shouldRun()) return;
+			running = true;
+		}
+		if(logMINOR) Logger.minor(this, "Refilling queue for "+peer.shortToString());
+		executor.execute(job, "Transfers to "+peer.shortToString());
+	}
+
+	/** Tracks a queued packet, passing the callbacks on to the transfer. */
+	private class QueuedPacket implements AsyncMessageCallback {
+
+		private final AsyncMessageCallback cb;
+		private final int bytes;
+		private final boolean realTime;
+		private boolean done;
+
+		QueuedPacket(AsyncMessageCallback cb, int bytes, boolean realTime) {
+			this.cb = cb;
+			this.bytes = bytes;
+			this.realTime = realTime;
+		}
+
+		private void done(boolean sent) {
+			synchronized(this) {
+				if(done) return;
+				done = true;
+			}
+			onDone(bytes, sent, realTime);
+		}
+
+		@Override
+		public void sent() {
+			done(true);
+			if(cb != null) cb.sent();
+		}
+
+		@Override
+		public void acknowledged() {
+			// Normally after sent(), but don't rely on it, or the queue would fill up for good.
+			done(true);
+			if(cb != null) cb.acknowledged();
+		}
+
+		@Override
+		public void disconnected() {
+			done(false);
+			if(cb != null) cb.disconnected();
+		}
+
+		@Override
+		public void fatalError() {
+			done(false);
+			if(cb != null) cb.fatalError();
+		}
+
+	}
+
+	/** Exponentially decaying average of a rate. LOCKING: Protected by the multiplexer. */
+	private static class Rate {
+
+		/** Bytes per millisecond */
+		private double rate;
+		private long lastTime;
+
+		void report(long bytes, long now) {
+			decay(now);
+			rate += (double) bytes / RATE_PERIOD;
+		}
+
+		/** @return Bytes per second */
+		double get(long now) {
+			decay(now);
+			return rate * 1000;
+		}
+
+		private void decay(long now) {
+			if(now > lastTime && lastTime > 0)
+				rate *= Math.exp(-(double)(now - lastTime) / RATE_PERIOD);
+			if(now > lastTime)
+				lastTime = now;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+peer.shortToString();
+	}
+
+}
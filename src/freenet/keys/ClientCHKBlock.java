@@ -331,20 +331,32 @@ public class ClientCHKBlock implements ClientKeyBlock {
      */
     static public ClientCHKBlock encodeSplitfileBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
     	if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
+    	return encodeSplitfileBlock(data, 0, cryptoKey, cryptoAlgorithm);
+    }
+
+    /**
+     * Encode a splitfile block which is part of a larger buffer, e.g. a whole segment, without
+     * copying it out first.
+     * @param data The buffer containing the block.
+     * @param offset The offset of the block. The DATA_LENGTH bytes from here are encoded.
+     */
+    static public ClientCHKBlock encodeSplitfileBlock(byte[] data, int offset, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
+    	if(offset < 0 || data.length - offset < CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
     	if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
         MessageDigest md256 = SHA256.getMessageDigest();
         // No need to pad
         if(cryptoKey == null) {
-        	cryptoKey = md256.digest(data);
+        	md256.update(data, offset, CHKBlock.DATA_LENGTH);
+        	cryptoKey = md256.digest();
         }
         	if(cryptoAlgorithm == Key.ALGO_AES_PCFB_256_SHA256)
-        		return innerEncode(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm);
+        		return innerEncode(Arrays.copyOfRange(data, offset, offset + CHKBlock.DATA_LENGTH), CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm);
         	else if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
         		throw new IllegalArgumentException("Unknown crypto algorithm: "+cryptoAlgorithm);
         	if(Rijndael.AesCtrProvider == null) {
-        		return encodeNewNoJCA(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+        		return encodeNewNoJCA(data, offset, CHKBlock.DATA_LENGTH, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
         	} else {
-        		return encodeNew(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+        		return encodeNew(data, offset, CHKBlock.DATA_LENGTH, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
 			}
     }
     
@@ -437,6 +449,11 @@ public class ClientCHKBlock implements ClientKeyBlock {
      * @return
      */
     public static ClientCHKBlock encodeNew(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
+        return encodeNew(data, 0, data.length, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, blockHashAlgorithm);
+    }
+
+    /** Encode the length bytes of padded data starting at offset. */
+    private static ClientCHKBlock encodeNew(byte[] data, int offset, int length, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
     	if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
 		try {
@@ -449,7 +466,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
             };
-        hmac.update(data);
+        hmac.update(data, offset, length);
         hmac.update(tmpLen);
         byte[] hash = hmac.doFinal();
         byte[] header = new byte[hash.length+2+2];
@@ -464,9 +481,9 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // That's still plenty though. It will still be unique.
         Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
         cipher.init(Cipher.ENCRYPT_MODE, ckey, new IvParameterSpec(hash, 0, 16));
-        byte[] cdata = new byte[data.length];
-		int moved = cipher.update(data, 0, data.length, cdata);
-		if (moved == data.length) {
+        byte[] cdata = new byte[length];
+		int moved = cipher.update(data, offset, length, cdata);
+		if (moved == length) {
 			cipher.doFinal(tmpLen, 0, 2, header, hash.length+2);
 		} else {
 			// FIXME inefficient
@@ -511,6 +528,11 @@ public class ClientCHKBlock implements ClientKeyBlock {
      * @throws CHKEncodeException
      */
     public static ClientCHKBlock encodeNewNoJCA(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
+        return encodeNewNoJCA(data, 0, data.length, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, blockHashAlgorithm);
+    }
+
+    /** Encode the length bytes of padded data starting at offset. */
+    private static ClientCHKBlock encodeNewNoJCA(byte[] data, int offset, int length, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
     	if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
 		try {
@@ -523,7 +545,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
             };
-        hmac.update(data);
+        hmac.update(data, offset, length);
         hmac.update(tmpLen);
         byte[] hash = hmac.doFinal();
         byte[] header = new byte[hash.length+2+2];
@@ -545,8 +567,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // That's still plenty though. It will still be unique.
         ctr.init(hash, 0, 16);
         System.arraycopy(hash, 0, header, 2, hash.length);
-        byte[] cdata = new byte[data.length];
-        ctr.processBytes(data, 0, data.length, cdata, 0);
+        byte[] cdata = new byte[length];
+        ctr.processBytes(data, offset, length, cdata, 0);
         ctr.processBytes(tmpLen, 0, 2, header, hash.length+2);
         
         // Now calculate the final hash
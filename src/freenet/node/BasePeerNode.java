@@ -38,6 +38,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Make sure the sender looks at this peer by the given time, without waking it now. */
+	void rescheduleSender(long time);
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
@@ -269,6 +269,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * @return True if we handled a negotiation packet, false otherwise.
 	 */
 	private boolean tryProcessAuth(byte[] buf, int offset, int length, PeerNode pn, Peer peer, boolean oldOpennetPeer, long now) {
+		synchronized(pn.receiveLock) {
+			return innerTryProcessAuth(buf, offset, length, pn, peer, oldOpennetPeer, now);
+		}
+	}
+
+	private boolean innerTryProcessAuth(byte[] buf, int offset, int length, PeerNode pn, Peer peer, boolean oldOpennetPeer, long now) {
 		BlockCipher authKey = pn.incomingSetupCipher;
 		if(logDEBUG) Logger.debug(this, "Decrypt key: "+HexUtil.bytesToHex(pn.incomingSetupKey)+" for "+peer+" : "+pn+" in tryProcessAuth");
 		// Does the packet match IV E( H(data) data ) ?
@@ -389,6 +395,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * @return True if we handled a negotiation packet, false otherwise.
 	 */
 	private boolean tryProcessAuthAnonReply(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
+		synchronized(pn.receiveLock) {
+			return innerTryProcessAuthAnonReply(buf, offset, length, pn, peer, now);
+		}
+	}
+
+	private boolean innerTryProcessAuthAnonReply(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
 		BlockCipher authKey = pn.anonymousInitiatorSetupCipher;
 		// Does the packet match IV E( H(data) data ) ?
 		int ivLength = PCFBMode.lengthIV(authKey);
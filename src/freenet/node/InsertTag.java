@@ -33,12 +33,16 @@ public class InsertTag extends UIDTag {
 	
 	public void finishedSender() {
 		boolean noRecordUnlock;
+		boolean unlock;
 		synchronized(this) {
 			senderFinished = true;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		// mustUnlock() may have reassigned the tag to us.
+		loadChanged();
+		if(unlock)
+			innerUnlock(noRecordUnlock);
 	}
 
 	@Override
@@ -306,6 +306,9 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else
+					// The ack must go out within MAX_ACK_DELAY, well before the next maintenance pass.
+					pn.rescheduleSender(System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
 			}
 		}
 
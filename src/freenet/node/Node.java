@@ -119,6 +119,7 @@ import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreFetchCallback;
 import freenet.store.caching.CachingFreenetStore;
 import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
@@ -137,6 +138,7 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -496,6 +498,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeSaltHashMapMetadata;
 	
 	/** Minimum total datastore size */
 	static final long MIN_STORE_SIZE = 32 * 1024 * 1024;
@@ -669,6 +672,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** Number of threads to decrypt and dispatch incoming packets on, or 0 to use the socket's thread. */
+	private int receiveThreads;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -1479,6 +1484,27 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("receiveThreads", 0, sortOrder++, true, false, "Node.receiveThreads", "Node.receiveThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				synchronized(Node.this) {
+					return receiveThreads;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0 || val > 64) throw new InvalidConfigValueException(l10n("receiveThreadsInvalid"));
+				synchronized(Node.this) {
+					if(val == receiveThreads) return;
+					receiveThreads = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change receiveThreads");
+			}
+		}, false);
+		receiveThreads = nodeConfig.getInt("receiveThreads");
+		if(receiveThreads < 0 || receiveThreads > 64) receiveThreads = 0;
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1491,9 +1517,12 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ticker = new PrioritizedTicker(executor, getDarknetPortNumber(),
+				Boolean.getBoolean(PrioritizedTicker.TIMER_WHEEL_PROPERTY));
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1986,6 +2015,21 @@ public class Node implements TimeSkewDetectorCallback {
 			
 		}, false);
 
+		nodeConfig.register("storeSaltHashSlotFilterOffHeap", false, sortOrder++, true, false,
+				"Node.storeSaltHashSlotFilterOffHeap", "Node.storeSaltHashSlotFilterOffHeapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return ResizablePersistentIntBuffer.getOffHeap();
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				ResizablePersistentIntBuffer.setOffHeap(val);
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashSlotFilterOffHeap");
+			}
+		});
+		ResizablePersistentIntBuffer.setOffHeap(nodeConfig.getBoolean("storeSaltHashSlotFilterOffHeap"));
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -2000,6 +2044,21 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMapMetadata", false, sortOrder++, true, false,
+				"Node.storeSaltHashMapMetadata", "Node.storeSaltHashMapMetadataLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashMapMetadata;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				storeSaltHashMapMetadata = val;
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashMapMetadata");
+			}
+		});
+		storeSaltHashMapMetadata = nodeConfig.getBoolean("storeSaltHashMapMetadata");
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -2978,7 +3037,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashMapMetadata, executor);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
@@ -3506,6 +3566,223 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Asynchronous version of {@link #fetch(Key, boolean, boolean, boolean, boolean, BlockMetadata)}.
+	 * Checks the same stores in the same order and updates the same statistics, but does not
+	 * block the caller on disk I/O. The callback may be called on the caller's thread, or on a
+	 * datastore I/O thread, so it must not block. Errors are logged and reported as the key not
+	 * being found, as with fetch(), so the callback's onFailure() is never called.
+	 */
+	public void fetchAsync(Key key, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta, StoreFetchCallback<KeyBlock> cb) {
+		if(key instanceof NodeSSK)
+			new AsyncSSKFetch((NodeSSK)key, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta, cb).next();
+		else if(key instanceof NodeCHK)
+			new AsyncCHKFetch((NodeCHK)key, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta, cb).next();
+		else throw new IllegalArgumentException();
+	}
+
+	/** Walks the client cache, slashdot cache, store, old store, cache and old cache in turn,
+	 * like the synchronous fetch() methods. */
+	private abstract class AsyncStoreFetch<T extends KeyBlock> implements StoreFetchCallback<T> {
+		static final int CLIENT_CACHE = 0;
+		static final int SLASHDOT_CACHE = 1;
+		static final int STORE = 2;
+		static final int OLD_STORE = 3;
+		static final int CACHE = 4;
+		static final int OLD_CACHE = 5;
+
+		final boolean canReadClientCache;
+		final boolean canWriteClientCache;
+		final boolean canWriteDatastore;
+		final boolean forULPR;
+		final boolean ignoreOldBlocks;
+		final BlockMetadata meta;
+		final double loc;
+		final double dist;
+		private final StoreFetchCallback<KeyBlock> cb;
+		private int stage = -1;
+
+		AsyncStoreFetch(Key key, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta, StoreFetchCallback<KeyBlock> cb) {
+			this.canReadClientCache = canReadClientCache;
+			this.canWriteClientCache = canWriteClientCache;
+			this.canWriteDatastore = canWriteDatastore;
+			this.forULPR = forULPR;
+			this.ignoreOldBlocks = canReadClientCache ? false : !writeLocalToDatastore;
+			this.meta = meta;
+			this.cb = cb;
+			loc = key.toNormalizedDouble();
+			dist = Location.distance(lm.getLocation(), loc);
+		}
+
+		/** Start the lookup for the given stage.
+		 * @return False if the stage does not apply, in which case the callback won't be called. */
+		abstract boolean startStage(int stage);
+
+		/** Update the success statistics for the given stage. */
+		abstract void reportSuccess(int stage);
+
+		void next() {
+			while(++stage <= OLD_CACHE) {
+				if(stage == STORE) {
+					if(logMINOR) dumpStoreHits();
+					nodeStats.avgRequestLocation.report(loc);
+				}
+				if(startStage(stage)) return;
+			}
+			cb.onFetched(null);
+		}
+
+		@Override
+		public void onFetched(T block) {
+			if(block == null) {
+				next();
+				return;
+			}
+			reportSuccess(stage);
+			if(logDEBUG) Logger.debug(this, "Found key "+block.getKey()+" in stage "+stage);
+			cb.onFetched(block);
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			if(stage < STORE) {
+				Logger.error(this, "Could not read from client or slashdot cache: "+e, e);
+				next();
+			} else {
+				Logger.error(this, "Cannot fetch data: "+e, e);
+				cb.onFetched(null);
+			}
+		}
+	}
+
+	private class AsyncCHKFetch extends AsyncStoreFetch<CHKBlock> {
+		private final NodeCHK key;
+
+		AsyncCHKFetch(NodeCHK key, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta, StoreFetchCallback<KeyBlock> cb) {
+			super(key, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta, cb);
+			this.key = key;
+		}
+
+		@Override
+		boolean startStage(int stage) {
+			CHKStore store;
+			switch(stage) {
+			case CLIENT_CACHE:
+				if(!canReadClientCache) return false;
+				chkClientcache.fetchAsync(key, !canWriteClientCache, false, meta, this);
+				return true;
+			case SLASHDOT_CACHE:
+				if(!(forULPR || useSlashdotCache || canReadClientCache)) return false;
+				chkSlashdotcache.fetchAsync(key, false, false, meta, this);
+				return true;
+			case STORE:
+				store = chkDatastore;
+				break;
+			case OLD_STORE:
+				store = oldCHK;
+				break;
+			case CACHE:
+				store = chkDatacache;
+				break;
+			default:
+				store = oldCHKCache;
+			}
+			if(store == null) return false;
+			store.fetchAsync(key, !canWriteDatastore, ignoreOldBlocks, meta, this);
+			return true;
+		}
+
+		@Override
+		void reportSuccess(int stage) {
+			switch(stage) {
+			case CLIENT_CACHE:
+				nodeStats.avgClientCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestClientCacheCHKSuccess)
+					nodeStats.furthestClientCacheCHKSuccess=dist;
+				break;
+			case SLASHDOT_CACHE:
+				nodeStats.avgSlashdotCacheCHKSucess.report(loc);
+				if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
+					nodeStats.furthestSlashdotCacheCHKSuccess=dist;
+				break;
+			case STORE:
+			case OLD_STORE:
+				nodeStats.avgStoreCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreCHKSuccess)
+					nodeStats.furthestStoreCHKSuccess=dist;
+				break;
+			default:
+				nodeStats.avgCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheCHKSuccess)
+					nodeStats.furthestCacheCHKSuccess=dist;
+			}
+		}
+	}
+
+	private class AsyncSSKFetch extends AsyncStoreFetch<SSKBlock> {
+		private final NodeSSK key;
+
+		AsyncSSKFetch(NodeSSK key, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta, StoreFetchCallback<KeyBlock> cb) {
+			super(key, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta, cb);
+			this.key = key;
+		}
+
+		@Override
+		boolean startStage(int stage) {
+			SSKStore store;
+			switch(stage) {
+			case CLIENT_CACHE:
+				if(!canReadClientCache) return false;
+				sskClientcache.fetchAsync(key, !canWriteClientCache, canReadClientCache, forULPR, false, meta, this);
+				return true;
+			case SLASHDOT_CACHE:
+				if(!(forULPR || useSlashdotCache || canReadClientCache)) return false;
+				sskSlashdotcache.fetchAsync(key, false, canReadClientCache, forULPR, false, meta, this);
+				return true;
+			case STORE:
+				store = sskDatastore;
+				break;
+			case OLD_STORE:
+				store = oldSSK;
+				break;
+			case CACHE:
+				store = sskDatacache;
+				break;
+			default:
+				store = oldSSKCache;
+			}
+			if(store == null) return false;
+			store.fetchAsync(key, !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta, this);
+			return true;
+		}
+
+		@Override
+		void reportSuccess(int stage) {
+			switch(stage) {
+			case CLIENT_CACHE:
+				nodeStats.avgClientCacheSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestClientCacheSSKSuccess)
+					nodeStats.furthestClientCacheSSKSuccess=dist;
+				break;
+			case SLASHDOT_CACHE:
+				nodeStats.avgSlashdotCacheSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestSlashdotCacheSSKSuccess)
+					nodeStats.furthestSlashdotCacheSSKSuccess=dist;
+				break;
+			case STORE:
+			case OLD_STORE:
+				nodeStats.avgStoreSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreSSKSuccess)
+					nodeStats.furthestStoreSSKSuccess=dist;
+				break;
+			default:
+				nodeStats.avgCacheSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheSSKSuccess)
+					nodeStats.furthestCacheSSKSuccess=dist;
+			}
+		}
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4205,6 +4482,11 @@ public class Node implements TimeSkewDetectorCallback {
 		return ticker;
 	}
 
+	/** @return The number of threads the UDP sockets should process incoming packets on, or 0. */
+	public synchronized int getReceiveThreads() {
+		return receiveThreads;
+	}
+
 	public int getUnclaimedFIFOSize() {
 		return usm.getUnclaimedFIFOSize();
 	}
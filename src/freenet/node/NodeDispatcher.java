@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -25,6 +26,7 @@ import freenet.node.NodeStats.PeerLoadStats;
 import freenet.node.NodeStats.RejectReason;
 import freenet.node.probe.Probe;
 import freenet.store.BlockMetadata;
+import freenet.store.StoreFetchCallback;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -473,7 +475,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 	 * Handle an incoming FNPDataRequest. We should parse it and determine 
 	 * whether it is valid before we accept it.
 	 */
-	private void innerHandleDataRequest(Message m, PeerNode source, boolean isSSK) {
+	private void innerHandleDataRequest(final Message m, final PeerNode source, final boolean isSSK) {
 		if(!source.isConnected()) {
 			if(logMINOR) Logger.minor(this, "Handling request off thread, source disconnected: "+source+" for "+m);
 			return;
@@ -509,7 +511,37 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 		// Object allocation is pretty cheap in modern Java anyway...
 		// If we do reuse it, call reset().
 		BlockMetadata meta = new BlockMetadata();
-		KeyBlock block = node.fetch(key, false, false, false, false, meta);
+		// Check the store without blocking this thread on disk I/O. The rest of the work is
+		// done when the lookup completes, possibly on a datastore I/O thread.
+		final short requestHTL = htl;
+		node.fetchAsync(key, false, false, false, false, meta, new StoreFetchCallback<KeyBlock>() {
+
+			@Override
+			public void onFetched(KeyBlock block) {
+				try {
+					handleDataRequestFetched(m, source, isSSK, requestHTL, tag, block);
+				} catch (Throwable t) {
+					// We may be on a datastore thread, nobody else will clean up.
+					Logger.error(this, "Caught "+t+" handling data request "+tag, t);
+					tag.unlockHandler();
+				}
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				// Node.fetchAsync() never fails, it logs the error and returns null.
+				onFetched(null);
+			}
+
+		});
+	}
+
+	/** Second half of innerHandleDataRequest(), once we have checked the datastore. */
+	private void handleDataRequestFetched(Message m, PeerNode source, boolean isSSK, short htl, RequestTag tag, KeyBlock block) {
+		long id = m.getLong(DMT.UID);
+		ByteCounter ctr = isSSK ? node.nodeStats.sskRequestCtr : node.nodeStats.chkRequestCtr;
+		Key key = (Key) m.getObject(DMT.FREENET_ROUTING_KEY);
+		boolean realTimeFlag = DMT.getRealTimeFlag(m);
 		if(block != null)
 			tag.setNotRoutedOnwards();
 		
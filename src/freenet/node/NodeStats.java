@@ -1980,7 +1980,25 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("messageFilterCount", node.usm.getFilterCount());
+		fs.put("averageFilterMatchNanos", node.usm.getAverageFilterMatchNanos());
+		fs.put("packetSenderLoops", node.ps.getLoopCount());
+		fs.put("averagePacketSenderLoopNanos", node.ps.getAverageLoopTimeNanos());
+		fs.put("averagePacketSenderPeersChecked", node.ps.getAveragePeersCheckedPerLoop());
+		long[] packets = node.collector.getTotalPackets();
+		fs.put("udpPacketsOut", packets[0]);
+		fs.put("udpPacketsIn", packets[1]);
+		long[] droppedPackets = node.collector.getDroppedPackets();
+		fs.put("udpPacketsOutDropped", droppedPackets[0]);
+		fs.put("udpPacketsInDropped", droppedPackets[1]);
+		fs.put("averageUdpReceiveBatchSize", node.collector.getAverageReceiveBatchSize());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
+		fs.put("RAMBucketSlabsInUse", node.clientCore.tempBucketFactory.getSlabPool().getBytesInUse());
+		fs.put("RAMBucketSlabsAllocated", node.clientCore.tempBucketFactory.getSlabPool().getBytesAllocated());
+		fs.put("RAMBucketSlabsOnHeap", node.clientCore.tempBucketFactory.getSlabPool().getHeapBytesInUse());
+		fs.put("RAMBucketBackgroundMigrations", node.clientCore.tempBucketFactory.getBackgroundMigrations());
+		fs.put("RAMBucketWriterMigrations", node.clientCore.tempBucketFactory.getWriterMigrations());
+		fs.put("RAMBucketWriterWaits", node.clientCore.tempBucketFactory.getWriterWaits());
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -9,8 +9,12 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import freenet.l10n.NodeL10n;
+import freenet.support.DeadlineQueue;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -59,12 +63,40 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
+	/** We look at each peer at least this often, even if it hasn't asked us to. */
+	static final long PEER_MAINTENANCE_INTERVAL = SECONDS.toMillis(1);
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
-	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** When each peer next needs to be looked at. */
+	private final DeadlineQueue<PeerNode> peerDeadlines = new DeadlineQueue<PeerNode>();
+	/** The peer list peerDeadlines was last synced with. */
+	private PeerNode[] lastPeers;
+	private IdentityHashMap<PeerNode, Boolean> knownPeers = new IdentityHashMap<PeerNode, Boolean>();
+	/** Peers with a full packet queued at the last iteration. Only used by the sender thread. */
+	private final ArrayList<PeerNode> fullPacketPeers = new ArrayList<PeerNode>();
+	// Reused on each iteration, only used by the sender thread.
+	private final ArrayList<PeerNode> duePeers = new ArrayList<PeerNode>();
+	private final Set<PeerNode> checkedPeers = Collections.newSetFromMap(new IdentityHashMap<PeerNode, Boolean>());
+	/** The peer(s) which lowestUrgentSendTime is referring to */
+	private final ArrayList<PeerNode> urgentSendPeers = new ArrayList<PeerNode>();
+	/** The peer(s) which lowestFullPacketSendTime is referring to */
+	private final ArrayList<PeerNode> urgentFullPacketPeers = new ArrayList<PeerNode>();
+	/** The peer(s) which lowestAckTime is referring to */
+	private final ArrayList<PeerNode> ackPeers = new ArrayList<PeerNode>();
+	/** The peer(s) which lowestHandshakeTime is referring to */
+	private final ArrayList<PeerNode> handshakePeers = new ArrayList<PeerNode>();
+	private long nextOldOpennetPeersTime;
+	/** Protected by this. */
+	private boolean wakeUpRequested;
+	/** When the sender thread will wake up if not woken, or 0 if it is not sleeping. Protected by this. */
+	private long nextWakeTime;
+	// Loop statistics. Protected by this.
+	private long loops;
+	private long loopNanos;
+	private long loopPeersChecked;
 
 	PacketSender(Node node) {
 		this.node = node;
@@ -115,12 +147,7 @@ public class PacketSender implements Runnable {
 		freenet.support.Logger.OSThread.logPID(this);
 
                 schedulePeriodicJob();
-		/*
-		 * Index of the point in the nodes list at which we sent a packet and then
-		 * ran out of bandwidth. We start the loop from here next time.
-		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -144,19 +171,25 @@ public class PacketSender implements Runnable {
 	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
 	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * 
+	 * We do not look at every peer on every iteration. Each peer has a deadline in peerDeadlines,
+	 * which is the next time at which it may need something done: its next urgent time, when
+	 * to check for lost packets, when to handshake, or at the latest PEER_MAINTENANCE_INTERVAL
+	 * from now. Peers bring their deadline forward (reschedule()/wakeUp(PeerNode)) when
+	 * something is queued. Each iteration only looks at the peers which are due, and we sleep
+	 * until the next deadline.
 	 */
 	private void realRun() {
+		long loopStart = System.nanoTime();
 		long now = System.currentTimeMillis();
-                PeerManager pm;
-		PeerNode[] nodes;
 
-        pm = node.peers;
-        nodes = pm.myPeers();
+		updatePeers();
 
-		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		final boolean canSendThrottled;
+		/** When we will next be able to send a throttled packet. */
+		long canSendThrottledTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
@@ -167,7 +200,7 @@ public class PacketSender implements Runnable {
 			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottledTime = now + canSendAt;
 			canSendThrottled = false;
 		}
 		
@@ -175,24 +208,29 @@ public class PacketSender implements Runnable {
 		 * now. Throttled if canSendThrottled, otherwise not throttled. 
 		 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
 		long lowestUrgentSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestUrgentSendTime is referring to */
-		ArrayList<PeerNode> urgentSendPeers = null;
+		urgentSendPeers.clear();
 		/** The earliest time at which a peer needs to send a packet, which is after
 		 * now, where there is a full packet's worth of data to send. 
 		 * Throttled if canSendThrottled, otherwise not throttled. */
 		long lowestFullPacketSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestFullPacketSendTime is referring to */
-		ArrayList<PeerNode> urgentFullPacketPeers = null;
+		urgentFullPacketPeers.clear();
 		/** The earliest time at which a peer needs to send an ack, before now. */
 		long lowestAckTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestAckTime is referring to */
-		ArrayList<PeerNode> ackPeers = null;
+		ackPeers.clear();
 		/** The earliest time at which a peer needs to handshake. */
 		long lowestHandshakeTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestHandshakeTime is referring to */
-		ArrayList<PeerNode> handshakePeers = null;
-
-		for(PeerNode pn: nodes) {
+		handshakePeers.clear();
+
+		// Peers with a full packet queued are candidates on every iteration, even if their
+		// deadline has not been reached, as they were when we looked at every peer.
+		duePeers.clear();
+		duePeers.addAll(fullPacketPeers);
+		fullPacketPeers.clear();
+		peerDeadlines.removeDue(now, duePeers);
+
+		for(PeerNode pn: duePeers) {
+			if(!knownPeers.containsKey(pn)) continue; // Removed.
+			if(!checkedPeers.add(pn)) continue; // Already seen this iteration.
 			now = System.currentTimeMillis();
 			
 			// Basic peer maintenance.
@@ -208,6 +246,9 @@ public class PacketSender implements Runnable {
 				node.peers.disconnectAndRemove(pn, true, true, false);
 			}
 
+			/** When we next need to look at this peer. */
+			long peerDeadline = now + PEER_MAINTENANCE_INTERVAL;
+
 			if(pn.isConnected()) {
 				
 				boolean shouldThrottle = pn.shouldThrottle();
@@ -220,6 +261,7 @@ public class PacketSender implements Runnable {
 					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
 					// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
 					pn.disconnected(true, false);
+					peerDeadlines.set(pn, now);
 					continue;
 				} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
 					// FIXME better to disconnect immediately??? Or check canSend()???
@@ -228,6 +270,7 @@ public class PacketSender implements Runnable {
 					// There appears to be connectivity from them to us but not from us to them.
 					// So it is helpful for them to know that we are disconnecting.
 					node.peers.disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
+					peerDeadlines.set(pn, now);
 					continue;
 				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
 					/*
@@ -238,6 +281,7 @@ public class PacketSender implements Runnable {
 					 */
 					pn.invalidate(now);
 					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+					peerDeadlines.set(pn, now);
 					continue;
 				}
 
@@ -251,50 +295,40 @@ public class PacketSender implements Runnable {
 							// Message is urgent.
 							if(sendTime < lowestUrgentSendTime) {
 								lowestUrgentSendTime = sendTime;
-								if(urgentSendPeers != null)
-									urgentSendPeers.clear();
-								else
-									urgentSendPeers = new ArrayList<PeerNode>();
+								urgentSendPeers.clear();
 							}
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
+							fullPacketPeers.add(pn);
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
-								if(urgentFullPacketPeers != null)
-									urgentFullPacketPeers.clear();
-								else
-									urgentFullPacketPeers = new ArrayList<PeerNode>();
+								urgentFullPacketPeers.clear();
 							}
 							if(sendTime <= lowestFullPacketSendTime)
 								urgentFullPacketPeers.add(pn);
 						}
 					}
+					// Should spam the logs, unless there is a deadlock
+					if(sendTime < Long.MAX_VALUE && logMINOR)
+						Logger.minor(this, "Next urgent time: " + sendTime + "(in "+(sendTime - now)+") for " + pn);
+					peerDeadline = Math.min(peerDeadline, sendTime);
 				} else if(shouldThrottle && !canSendThrottled) {
 					long ackTime = pn.timeSendAcks();
 					if(ackTime != Long.MAX_VALUE) {
 						if(ackTime <= now) {
 							if(ackTime < lowestAckTime) {
 								lowestAckTime = ackTime;
-								if(ackPeers != null)
-									ackPeers.clear();
-								else
-									ackPeers = new ArrayList<PeerNode>();
+								ackPeers.clear();
 							}
 							if(ackTime <= lowestAckTime)
 								ackPeers.add(pn);
 						}
 					}
-				}
-				
-				if(canSendThrottled || !shouldThrottle) {
-					long urgentTime = pn.getNextUrgentTime(now);
-					// Should spam the logs, unless there is a deadlock
-					if(urgentTime < Long.MAX_VALUE && logMINOR)
-						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
-					nextActionTime = Math.min(nextActionTime, urgentTime);
-				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+					peerDeadline = Math.min(peerDeadline, ackTime);
+					peerDeadline = Math.min(peerDeadline, pn.timeCheckForLostPackets());
+					// We can send more than acks once we have the bandwidth.
+					peerDeadline = Math.min(peerDeadline, canSendThrottledTime);
 				}
 			} else
 				// Not connected
@@ -306,20 +340,22 @@ public class PacketSender implements Runnable {
 			if(handshakeTime != Long.MAX_VALUE) {
 				if(handshakeTime < lowestHandshakeTime) {
 					lowestHandshakeTime = handshakeTime;
-					if(handshakePeers != null)
-						handshakePeers.clear();
-					else
-						handshakePeers = new ArrayList<PeerNode>();
+					handshakePeers.clear();
 				}
 				if(handshakeTime <= lowestHandshakeTime)
 					handshakePeers.add(pn);
+				peerDeadline = Math.min(peerDeadline, handshakeTime);
 			}
+
+			peerDeadlines.setIfEarlier(pn, peerDeadline);
 			
 			long tempNow = System.currentTimeMillis();
 			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
 				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
 			oldTempNow = tempNow;
 		}
+		int peersChecked = checkedPeers.size();
+		checkedPeers.clear();
 		
 		// We may send a packet, send an ack-only packet, or send a handshake.
 		
@@ -348,11 +384,13 @@ public class PacketSender implements Runnable {
 			toSendAckOnly = null;
 		}
 		
+		boolean sent = false;
 		if(toSendPacket != null) {
 			try {
 				if(toSendPacket.maybeSendPacket(now, false)) {
-					// Round-robin over the loop to update nextActionTime appropriately
-					nextActionTime = now;
+					// Check this peer again straight away, it may have more to send.
+					peerDeadlines.set(toSendPacket, now);
+					sent = true;
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
@@ -361,8 +399,8 @@ public class PacketSender implements Runnable {
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
-                    // Round-robin over the loop to update nextActionTime appropriately
-                    nextActionTime = now;
+					peerDeadlines.set(toSendAckOnly, now);
+					sent = true;
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
@@ -383,6 +421,7 @@ public class PacketSender implements Runnable {
 		*  - There's no urgent message -->> don't care, goto Nothing 
 		* Nothing:
 		*  -->> timeCheckForLostPackets 
+		* These are now each peer's deadline, rather than a single nextActionTime.
 		*/
 		
 		if(toSendHandshake != null) {
@@ -392,23 +431,98 @@ public class PacketSender implements Runnable {
 			long afterHandshakeTime = System.currentTimeMillis();
 			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+			// Its next handshake time will have changed.
+			peerDeadlines.set(toSendHandshake, now);
+		}
+
+		if(!sent) {
+			// Nothing was sent, so the full-packet peers can wait for their deadlines.
+			fullPacketPeers.clear();
 		}
-		
-		// All of these take into account whether the data can be sent already.
-		// So we can include them in nextActionTime.
-		nextActionTime = Math.min(nextActionTime, lowestUrgentSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestAckTime);
-		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
 
 		// FIXME: If we send something we will have to go around the loop again.
 		// OPTIMISATION: We could track the second best, and check how many are in the array.
 		
-		/* Attempt to connect to old-opennet-peers.
-		 * Constantly send handshake packets, in order to get through a NAT.
-		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
-		 * Well worth it to allow us to reconnect more quickly. */
+		if(now >= nextOldOpennetPeersTime)
+			nextOldOpennetPeersTime = handshakeOldOpennetPeers(now);
+
+		long oldNow = now;
+
+		// Send may have taken some time
+		now = System.currentTimeMillis();
+
+		if((now - oldNow) > SECONDS.toMillis(10))
+			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+
+		long nextActionTime = Math.min(peerDeadlines.earliest(), nextOldOpennetPeersTime);
+		if(!fullPacketPeers.isEmpty())
+			nextActionTime = now;
+		long sleepTime = nextActionTime - now;
+		
+		// Look at everything at least this often, in case a peer changes state without telling us.
+		sleepTime = Math.min(sleepTime, PEER_MAINTENANCE_INTERVAL);
+
+		if(now - node.startupTime > MINUTES.toMillis(5))
+			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
+				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
+				lastReceivedPacketFromAnyNode = now;
+			}
+
+		recordLoop(System.nanoTime() - loopStart, peersChecked);
+
+		synchronized(this) {
+			if(wakeUpRequested) {
+				wakeUpRequested = false;
+				sleepTime = 0;
+			}
+			if(sleepTime > 0) {
+				nextWakeTime = now + sleepTime;
+				// Update logging only when have time to do so
+				try {
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
+					wait(sleepTime);
+				} catch(InterruptedException e) {
+				// Ignore, just wake up. Probably we got interrupt()ed
+				// because a new packet came in.
+				}
+				wakeUpRequested = false;
+				nextWakeTime = 0;
+			} else {
+				if(logDEBUG)
+					Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+			}
+		}
+	}
 
+	/** Keep peerDeadlines in sync with the peer list. Cheap unless the list has changed. */
+	private void updatePeers() {
+		PeerNode[] nodes = node.peers.myPeers();
+		if(nodes == lastPeers) return;
+		lastPeers = nodes;
+		IdentityHashMap<PeerNode, Boolean> newPeers = new IdentityHashMap<PeerNode, Boolean>(nodes.length * 2);
+		long now = System.currentTimeMillis();
+		for(PeerNode pn : nodes) {
+			newPeers.put(pn, Boolean.TRUE);
+			if(!knownPeers.containsKey(pn))
+				peerDeadlines.set(pn, now);
+		}
+		for(PeerNode pn : knownPeers.keySet()) {
+			if(!newPeers.containsKey(pn))
+				peerDeadlines.remove(pn);
+		}
+		knownPeers = newPeers;
+	}
+
+	/**
+	 * Attempt to connect to old-opennet-peers.
+	 * Constantly send handshake packets, in order to get through a NAT.
+	 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
+	 * Well worth it to allow us to reconnect more quickly.
+	 * @return When we next need to look at the old-opennet-peers.
+	 */
+	private long handshakeOldOpennetPeers(long now) {
+		long next = now + PEER_MAINTENANCE_INTERVAL;
 		OpennetManager om = node.getOpennet();
 		if(om != null && node.getUptime() > SECONDS.toMillis(30)) {
 			OpennetPeerNode[] peers = om.getOldPeers();
@@ -436,55 +550,63 @@ public class PacketSender implements Runnable {
 					if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
 						Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
 				}
+				next = Math.min(next, Math.max(now + MAX_COALESCING_DELAY, pn.timeSendHandshake(now)));
 			}
 
 		}
+		return next;
+	}
 
-		long oldNow = now;
-
-		// Send may have taken some time
-		now = System.currentTimeMillis();
-
-		if((now - oldNow) > SECONDS.toMillis(10))
-			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+	private synchronized void recordLoop(long nanos, int peersChecked) {
+		loops++;
+		loopNanos += nanos;
+		loopPeersChecked += peersChecked;
+	}
 
-		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+	/** @return The number of iterations of the send loop so far. */
+	public synchronized long getLoopCount() {
+		return loops;
+	}
 
-		if(now - node.startupTime > MINUTES.toMillis(5))
-			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
-				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
-				lastReportedNoPackets = now;
-			}
+	/** @return The average time spent in each iteration of the send loop, not counting sleeping. */
+	public synchronized long getAverageLoopTimeNanos() {
+		return loops == 0 ? 0 : loopNanos / loops;
+	}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
-				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
-			}
-		} else {
-			if(logDEBUG)
-				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
-		}
+	/** @return The average number of peers looked at in each iteration of the send loop. */
+	public synchronized double getAveragePeersCheckedPerLoop() {
+		return loops == 0 ? 0 : ((double) loopPeersChecked) / loops;
 	}
 
 	/** Wake up, and send any queued packets. */
 	void wakeUp() {
 		// Wake up if needed
 		synchronized(this) {
+			wakeUpRequested = true;
 			notifyAll();
 		}
 	}
 
+	/** Wake up, and look at this peer straight away. */
+	void wakeUp(PeerNode pn) {
+		peerDeadlines.setIfEarlier(pn, System.currentTimeMillis());
+		wakeUp();
+	}
+
+	/**
+	 * Something has been queued on a peer which will need sending by the given time. Only
+	 * wakes up the sender thread if it would otherwise sleep past that time.
+	 */
+	void reschedule(PeerNode pn, long time) {
+		if(!peerDeadlines.setIfEarlier(pn, time)) return;
+		synchronized(this) {
+			if(nextWakeTime != 0 && time < nextWakeTime) {
+				wakeUpRequested = true;
+				notifyAll();
+			}
+		}
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
@@ -0,0 +1,250 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The locations of a set of peers, and the locations of their peers (FOAF), sorted around the
+ * keyspace, so PeerManager.closerPeer() can look at the peers in order of distance to the target
+ * and stop as soon as no other peer can win, instead of scoring every peer.
+ *
+ * A peer's routing distance is the distance from the target to its own location, or to one of
+ * its peers' locations if that is closer, so it is always the distance of one of its entries.
+ * Hence once the search has reached distance d, every peer we have not looked at yet is at
+ * least d away. Whether we may route to a peer, whether to use its FOAF locations, and whether it
+ * is backed off all change much more often than locations, so they are checked on each search
+ * via the Router, exactly as closerPeer() does.
+ *
+ * The index is immutable. PeerManager builds a new one when connectedPeers or any peer's
+ * location changes.
+ */
+class PeerLocationIndex {
+
+	/** Per-peer checks done on each search. Peers are identified by their index in the array
+	 * the PeerLocationIndex was built from. */
+	interface Router {
+		/** @return False if we must not route to the peer at all. */
+		boolean canRouteTo(int peer);
+		/** @return The peer's current location. */
+		double getLocation(int peer);
+		/** @return The closest usable location of the peer's peers to the target, or NaN if
+		 * none or if we shouldn't use them. */
+		double getClosestPeerLocation(int peer);
+		boolean isBackedOff(int peer);
+	}
+
+	/** The peers the index was built from */
+	final PeerNode[] peers;
+	private final int peerCount;
+	/** Entries, sorted by location */
+	private final double[] locations;
+	/** The peer each entry belongs to */
+	private final int[] owners;
+
+	PeerLocationIndex(PeerNode[] peers) {
+		this(peers, getLocations(peers), getPeersLocations(peers));
+	}
+
+	/** For tests */
+	PeerLocationIndex(double[] locs, double[][] peerLocs) {
+		this(null, locs, peerLocs);
+	}
+
+	private PeerLocationIndex(PeerNode[] peers, double[] locs, double[][] peerLocs) {
+		this.peers = peers;
+		this.peerCount = locs.length;
+		int count = 0;
+		for(int i=0;i<peerCount;i++) {
+			if(Location.isValid(locs[i])) count++;
+			if(peerLocs[i] != null) count += peerLocs[i].length;
+		}
+		final double[] entryLocs = new double[count];
+		int[] entryOwners = new int[count];
+		int x = 0;
+		for(int i=0;i<peerCount;i++) {
+			if(Location.isValid(locs[i])) {
+				entryLocs[x] = locs[i];
+				entryOwners[x++] = i;
+			}
+			if(peerLocs[i] != null) {
+				for(double l : peerLocs[i]) {
+					entryLocs[x] = l;
+					entryOwners[x++] = i;
+				}
+			}
+		}
+		Integer[] order = new Integer[count];
+		for(int i=0;i<count;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(entryLocs[a], entryLocs[b]);
+			}
+
+		});
+		locations = new double[count];
+		owners = new int[count];
+		for(int i=0;i<count;i++) {
+			locations[i] = entryLocs[order[i]];
+			owners[i] = entryOwners[order[i]];
+		}
+	}
+
+	private static double[] getLocations(PeerNode[] peers) {
+		double[] locs = new double[peers.length];
+		for(int i=0;i<peers.length;i++)
+			locs[i] = peers[i].getLocation();
+		return locs;
+	}
+
+	private static double[][] getPeersLocations(PeerNode[] peers) {
+		double[][] peerLocs = new double[peers.length][];
+		for(int i=0;i<peers.length;i++)
+			peerLocs[i] = peers[i].getPeersLocationArray();
+		return peerLocs;
+	}
+
+	/** A peer we could route to, and its distances as computed by closerPeer(). */
+	private static class Candidate {
+		final int peer;
+		final double diff;
+		final double realDiff;
+		final boolean direct;
+
+		Candidate(int peer, double diff, double realDiff, boolean direct) {
+			this.peer = peer;
+			this.diff = diff;
+			this.realDiff = realDiff;
+			this.direct = direct;
+		}
+	}
+
+	/**
+	 * Find the peer closerPeer() would choose when there are no failure table timeouts: the
+	 * closest peer which is not backed off, or if there are none, the closest backed off peer.
+	 * @param maxDistance Ignore peers further than this from the target.
+	 * @return The index of the peer, or -1.
+	 */
+	int closest(double target, double maxDistance, Router router) {
+		boolean[] seen = new boolean[peerCount];
+		List<Candidate> notBackedOff = new ArrayList<Candidate>();
+		List<Candidate> backedOff = new ArrayList<Candidate>();
+		// The furthest distance which could still tie with the closest not backed off peer.
+		double end = Double.MAX_VALUE;
+		int count = locations.length;
+		if(count == 0) return -1;
+		int right = Arrays.binarySearch(locations, target);
+		if(right < 0) right = -right - 1;
+		if(right == count) right = 0;
+		int left = (right == 0 ? count : right) - 1;
+		for(int visited = 0; visited < count; visited++) {
+			int entry;
+			double leftDistance = Location.distance(locations[left], target);
+			double rightDistance = Location.distance(locations[right], target);
+			double distance;
+			if(rightDistance <= leftDistance) {
+				entry = right;
+				distance = rightDistance;
+				right = (right == count - 1) ? 0 : right + 1;
+			} else {
+				entry = left;
+				distance = leftDistance;
+				left = (left == 0) ? count - 1 : left - 1;
+			}
+			if(distance > maxDistance) break;
+			if(distance > end && !(distance - end < Double.MIN_VALUE*2)) break;
+			int peer = owners[entry];
+			if(seen[peer]) continue;
+			seen[peer] = true;
+			if(!router.canRouteTo(peer)) continue;
+			// Same calculation as closerPeer().
+			double realDiff = Location.distance(router.getLocation(peer), target);
+			double diff = realDiff;
+			boolean direct = true;
+			double l = router.getClosestPeerLocation(peer);
+			if(!Double.isNaN(l)) {
+				double newDiff = Location.distance(l, target);
+				if(newDiff < diff) {
+					diff = newDiff;
+					direct = false;
+				}
+			}
+			if(diff > maxDistance) continue;
+			Candidate c = new Candidate(peer, diff, realDiff, direct);
+			if(router.isBackedOff(peer)) {
+				backedOff.add(c);
+			} else {
+				notBackedOff.add(c);
+				end = tieEnd(notBackedOff);
+			}
+		}
+		if(!notBackedOff.isEmpty())
+			return choose(notBackedOff);
+		if(!backedOff.isEmpty())
+			return choose(backedOff);
+		return -1;
+	}
+
+	private static final Comparator<Candidate> BY_DISTANCE = new Comparator<Candidate>() {
+
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return Double.compare(a.diff, b.diff);
+		}
+
+	};
+
+	private static final Comparator<Candidate> BY_PEER = new Comparator<Candidate>() {
+
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return a.peer - b.peer;
+		}
+
+	};
+
+	/** closerPeer() treats distances less than 2*Double.MIN_VALUE apart as equal, so the
+	 * candidates which can win are the closest, and any chained to it by such ties.
+	 * @return The distance of the last of these. */
+	private static double tieEnd(List<Candidate> candidates) {
+		Candidate[] sorted = candidates.toArray(new Candidate[candidates.size()]);
+		Arrays.sort(sorted, BY_DISTANCE);
+		double end = sorted[0].diff;
+		for(int i=1;i<sorted.length;i++) {
+			if(Math.abs(sorted[i].diff - end) < Double.MIN_VALUE*2)
+				end = sorted[i].diff;
+			else
+				break;
+		}
+		return end;
+	}
+
+	/** Choose between candidates exactly as closerPeer() does, i.e. as if scanning them in
+	 * order, with ties going to a later peer if it is direct or really closer. */
+	private static int choose(List<Candidate> candidates) {
+		double end = tieEnd(candidates);
+		List<Candidate> close = new ArrayList<Candidate>();
+		for(Candidate c : candidates)
+			if(c.diff <= end) close.add(c);
+		Collections.sort(close, BY_PEER);
+		int best = -1;
+		double closestDistance = Double.MAX_VALUE;
+		double closestRealDistance = Double.MAX_VALUE;
+		for(Candidate c : close) {
+			if(c.diff < closestDistance || (Math.abs(c.diff - closestDistance) < Double.MIN_VALUE*2 && (c.direct || c.realDiff < closestRealDistance))) {
+				closestDistance = c.diff;
+				closestRealDistance = c.realDiff;
+				best = c.peer;
+			}
+		}
+		return best;
+	}
+
+}
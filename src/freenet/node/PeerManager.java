@@ -72,6 +72,11 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** Index of the locations of connectedPeers, for closerPeer(). Rebuilt when connectedPeers is
+	 * replaced or a location changes. */
+	private PeerLocationIndex locationIndex;
+	private int locationIndexVersion;
+	private final Object locationIndexSync = new Object();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -966,12 +971,9 @@ public class PeerManager {
 		if(key != null)
 			entry = node.failureTable.getTimedOutNodesList(key);
 		
-		double[] selectionRates = new double[peers.length];
-		double totalSelectionRate = 0.0;
-		for(int i=0;i<peers.length;i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
-		}
+		SelectionRates rates = getSelectionRates(peers, now);
+		double[] selectionRates = rates.rates;
+		double totalSelectionRate = rates.total;
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
 
 		// Locations not to consider for routing: our own location, and locations already routed to
@@ -982,51 +984,21 @@ public class PeerManager {
 			excludeLocations.add(routedToNode.getLocation());
 		}
 
+		if(entry == null && addUnpickedLocsTo == null) {
+			// Nothing is timed out, so we just want the closest peer, and can use the index.
+			PeerNode best = closestIndexed(peers, pn, routedTo, target, ignoreSelf ? maxDistance : Math.min(maxDistance, maxDiff),
+					minVersion, outgoingHTL, ignoreBackoffUnder, realTime, now, newLoadManagement, excludeLocations,
+					enableFOAFMitigationHack, selectionRates, totalSelectionRate);
+			if(best != null && calculateMisrouting)
+				reportBackedOffPercent();
+			return best;
+		}
+
 		for(int i = 0; i < peers.length; i++) {
 			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			if(!canRouteTo(p, pn, routedTo, minVersion, newLoadManagement, realTime, now,
+					enableFOAFMitigationHack, selectionRates[i], totalSelectionRate))
 				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
-				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
-			if(enableFOAFMitigationHack) {
-				double selectionRate = selectionRates[i];
-				double selectionSamplesPercentage = selectionRate / totalSelectionRate;
-				if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
-					if(logMINOR)
-						Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
-					continue;
-				}
-			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
-				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1231,12 +1203,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1248,6 +1216,169 @@ public class PeerManager {
 		return best;
 	}
 
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/** The common case of closerPeer(), when there are no failure table timeouts for the key.
+	 * Finds the same peer, but only looks at peers in order of distance until none of the rest
+	 * could be chosen. See PeerLocationIndex. */
+	private PeerNode closestIndexed(final PeerNode[] peers, final PeerNode pn, final Set<PeerNode> routedTo,
+			final double target, double maxDistance, final int minVersion, final short outgoingHTL,
+			final long ignoreBackoffUnder, final boolean realTime, final long now, final boolean newLoadManagement,
+			final Set<Double> excludeLocations, final boolean enableFOAFMitigationHack,
+			final double[] selectionRates, final double totalSelectionRate) {
+		PeerLocationIndex index = getLocationIndex(peers);
+		int best = index.closest(target, maxDistance, new PeerLocationIndex.Router() {
+
+			@Override
+			public boolean canRouteTo(int peer) {
+				return PeerManager.this.canRouteTo(peers[peer], pn, routedTo, minVersion, newLoadManagement,
+						realTime, now, enableFOAFMitigationHack, selectionRates[peer], totalSelectionRate);
+			}
+
+			@Override
+			public double getLocation(int peer) {
+				return peers[peer].getLocation();
+			}
+
+			@Override
+			public double getClosestPeerLocation(int peer) {
+				PeerNode p = peers[peer];
+				if(!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL))
+					return Double.NaN;
+				return p.getClosestPeerLocation(target, excludeLocations);
+			}
+
+			@Override
+			public boolean isBackedOff(int peer) {
+				return peers[peer].isRoutingBackedOff(ignoreBackoffUnder, realTime);
+			}
+
+		});
+		if(best == -1) return null;
+		if(logMINOR)
+			Logger.minor(this, "Closest peer by location index: "+peers[best].getPeer());
+		return peers[best];
+	}
+
+	/** @return The location index for the given connectedPeers array, building it if necessary. */
+	private PeerLocationIndex getLocationIndex(PeerNode[] peers) {
+		int version;
+		synchronized(locationIndexSync) {
+			if(locationIndex != null && locationIndex.peers == peers)
+				return locationIndex;
+			version = locationIndexVersion;
+		}
+		PeerLocationIndex index = new PeerLocationIndex(peers);
+		synchronized(locationIndexSync) {
+			// Don't keep it if a location changed while we were building it.
+			if(version == locationIndexVersion)
+				locationIndex = index;
+		}
+		return index;
+	}
+
+	/** How long closerPeer() uses the same selection rates for. They are averages over the time
+	 * since each peer connected, so they change slowly, and getting them locks every peer. */
+	static final long SELECTION_RATES_MAX_AGE = SECONDS.toMillis(1);
+
+	/** The selection rates of the peers in a connectedPeers array, for the FOAF mitigation in
+	 * closerPeer(). Immutable. */
+	private static class SelectionRates {
+		final PeerNode[] peers;
+		final long time;
+		final double[] rates;
+		final double total;
+
+		SelectionRates(PeerNode[] peers, long now) {
+			this.peers = peers;
+			this.time = now;
+			rates = new double[peers.length];
+			double total = 0.0;
+			for(int i=0;i<peers.length;i++) {
+				rates[i] = peers[i].selectionRate();
+				total += rates[i];
+			}
+			this.total = total;
+		}
+	}
+
+	private volatile SelectionRates selectionRates;
+
+	/** @return The selection rates for the given connectedPeers array, recomputing them if they
+	 * are for a different array or older than SELECTION_RATES_MAX_AGE. */
+	private SelectionRates getSelectionRates(PeerNode[] peers, long now) {
+		SelectionRates rates = selectionRates;
+		if(rates != null && rates.peers == peers && now >= rates.time && 
+				now - rates.time < SELECTION_RATES_MAX_AGE)
+			return rates;
+		rates = new SelectionRates(peers, now);
+		selectionRates = rates;
+		return rates;
+	}
+
+	/** Called when a peer's location, or the locations of its peers, have changed. */
+	void onPeerLocationChanged() {
+		synchronized(locationIndexSync) {
+			locationIndexVersion++;
+			locationIndex = null;
+		}
+	}
+
+	/** Checks done by closerPeer() before considering a peer's location.
+	 * @return False if we must not route to the peer. */
+	private boolean canRouteTo(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion,
+			boolean newLoadManagement, boolean realTime, long now, boolean enableFOAFMitigationHack,
+			double selectionRate, double totalSelectionRate) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(enableFOAFMitigationHack) {
+			double selectionSamplesPercentage = selectionRate / totalSelectionRate;
+			if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
+				if(logMINOR)
+					Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
+				return false;
+			}
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
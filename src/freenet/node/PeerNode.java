@@ -57,6 +57,7 @@ import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.SocketHandler;
 import freenet.io.xfer.PacketThrottle;
+import freenet.io.xfer.TransferMultiplexer;
 import freenet.keys.ClientSSK;
 import freenet.keys.FreenetURI;
 import freenet.keys.Key;
@@ -240,6 +241,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	/** MessageItem's to send ASAP.
 	 * LOCKING: Lock on self, always take that lock last. Sometimes used inside PeerNode.this lock. */
 	private final PeerMessageQueue messageQueue;
+	/** Schedules block and bulk transfers to this peer. */
+	private final TransferMultiplexer transfers;
 	/** When did we last receive a SwapRequest? */
 	private long timeLastReceivedSwapRequest;
 	/** Average interval between SwapRequest's */
@@ -394,6 +397,15 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	 *  responder in message2 match what was chosen in message 1
 	 */
 	protected final LinkedList<byte[]> jfkNoncesSent = new LinkedList<byte[]>();
+	/**
+	 * Held while processing a packet from this peer, both data packets and handshake packets.
+	 * With more than one receive thread (see UdpReceivePipeline), packets are spread across
+	 * threads by address, so a peer which changes address, or a packet tried against every peer,
+	 * can be processed on two threads at once. The receive side of NewPacketFormat and the JFK
+	 * state used by FNPPacketMangler are not thread-safe, so serialize them per peer.
+	 * LOCKING: Taken before any other lock. Never take another peer's receiveLock inside it.
+	 */
+	final Object receiveLock = new Object();
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
 
@@ -618,6 +630,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		probeRequestsInterval = new SimpleRunningAverage(50, Node.MIN_INTERVAL_BETWEEN_INCOMING_PROBE_REQUESTS);
 
 		messageQueue = new PeerMessageQueue();
+		transfers = new TransferMultiplexer(this, node.executor);
 
 		decrementHTLAtMaximum = node.random.nextFloat() < Node.DECREMENT_AT_MAX_PROB;
 		decrementHTLAtMinimum = node.random.nextFloat() < Node.DECREMENT_AT_MIN_PROB;
@@ -1092,17 +1105,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender, just make sure it looks at
+			// us before the message's deadline (at most the maximum coalescing delay).
+			long deadline = item.getDeadline();
+			node.ps.reschedule(this, deadline > 0 ? deadline : now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void rescheduleSender(long time) {
+		node.ps.reschedule(this, time);
 	}
 
 	@Override
@@ -1744,8 +1764,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.peers.updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.peers.onPeerLocationChanged();
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2173,6 +2195,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		
 		crypto.maybeBootConnection(this, replyTo.getFreenetAddress());
 
+		// Our connection state has changed, so the PacketSender needs to look at us.
+		wakeUpSender();
+
 		return trackerID;
 	}
 
@@ -2315,6 +2340,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		setPeerNodeStatus(now);
 		node.peers.addConnectedPeer(this);
 		maybeOnConnect();
+		wakeUpSender();
 		if(completelyDeprecatedTracker != null) {
 			completelyDeprecatedTracker.disconnected();
 		}
@@ -2524,6 +2550,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				double oldLoc = location.setLocation(newLoc);
 				if(!Location.equals(oldLoc, newLoc)) {
+					node.peers.onPeerLocationChanged();
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
@@ -5349,7 +5376,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			pf = packetFormat;
 			if(pf == null) return false;
 		}
-		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
+		synchronized(receiveLock) {
+			return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
+		}
 	}
 
 	public void checkForLostPackets() {
@@ -5760,6 +5789,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		}
 	}
 	
+	@Override
+	public TransferMultiplexer getTransferMultiplexer() {
+		return transfers;
+	}
+
 	/** @return The largest throttle window size of any of our throttles.
 	 * This is just for guesstimating how many blocks we can have in flight. */
 	@Override
@@ -116,6 +116,10 @@ public class PeerNodeStatus {
 	private final long messageQueueLengthBytes;
 	
 	private final long messageQueueLengthTime;
+	
+	private final double transferRateRT;
+	
+	private final double transferRateBulk;
 	// int's because that's what they are transferred as
 	
 	public final IncomingLoadSummaryStats incomingLoadStatsRealTime;
@@ -195,6 +199,8 @@ public class PeerNodeStatus {
 		this.reportedUptimePercentage = peerNode.getUptime();
 		messageQueueLengthBytes = peerNode.getMessageQueueLengthBytes();
 		messageQueueLengthTime = peerNode.getProbableSendQueueTime();
+		transferRateRT = peerNode.getTransferMultiplexer().getRate(true);
+		transferRateBulk = peerNode.getTransferMultiplexer().getRate(false);
 		incomingLoadStatsRealTime = peerNode.getIncomingLoadStats(true);
 		incomingLoadStatsBulk = peerNode.getIncomingLoadStats(false);
 		hasFullNoderef = peerNode.hasFullNoderef();
@@ -207,6 +213,12 @@ public class PeerNodeStatus {
 	public long getMessageQueueLengthTime() {
 		return messageQueueLengthTime;
 	}
+	
+	/** @return The recent rate of block and bulk transfer data sent to the peer, in bytes per
+	 * second. */
+	public double getTransferRate(boolean realTime) {
+		return realTime ? transferRateRT : transferRateBulk;
+	}
 
 	/**
 	 * @return the localMessagesReceived
@@ -1,6 +1,7 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -51,13 +52,16 @@ public class RequestTag extends UIDTag {
 
 	public void setRequestSenderFinished(int status) {
 		boolean noRecordUnlock;
+		boolean unlock;
 		synchronized(this) {
 			if(status == RequestSender.NOT_FINISHED) throw new IllegalArgumentException();
 			requestSenderFinishedCode = status;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		loadChanged();
+		if(unlock)
+			innerUnlock(noRecordUnlock);
 	}
 
 	public synchronized void setSender(RequestSender rs, boolean coalesced) {
@@ -192,8 +196,11 @@ public class RequestTag extends UIDTag {
 	
 	private boolean completedDownstreamTransfers;
 
-	public synchronized void completedDownstreamTransfers() {
-		this.completedDownstreamTransfers = true;
+	public void completedDownstreamTransfers() {
+		synchronized(this) {
+			this.completedDownstreamTransfers = true;
+		}
+		loadChanged();
 	}
 
 	@Override
@@ -211,14 +218,18 @@ public class RequestTag extends UIDTag {
 		return false;
 	}
 
-	public synchronized void waitingForOpennet(PeerNode next) {
-		if(waitingForOpennet != null)
-			Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
-		this.waitingForOpennet = next.myRef;
+	public void waitingForOpennet(PeerNode next) {
+		synchronized(this) {
+			if(waitingForOpennet != null)
+				Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
+			this.waitingForOpennet = next.myRef;
+		}
+		loadChanged();
 	}
 
 	public void finishedWaitingForOpennet(PeerNode next) {
 		boolean noRecordUnlock;
+		boolean unlock;
 		synchronized(this) {
 			if(waitingForOpennet == null) {
 				if(logMINOR) Logger.minor(this, "Not waiting for opennet!");
@@ -229,10 +240,12 @@ public class RequestTag extends UIDTag {
 				Logger.error(this, "Finished waiting for opennet on "+next+" but was waiting for "+got);
 			}
 			waitingForOpennet = null;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		loadChanged();
+		if(unlock)
+			innerUnlock(noRecordUnlock);
 	}
 	
 	@Override
@@ -241,6 +254,16 @@ public class RequestTag extends UIDTag {
 			return true;
 		return super.currentlyRoutingTo(peer);
 	}
+	
+	@Override
+	synchronized HashSet<PeerNode> getCurrentlyRoutingTo() {
+		HashSet<PeerNode> peers = super.getCurrentlyRoutingTo();
+		if(waitingForOpennet != null) {
+			PeerNode pn = waitingForOpennet.get();
+			if(pn != null) peers.add(pn);
+		}
+		return peers;
+	}
 
 	public void handlerTransferBegins() {
 		synchronized(this) {
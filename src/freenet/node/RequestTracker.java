@@ -6,6 +6,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,6 +58,10 @@ public class RequestTracker {
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
 	
+	/** Running totals for each of the overall running* maps, so that load management doesn't
+	 * need to look at every tag. Each is protected by the map it belongs to. */
+	private final IdentityHashMap<HashMap<Long, ? extends UIDTag>, RunningTotals> runningTotals;
+	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
@@ -85,6 +90,15 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
+		
+		runningTotals = new IdentityHashMap<HashMap<Long, ? extends UIDTag>, RunningTotals>();
+		for(boolean realTimeFlag : new boolean[] { false, true }) {
+			for(boolean ssk : new boolean[] { false, true }) {
+				runningTotals.put(getRequestTracker(ssk, false, realTimeFlag), new RunningTotals());
+				runningTotals.put(getInsertTracker(ssk, false, realTimeFlag), new RunningTotals());
+				runningTotals.put(getOfferTracker(ssk, realTimeFlag), new RunningTotals());
+			}
+		}
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -137,6 +151,7 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			setLoad(runningTotals.get(overallMap), tag, new TagLoad(tag));
 		}
 		return true;
 	}
@@ -189,8 +204,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				setLoad(runningTotals.get(overallMap), tag, null);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -222,9 +239,168 @@ public class RequestTracker {
 		public int expectedTransfersIn() {
 			return expectedTransfersIn;
 		}
+		private void add(CountedRequests counter) {
+			total += counter.total;
+			expectedTransfersOut += counter.expectedTransfersOut;
+			expectedTransfersIn += counter.expectedTransfersIn;
+		}
+		private boolean sameAs(CountedRequests counter) {
+			return total == counter.total && expectedTransfersOut == counter.expectedTransfersOut &&
+				expectedTransfersIn == counter.expectedTransfersIn;
+		}
+		@Override
+		public String toString() {
+			return "total="+total+" in="+expectedTransfersIn+" out="+expectedTransfersOut;
+		}
+	}
+	
+	/** A tag's contribution to the running totals, as of the last time it told us something had
+	 * changed. Expected transfers are kept for each combination of ignoreLocalVsRemote and 
+	 * forAccept, see index(). For inserts, outgoing transfers are kept as a multiple of the
+	 * transfers per insert, which is only known when counting. */
+	static final class TagLoad {
+		final boolean wasLocal;
+		/** The source for load management, see UIDTag.getSource(). */
+		final PeerNode source;
+		final boolean sourceRestarted;
+		final int[] in = new int[4];
+		final int[] out = new int[4];
+		/** The peers we are routing to or fetching offered keys from. */
+		final PeerNode[] routingTo;
+		
+		/** LOCKING: Takes the tag's lock, so the caller must not hold it. */
+		TagLoad(UIDTag tag) {
+			wasLocal = tag.wasLocal;
+			source = tag.getSource();
+			sourceRestarted = tag.countAsSourceRestarted();
+			for(int i=0;i<4;i++) {
+				boolean ignoreLocalVsRemote = (i & 1) != 0;
+				boolean forAccept = (i & 2) != 0;
+				in[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 1, forAccept);
+				out[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, forAccept);
+			}
+			HashSet<PeerNode> peers = tag.getCurrentlyRoutingTo();
+			routingTo = peers.toArray(new PeerNode[peers.size()]);
+		}
+	}
+	
+	private static int index(boolean ignoreLocalVsRemote, boolean forAccept) {
+		return (ignoreLocalVsRemote ? 1 : 0) | (forAccept ? 2 : 0);
+	}
+	
+	/** @return The number to multiply TagLoad.out by for a given type of tag. */
+	private static int transfersOutMultiplier(boolean insert, boolean offer, int transfersPerInsert) {
+		return (insert && !offer) ? transfersPerInsert : 1;
+	}
+	
+	/** Sum of a group of TagLoad's, including those whose source has restarted separately. */
+	private static final class LoadTotals {
+		private int total;
+		private final int[] in = new int[4];
+		private final int[] out = new int[4];
+		private int totalSR;
+		private final int[] inSR = new int[4];
+		private final int[] outSR = new int[4];
+		
+		void add(TagLoad load, int sign) {
+			total += sign;
+			for(int i=0;i<4;i++) {
+				in[i] += sign * load.in[i];
+				out[i] += sign * load.out[i];
+			}
+			if(load.sourceRestarted) {
+				totalSR += sign;
+				for(int i=0;i<4;i++) {
+					inSR[i] += sign * load.in[i];
+					outSR[i] += sign * load.out[i];
+				}
+			}
+		}
+		
+		boolean isEmpty() {
+			return total == 0;
+		}
+		
+		void addTo(CountedRequests counter, CountedRequests counterSR, int index, int outMultiplier) {
+			counter.total += total;
+			counter.expectedTransfersIn += in[index];
+			counter.expectedTransfersOut += out[index] * outMultiplier;
+			if(counterSR != null) {
+				counterSR.total += totalSR;
+				counterSR.expectedTransfersIn += inSR[index];
+				counterSR.expectedTransfersOut += outSR[index] * outMultiplier;
+			}
+		}
+	}
+	
+	/** Running totals for one of the overall running* maps, updated as tags are locked, change
+	 * state and are unlocked. LOCKING: Protected by the map. */
+	private static final class RunningTotals {
+		/** Tags which originated locally. */
+		final LoadTotals local = new LoadTotals();
+		/** Tags which did not originate locally. */
+		final LoadTotals remote = new LoadTotals();
+		/** Remote tags by getSource(), which is null if reassigned to self. Compared by
+		 * identity, like the tags themselves do. */
+		final IdentityHashMap<PeerNode, LoadTotals> remoteBySource = new IdentityHashMap<PeerNode, LoadTotals>();
+		/** Local tags by the peers they are currently routing to. */
+		final IdentityHashMap<PeerNode, LoadTotals> localRoutingTo = new IdentityHashMap<PeerNode, LoadTotals>();
+		/** Remote tags by the peers they are currently routing to. */
+		final IdentityHashMap<PeerNode, LoadTotals> remoteRoutingTo = new IdentityHashMap<PeerNode, LoadTotals>();
+		
+		void add(TagLoad load, int sign) {
+			if(load.wasLocal) {
+				local.add(load, sign);
+			} else {
+				remote.add(load, sign);
+				add(remoteBySource, load.source, load, sign);
+			}
+			for(PeerNode pn : load.routingTo)
+				add(load.wasLocal ? localRoutingTo : remoteRoutingTo, pn, load, sign);
+		}
+		
+		private static void add(IdentityHashMap<PeerNode, LoadTotals> map, PeerNode pn, TagLoad load, int sign) {
+			LoadTotals totals = map.get(pn);
+			if(totals == null) {
+				totals = new LoadTotals();
+				map.put(pn, totals);
+			}
+			totals.add(load, sign);
+			// Don't keep disconnected peers alive.
+			if(totals.isEmpty()) map.remove(pn);
+		}
+	}
+	
+	/** Replace a tag's contribution to the running totals. Caller must hold the lock on the 
+	 * overall map the tag belongs to.
+	 * @param load The new contribution, or null if the tag has been unlocked. */
+	private void setLoad(RunningTotals totals, UIDTag tag, TagLoad load) {
+		if(tag.trackedLoad != null)
+			totals.add(tag.trackedLoad, -1);
+		tag.trackedLoad = load;
+		if(load != null)
+			totals.add(load, 1);
+	}
+	
+	/** Only used by UIDTag. Recompute a tag's contribution to the running totals, after
+	 * something affecting it has changed. Does nothing if the tag is not locked. */
+	void updateLoad(UIDTag tag) {
+		HashMap<Long, ? extends UIDTag> map = getTracker(false, tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.realTimeFlag);
+		synchronized(map) {
+			if(map.get(tag.uid) != tag) return;
+			setLoad(runningTotals.get(map), tag, new TagLoad(tag));
+		}
+	}
+	
+	/** When debugging, compare the running totals with a full recount, and complain if they
+	 * differ. This will catch a tag which doesn't call loadChanged() when it should. */
+	private void checkTotals(CountedRequests counted, CountedRequests countedSR, CountedRequests recounted, CountedRequests recountedSR, String desc) {
+		if(counted.sameAs(recounted) && (recountedSR == null || countedSR.sameAs(recountedSR))) return;
+		Logger.error(this, "Running totals don't match recount for "+desc+" : "+counted+" / "+countedSR+" should be "+recounted+" / "+recountedSR);
 	}
 
-	/** Count all requests running globally which match particular parameters.
+	/** Count all requests running globally which match particular parameters. This uses the
+	 * running totals, so is constant time.
 	 * @param local If true, only include requests which originated locally.
 	 * @param ssk If true, count SSK requests, if false, count CHK requests.
 	 * @param insert If true, count inserts, otherwise count requests.
@@ -238,6 +414,28 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		CountedRequests count = new CountedRequests();
+		CountedRequests countSR = new CountedRequests();
+		synchronized(mapLock) {
+			RunningTotals totals = runningTotals.get(mapLock);
+			LoadTotals load = local ? totals.local : totals.remote;
+			load.addTo(count, countSR, index(ignoreLocalVsRemote, true), transfersOutMultiplier(insert, offer, transfersPerInsert));
+			if(logDEBUG) {
+				CountedRequests recount = new CountedRequests();
+				CountedRequests recountSR = new CountedRequests();
+				recountRequests(local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, recount, recountSR);
+				checkTotals(count, countSR, recount, recountSR, (local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" realtime="+realTimeFlag);
+			}
+		}
+		counter.add(count);
+		if(counterSourceRestarted != null)
+			counterSourceRestarted.add(countSR);
+	}
+	
+	/** Count all requests running globally which match particular parameters, by looking at
+	 * every tag. Only used to check the running totals. Parameters as for countRequests(). */
+	void recountRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
@@ -279,11 +477,8 @@ public class RequestTracker {
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * This uses the running totals, which are kept by source and by the peers each request is 
+	 * routed to, so is constant time.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -300,6 +495,40 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		CountedRequests count = new CountedRequests();
+		CountedRequests countSR = new CountedRequests();
+		synchronized(mapLock) {
+			RunningTotals totals = runningTotals.get(mapLock);
+			LoadTotals load;
+			if(!requestsToNode) {
+				// If a request is adopted by us as a result of a timeout, it can be in the
+				// remote map despite having source == null. However, if a request is in the
+				// local map it will always have source == null.
+				if(source != null && local) return;
+				load = local ? totals.local : totals.remoteBySource.get(source);
+			} else {
+				// hasSourceRestarted is irrelevant for requests *to* a node.
+				load = (local ? totals.localRoutingTo : totals.remoteRoutingTo).get(source);
+			}
+			if(load != null)
+				load.addTo(count, requestsToNode ? null : countSR, index(ignoreLocalVsRemote, !requestsToNode), transfersOutMultiplier(insert, offer, transfersPerInsert));
+			if(logDEBUG) {
+				CountedRequests recount = new CountedRequests();
+				CountedRequests recountSR = requestsToNode ? null : new CountedRequests();
+				recountRequests(source, requestsToNode, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, recount, recountSR);
+				checkTotals(count, countSR, recount, recountSR, (local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" realtime="+realTimeFlag+(requestsToNode?" to ":" from ")+source);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+(requestsToNode?" to ":" from ")+source);
+		counter.add(count);
+		if(counterSR != null && !requestsToNode)
+			counterSR.add(countSR);
+	}
+
+	/** Count requests routed to a peer, or accepted from a peer, by looking at every tag. Only
+	 * used to check the running totals. Parameters as for countRequests(). */
+	void recountRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
@@ -390,36 +619,34 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		if(requestsToNode) return;
+		HashMap<Long, ? extends UIDTag> mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		int index = index(ignoreLocalVsRemote, true);
+		int outMultiplier = transfersOutMultiplier(insert, offer, transfersPerInsert);
 		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
-				}
+			RunningTotals totals = runningTotals.get(mapLock);
+			// If a request is adopted by us as a result of a timeout, it can be in the
+			// remote map despite having source == null. However, if a request is in the
+			// local map it will always have source == null.
+			if(local) {
+				if(!totals.local.isEmpty())
+					totals.local.addTo(getCounter(counterMap, null), null, index, outMultiplier);
+			} else {
+				for(Map.Entry<PeerNode, LoadTotals> entry : totals.remoteBySource.entrySet())
+					entry.getValue().addTo(getCounter(counterMap, entry.getKey()), null, index, outMultiplier);
 			}
 		}
 	}
 	
+	private static CountedRequests getCounter(Map<PeerNode, CountedRequests> counterMap, PeerNode source) {
+		CountedRequests counter = counterMap.get(source);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(source, counter);
+		}
+		return counter;
+	}
+	
 	public class WaitingForSlots {
 		int local;
 		int remote;
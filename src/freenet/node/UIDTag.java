@@ -57,6 +57,10 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** Our contribution to the tracker's running totals. LOCKING: Protected by the tracker's
+	 * overall map for this type of tag, not by the tag. */
+	RequestTracker.TagLoad trackedLoad;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
@@ -86,18 +90,23 @@ public abstract class UIDTag {
 	 * @return True if we were already routing to (or fetching an offered key 
 	 * from, depending on offeredKey) the peer.
 	 */
-	public synchronized boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
-		if(logMINOR)
-			Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
-		if(routedTo == null) routedTo = new HashSet<PeerNode>();
-		routedTo.add(peer);
-		if(offeredKey) {
-			if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<PeerNode>();
-			return fetchingOfferedKeyFrom.add(peer);
-		} else {
-			if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<PeerNode>();
-			return currentlyRoutingTo.add(peer);
+	public boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
+		boolean added;
+		synchronized(this) {
+			if(logMINOR)
+				Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
+			if(routedTo == null) routedTo = new HashSet<PeerNode>();
+			routedTo.add(peer);
+			if(offeredKey) {
+				if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<PeerNode>();
+				added = fetchingOfferedKeyFrom.add(peer);
+			} else {
+				if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<PeerNode>();
+				added = currentlyRoutingTo.add(peer);
+			}
 		}
+		loadChanged();
+		return added;
 	}
 
 	public synchronized boolean hasRoutedTo(PeerNode peer) {
@@ -110,6 +119,15 @@ public abstract class UIDTag {
 		return currentlyRoutingTo.contains(peer);
 	}
 	
+	/** @return All the peers for which currentlyRoutingTo() or currentlyFetchingOfferedKeyFrom()
+	 * would return true. */
+	synchronized HashSet<PeerNode> getCurrentlyRoutingTo() {
+		HashSet<PeerNode> peers = new HashSet<PeerNode>();
+		if(currentlyRoutingTo != null) peers.addAll(currentlyRoutingTo);
+		if(fetchingOfferedKeyFrom != null) peers.addAll(fetchingOfferedKeyFrom);
+		return peers;
+	}
+	
 	// Note that these don't actually get removed until the request is finished, unless there is a disconnection or similar. But that
 	// is generally not a problem as they complete quickly and successfully mostly.
 	// The alternative would be to remove when the transfer is finished, but that does not
@@ -130,15 +148,18 @@ public abstract class UIDTag {
 	 */
 	public void removeFetchingOfferedKeyFrom(PeerNode next) {
 		boolean noRecordUnlock;
+		boolean unlock;
 		synchronized(this) {
 			if(fetchingOfferedKeyFrom == null) return;
 			fetchingOfferedKeyFrom.remove(next);
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		loadChanged();
+		if(!unlock) return;
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
@@ -161,6 +182,7 @@ public abstract class UIDTag {
 		if(logMINOR)
 			Logger.minor(this, "No longer routing to "+next+" on "+this, new Exception("debug"));
 		boolean noRecordUnlock;
+		boolean unlock;
 		synchronized(this) {
 			if(currentlyRoutingTo == null) return;
 			if(!currentlyRoutingTo.remove(next)) {
@@ -169,13 +191,23 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		loadChanged();
+		if(!unlock) return;
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
 	
+	/** Tell the tracker to recompute our contribution to its running totals. Must be called
+	 * after anything changes which could affect expectedTransfersIn(), expectedTransfersOut(),
+	 * countAsSourceRestarted(), getSource() or getCurrentlyRoutingTo(). LOCKING: Must not be
+	 * called with the tag locked, as the tracker locks its map before the tag. */
+	protected final void loadChanged() {
+		tracker.updateLoad(this);
+	}
+	
 	protected void innerUnlock(boolean noRecordUnlock) {
 		tracker.unlockUID(this, false, noRecordUnlock);
 	}
@@ -213,8 +245,11 @@ public abstract class UIDTag {
 	 */
 	public abstract int expectedTransfersOut(boolean ignoreLocalVsRemote, int outwardTransfersPerInsert, boolean forAccept);
 	
-	public synchronized void setNotRoutedOnwards() {
-		this.notRoutedOnwards = true;
+	public void setNotRoutedOnwards() {
+		synchronized(this) {
+			this.notRoutedOnwards = true;
+		}
+		loadChanged();
 	}
 
 	private boolean reassigned;
@@ -228,9 +263,12 @@ public abstract class UIDTag {
 	}
 
 	/** Reassign the tag to us rather than its original sender. */
-	public synchronized void reassignToSelf() {
+	public void reassignToSelf() {
 		if(wasLocal) return;
-		reassigned = true;
+		synchronized(this) {
+			reassigned = true;
+		}
+		loadChanged();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -279,7 +317,8 @@ public abstract class UIDTag {
 					else
 						Logger.error(this, "Unlocked handler but still routing to "+currentlyRoutingTo+" yet not reassigned on "+this, new Exception("debug"));
 				} else
-					reassignToSelf();
+					// Caller will call loadChanged() after releasing the lock.
+					reassigned = true;
 			}
 			return false;
 		}
@@ -300,7 +339,7 @@ public abstract class UIDTag {
 					// Fork succeeds can't happen for fetch-offered-keys.
 					Logger.error(this, "Unlocked handler but still fetching offered keys from "+fetchingOfferedKeyFrom+" yet not reassigned on "+this, new Exception("debug"));
 				else
-					reassignToSelf();
+					reassigned = true;
 			}
 			return false;
 		}
@@ -326,6 +365,7 @@ public abstract class UIDTag {
 			unlockedHandler = true;
 			canUnlock = mustUnlock();
 		}
+		loadChanged();
 		if(canUnlock)
 			innerUnlock(noRecordUnlock);
 		else {
@@ -394,8 +434,11 @@ public abstract class UIDTag {
 		}
 	}
 
-	public synchronized void setAccepted() {
-		accepted = true;
+	public void setAccepted() {
+		synchronized(this) {
+			accepted = true;
+		}
+		loadChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -404,13 +447,19 @@ public abstract class UIDTag {
 	 * but can't terminate it yet. We will terminate the request if we have to
 	 * reroute it, and we count it towards the peer's limit, but we don't stop
 	 * messages to the request source. */
-	public synchronized void timedOutToHandlerButContinued() {
-		timedOutButContinued = true;
+	public void timedOutToHandlerButContinued() {
+		synchronized(this) {
+			timedOutButContinued = true;
+		}
+		loadChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
-	public synchronized void onRestartOrDisconnectSource() {
-		sourceRestarted = true;
+	public void onRestartOrDisconnectSource() {
+		synchronized(this) {
+			sourceRestarted = true;
+		}
+		loadChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
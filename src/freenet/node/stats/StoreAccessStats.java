@@ -36,6 +36,21 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** Number of slot lock operations. Zero for stores which do not lock individual slots. */
+	public long lockAcquisitions() {
+		return 0;
+	}
+
+	/** Number of slot lock acquisitions which had to wait for another thread. */
+	public long lockContentions() {
+		return 0;
+	}
+
+	/** Total time spent waiting for contended slot locks, in nanoseconds. */
+	public long lockWaitNanos() {
+		return 0;
+	}
+
 
 
 
@@ -27,6 +27,10 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		// FIXME optimize: change API so we can just pass in the crypto algorithm rather than having to construct the full key???
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
+
+	public void fetchAsync(NodeCHK chk, boolean dontPromote, boolean ignoreOldBlocks, BlockMetadata meta, StoreFetchCallback<CHKBlock> cb) {
+		store.fetchAsync(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta, cb);
+	}
 	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
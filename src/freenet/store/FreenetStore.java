@@ -28,6 +28,14 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
+
+	/**
+	 * Retrieve a block without blocking the caller on disk I/O. Same parameters as
+	 * {@link #fetch(byte[], byte[], boolean, boolean, boolean, boolean, BlockMetadata)}. Stores
+	 * which are held in memory may call the callback before returning, on the caller's thread;
+	 * disk-backed stores call it from one of their I/O threads.
+	 */
+	void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta, StoreFetchCallback<T> callback);
 	
 	/**
 	 * Store a block.
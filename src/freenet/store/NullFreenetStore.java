@@ -20,6 +20,13 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+			BlockMetadata meta, StoreFetchCallback<T> callback) {
+		callback.onFetched(null);
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
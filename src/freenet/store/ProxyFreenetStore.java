@@ -77,6 +77,13 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	@Override
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata meta, StoreFetchCallback<T> callback) {
+		backDatastore.fetchAsync(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, callback);
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite,
 			boolean oldBlock) throws IOException, KeyCollisionException {
@@ -2,54 +2,62 @@ package freenet.store;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
+import freenet.support.SegmentedLRUMap;
 import freenet.support.Ticker;
 
 /**
  * LRU in memory store.
  * 
  * For debugging / simulation only
+ * 
+ * Also used for the client cache. Lookups do not take a global lock, see {@link SegmentedLRUMap}.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Immutable, so it can be read without locking. Replaced rather than modified. */
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		final boolean oldBlock;
+		
+		Block(byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
 	}
 	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final SegmentedLRUMap<Block> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
+	private volatile int maxKeys;
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = new SegmentedLRUMap<Block>();
 		this.maxKeys = maxKeys;
 		callback.setStore(this);
 	}
 	
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
+		Block block = blocksByRoutingKey.get(routingKey, !dontPromote);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
 		if(ignoreOldBlocks && block.oldBlock) {
@@ -59,99 +67,105 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		try {
 			T ret =
 				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
+			hits.incrementAndGet();
 			if(meta != null && block.oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			blocksByRoutingKey.remove(routingKey, block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+			BlockMetadata meta, StoreFetchCallback<T> callback) {
+		// Everything is in memory, so just do it inline.
+		T block;
+		try {
+			block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		} catch (IOException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onFetched(block);
+	}
+
+
+	@Override
+	public long getMaxKeys() {
 		return maxKeys;
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
+	public long keyCount() {
 		return blocksByRoutingKey.size();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		writes++;
-		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
+		writes.incrementAndGet();
 		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
+		Block storeBlock = new Block(header, data, storeFullKeys ? fullKey : null, isOldBlock);
+		while(true) {
+			Block oldBlock = blocksByRoutingKey.putIfAbsent(routingkey, storeBlock);
+			if(oldBlock == null) break;
+			Block replacement;
 			if(callback.collisionPossible()) {
 				boolean equals = Arrays.equals(oldBlock.data, data) &&
 					Arrays.equals(oldBlock.header, header) &&
 					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
 				if(equals) {
-					if(!isOldBlock)
-						oldBlock.oldBlock = false;
-					return;
-				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
+					if(isOldBlock || !oldBlock.oldBlock)
+						return;
+					replacement = new Block(oldBlock.header, oldBlock.data, oldBlock.fullKey, false);
+				} else if(overwrite) {
+					replacement = new Block(header, data, storeFullKeys ? fullKey : oldBlock.fullKey, isOldBlock);
 				} else {
 					throw new KeyCollisionException();
 				}
-				return;
 			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
-				return;
+				if(isOldBlock || !oldBlock.oldBlock)
+					return;
+				replacement = new Block(oldBlock.header, oldBlock.data, oldBlock.fullKey, false);
 			}
+			// Only replace what we checked against. If it changed in the meantime, start again.
+			if(blocksByRoutingKey.replace(routingkey, oldBlock, replacement))
+				return;
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
 		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+			if(blocksByRoutingKey.popOldest() == null) break;
 		}
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
 		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
 		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+			if(blocksByRoutingKey.popOldest() == null) break;
 		}
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
@@ -161,8 +175,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		return blocksByRoutingKey.containsKey(routingKey);
 	}
 
 	public void clear() {
@@ -170,11 +183,9 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
+		for(SegmentedLRUMap.Entry<Block> entry : blocksByRoutingKey.entries()) {
+			byte[] routingKey = entry.key;
+			Block block = entry.value;
 			
 			T ret;
 			try {
@@ -197,12 +208,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,7 +223,22 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				return blocksByRoutingKey.lockAcquisitions();
+			}
+
+			@Override
+			public long lockContentions() {
+				return blocksByRoutingKey.lockContentions();
+			}
+
+			@Override
+			public long lockWaitNanos() {
+				return blocksByRoutingKey.lockWaitNanos();
 			}
 			
 		};
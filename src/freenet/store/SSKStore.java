@@ -36,6 +36,10 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	public void fetchAsync(NodeSSK chk, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta, StoreFetchCallback<SSKBlock> cb) {
+		store.fetchAsync(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, cb);
+	}
+
 	public void put(SSKBlock b, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
@@ -6,14 +6,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.SegmentedLRUMap;
 import freenet.support.Ticker;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
@@ -25,6 +25,7 @@ import freenet.support.io.TempBucketFactory;
  * - Size limit.
  * - Strictly enforced time limit.
  * - Blocks are encrypted, and kept in temp files.
+ * - No global lock on lookups, see {@link SegmentedLRUMap}.
  * 
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
@@ -43,12 +44,12 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	private class DiskBlock {
 		Bucket data;
-		long lastAccessed;
+		volatile long lastAccessed;
 	}
 	
 	private final TempBucketFactory bf;
 	
-	private long maxLifetime;
+	private volatile long maxLifetime;
 	
 	private final long purgePeriod;
 	
@@ -57,15 +58,15 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	private final Ticker ticker;
 	
-	private final LRUMap<ByteArrayWrapper, DiskBlock> blocksByRoutingKey;
+	private final SegmentedLRUMap<DiskBlock> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
+	private volatile int maxKeys;
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	private final int headerSize;
 	private final int dataSize;
@@ -73,7 +74,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	public SlashdotStore(StoreCallback<T> callback, int maxKeys, long maxLifetime, long purgePeriod, Ticker ticker, TempBucketFactory tbf) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = new SegmentedLRUMap<DiskBlock>();
 		this.maxKeys = maxKeys;
 		this.bf = tbf;
 		this.ticker = ticker;
@@ -103,17 +104,12 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	 */
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		DiskBlock block;
-		long timeAccessed;
-		synchronized(this) {
-			block = blocksByRoutingKey.get(key);
-			if(block == null) {
-				misses++;
-				return null;
-			}
-			timeAccessed = block.lastAccessed;
+		DiskBlock block = blocksByRoutingKey.get(routingKey);
+		if(block == null) {
+			misses.incrementAndGet();
+			return null;
 		}
+		long timeAccessed = block.lastAccessed;
 		byte[] fk = new byte[fullKeySize];
 		byte[] header = new byte[headerSize];
 		byte[] data = new byte[dataSize];
@@ -129,25 +125,37 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		try {
 			T ret =
 				callback.construct(data, header, routingKey, fk, canReadClientCache, canReadSlashdotCache, null, null);
-			synchronized(this) {
-				hits++;
-				if(!dontPromote) {
-					block.lastAccessed = System.currentTimeMillis();
-					blocksByRoutingKey.push(key, block);
-				}
+			hits.incrementAndGet();
+			if(!dontPromote) {
+				block.lastAccessed = System.currentTimeMillis();
+				blocksByRoutingKey.get(routingKey, true);
 			}
 			if(logDEBUG) Logger.debug(this, "Block was last accessed "+(System.currentTimeMillis() - timeAccessed)+"ms ago");
 			return ret;
 		} catch (KeyVerifyException e) {
 			block.data.free();
-			synchronized(this) {
-				blocksByRoutingKey.removeKey(key);
-				misses++;
-			}
+			blocksByRoutingKey.remove(routingKey, block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
+	@Override
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+			BlockMetadata meta, StoreFetchCallback<T> callback) {
+		// Everything is in memory, so just do it inline.
+		T block;
+		try {
+			block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		} catch (IOException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onFetched(block);
+	}
+
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
@@ -160,7 +168,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long hits() {
-		return hits;
+		return hits.get();
 	}
 
 	@Override
@@ -170,13 +178,12 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long misses() {
-		return misses;
+		return misses.get();
 	}
 
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.containsKey(key);
+		return blocksByRoutingKey.containsKey(routingKey);
 	}
 
 	/**
@@ -200,7 +207,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		
 		DiskBlock stored = new DiskBlock();
 		stored.data = bucket;
-		purgeOldData(new ByteArrayWrapper(routingkey), stored);
+		purgeOldData(routingkey, stored);
 	}
 
 	@Override
@@ -224,34 +231,34 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	protected void purgeOldData() {
 		purgeOldData(null, null);
 	}
 	
-	protected void purgeOldData(ByteArrayWrapper key, DiskBlock addFirst) {
+	protected void purgeOldData(byte[] key, DiskBlock addFirst) {
 		List<DiskBlock> blocks = null;
 		DiskBlock oldBlock;
-		synchronized(this) {
-			long now = System.currentTimeMillis();
-			if(addFirst != null) {
-				addFirst.lastAccessed = now;
-				oldBlock = blocksByRoutingKey.push(key, addFirst);
-				if(oldBlock != null) {
-	                if(blocks == null) blocks = new ArrayList<DiskBlock>();
-	                blocks.add(oldBlock);
-				}
-				writes++;
+		long now = System.currentTimeMillis();
+		if(addFirst != null) {
+			addFirst.lastAccessed = now;
+			oldBlock = blocksByRoutingKey.push(key, addFirst);
+			if(oldBlock != null) {
+				if(blocks == null) blocks = new ArrayList<DiskBlock>();
+				blocks.add(oldBlock);
 			}
-			while(true) {
-				if(blocksByRoutingKey.isEmpty()) break;
-				DiskBlock block = blocksByRoutingKey.peekValue();
-				if(now - block.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
+			writes.incrementAndGet();
+		}
+		while(true) {
+			SegmentedLRUMap.Entry<DiskBlock> oldest = blocksByRoutingKey.peekOldest();
+			if(oldest == null) break;
+			if(now - oldest.value.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
+			// May have been promoted or replaced in the meantime, in which case just look again.
+			if(blocksByRoutingKey.remove(oldest.key, oldest.value)) {
 				if(blocks == null) blocks = new ArrayList<DiskBlock>();
-				blocks.add(block);
-				blocksByRoutingKey.popValue();
+				blocks.add(oldest.value);
 			}
 		}
 		if(blocks == null) return;
@@ -274,12 +281,12 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -289,7 +296,22 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				return blocksByRoutingKey.lockAcquisitions();
+			}
+
+			@Override
+			public long lockContentions() {
+				return blocksByRoutingKey.lockContentions();
+			}
+
+			@Override
+			public long lockWaitNanos() {
+				return blocksByRoutingKey.lockWaitNanos();
 			}
 			
 		};
@@ -0,0 +1,21 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+
+/**
+ * Completion callback for {@link FreenetStore#fetchAsync}. Exactly one of the two methods is
+ * called, exactly once. Implementations must not block: they may be called on a datastore I/O
+ * thread.
+ */
+public interface StoreFetchCallback<T extends StorableBlock> {
+
+	/** @param block The block, or null if it is not in the store. */
+	void onFetched(T block);
+
+	/** A disk I/O error occurred. */
+	void onFailure(IOException e);
+
+}
@@ -1,20 +1,22 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StoreAccessStats;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
-import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
+import freenet.store.StoreFetchCallback;
 import freenet.support.Logger;
+import freenet.support.SegmentedLRUMap;
 import freenet.support.Ticker;
 import freenet.support.io.NativeThread;
 
@@ -28,10 +30,13 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
     private static volatile boolean logMINOR;
  
 	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	private final SegmentedLRUMap<Block<T>> blocksByRoutingKey;
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
+	/** Protects shuttingDown. The cache itself does its own locking. */
 	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
+	/** Fetches answered from the cache without going to the underlying store. */
+	private final AtomicLong cacheHits = new AtomicLong();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
 	
@@ -49,7 +54,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.blocksByRoutingKey = new SegmentedLRUMap<Block<T>>();
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
@@ -69,20 +74,13 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) 
 			throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
+		Block<T> block = blocksByRoutingKey.get(routingKey);
 		
 		if(block != null) {
 			try {
-				return this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				T ret = this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				cacheHits.incrementAndGet();
+				return ret;
 			} catch (KeyVerifyException e) {
 				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
 			}
@@ -92,25 +90,37 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	}
 
 	@Override
-	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+			BlockMetadata meta, StoreFetchCallback<T> cb) {
+		Block<T> block = blocksByRoutingKey.get(routingKey);
 		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
+		if(block != null) {
+			T ret = null;
+			try {
+				ret = this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+			}
+			if(ret != null) {
+				cacheHits.incrementAndGet();
+				cb.onFetched(ret);
+				return;
+			}
 		}
 		
-		return block != null || backDatastore.probablyInStore(routingKey);
+		backDatastore.fetchAsync(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, cb);
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		return blocksByRoutingKey.containsKey(routingKey) || backDatastore.probablyInStore(routingKey);
 	}
 	
 	@Override
 	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
-		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		
 		Block<T> storeBlock = new Block<T>();
 		storeBlock.block = block;
@@ -122,22 +132,25 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		boolean cacheIt = true;
 		
 		//Case cache it
-		configLock.writeLock().lock();
+		// Only the read lock: we just need to exclude innerClose(). Puts of the same key may race,
+		// in which case we must give back any space reserved with the tracker but not used.
+		configLock.readLock().lock();
 		
 		try {
 			if(!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
-			
 				if(!collisionPossible || overwrite) {
-					if(previousBlock == null) {
+					// If it is already cached, replace it, we have already accounted for it.
+					if(blocksByRoutingKey.replace(routingKey, storeBlock) == null) {
 						cacheIt = tracker.add(sizeBlock);
-					}
-					
-					if(cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						
+						if(cacheIt) {
+							if(blocksByRoutingKey.push(routingKey, storeBlock) != null)
+								tracker.cancelAdd(sizeBlock);
+						}
 					}
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
+					Block<T> previousBlock = blocksByRoutingKey.get(routingKey);
 					if(previousBlock != null) {
 						if(block.equals(previousBlock.block))
 							return;
@@ -151,7 +164,13 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 						cacheIt = tracker.add(sizeBlock);
 						
 						if(cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							previousBlock = blocksByRoutingKey.putIfAbsent(routingKey, storeBlock);
+							if(previousBlock != null) {
+								tracker.cancelAdd(sizeBlock);
+								if(block.equals(previousBlock.block))
+									return;
+								throw new KeyCollisionException();
+							}
 						}
 					}
 				}
@@ -159,7 +178,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 				cacheIt = false;
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			configLock.readLock().unlock();
 		}
 		
 		//Case don't cache it
@@ -175,17 +194,9 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	 * were no blocks to write because the cache is empty.
 	 */
 	long pushLeastRecentlyBlock() {
-		Block<T> block = null;
-		ByteArrayWrapper key = null;
-		
-		configLock.writeLock().lock();
-		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
-		} finally {
-			configLock.writeLock().unlock();
-		}
+		SegmentedLRUMap.Entry<Block<T>> entry = blocksByRoutingKey.peekOldest();
+		if(entry == null) return -1;
+		Block<T> block = entry.value;
 			
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
@@ -195,22 +206,61 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
 		}
 		
-		configLock.writeLock().lock();
-		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
-			
-			/** it might have changed if there was a put() with overwrite=true. 
-			 *  If it has changed, return 0 , i.e. don't remove it*/
-			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
-			}
-		} finally {
-			configLock.writeLock().unlock();
-		}
+		/** it might have changed if there was a put() with overwrite=true. 
+		 *  If it has changed, return 0 , i.e. don't remove it*/
+		if(blocksByRoutingKey.remove(entry.key, block))
+			return sizeBlock;
 		return 0;
 	}
 
+	@Override
+	public long hits() {
+		return backDatastore.hits() + cacheHits.get();
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		final StoreAccessStats backStats = backDatastore.getSessionAccessStats();
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return backStats.hits() + cacheHits.get();
+			}
+
+			@Override
+			public long misses() {
+				return backStats.misses();
+			}
+
+			@Override
+			public long falsePos() {
+				return backStats.falsePos();
+			}
+
+			@Override
+			public long writes() {
+				return backStats.writes();
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				return backStats.lockAcquisitions() + blocksByRoutingKey.lockAcquisitions();
+			}
+
+			@Override
+			public long lockContentions() {
+				return backStats.lockContentions() + blocksByRoutingKey.lockContentions();
+			}
+
+			@Override
+			public long lockWaitNanos() {
+				return backStats.lockWaitNanos() + blocksByRoutingKey.lockWaitNanos();
+			}
+			
+		};
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
@@ -236,13 +286,6 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	
 	/** Only for unit tests */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		} finally {
-			configLock.readLock().unlock();
-		}
-		return isEmpty;
+		return this.blocksByRoutingKey.isEmpty();
 	}
 }
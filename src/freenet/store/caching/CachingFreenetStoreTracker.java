@@ -102,6 +102,13 @@ public class CachingFreenetStoreTracker {
 		}
 	}
 
+	/** Give back space reserved by add() which the caller did not use after all, because 
+	 * another thread cached the same key first. */
+	synchronized void cancelAdd(long sizeBlock) {
+		this.size -= sizeBlock;
+		assert(size >= 0);
+	}
+
     private synchronized void pushOffThreadNow() {
         if(runningJob) return;
         runningJob = true;
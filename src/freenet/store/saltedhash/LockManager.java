@@ -3,11 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,75 +13,152 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
- * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Handle locking/unlocking of individual offsets. Offsets are mapped onto a fixed array of lock
+ * stripes, so locking an entry never allocates and threads working on unrelated slots do not
+ * contend on a single global lock. Several offsets may share a stripe; this is harmless because
+ * every caller locks all the stripes it needs in one go, in ascending stripe order, which also
+ * keeps multi-slot locking (e.g. the cleaner's batches) deadlock-free.
+ *
  * @author sdiz
  */
 public class LockManager {
+	/** Number of lock stripes. Must be a power of two. */
+	static final int STRIPES = 1024;
+	private static final int STRIPE_MASK = STRIPES - 1;
+
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final ReentrantLock[] stripes;
+
+	/** Number of successful lock operations (one per call, not per stripe). */
+	private final AtomicLong lockCount = new AtomicLong();
+	/** Number of stripe acquisitions which had to wait for another thread. */
+	private final AtomicLong contendedCount = new AtomicLong();
+	/** Total time spent waiting for contended stripes, in nanoseconds. */
+	private final AtomicLong contendedWaitNanos = new AtomicLong();
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new ReentrantLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new ReentrantLock();
+	}
+
+	static int stripeOf(long offset) {
+		// Slot offsets are already pseudo-random (salted hash), and consecutive offsets
+		// locked by the cleaner should map to distinct stripes.
+		return (int) (offset & STRIPE_MASK);
 	}
 
 	/**
-	 * Lock the entry
-	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * Lock the entries
+	 *
+	 * Locks every stripe covering the given offsets. Duplicated offsets are allowed. The stripes
+	 * are only taken in ascending order within one call, so a thread must release the returned
+	 * stripes before locking any other entries, or it may deadlock with another thread taking
+	 * them in the opposite order. (The stripe locks are re-entrant, so a thread which already
+	 * holds a stripe will not block on it.)
+	 *
+	 * @return The locked stripes, to be passed to {@link #unlockEntries(int[])}, or
+	 *         <code>null</code> if the locks could not be acquired (shutdown or interrupted).
 	 */
-	Condition lockEntry(long offset) {
+	int[] lockEntries(long... offsets) {
+		int[] wanted = new int[offsets.length];
+		for (int i = 0; i < offsets.length; i++)
+			wanted[i] = stripeOf(offsets[i]);
+		Arrays.sort(wanted);
+		int count = 0;
+		for (int i = 0; i < wanted.length; i++)
+			if (count == 0 || wanted[count - 1] != wanted[i])
+				wanted[count++] = wanted[i];
+		if (count != wanted.length)
+			wanted = Arrays.copyOf(wanted, count);
+		return lockStripes(wanted);
+	}
+
+	/**
+	 * Lock <code>length</code> consecutive entries starting at <code>offset</code>. Same
+	 * semantics as {@link #lockEntries(long...)}.
+	 */
+	int[] lockRange(long offset, int length) {
+		int count = Math.min(length, STRIPES);
+		int[] wanted = new int[count];
+		if (count == STRIPES) {
+			for (int i = 0; i < STRIPES; i++)
+				wanted[i] = i;
+		} else {
+			for (int i = 0; i < count; i++)
+				wanted[i] = stripeOf(offset + i);
+			Arrays.sort(wanted);
+		}
+		return lockStripes(wanted);
+	}
+
+	/** @param wanted Distinct stripe indexes in ascending order. */
+	private int[] lockStripes(int[] wanted) {
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking " + Arrays.toString(wanted), new Exception());
 
-		Condition condition;
+		int locked = 0;
 		try {
-			entryLock.lock();
+			for (; locked < wanted.length; locked++) {
+				if (!lockStripe(stripes[wanted[locked]]))
+					break;
+			}
+		} finally {
+			if (locked != wanted.length) {
+				while (locked > 0)
+					stripes[wanted[--locked]].unlock();
+			}
+		}
+		if (locked != wanted.length)
+			return null;
+
+		lockCount.incrementAndGet();
+		if (logDEBUG)
+			Logger.debug(this, "locked " + Arrays.toString(wanted), new Exception());
+		return wanted;
+	}
+
+	private boolean lockStripe(ReentrantLock lock) {
+		if (shutdown)
+			return false;
+		if (!lock.tryLock()) {
+			contendedCount.incrementAndGet();
+			long startTime = System.nanoTime();
 			try {
-				do {
+				while (!lock.tryLock(10, TimeUnit.SECONDS)) { // 10s for checking shutdown
 					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+						return false;
+				}
+			} catch (InterruptedException e) {
+				Logger.error(this, "lock interrupted", e);
+				return false;
 			} finally {
-				entryLock.unlock();
+				contendedWaitNanos.addAndGet(System.nanoTime() - startTime);
 			}
-		} catch (InterruptedException e) {
-			Logger.error(this, "lock interrupted", e);
-			return null;
 		}
-
-		if (logDEBUG)
-			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		if (shutdown) {
+			lock.unlock();
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * Unlock the entry
+	 * Unlock the entries
+	 *
+	 * @param locked
+	 *            The value returned by {@link #lockEntries(long...)} or
+	 *            {@link #lockRange(long, int)}.
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntries(int[] locked) {
 		if (logDEBUG)
-			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
+			Logger.debug(this, "unlocking " + Arrays.toString(locked), new Exception("debug"));
 
-		entryLock.lock();
-		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
-		} finally {
-			entryLock.unlock();
-		}
+		for (int i = locked.length - 1; i >= 0; i--)
+			stripes[locked[i]].unlock();
 	}
 
 	/**
@@ -91,14 +166,22 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
-			}
-		} finally {
-			entryLock.unlock();
+		// Anyone acquiring a stripe after this point will see shutdown and release it.
+		for (ReentrantLock lock : stripes) {
+			lock.lock();
+			lock.unlock();
 		}
 	}
+
+	long lockCount() {
+		return lockCount.get();
+	}
+
+	long contendedCount() {
+		return contendedCount.get();
+	}
+
+	long contendedWaitNanos() {
+		return contendedWaitNanos.get();
+	}
 }
@@ -0,0 +1,164 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import freenet.support.Logger;
+
+/**
+ * Memory-mapped view of the salted hash store's metadata file.
+ *
+ * The file is mapped in fixed-size chunks so that stores with more than 2GB of metadata can be
+ * handled. Reads and writes have the same semantics as positional {@link FileChannel} I/O:
+ * reading at or past the end of the file returns -1. The mapping must be refreshed with
+ * {@link #setLength(long)} whenever the file is resized.
+ *
+ * Callers are responsible for locking: concurrent access to the same region must be prevented
+ * by the store's slot locks, exactly as for the unmapped file.
+ */
+class MappedMetadataFile {
+
+	/** Size of each mapped region. A multiple of the metadata entry length so entries never
+	 * straddle two chunks. */
+	static final int CHUNK_SIZE = 1 << 30;
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+	/** The current mapping. Replaced as a whole on resize, so readers always see a consistent
+	 * snapshot. */
+	private volatile MappedByteBuffer[] chunks;
+
+	MappedMetadataFile(RandomAccessFile raf) throws IOException {
+		this.raf = raf;
+		this.fc = raf.getChannel();
+		map(raf.length());
+	}
+
+	private void map(long newLength) throws IOException {
+		int count = (int) ((newLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		MappedByteBuffer[] newChunks = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = (long) i * CHUNK_SIZE;
+			newChunks[i] = fc.map(MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE, newLength - start));
+		}
+		chunks = newChunks;
+	}
+
+	private static long length(MappedByteBuffer[] chunks) {
+		if (chunks.length == 0)
+			return 0;
+		return (long) (chunks.length - 1) * CHUNK_SIZE + chunks[chunks.length - 1].capacity();
+	}
+
+	/**
+	 * Read as much of <code>dst</code> as possible starting at <code>position</code>.
+	 * @return The number of bytes read, or -1 if <code>position</code> is at or past the end.
+	 */
+	int read(ByteBuffer dst, long position) {
+		MappedByteBuffer[] chunks = this.chunks;
+		long length = length(chunks);
+		if (position >= length)
+			return -1;
+		int total = 0;
+		while (dst.hasRemaining() && position < length) {
+			ByteBuffer src = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+			src.position((int) (position % CHUNK_SIZE));
+			if (src.remaining() > dst.remaining())
+				src.limit(src.position() + dst.remaining());
+			int read = src.remaining();
+			dst.put(src);
+			position += read;
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Get a view of <code>len</code> bytes of the mapping starting at <code>position</code>,
+	 * without copying. The region must not cross a chunk boundary.
+	 * @return A buffer positioned at 0, or <code>null</code> if the region is past the end.
+	 */
+	ByteBuffer view(long position, int len) {
+		MappedByteBuffer[] chunks = this.chunks;
+		if (position + len > length(chunks))
+			return null;
+		int chunkOffset = (int) (position % CHUNK_SIZE);
+		assert chunkOffset + len <= CHUNK_SIZE;
+		ByteBuffer buf = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+		buf.position(chunkOffset);
+		buf.limit(chunkOffset + len);
+		return buf.slice();
+	}
+
+	/**
+	 * Write all of <code>src</code> starting at <code>position</code>.
+	 * @return The number of bytes written, or -1 if the write would go past the end.
+	 */
+	int write(ByteBuffer src, long position) {
+		MappedByteBuffer[] chunks = this.chunks;
+		if (position + src.remaining() > length(chunks))
+			return -1;
+		int total = 0;
+		while (src.hasRemaining()) {
+			ByteBuffer dst = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+			dst.position((int) (position % CHUNK_SIZE));
+			int written = Math.min(dst.remaining(), src.remaining());
+			ByteBuffer slice = src.slice();
+			slice.limit(written);
+			dst.put(slice);
+			src.position(src.position() + written);
+			position += written;
+			total += written;
+		}
+		return total;
+	}
+
+	long length() {
+		return length(chunks);
+	}
+
+	/**
+	 * Resize the underlying file and remap it. Slots below the smaller of the old and new
+	 * length remain accessible throughout.
+	 *
+	 * LOCKING: When shrinking, nobody may be using the old mapping, because accessing a page
+	 * past the new end of the file is fatal, not an exception. The store holds its config
+	 * write lock.
+	 */
+	void setLength(long newLength) throws IOException {
+		force();
+		if (newLength > length()) {
+			raf.setLength(newLength);
+			map(newLength);
+		} else {
+			// Switch to the smaller mapping before truncating. The old mapping is only released
+			// on GC, so some platforms (Windows) may refuse to truncate the file.
+			map(newLength);
+			raf.setLength(newLength);
+		}
+	}
+
+	/** Write any dirty pages back to disk. */
+	void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			try {
+				chunk.force();
+			} catch (Throwable t) {
+				// Can happen e.g. if the disk is full.
+				Logger.error(this, "Unable to flush mapped metadata: " + t, t);
+			}
+		}
+	}
+
+	void close() {
+		force();
+		chunks = new MappedByteBuffer[0];
+	}
+}
@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -20,6 +22,9 @@ import freenet.support.Ticker;
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
  * messy and expensive.
+ * 
+ * For very large stores the int[] costs hundreds of megabytes of heap, so the buffer can
+ * instead be kept off-heap in a direct ByteBuffer. The on-disk format is the same either way.
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
@@ -29,8 +34,15 @@ public class ResizablePersistentIntBuffer {
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
+	/** The buffer. When we resize we write-lock and replace this. Null if off-heap. */
 	private int[] buffer;
+	/** The off-heap buffer, a little-endian view of a direct ByteBuffer so it can be written
+	 * to disk as-is. Replaced on resize like buffer. Null if on-heap. */
+	private IntBuffer offHeapBuffer;
+	/** The direct buffer backing offHeapBuffer. */
+	private ByteBuffer offHeapBytes;
+	/** A direct ByteBuffer is limited to 2GB. Larger buffers stay on the heap. */
+	static final int MAX_OFF_HEAP_SIZE = Integer.MAX_VALUE / 4;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -41,6 +53,8 @@ public class ResizablePersistentIntBuffer {
 	// FIXME is static the best way to do this? It seems simplest at least...
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
+	/** Should newly created buffers be kept off-heap? */
+	private static boolean globalOffHeap;
 	private Ticker ticker;
 	/** Is the buffer dirty? Protected by (this). */
 	private boolean dirty;
@@ -59,6 +73,15 @@ public class ResizablePersistentIntBuffer {
 		return globalPersistenceTime;
 	}
 	
+	/** Only affects buffers created after the call. */
+	public static synchronized void setOffHeap(boolean val) {
+		globalOffHeap = val;
+	}
+	
+	public static synchronized boolean getOffHeap() {
+		return globalOffHeap;
+	}
+	
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
 	 * its size.
 	 * @param f The filename.
@@ -66,12 +89,24 @@ public class ResizablePersistentIntBuffer {
 	 * @throws IOException 
 	 */
 	public ResizablePersistentIntBuffer(File f, int size) throws IOException {
+		this(f, size, getOffHeap());
+	}
+	
+	/** Create the buffer.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 * @param offHeap If true, keep the buffer in a direct ByteBuffer rather than on the Java 
+	 * heap.
+	 * @throws IOException 
+	 */
+	public ResizablePersistentIntBuffer(File f, int size, boolean offHeap) throws IOException {
 		this.filename = f;
 		isNew = !f.exists();
 		this.raf = new RandomAccessFile(f, "rw");
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		channel = raf.getChannel();
+		allocate(size, offHeap);
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
@@ -79,17 +114,48 @@ public class ResizablePersistentIntBuffer {
 		readBuffer((int)Math.min(size, realLength/4));
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
-		channel = raf.getChannel();
+	}
+	
+	/** Allocate a new, empty buffer, replacing the current one. Caller must copy the data
+	 * across if necessary. */
+	private void allocate(int size, boolean offHeap) {
+		if(offHeap && size > MAX_OFF_HEAP_SIZE) {
+			Logger.error(this, "Slot cache "+filename+" too big to keep off-heap ("+size+" slots), using the heap");
+			offHeap = false;
+		}
+		if(offHeap) {
+			offHeapBytes = ByteBuffer.allocateDirect(size*4).order(ByteOrder.LITTLE_ENDIAN);
+			offHeapBuffer = offHeapBytes.asIntBuffer();
+			buffer = null;
+		} else {
+			buffer = new int[size];
+			offHeapBytes = null;
+			offHeapBuffer = null;
+		}
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
 	 * is completely new. */
 	public void fill(int value) {
+		if(offHeapBuffer != null) {
+			for(int i=0;i<size;i++)
+				offHeapBuffer.put(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			buffer[i] = value;
 	}
 
 	private void readBuffer(int size) throws IOException {
+		if(offHeapBuffer != null) {
+			ByteBuffer buf = offHeapBytes.duplicate();
+			buf.limit(size * 4);
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, buf.position()) == -1)
+					throw new IOException("Unexpected end of file reading "+filename);
+			}
+			return;
+		}
 		raf.seek(0);
 		byte[] buf = new byte[32768];
 		int read = 0;
@@ -118,6 +184,8 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(offHeapBuffer != null)
+				return offHeapBuffer.get(offset);
 			return buffer[offset];
 		} finally {
 			lock.readLock().unlock();
@@ -133,7 +201,10 @@ public class ResizablePersistentIntBuffer {
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
 			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
+			if(offHeapBuffer != null)
+				offHeapBuffer.put(offset, value);
+			else
+				buffer[offset] = value;
 			if(persistenceTime == -1 && !noWrite) {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
 			} else if(persistenceTime > 0) {
@@ -248,6 +319,13 @@ public class ResizablePersistentIntBuffer {
 	}
 
 	private void writeBuffer() throws IOException {
+		if(offHeapBuffer != null) {
+			ByteBuffer buf = offHeapBytes.duplicate();
+			buf.clear();
+			while(buf.hasRemaining())
+				channel.write(buf, buf.position());
+			return;
+		}
 		// FIXME do we need to do partial writes?
 		raf.seek(0);
 		int written = 0;
@@ -264,10 +342,26 @@ public class ResizablePersistentIntBuffer {
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			int oldSize = this.size;
 			this.size = size;
-			buffer = Arrays.copyOf(buffer, size);
+			if(offHeapBuffer == null) {
+				buffer = Arrays.copyOf(buffer, size);
+			} else {
+				// The old direct buffer is freed when it is garbage collected.
+				IntBuffer old = offHeapBuffer;
+				allocate(size, true);
+				int copy = Math.min(oldSize, size);
+				if(offHeapBuffer != null) {
+					old.clear().limit(copy);
+					offHeapBuffer.put(old);
+					offHeapBuffer.clear();
+				} else {
+					old.clear().limit(copy);
+					old.get(buffer, 0, copy);
+				}
+			}
 			try {
-				raf.setLength(size * 4);
+				raf.setLength(((long)size) * 4);
 				writeBuffer();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
@@ -320,6 +414,11 @@ public class ResizablePersistentIntBuffer {
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
+		if(offHeapBuffer != null) {
+			for(int i=0;i<size;i++)
+				if(offHeapBuffer.get(i) == key) offHeapBuffer.put(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			if(buffer[i] == key) buffer[i] = value;
 	}
@@ -328,4 +427,8 @@ public class ResizablePersistentIntBuffer {
 		return size;
 	}
 	
+	public boolean isOffHeap() {
+		return offHeapBuffer != null;
+	}
+	
 }
@@ -11,17 +11,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -49,6 +51,8 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreFetchCallback;
+import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
@@ -146,12 +150,37 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param mapMetadata
+	 *            If true, memory-map the metadata file and serve slot metadata reads and writes
+	 *            from the mapping, rather than issuing a positional read or write for every slot.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mapMetadata) throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, mapMetadata, exec == null ? null : exec.getExecutor());
+	}
+
+	/**
+	 * @param executor
+	 *            Runs the rest of an asynchronous fetch once its probes have completed. If null,
+	 *            it runs on the asynchronous I/O thread that completed the last probe.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mapMetadata, Executor executor) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, exec, masterKey, mapMetadata, executor);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec,
+	        byte[] masterKey, boolean mapMetadata, Executor executor) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -171,6 +200,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.mapMetadata = mapMetadata;
+		this.executor = executor;
 
 		lockManager = new LockManager();
 
@@ -323,8 +354,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
+			int[] locked = lockDigestedKey(digestedKey, true);
+			if (locked == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return null;
@@ -359,13 +390,166 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				lockManager.unlockEntries(locked);
 			}
 		} finally {
 			configLock.readLock().unlock();
 		}
 	}
 
+	/**
+	 * Asynchronous fetch. Slots the slot filter cannot rule out are probed all at once with
+	 * unlocked reads of their digested keys. If none of them match, this is a miss and we never
+	 * take the slot locks. Otherwise, or if the slot filter says the key is likely present, we do
+	 * a normal locked {@link #fetch} on the node's executor, which will mostly hit the page cache.
+	 * The callback is also called on the executor, never on an asynchronous I/O thread.
+	 */
+	@Override
+	public void fetchAsync(final byte[] routingKey, final byte[] fullKey, final boolean dontPromote,
+	        final boolean canReadClientCache, final boolean canReadSlashdotCache, final boolean ignoreOldBlocks,
+	        final BlockMetadata meta, final StoreFetchCallback<T> fetchCallback) {
+		if (logMINOR)
+			Logger.minor(this, "Async fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
+
+		final Runnable fullFetch = new Runnable() {
+			@Override
+			public void run() {
+				T block;
+				try {
+					block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+				} catch (IOException e) {
+					fetchCallback.onFailure(e);
+					return;
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " fetching asynchronously from " + name, t);
+					fetchCallback.onFailure(new IOException(t.toString()));
+					return;
+				}
+				fetchCallback.onFetched(block);
+			}
+		};
+		final Runnable notFound = new Runnable() {
+			@Override
+			public void run() {
+				misses.incrementAndGet();
+				fetchCallback.onFetched(null);
+			}
+		};
+
+		if (shutdown) {
+			fetchCallback.onFetched(null);
+			return;
+		}
+		final byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
+		long[] toProbe;
+		configLock.readLock().lock();
+		try {
+			toProbe = getAsyncProbeOffsets(digestedKey);
+		} finally {
+			configLock.readLock().unlock();
+		}
+		if (toProbe == null || metaAFC == null) {
+			// Likely match, or no async channel (mapped metadata): do a normal fetch.
+			runFetchJob(fullFetch);
+			return;
+		}
+		if (toProbe.length == 0) {
+			// Ruled out by the slot filter.
+			notFound.run();
+			return;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(toProbe.length);
+		final AtomicBoolean maybeFound = new AtomicBoolean();
+		// Runs on the JDK's asynchronous I/O threads. Only compare keys here: the full fetch
+		// blocks on disk and the callback may do anything, so both go to the node's executor.
+		CompletionHandler<Integer, ByteBuffer> handler = new CompletionHandler<Integer, ByteBuffer>() {
+			@Override
+			public void completed(Integer result, ByteBuffer buf) {
+				// A short read (e.g. EOF while resizing) is inconclusive, so let the full fetch sort it out.
+				if (buf.hasRemaining() || Arrays.equals(buf.array(), digestedKey))
+					maybeFound.set(true);
+				onProbed();
+			}
+
+			@Override
+			public void failed(Throwable t, ByteBuffer buf) {
+				if (logMINOR)
+					Logger.minor(this, "Async probe failed: " + t, t);
+				maybeFound.set(true);
+				onProbed();
+			}
+
+			private void onProbed() {
+				if (remaining.decrementAndGet() != 0)
+					return;
+				runFetchJob(maybeFound.get() ? fullFetch : notFound);
+			}
+		};
+		for (long offset : toProbe) {
+			ByteBuffer buf = ByteBuffer.allocate(digestedKey.length);
+			try {
+				metaAFC.read(buf, Entry.METADATA_LENGTH * offset, buf, handler);
+			} catch (Throwable t) {
+				// E.g. closed channel or rejected execution on shutdown.
+				handler.failed(t, buf);
+			}
+		}
+	}
+
+	/**
+	 * Get the slots to read for an asynchronous probe. Caller must hold the config read lock.
+	 *
+	 * @return <code>null</code> if the slot filter says the key is likely present, otherwise the
+	 *         offsets the slot filter can't rule out (possibly none).
+	 */
+	private long[] getAsyncProbeOffsets(byte[] digestedKey) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
+		if (prevStoreSize != 0) {
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			long[] allOffsets = Arrays.copyOf(offsets, offsets.length + prevOffsets.length);
+			System.arraycopy(prevOffsets, 0, allOffsets, offsets.length, prevOffsets.length);
+			offsets = allOffsets;
+		}
+		int count = 0;
+		for (long offset : offsets) {
+			if (storeFileOffsetReady != -1 && offset >= storeFileOffsetReady)
+				continue;
+			if (!slotFilterDisabled && USE_SLOT_FILTER) {
+				int cache = slotFilter.get((int) offset);
+				if ((cache & SLOT_CHECKED) != 0) {
+					if (slotCacheLikelyMatch(cache, digestedKey))
+						return null;
+					continue;
+				}
+			}
+			offsets[count++] = offset;
+		}
+		return Arrays.copyOf(offsets, count);
+	}
+
+	/**
+	 * Run the rest of an asynchronous fetch on the node's executor, or inline if the store was
+	 * constructed without one. Exceptions thrown by the callback are logged rather than
+	 * lost: the caller is responsible for cleaning up after its own callback.
+	 */
+	private void runFetchJob(final Runnable job) {
+		Runnable wrapper = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " in asynchronous fetch callback for " + name, t);
+				}
+			}
+		};
+		if (executor == null)
+			wrapper.run();
+		else
+			executor.execute(wrapper, "Datastore fetch for " + name);
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -433,8 +617,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
-			if (lockMap == null) {
+			int[] locked = lockDigestedKey(digestedKey, false);
+			if (locked == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
@@ -550,7 +734,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				onWrite();
 				return true;
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				lockManager.unlockEntries(locked);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -566,6 +750,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	/** If memory mapping of the metadata file is enabled, the mapping, otherwise null. */
+	private MappedMetadataFile metaMap;
+	private final boolean mapMetadata;
+	/** Read-only channel on the metadata file for asynchronous probing. Null if the metadata
+	 * file is memory-mapped. */
+	private AsynchronousFileChannel metaAFC;
+
+	/** Runs asynchronous fetches once the probes have completed. May be null. */
+	private final Executor executor;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
@@ -836,6 +1029,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		metaRAF = new RandomAccessFile(metaFile, "rw");
 		metaFC = metaRAF.getChannel();
 		metaFC.lock();
+		if (mapMetadata)
+			metaMap = new MappedMetadataFile(metaRAF);
+		else
+			metaAFC = AsynchronousFileChannel.open(metaFile.toPath(), EnumSet.of(StandardOpenOption.READ),
+			        null);
 
 		hdRAF = new RandomAccessFile(hdFile, "rw");
 		hdFC = hdRAF.getChannel();
@@ -867,16 +1065,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
+		ByteBuffer mbf;
+		if (metaMap != null) {
+			// Parse the entry straight from the mapping, no copy needed.
+			mbf = metaMap.view(Entry.METADATA_LENGTH * offset, Entry.METADATA_LENGTH);
+			if (mbf == null) {
 				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
 				throw new EOFException();
 			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		} else {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
@@ -1002,14 +1209,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		cipherManager.encrypt(entry, random);
 
-		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
-
-		bf = entry.toHDBuffer();
+		// Write the header and data before the metadata which refers to them. A mapped metadata
+		// file may be written back at any time, so it must never point at data not yet written.
+		ByteBuffer bf = entry.toHDBuffer();
 		if (bf != null) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
@@ -1019,12 +1221,35 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			} while (bf.hasRemaining());
 		}
 
+		bf = entry.toMetaDataBuffer();
+		do {
+			int status = writeMetadata(bf, Entry.METADATA_LENGTH * offset + bf.position());
+			if (status == -1)
+				throw new EOFException();
+		} while (bf.hasRemaining());
+
 		entry.curOffset = offset;
 	}
 
+	private int readMetadata(ByteBuffer buf, long position) throws IOException {
+		if (metaMap != null)
+			return metaMap.read(buf, position);
+		return metaFC.read(buf, position);
+	}
+
+	private int writeMetadata(ByteBuffer buf, long position) throws IOException {
+		if (metaMap != null)
+			return metaMap.write(buf, position);
+		return metaFC.write(buf, position);
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
 		try {
+			if (metaAFC != null)
+				metaAFC.close();
+			if (metaMap != null)
+				metaMap.close();
 			metaFC.force(true);
 			metaFC.close();
 		} catch (Exception e) {
@@ -1075,7 +1300,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
+			if (metaMap != null) {
+				// Readers use the mapping under the read lock. Touching a truncated part of an
+				// old mapping would crash the JVM with SIGBUS rather than throw.
+				configLock.writeLock().lock();
+				try {
+					metaMap.setLength(newMetaLen);
+				} finally {
+					configLock.writeLock().unlock();
+				}
+			} else
+				metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
@@ -1634,15 +1869,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			// acquire all locks in the region, will unlock in the finally block
+			int[] locked = lockManager.lockRange(offset, length);
+			if (locked == null)
+				return false;
 			try {
-				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
-						return false;
-				}
-
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
@@ -1651,7 +1882,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				boolean dirty = false;
 				try {
 					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
+						int status = readMetadata(buf, startFileOffset + buf.position());
 						if (status == -1)
 							break;
 					}
@@ -1720,7 +1951,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 						try {
 							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+								writeMetadata(buf, startFileOffset + buf.position());
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1730,10 +1961,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				return true;
 			} finally {
-				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				lockManager.unlockEntries(locked);
 			}
 		}
 
@@ -1744,8 +1972,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
-			if (lockMap == null)
+			int[] locked = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			if (locked == null)
 				return false;
 			try {
 				entry.storeSize = storeSize;
@@ -1779,7 +2007,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				lockManager.unlockEntries(locked);
 			}
 		}
 	}
@@ -1940,55 +2168,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The locked stripes, to be released with {@link LockManager#unlockEntries(int[])},
+	 *         or <code>null</code> if the offsets could not be locked.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private int[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
-		}
-	}
-
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			long[] allOffsets = Arrays.copyOf(offsets, offsets.length + prevOffsets.length);
+			System.arraycopy(prevOffsets, 0, allOffsets, offsets.length, prevOffsets.length);
+			offsets = allOffsets;
 		}
+		return lockManager.lockEntries(offsets);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2204,6 +2395,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public long lockAcquisitions() {
+				return lockManager.lockCount();
+			}
+
+			@Override
+			public long lockContentions() {
+				return lockManager.contendedCount();
+			}
+
+			@Override
+			public long lockWaitNanos() {
+				return lockManager.contendedWaitNanos();
+			}
 			
 		};
 	}
@@ -22,6 +22,7 @@ package freenet.support;
 import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import freenet.io.WritableToDataOutputStream;
@@ -38,6 +39,9 @@ public class Buffer implements WritableToDataOutputStream {
 	private final byte[] _data;
 	private final int _start;
 	private final int _length;
+	/** If not null, the data is here rather than in _data, e.g. in direct memory. Never moved:
+	 * we only read it through duplicate()s or absolute gets, so threads can share a Buffer. */
+	private final ByteBuffer _buf;
 
 	/**
 	 * Create a Buffer by reading a DataInputStream. 
@@ -59,6 +63,7 @@ public class Buffer implements WritableToDataOutputStream {
 
 		_data = new byte[_length];
 		_start = 0;
+		_buf = null;
 		dis.readFully(_data);
 	}
 
@@ -71,6 +76,7 @@ public class Buffer implements WritableToDataOutputStream {
 		_start = 0;
 		_length = data.length;
 		_data = data;
+		_buf = null;
 	}
 
 	public Buffer(byte[] data, int start, int length) {
@@ -79,6 +85,20 @@ public class Buffer implements WritableToDataOutputStream {
 		_start = start;
 		_data = data;
 		_length = length;
+		_buf = null;
+	}
+
+	/**
+	 * Create a Buffer from the remaining bytes of a ByteBuffer, without copying them. The
+	 * ByteBuffer may be direct. The caller must not change the bytes while the Buffer is in use.
+	 *
+	 * @param buf
+	 */
+	public Buffer(ByteBuffer buf) {
+		_buf = buf.slice();
+		_data = null;
+		_start = 0;
+		_length = _buf.remaining();
 	}
 
 	/**
@@ -89,7 +109,11 @@ public class Buffer implements WritableToDataOutputStream {
 	 * @return The byte array
 	 */
 	public byte[] getData() {
-		if ((_start == 0) && (_length == _data.length)) {
+		if (_buf != null) {
+			byte[] data = new byte[_length];
+			_buf.duplicate().get(data);
+			return data;
+		} else if ((_start == 0) && (_length == _data.length)) {
 			return _data;
 		} else {
 			return Arrays.copyOfRange(_data, _start, _start + _length);
@@ -103,20 +127,39 @@ public class Buffer implements WritableToDataOutputStream {
 	 * @param position
 	 */
 	public void copyTo(byte[] array, int position) {
-		System.arraycopy(_data, _start, array, position, _length);
+		if (_buf != null)
+			_buf.duplicate().get(array, position, _length);
+		else
+			System.arraycopy(_data, _start, array, position, _length);
+	}
+
+	/**
+	 * Copy the data to a ByteBuffer, at its current position
+	 *
+	 * @param buf
+	 */
+	public void copyTo(ByteBuffer buf) {
+		if (_buf != null)
+			buf.put(_buf.duplicate());
+		else
+			buf.put(_data, _start, _length);
 	}
 
 	public byte byteAt(int pos) {
 		if (pos >= _length) {
 			throw new ArrayIndexOutOfBoundsException();
 		}
+		if (_buf != null) return _buf.get(pos);
 		return _data[pos + _start];
 	}
 
 	@Override
 	public void writeToDataOutputStream(DataOutputStream stream) throws IOException {
 		stream.writeInt(_length);
-		stream.write(_data, _start, _length);
+		if (_buf != null)
+			stream.write(getData());
+		else
+			stream.write(_data, _start, _length);
 	}
 
 	@Override
@@ -145,6 +188,10 @@ public class Buffer implements WritableToDataOutputStream {
 
 		final Buffer buffer = (Buffer) o;
 
+		if (_buf != null || buffer._buf != null) {
+			// ByteBuffer backed Buffers are only equal to each other, by content.
+			return _buf != null && buffer._buf != null && _buf.equals(buffer._buf);
+		}
 		if (_length != buffer._length) {
 			return false;
 		}
@@ -160,6 +207,7 @@ public class Buffer implements WritableToDataOutputStream {
 
 	@Override
 	public int hashCode() {
+	    if (_buf != null) return _buf.hashCode();
 	    return Fields.hashCode(_data) ^ _start ^ _length;
 	}
 	
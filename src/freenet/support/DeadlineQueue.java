@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A set of objects, each with a deadline, which can efficiently return the ones whose deadline
+ * has passed. Objects are compared by identity. Unlike TimeSortedHashtable the objects do not
+ * need to be Comparable, and a deadline can be brought forward cheaply from any thread while
+ * another thread is waiting for the earliest one.
+ */
+public class DeadlineQueue<T> {
+
+	private static class Element<T> implements Comparable<Element<T>> {
+		final long time;
+		/** Tie breaker, so equal deadlines come out in the order they were set. */
+		final long seq;
+		final T value;
+
+		Element(long time, long seq, T value) {
+			this.time = time;
+			this.seq = seq;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Element<T> o) {
+			if(time > o.time) return 1;
+			if(time < o.time) return -1;
+			if(seq > o.seq) return 1;
+			if(seq < o.seq) return -1;
+			return 0;
+		}
+	}
+
+	private final TreeSet<Element<T>> elements = new TreeSet<Element<T>>();
+	private final IdentityHashMap<T, Element<T>> valueToElement = new IdentityHashMap<T, Element<T>>();
+	private long seq;
+
+	/**
+	 * Set the deadline for an object, replacing any previous deadline.
+	 * @param time The new deadline. Long.MAX_VALUE removes the object.
+	 */
+	public synchronized void set(T value, long time) {
+		if(value == null) throw new NullPointerException();
+		Element<T> e = valueToElement.remove(value);
+		if(e != null) elements.remove(e);
+		if(time == Long.MAX_VALUE) return;
+		e = new Element<T>(time, seq++, value);
+		elements.add(e);
+		valueToElement.put(value, e);
+	}
+
+	/**
+	 * Bring the deadline for an object forward, or add it if it is not present.
+	 * @return True if the deadline was changed.
+	 */
+	public synchronized boolean setIfEarlier(T value, long time) {
+		if(value == null) throw new NullPointerException();
+		if(time == Long.MAX_VALUE) return false;
+		Element<T> e = valueToElement.get(value);
+		if(e != null) {
+			if(e.time <= time) return false;
+			elements.remove(e);
+		}
+		e = new Element<T>(time, seq++, value);
+		elements.add(e);
+		valueToElement.put(value, e);
+		return true;
+	}
+
+	/** @return True if the object was present. */
+	public synchronized boolean remove(T value) {
+		Element<T> e = valueToElement.remove(value);
+		if(e == null) return false;
+		elements.remove(e);
+		return true;
+	}
+
+	/** @return The deadline for the object, or Long.MAX_VALUE if it is not present. */
+	public synchronized long getTime(T value) {
+		Element<T> e = valueToElement.get(value);
+		return e == null ? Long.MAX_VALUE : e.time;
+	}
+
+	/** @return The earliest deadline, or Long.MAX_VALUE if the queue is empty. */
+	public synchronized long earliest() {
+		if(elements.isEmpty()) return Long.MAX_VALUE;
+		return elements.first().time;
+	}
+
+	/**
+	 * Remove all the objects whose deadline is at or before the given time.
+	 * @param out The objects are added to this collection, earliest deadline first.
+	 * @return The number of objects removed.
+	 */
+	public synchronized int removeDue(long now, Collection<? super T> out) {
+		int count = 0;
+		for(Iterator<Element<T>> i = elements.iterator(); i.hasNext();) {
+			Element<T> e = i.next();
+			if(e.time > now) break;
+			i.remove();
+			valueToElement.remove(e.value);
+			out.add(e.value);
+			count++;
+		}
+		return count;
+	}
+
+	public synchronized int size() {
+		return valueToElement.size();
+	}
+
+	public synchronized void clear() {
+		elements.clear();
+		valueToElement.clear();
+	}
+
+}
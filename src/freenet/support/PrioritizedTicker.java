@@ -44,17 +44,39 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		}
 	}
 	
-	/** ~= Ticker :) */
+	/** System property selecting the timing wheel in Node */
+	public static final String TIMER_WHEEL_PROPERTY = "freenet.ticker.timerWheel";
+
+	/** ~= Ticker :) Also the lock for the timing wheel when it is used instead. */
 	private final TreeMap<Long, Object> timedJobsByTime;
 	private final HashMap<Job, Long> timedJobsQueued;
+	/** If not null, jobs are kept here rather than in timedJobsByTime, so adding and removing
+	 * a job is O(1) rather than O(log n). */
+	private final TimingWheel<Job> timingWheel;
+	private final HashMap<Job, TimingWheel.Entry<Job>> wheelJobsQueued;
 	final NativeThread myThread;
 	final Executor executor;
 	static final int MAX_SLEEP_TIME = 200;
 	
 	public PrioritizedTicker(Executor executor, int portNumber) {
+		this(executor, portNumber, false);
+	}
+
+	/**
+	 * @param timerWheel If true, keep the queued jobs in a hierarchical timing wheel rather
+	 * than a TreeMap.
+	 */
+	public PrioritizedTicker(Executor executor, int portNumber, boolean timerWheel) {
 		this.executor = executor;
 		timedJobsByTime = new TreeMap<Long, Object>();
 		timedJobsQueued = new HashMap<Job, Long>();
+		if(timerWheel) {
+			timingWheel = new TimingWheel<Job>(System.currentTimeMillis());
+			wheelJobsQueued = new HashMap<Job, TimingWheel.Entry<Job>>();
+		} else {
+			timingWheel = null;
+			wheelJobsQueued = null;
+		}
 		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
 	}
@@ -88,6 +110,20 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		long sleepTime = MAX_SLEEP_TIME;
 
 		synchronized(timedJobsByTime) {
+			if(timingWheel != null) {
+				List<TimingWheel.Entry<Job>> expired = new ArrayList<TimingWheel.Entry<Job>>();
+				timingWheel.expire(now, expired);
+				if(!expired.isEmpty()) {
+					jobsToRun = new ArrayList<Job>(expired.size());
+					for(TimingWheel.Entry<Job> e : expired) {
+						jobsToRun.add(e.item);
+						// Only forget it if it hasn't been queued again since.
+						if(wheelJobsQueued.get(e.item) == e)
+							wheelJobsQueued.remove(e.item);
+					}
+				}
+				sleepTime = timingWheel.nextExpiry(now + MAX_SLEEP_TIME) - now;
+			}
 			while(!timedJobsByTime.isEmpty()) {
 				Long tRun = timedJobsByTime.firstKey();
 				if(tRun.longValue() <= now) {
@@ -207,30 +243,46 @@ public class PrioritizedTicker implements Ticker, Runnable {
         }
         Job job = new Job(name, runner);
         synchronized(timedJobsByTime) {
-            if(noDupes) {
-                Long alreadyQueuedAt = timedJobsQueued.get(job);
-                if(alreadyQueuedAt != null) {
-                    if(alreadyQueuedAt <= runJobAt) {
-                        Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
-                        return;
-                    } else {
-                        // Delete the existing job because the new job will run first.
-                        removeQueuedJobInner(job, alreadyQueuedAt);
+            if(timingWheel != null) {
+                if(noDupes) {
+                    TimingWheel.Entry<Job> alreadyQueued = wheelJobsQueued.get(job);
+                    if(alreadyQueued != null) {
+                        if(alreadyQueued.time <= runJobAt) {
+                            Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+                            return;
+                        } else {
+                            // Delete the existing job because the new job will run first.
+                            timingWheel.remove(alreadyQueued);
+                        }
                     }
                 }
+                wheelJobsQueued.put(job, timingWheel.add(job, runJobAt));
+            } else {
+                if(noDupes) {
+                    Long alreadyQueuedAt = timedJobsQueued.get(job);
+                    if(alreadyQueuedAt != null) {
+                        if(alreadyQueuedAt <= runJobAt) {
+                            Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+                            return;
+                        } else {
+                            // Delete the existing job because the new job will run first.
+                            removeQueuedJobInner(job, alreadyQueuedAt);
+                        }
+                    }
+                }
+                Object o = timedJobsByTime.get(runJobAt);
+                if(o == null)
+                    timedJobsByTime.put(runJobAt, job);
+                else if(o instanceof Job)
+                    timedJobsByTime.put(runJobAt, new Job[]{(Job) o, job});
+                else if(o instanceof Job[]) {
+                    Job[] r = (Job[]) o;
+                    Job[] jobs = Arrays.copyOf(r, r.length+1);
+                    jobs[jobs.length - 1] = job;
+                    timedJobsByTime.put(runJobAt, jobs);
+                }
+                timedJobsQueued.put(job, runJobAt);
             }
-            Object o = timedJobsByTime.get(runJobAt);
-            if(o == null)
-                timedJobsByTime.put(runJobAt, job);
-            else if(o instanceof Job)
-                timedJobsByTime.put(runJobAt, new Job[]{(Job) o, job});
-            else if(o instanceof Job[]) {
-                Job[] r = (Job[]) o;
-                Job[] jobs = Arrays.copyOf(r, r.length+1);
-                jobs[jobs.length - 1] = job;
-                timedJobsByTime.put(runJobAt, jobs);
-            }
-            timedJobsQueued.put(job, runJobAt);
         }
         if(offset < MAX_SLEEP_TIME) {
             wakeUp();
@@ -252,12 +304,14 @@ public class PrioritizedTicker implements Ticker, Runnable {
 
 	int queuedJobs() {
 		synchronized(timedJobsByTime) {
+			if(timingWheel != null) return wheelJobsQueued.size();
 			return timedJobsQueued.size();
 		}
 	}
 
     int queuedJobsUniqueTimes() {
         synchronized(timedJobsByTime) {
+            if(timingWheel != null) return timingWheel.uniqueTimes();
             return timedJobsByTime.size();
         }
     }
@@ -269,6 +323,11 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	public void removeQueuedJob(Runnable runnable) {
 		Job job = new Job(null, runnable);
 		synchronized(timedJobsByTime) {
+			if(timingWheel != null) {
+				TimingWheel.Entry<Job> e = wheelJobsQueued.remove(job);
+				if(e != null) timingWheel.remove(e);
+				return;
+			}
 			Long t = timedJobsQueued.remove(job);
 			if(t != null) {
 			    removeQueuedJobInner(job, t);
@@ -16,8 +16,9 @@ import freenet.client.async.RequestSelectionTreeNode;
  * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
  * it used to be, and probably has a lot of cruft and inefficiency as a result. 
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: Each subtree has a single lock, normally the node at the top of the subtree, which is 
+ * passed in to the constructor. ClientRequestSelector has one subtree per priority. See the 
+ * javadocs there for deeper explanation.
  * 
  * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
  * Memory usage was an issue but probably isn't now given that the individual items are now quite 
@@ -46,15 +47,24 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private final int hashCode;
 	private RemoveRandomParent parent;
 	protected ClientRequestSelector root;
+	/** The lock for the subtree we are in. */
+	protected final Object lock;
 	private long wakeupTime;
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
+		this(parent, root, root);
+	}
+	
+	/** @param lock The lock for the subtree we belong to. All nodes of the subtree must use the
+	 * same lock, as wakeup times are propagated up the tree while holding it. */
+	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
 		this.blocks = new Block[] { new Block() };
 		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
 		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock;
 	}
 	
 	@Override
@@ -68,7 +78,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(lock) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
@@ -126,7 +136,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
+		synchronized(lock) {
 			if(index == 0) {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
@@ -351,7 +361,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
+		synchronized(lock) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -406,13 +416,13 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index == 0;
 	    }
 	}
 	
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
+		synchronized(lock) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -438,13 +448,13 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 	
 	public int size() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index;
 	    }
 	}
 
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        int blockNo = idx / BLOCK_SIZE;
 	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
 	        return item;
@@ -470,21 +480,21 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
@@ -499,7 +509,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
      */
     private void setWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime; // Set before calling parent.
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -512,7 +522,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -525,7 +535,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
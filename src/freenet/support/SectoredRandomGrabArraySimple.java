@@ -19,15 +19,20 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
             ClientRequestSelector root) {
         super(object, parent, root);
     }
+    
+    public SectoredRandomGrabArraySimple(MyType object, RemoveRandomParent parent,
+            ClientRequestSelector root, Object lock) {
+        super(object, parent, root, lock);
+    }
 
     /** Add directly to a RandomGrabArrayWithObject under us. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
+        synchronized(lock) {
         RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
         if(rga == null) {
             if(logMINOR)
                 Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
-            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root);
+            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root, lock);
             addElement(client, rga);
         }
         if(logMINOR)
@@ -7,13 +7,17 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 	private MyType object;
 	
 	public SectoredRandomGrabArrayWithObject(MyType object, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+		this(object, parent, root, root);
+	}
+
+	public SectoredRandomGrabArrayWithObject(MyType object, RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		super(parent, root, lock);
 		this.object = object;
 	}
 
 	@Override
 	public MyType getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return object;
 	    }
 	}
@@ -25,7 +29,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public void setObject(MyType client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        object = client;
 	    }
 	}
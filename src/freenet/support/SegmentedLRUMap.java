@@ -0,0 +1,491 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent LRU map keyed directly on byte arrays (e.g. routing keys), so lookups do not need
+ * to allocate a wrapper. Keys are compared by content and are NOT copied: the caller must not
+ * modify a key after passing it in.
+ *
+ * The map is split into segments, each with its own lock, hash table and LRU list, so threads
+ * working on different keys rarely contend. Every insertion and promotion takes a stamp from a
+ * global counter. Each segment publishes the stamp of its oldest entry, and {@link #peekOldest()}
+ * / {@link #popOldest()} compare these without locking, then lock only the chosen segment. So
+ * eviction order is LRU across the whole map, except that an entry touched concurrently with an
+ * eviction may be missed in favour of one which is very slightly newer.
+ *
+ * Lock statistics are kept per segment, under the segment lock, and are only summed when read.
+ */
+public class SegmentedLRUMap<V> {
+
+	public static final int DEFAULT_SEGMENTS = 16;
+
+	/** A snapshot of a key and its value. */
+	public static final class Entry<V> {
+		public final byte[] key;
+		public final V value;
+
+		Entry(byte[] key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static final class Node<V> {
+		final byte[] key;
+		final int hash;
+		V value;
+		/** Access stamp. Larger is more recent. */
+		long stamp;
+		/** Next node in the same hash bucket. */
+		Node<V> chain;
+		/** LRU list. */
+		Node<V> newer, older;
+
+		Node(byte[] key, int hash, V value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	private static final class Segment<V> {
+		final ReentrantLock lock = new ReentrantLock();
+		Node<V>[] table;
+		/** Sentinel. head.older is the most recently used node, head.newer the least. */
+		final Node<V> head;
+		volatile int count;
+		/** Stamp of the least recently used node, or Long.MAX_VALUE if empty. Written under
+		 * the lock, read without it. */
+		volatile long oldestStamp = Long.MAX_VALUE;
+		// Protected by lock.
+		long lockCount;
+		long contendedCount;
+		long contendedWaitNanos;
+
+		Segment() {
+			table = newTable(16);
+			head = new Node<V>(null, 0, null);
+			head.newer = head.older = head;
+		}
+
+		Node<V> find(byte[] key, int hash) {
+			for(Node<V> n = table[hash & (table.length - 1)]; n != null; n = n.chain) {
+				if(n.hash == hash && Arrays.equals(n.key, key))
+					return n;
+			}
+			return null;
+		}
+
+		void linkFirst(Node<V> n) {
+			n.older = head.older;
+			n.newer = head;
+			head.older.newer = n;
+			head.older = n;
+			updateOldest();
+		}
+
+		void unlink(Node<V> n) {
+			n.newer.older = n.older;
+			n.older.newer = n.newer;
+			n.newer = n.older = null;
+			updateOldest();
+		}
+
+		void updateOldest() {
+			oldestStamp = head.newer == head ? Long.MAX_VALUE : head.newer.stamp;
+		}
+
+		void insert(Node<V> n) {
+			int idx = n.hash & (table.length - 1);
+			n.chain = table[idx];
+			table[idx] = n;
+			linkFirst(n);
+			count++;
+			if(count > table.length - (table.length >> 2))
+				rehash();
+		}
+
+		void remove(Node<V> n) {
+			int idx = n.hash & (table.length - 1);
+			Node<V> prev = null;
+			for(Node<V> cur = table[idx]; cur != null; prev = cur, cur = cur.chain) {
+				if(cur == n) {
+					if(prev == null)
+						table[idx] = n.chain;
+					else
+						prev.chain = n.chain;
+					break;
+				}
+			}
+			n.chain = null;
+			unlink(n);
+			count--;
+		}
+
+		/** @return The least recently used node, or null if empty. */
+		Node<V> oldest() {
+			return head.newer == head ? null : head.newer;
+		}
+
+		private void rehash() {
+			Node<V>[] newTable = newTable(table.length * 2);
+			for(Node<V> n : table) {
+				while(n != null) {
+					Node<V> next = n.chain;
+					int idx = n.hash & (newTable.length - 1);
+					n.chain = newTable[idx];
+					newTable[idx] = n;
+					n = next;
+				}
+			}
+			table = newTable;
+		}
+	}
+
+	private final Segment<V>[] segments;
+	private final int segmentShift;
+	private final AtomicLong clock = new AtomicLong();
+
+	public SegmentedLRUMap() {
+		this(DEFAULT_SEGMENTS);
+	}
+
+	/** @param segmentCount Number of segments. Rounded up to a power of two. */
+	public SegmentedLRUMap(int segmentCount) {
+		if(segmentCount < 1 || segmentCount > (1 << 16))
+			throw new IllegalArgumentException("Bad segment count " + segmentCount);
+		int bits = 32 - Integer.numberOfLeadingZeros(segmentCount - 1);
+		segments = newSegments(1 << bits);
+		for(int i = 0; i < segments.length; i++)
+			segments[i] = new Segment<V>();
+		// Use the top bits for the segment and the bottom bits for the bucket.
+		segmentShift = 32 - bits;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Node<V>[] newTable(int size) {
+		return (Node<V>[]) new Node<?>[size];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Segment<V>[] newSegments(int size) {
+		return (Segment<V>[]) new Segment<?>[size];
+	}
+
+	private static int hash(byte[] key) {
+		// Fields.hashCode() just XORs the bytes together, spread it out (murmur3 finalizer).
+		int h = Fields.hashCode(key);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		// segmentShift is 32 for a single segment, and shifts are mod 32.
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	private void lock(Segment<V> s) {
+		if(!s.lock.tryLock()) {
+			long startTime = System.nanoTime();
+			s.lock.lock();
+			s.contendedCount++;
+			s.contendedWaitNanos += System.nanoTime() - startTime;
+		}
+		s.lockCount++;
+	}
+
+	private void touch(Segment<V> s, Node<V> n) {
+		n.stamp = clock.incrementAndGet();
+		if(s.head.older != n) {
+			s.unlink(n);
+			s.linkFirst(n);
+		} else if(s.head.newer == n) {
+			// Only node.
+			s.updateOldest();
+		}
+	}
+
+	/** Get the value for a key without changing its position in the LRU. */
+	public V get(byte[] key) {
+		return get(key, false);
+	}
+
+	/**
+	 * Get the value for a key.
+	 * @param promote If true, and the key is present, make it the most recently used.
+	 */
+	public V get(byte[] key, boolean promote) {
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n == null) return null;
+			if(promote) touch(s, n);
+			return n.value;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public boolean containsKey(byte[] key) {
+		return get(key, false) != null;
+	}
+
+	/**
+	 * Add or replace a key and make it the most recently used.
+	 * @return The previous value, or null.
+	 */
+	public V push(byte[] key, V value) {
+		if(value == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n != null) {
+				V old = n.value;
+				n.value = value;
+				touch(s, n);
+				return old;
+			}
+			n = new Node<V>(key, hash, value);
+			n.stamp = clock.incrementAndGet();
+			s.insert(n);
+			return null;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a key as the most recently used, unless it is already present.
+	 * @return The existing value, in which case nothing was changed, or null if the key was added.
+	 */
+	public V putIfAbsent(byte[] key, V value) {
+		if(value == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n != null)
+				return n.value;
+			n = new Node<V>(key, hash, value);
+			n.stamp = clock.incrementAndGet();
+			s.insert(n);
+			return null;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/**
+	 * Replace the value for a key and make it the most recently used, only if it is present.
+	 * @return The previous value, or null if the key was not present and nothing was changed.
+	 */
+	public V replace(byte[] key, V value) {
+		if(value == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n == null) return null;
+			V old = n.value;
+			n.value = value;
+			touch(s, n);
+			return old;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/**
+	 * Replace the value for a key only if it currently maps to <code>oldValue</code> (compared by
+	 * identity). Does not change the key's position in the LRU.
+	 * @return True if the value was replaced.
+	 */
+	public boolean replace(byte[] key, V oldValue, V newValue) {
+		if(newValue == null) throw new NullPointerException();
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n == null || n.value != oldValue) return false;
+			n.value = newValue;
+			return true;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/** @return The removed value, or null if the key was not present. */
+	public V remove(byte[] key) {
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n == null) return null;
+			s.remove(n);
+			return n.value;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a key only if it currently maps to the given value (compared by identity).
+	 * @return True if the key was removed.
+	 */
+	public boolean remove(byte[] key, V value) {
+		int hash = hash(key);
+		Segment<V> s = segmentFor(hash);
+		lock(s);
+		try {
+			Node<V> n = s.find(key, hash);
+			if(n == null || n.value != value) return false;
+			s.remove(n);
+			return true;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	/**
+	 * Find the segment whose least recently used entry is the oldest, from the stamps the
+	 * segments publish, so without taking any locks. Does not lock the segment returned, and it
+	 * may have changed by the time the caller does.
+	 */
+	private Segment<V> oldestSegment() {
+		Segment<V> best = null;
+		long bestStamp = Long.MAX_VALUE;
+		for(Segment<V> s : segments) {
+			long stamp = s.oldestStamp;
+			if(stamp < bestStamp) {
+				best = s;
+				bestStamp = stamp;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The least recently used entry, or null if the map is empty. Concurrent updates may
+	 * change it before the caller acts on it, use {@link #remove(byte[], Object)} to remove it
+	 * safely.
+	 */
+	public Entry<V> peekOldest() {
+		while(true) {
+			Segment<V> s = oldestSegment();
+			if(s == null) return null;
+			lock(s);
+			try {
+				Node<V> n = s.oldest();
+				if(n != null) return new Entry<V>(n.key, n.value);
+				// Emptied in the meantime, try again.
+			} finally {
+				s.lock.unlock();
+			}
+		}
+	}
+
+	/** Remove and return the least recently used entry, or null if the map is empty. */
+	public Entry<V> popOldest() {
+		while(true) {
+			Segment<V> s = oldestSegment();
+			if(s == null) return null;
+			lock(s);
+			try {
+				Node<V> n = s.oldest();
+				if(n != null) {
+					s.remove(n);
+					return new Entry<V>(n.key, n.value);
+				}
+			} finally {
+				s.lock.unlock();
+			}
+		}
+	}
+
+	/** @return A snapshot of all the entries, in no particular order. */
+	public List<Entry<V>> entries() {
+		List<Entry<V>> list = new ArrayList<Entry<V>>(size());
+		for(Segment<V> s : segments) {
+			lock(s);
+			try {
+				for(Node<V> n = s.head.newer; n != s.head; n = n.newer)
+					list.add(new Entry<V>(n.key, n.value));
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		return list;
+	}
+
+	/** @return The number of keys. Not atomic with respect to concurrent updates. */
+	public int size() {
+		int size = 0;
+		for(Segment<V> s : segments)
+			size += s.count;
+		return size;
+	}
+
+	public boolean isEmpty() {
+		for(Segment<V> s : segments)
+			if(s.count != 0) return false;
+		return true;
+	}
+
+	public void clear() {
+		for(Segment<V> s : segments) {
+			lock(s);
+			try {
+				s.table = newTable(16);
+				s.head.newer = s.head.older = s.head;
+				s.count = 0;
+				s.updateOldest();
+			} finally {
+				s.lock.unlock();
+			}
+		}
+	}
+
+	/** Number of segment lock acquisitions. */
+	public long lockAcquisitions() {
+		long total = 0;
+		for(Segment<V> s : segments)
+			total += s.lockCount;
+		return total;
+	}
+
+	/** Number of segment lock acquisitions which had to wait for another thread. */
+	public long lockContentions() {
+		long total = 0;
+		for(Segment<V> s : segments)
+			total += s.contendedCount;
+		return total;
+	}
+
+	/** Total time spent waiting for contended segment locks, in nanoseconds. */
+	public long lockWaitNanos() {
+		long total = 0;
+		for(Segment<V> s : segments)
+			total += s.contendedWaitNanos;
+		return total;
+	}
+}
@@ -22,6 +22,7 @@ package freenet.support;
 import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import freenet.io.WritableToDataOutputStream;
@@ -107,6 +108,15 @@ public class ShortBuffer implements WritableToDataOutputStream {
 		System.arraycopy(_data, _start, array, position, _length);
 	}
 
+	/**
+	 * Copy the data to a ByteBuffer, at its current position
+	 *
+	 * @param buf
+	 */
+	public void copyTo(ByteBuffer buf) {
+		buf.put(_data, _start, _length);
+	}
+
 	public byte byteAt(int pos) {
 		if (pos >= _length) {
 			throw new ArrayIndexOutOfBoundsException();
@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel with one millisecond ticks, laid out like the classic Linux kernel
+ * timer wheel: 256 one millisecond slots, then four levels of 64 slots each covering 64 times
+ * the range of the level below, about 49 days in all. Adding and removing an entry is O(1).
+ * An entry on an upper level is moved down ("cascaded") when the wheel reaches its block of
+ * time, so each entry is moved at most four times. Entries further ahead than the wheel can
+ * hold are parked in the last slot and placed again when they are cascaded.
+ *
+ * Not thread-safe: the caller must synchronize.
+ */
+public class TimingWheel<T> {
+
+	private static final int ROOT_BITS = 8;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVELS = 5;
+	private static final int ROOT_MASK = (1 << ROOT_BITS) - 1;
+	private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+	private static final long MAX_DELTA = (1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+
+	public static final class Entry<T> {
+		public final T item;
+		public final long time;
+		private Entry<T> prev;
+		private Entry<T> next;
+		/** Level of the slot we are in, or -1 if not queued. */
+		private int level = -1;
+
+		private Entry(T item, long time) {
+			this.item = item;
+			this.time = time;
+		}
+
+		public boolean isQueued() {
+			return level >= 0;
+		}
+	}
+
+	/** Each slot is a circular doubly linked list with a dummy head. */
+	private final Entry<T>[][] slots;
+	/** Entries added after their time had already been passed to expire(). */
+	private final Entry<T> overdue;
+	/** Entries on each level, and on the overdue list at LEVELS. */
+	private final int[] levelCount;
+	/** The next tick to be expired. Everything before it has been. */
+	private long current;
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long now) {
+		current = now;
+		slots = (Entry<T>[][]) new Entry<?>[LEVELS][];
+		levelCount = new int[LEVELS + 1];
+		for(int level = 0; level < LEVELS; level++) {
+			slots[level] = (Entry<T>[]) new Entry<?>[level == 0 ? ROOT_MASK + 1 : LEVEL_MASK + 1];
+			for(int i = 0; i < slots[level].length; i++) {
+				Entry<T> head = new Entry<T>(null, 0);
+				head.prev = head;
+				head.next = head;
+				slots[level][i] = head;
+			}
+		}
+		overdue = new Entry<T>(null, 0);
+		overdue.prev = overdue;
+		overdue.next = overdue;
+	}
+
+	/** Add an item which is due at the given time. Items due at or before the last time
+	 * passed to expire() will be returned by the next call to expire().
+	 * @return The entry, which can be passed to remove(). */
+	public Entry<T> add(T item, long time) {
+		Entry<T> e = new Entry<T>(item, time);
+		place(e);
+		size++;
+		return e;
+	}
+
+	/** Remove an entry. Does nothing if it has already expired or been removed. */
+	public void remove(Entry<T> e) {
+		if(e.level < 0) return;
+		unlink(e);
+		size--;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Remove all entries which are due at or before now and add them to the list. */
+	public void expire(long now, List<Entry<T>> expired) {
+		drain(overdue, expired);
+		while(current <= now) {
+			if((current & ROOT_MASK) == 0) cascade();
+			if(levelCount[0] == 0) {
+				// Skip straight to the next cascade that can move something, or to now if there
+				// is nothing left at all.
+				if(size == 0) {
+					current = now + 1;
+					continue;
+				}
+				int shift = ROOT_BITS;
+				for(int level = 1; level < LEVELS - 1 && levelCount[level] == 0; level++)
+					shift += LEVEL_BITS;
+				current = Math.min(now + 1, (current | ((1L << shift) - 1)) + 1);
+				continue;
+			}
+			drain(slots[0][(int) (current & ROOT_MASK)], expired);
+			current++;
+		}
+	}
+
+	private void drain(Entry<T> head, List<Entry<T>> expired) {
+		while(head.next != head) {
+			Entry<T> e = head.next;
+			unlink(e);
+			size--;
+			expired.add(e);
+		}
+	}
+
+	/** @return The earliest time, no later than limit, at which expire() might return
+	 * something. Only looks ahead as far as the next cascade, so this may be earlier than the
+	 * time of the first entry. */
+	public long nextExpiry(long limit) {
+		if(size == 0) return limit;
+		if(levelCount[LEVELS] > 0) return current - 1;
+		long end = Math.min(limit, (current & ROOT_MASK) == 0 ? current : (current | ROOT_MASK) + 1);
+		if(levelCount[0] > 0) {
+			for(long t = current; t < end; t++) {
+				Entry<T> head = slots[0][(int) (t & ROOT_MASK)];
+				if(head.next != head) return t;
+			}
+		}
+		return end;
+	}
+
+	/** Count the distinct times of the queued entries. Slow, for tests. */
+	int uniqueTimes() {
+		HashSet<Long> times = new HashSet<Long>();
+		for(Entry<T>[] level : slots)
+			for(Entry<T> head : level)
+				for(Entry<T> e = head.next; e != head; e = e.next)
+					times.add(e.time);
+		for(Entry<T> e = overdue.next; e != overdue; e = e.next)
+			times.add(e.time);
+		return times.size();
+	}
+
+	private void place(Entry<T> e) {
+		long delta = e.time - current;
+		Entry<T> head;
+		int level;
+		if(delta < 0) {
+			head = overdue;
+			level = LEVELS;
+		} else if(delta <= ROOT_MASK) {
+			head = slots[0][(int) (e.time & ROOT_MASK)];
+			level = 0;
+		} else {
+			if(delta > MAX_DELTA) delta = MAX_DELTA;
+			level = 1;
+			int shift = ROOT_BITS;
+			while(level < LEVELS - 1 && delta >= 1L << (shift + LEVEL_BITS)) {
+				level++;
+				shift += LEVEL_BITS;
+			}
+			head = slots[level][(int) (((current + delta) >> shift) & LEVEL_MASK)];
+		}
+		e.level = level;
+		e.prev = head.prev;
+		e.next = head;
+		head.prev.next = e;
+		head.prev = e;
+		levelCount[level]++;
+	}
+
+	private void unlink(Entry<T> e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+		levelCount[e.level]--;
+		e.level = -1;
+	}
+
+	/** Called when current reaches a multiple of 256: move the entries in the slots we have
+	 * just reached on the upper levels down, starting with the lowest. A level only needs to
+	 * be cascaded when the one below it has wrapped around. */
+	private void cascade() {
+		int shift = ROOT_BITS;
+		for(int level = 1; level < LEVELS; level++) {
+			int index = (int) ((current >> shift) & LEVEL_MASK);
+			Entry<T> head = slots[level][index];
+			if(head.next != head) {
+				// Detach the whole list first: an entry a full turn of this level ahead goes
+				// straight back into the same slot.
+				Entry<T> e = head.next;
+				head.prev.next = null;
+				head.prev = head;
+				head.next = head;
+				while(e != null) {
+					Entry<T> next = e.next;
+					levelCount[level]--;
+					place(e);
+					e = next;
+				}
+			}
+			if(index != 0) break;
+			shift += LEVEL_BITS;
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Lock-free alternative to {@link PooledExecutor}. Like PooledExecutor it creates a
+ * thread when no idle thread of the right priority is available, and lets threads
+ * die after a minute of inactivity, so a job is never stuck behind another one.
+ *
+ * Unlike PooledExecutor, jobs go onto a lock-free queue per priority rather than
+ * being handed to a specific thread under the executor lock. Every job still wakes
+ * or creates one thread, but any thread of that priority which finishes its job
+ * takes the next queued job first, so under load most jobs are picked up by a
+ * thread which is already running and the woken thread simply goes back to sleep.
+ * Threads never take jobs queued at another priority, since that would run the job
+ * at the wrong native priority.
+ *
+ * Enable with -Dfreenet.executor.workStealing=true.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	/** System property selecting this executor in NodeStarter */
+	public static final String PROPERTY = "freenet.executor.workStealing";
+
+	/** Jobs not yet picked up, per priority */
+	private final ConcurrentLinkedQueue<Job>[] jobs;
+	/** Idle threads, per priority. Used as a stack so the most recently idle thread is
+	 * reused first and the others can time out. May contain threads which are no longer
+	 * idle: only the thread which clears {@link Worker#idle} may use it. */
+	private final ConcurrentLinkedDeque<Worker>[] idleThreads;
+	/** All threads running or waiting */
+	private final AtomicInteger[] allThreads;
+	/** Threads waiting for a job */
+	private final AtomicInteger[] waitingThreads;
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private final AtomicLong[] threadCounter;
+	private final AtomicLong jobCount = new AtomicLong();
+	private final AtomicLong jobMisses = new AtomicLong();
+	private static volatile boolean logMINOR;
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+
+	@SuppressWarnings("unchecked")
+	public WorkStealingExecutor() {
+		int length = NativeThread.JAVA_PRIORITY_RANGE + 1;
+		jobs = (ConcurrentLinkedQueue<Job>[]) new ConcurrentLinkedQueue<?>[length];
+		idleThreads = (ConcurrentLinkedDeque<Worker>[]) new ConcurrentLinkedDeque<?>[length];
+		allThreads = new AtomicInteger[length];
+		waitingThreads = new AtomicInteger[length];
+		threadCounter = new AtomicLong[length];
+		for(int i = 0; i < length; i++) {
+			jobs[i] = new ConcurrentLinkedQueue<Job>();
+			idleThreads[i] = new ConcurrentLinkedDeque<Worker>();
+			allThreads[i] = new AtomicInteger();
+			waitingThreads[i] = new AtomicInteger();
+			threadCounter[i] = new AtomicLong();
+		}
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	public void start() {
+		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		jobCount.incrementAndGet();
+		// Queue the job before looking for a thread, so that a thread we claim is sure
+		// to find it unless somebody else has already taken it.
+		Job job = new Job(runnable, jobName);
+		ConcurrentLinkedQueue<Job> queue = jobs[prio - 1];
+		queue.add(job);
+
+		Worker t = claimIdle(prio);
+		if(t != null) {
+			// Whichever thread gets to the job first runs it; t goes back to sleep if it was beaten.
+			LockSupport.unpark(t);
+			if(logMINOR)
+				Logger.minor(this, "Not starting: Jobs: " + jobMisses + " misses of " + jobCount + " starting urgently " + jobName);
+			return;
+		}
+
+		// Must create new thread
+		if(ticker != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > Thread.currentThread().getPriority()) {
+			// Get the ticker to create a thread for it with the right priority, since we can't.
+			// If the job has already been taken by a running thread there is nothing to do.
+			if(queue.remove(job))
+				ticker.queueTimedJob(runnable, jobName, 0, true, false);
+			return;
+		}
+
+		long threadNo = threadCounter[prio - 1].getAndIncrement();
+		// Will be coalesced by thread count listings if we use "@" or "for"
+		t = new Worker("Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo, prio, !fromTicker);
+		t.setDaemon(true);
+		allThreads[prio - 1].incrementAndGet();
+		jobMisses.incrementAndGet();
+		if(logMINOR)
+			Logger.minor(this, "Jobs: " + jobMisses + " misses of " + jobCount + " starting urgently " + jobName);
+		t.start();
+	}
+
+	/** Take the most recently idle thread at the given priority, or return null if
+	 * there is none. */
+	private Worker claimIdle(int prio) {
+		ConcurrentLinkedDeque<Worker> idle = idleThreads[prio - 1];
+		Worker t;
+		while((t = idle.pollLast()) != null) {
+			if(t.claim()) {
+				if(logMINOR)
+					Logger.minor(this, "Reusing thread " + t);
+				return t;
+			}
+			// Lost the race with the thread itself giving up waiting.
+		}
+		return null;
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[allThreads.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, allThreads[i].get() - waitingThreads[i].get());
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[waitingThreads.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = waitingThreads[i].get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+		}
+	}
+
+	private class Worker extends NativeThread {
+		final String defaultName;
+		final long threadNo;
+		/** Set by the thread when it goes idle. Whoever clears it owns the thread: either
+		 * a caller of execute() which will unpark it, or the thread itself. */
+		final AtomicBoolean idle = new AtomicBoolean();
+
+		public Worker(String defaultName, long threadCounter, int prio, boolean dontCheckRenice) {
+			super(defaultName, prio, dontCheckRenice);
+			this.defaultName = defaultName;
+			threadNo = threadCounter;
+		}
+
+		boolean claim() {
+			if(!idle.compareAndSet(true, false)) return false;
+			int prio = getNativePriority();
+			waitingThreads[prio - 1].decrementAndGet();
+			waitingThreadsCount.decrementAndGet();
+			return true;
+		}
+
+		@Override
+		public void realRun() {
+			int nativePriority = getNativePriority();
+			long ranJobs = 0;
+			ConcurrentLinkedQueue<Job> queue = jobs[nativePriority - 1];
+			while(true) {
+				Job job = queue.poll();
+				if(job == null) {
+					if(!waitForJob(nativePriority, queue)) {
+						allThreads[nativePriority - 1].decrementAndGet();
+						if(logMINOR)
+							Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+						return;
+					}
+					continue;
+				}
+
+				// Run the job
+				try {
+					setName(job.name + "(" + threadNo + ")");
+					job.runnable.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + job, t);
+				}
+				ranJobs++;
+			}
+		}
+
+		/** Wait until we are claimed or there is something on the queue.
+		 * @return False if we timed out with nothing to do and should exit. */
+		private boolean waitForJob(int nativePriority, ConcurrentLinkedQueue<Job> queue) {
+			setName(defaultName);
+			ConcurrentLinkedDeque<Worker> idleStack = idleThreads[nativePriority - 1];
+			waitingThreads[nativePriority - 1].incrementAndGet();
+			waitingThreadsCount.incrementAndGet();
+			idle.set(true);
+			idleStack.addLast(this);
+			// A job may have been queued after we last looked but before we were on the
+			// stack, in which case nobody may wake us for it.
+			if(!queue.isEmpty()) {
+				if(claim()) idleStack.removeLastOccurrence(this);
+				return true;
+			}
+			long deadline = System.nanoTime() + MILLISECONDS.toNanos(TIMEOUT);
+			while(idle.get()) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					if(!claim()) return true; // Claimed just in time.
+					idleStack.removeLastOccurrence(this);
+					// Anything queued from now on will wake or start another thread.
+					return !queue.isEmpty();
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			return true;
+		}
+	}
+}
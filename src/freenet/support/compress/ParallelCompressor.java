@@ -0,0 +1,488 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Compresses the data for an insert with all the codecs at once, rather than one after another
+ * as InsertCompressor normally does. Each codec reads the data separately, and is stopped as soon
+ * as it can no longer be chosen, e.g. because it has already written more blocks than a codec
+ * which has finished. The codec chosen is the same as when they are run in turn.
+ *
+ * Large inputs are also split into chunks for gzip, which are deflated in parallel in the same
+ * way as pigz: each chunk uses the end of the previous chunk as its dictionary and ends with a
+ * sync flush, so together they form a single ordinary gzip stream, which any node can decode.
+ * The compressed data is not the same as GzipCompressor's, so the same file may get a different
+ * key with this mode enabled, but it does not depend on the number of threads. bzip2 and LZMA
+ * can't be split up like this: older nodes only decode the first of several concatenated bzip2
+ * streams, and LZMA is a single range coded stream.
+ *
+ * Enable with -Dfreenet.compress.parallel=true.
+ */
+public class ParallelCompressor {
+
+    /** System property enabling this in InsertCompressor */
+    public static final String PROPERTY = "freenet.compress.parallel";
+
+    /** Input bytes deflated by one task. */
+    static final int CHUNK_SIZE = 1024 * 1024;
+    /** Only split the input for gzip if there are at least this many chunks. */
+    static final int MIN_CHUNKS = 2;
+    /** The deflate window. */
+    static final int DICTIONARY_SIZE = 32768;
+    /** How often codecs check whether they have been beaten, in bytes written. */
+    static final int CHECK_INTERVAL = 4096;
+
+    /** Header written by GZIPOutputStream: no flags, no time, unknown OS. */
+    private static final byte[] GZIP_HEADER =
+        { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(ParallelCompressor.class);
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    private final Executor executor;
+    /** Maximum number of gzip chunks in memory for one insert. */
+    private final int maxChunks;
+
+    /**
+     * @param executor Runs the codecs and the gzip chunks. Callers run any task which has not
+     * been started yet themselves when they need it, so a job never waits for a thread it is
+     * blocking, even if the executor has only one thread, or none free.
+     * @param threads The number of threads in the executor.
+     */
+    public ParallelCompressor(Executor executor, int threads) {
+        this.executor = executor;
+        this.maxChunks = Math.max(1, threads) + 1;
+    }
+
+    /** The codec chosen and its output, or null and the original data if none of them made it
+     * smaller. */
+    public static class Result {
+        public final COMPRESSOR_TYPE codec;
+        public final RandomAccessBucket data;
+        public final HashResult[] hashes;
+
+        Result(COMPRESSOR_TYPE codec, RandomAccessBucket data, HashResult[] hashes) {
+            this.codec = codec;
+            this.data = data;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * Compress the data with each codec and keep the best. As in InsertCompressor, this is the
+     * first codec whose output is at most minSize, or else the first one with the fewest blocks,
+     * provided it is fewer than the original data.
+     * @param data The data to compress. Not freed.
+     * @param codecs The codecs to try, in order of preference.
+     * @param minSize If a codec gets the data down to this size, later codecs are not needed.
+     * @param blockSize The size of a block.
+     * @param bf Creates the buckets for the compressed data.
+     * @param generateHashes Hashes of the original data to compute, or 0.
+     * @throws IOException If reading the data or writing the compressed data fails.
+     */
+    public Result compress(RandomAccessBucket data, COMPRESSOR_TYPE[] codecs, long minSize,
+            int blockSize, BucketFactory bf, long generateHashes) throws IOException {
+        long origSize = data.size();
+        Race race = new Race(codecs.length, minSize, blockSize, origSize / blockSize);
+        FutureTask<HashResult[]> hashJob = null;
+        if(generateHashes != 0) {
+            hashJob = new FutureTask<HashResult[]>(new HashJob(data, generateHashes));
+            start(hashJob);
+        }
+        List<FutureTask<RandomAccessBucket>> jobs =
+            new ArrayList<FutureTask<RandomAccessBucket>>(codecs.length);
+        for(int i=0;i<codecs.length;i++) {
+            FutureTask<RandomAccessBucket> job = new FutureTask<RandomAccessBucket>(
+                    new CodecJob(race, i, codecs[i], data, origSize, bf));
+            jobs.add(job);
+            start(job);
+        }
+        // Wait for everything even if something fails, so we don't leak buckets.
+        IOException error = null;
+        RandomAccessBucket[] outputs = new RandomAccessBucket[codecs.length];
+        for(int i=0;i<codecs.length;i++) {
+            try {
+                outputs[i] = join(jobs.get(i));
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        HashResult[] hashes = null;
+        if(hashJob != null) {
+            try {
+                hashes = join(hashJob);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        int best = race.choose();
+        for(int i=0;i<codecs.length;i++) {
+            if(outputs[i] != null && (i != best || error != null))
+                outputs[i].free();
+        }
+        if(error != null) throw error;
+        if(logMINOR)
+            Logger.minor(this, "Compressed "+origSize+" bytes: best codec "+
+                    (best < 0 ? "none" : codecs[best])+" size "+
+                    (best < 0 ? origSize : outputs[best].size()));
+        if(best < 0)
+            return new Result(null, data, hashes);
+        return new Result(codecs[best], outputs[best], hashes);
+    }
+
+    /** Tracks which codecs have finished, and how well they did. */
+    private static class Race {
+
+        private final long minSize;
+        private final int blockSize;
+        private final long origBlocks;
+        /** Compressed size for each codec that has finished successfully, or -1. */
+        private final long[] sizes;
+
+        Race(int codecs, long minSize, int blockSize, long origBlocks) {
+            this.minSize = minSize;
+            this.blockSize = blockSize;
+            this.origBlocks = origBlocks;
+            this.sizes = new long[codecs];
+            for(int i=0;i<codecs;i++) sizes[i] = -1;
+        }
+
+        synchronized void finished(int codec, long size) {
+            sizes[codec] = size;
+        }
+
+        /** @return True if the codec can't be chosen any more, now that it has written the given
+         * number of bytes. Output only grows, so this is final. */
+        synchronized boolean beaten(int codec, long written) {
+            if(written <= minSize) {
+                // It may still fit, so it only loses to an earlier codec that does.
+                for(int i=0;i<codec;i++)
+                    if(sizes[i] >= 0 && sizes[i] <= minSize) return true;
+                return false;
+            }
+            long blocks = written / blockSize;
+            if(blocks >= origBlocks) return true;
+            for(int i=0;i<sizes.length;i++) {
+                if(i == codec || sizes[i] < 0) continue;
+                if(sizes[i] <= minSize) return true;
+                long b = sizes[i] / blockSize;
+                if(b < blocks || (b == blocks && i < codec)) return true;
+            }
+            return false;
+        }
+
+        /** @return The codec to use, or -1 to use the original data. */
+        synchronized int choose() {
+            int best = -1;
+            long bestBlocks = origBlocks;
+            for(int i=0;i<sizes.length;i++) {
+                if(sizes[i] < 0) continue;
+                if(sizes[i] <= minSize) return i;
+                long blocks = sizes[i] / blockSize;
+                if(blocks < bestBlocks) {
+                    best = i;
+                    bestBlocks = blocks;
+                }
+            }
+            return best;
+        }
+
+    }
+
+    /** Thrown inside a codec when it has been beaten. */
+    private static class BeatenException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Compress the data with one codec. Returns the compressed data, or null if the codec
+     * failed, or was beaten by another codec. */
+    private class CodecJob implements Callable<RandomAccessBucket> {
+
+        private final Race race;
+        private final int index;
+        private final COMPRESSOR_TYPE codec;
+        private final RandomAccessBucket data;
+        private final long origSize;
+        private final BucketFactory bf;
+        private long written;
+        private long nextCheck;
+        /** Set when we notice we have been beaten. Codecs may wrap the exception. */
+        private volatile boolean beaten;
+
+        CodecJob(Race race, int index, COMPRESSOR_TYPE codec, RandomAccessBucket data,
+                long origSize, BucketFactory bf) {
+            this.race = race;
+            this.index = index;
+            this.codec = codec;
+            this.data = data;
+            this.origSize = origSize;
+            this.bf = bf;
+        }
+
+        @Override
+        public RandomAccessBucket call() throws IOException {
+            RandomAccessBucket output = null;
+            boolean success = false;
+            try {
+                output = bf.makeBucket(-1);
+                try (InputStream is = new CheckingInputStream(data.getInputStream());
+                        OutputStream os = new CountingOutputStream(output.getOutputStream())) {
+                    if(codec == COMPRESSOR_TYPE.GZIP && origSize >= (long)CHUNK_SIZE * MIN_CHUNKS)
+                        gzip(is, os, origSize);
+                    else
+                        codec.compress(is, os, origSize, origSize);
+                }
+                race.finished(index, output.size());
+                success = true;
+                return output;
+            } catch (CompressionOutputSizeException e) {
+                return null;
+            } catch (IOException e) {
+                if(!beaten) throw e;
+                if(logMINOR) Logger.minor(this, "Stopped "+codec+" after "+written+" bytes");
+                return null;
+            } catch (RuntimeException e) {
+                // ArithmeticException has been seen in bzip2 codec.
+                if(!beaten)
+                    Logger.error(this, "Compression failed with codec "+codec+" : "+e, e);
+                return null;
+            } finally {
+                if(!success && output != null) output.free();
+            }
+        }
+
+        /** Stops the codec when it has been beaten. */
+        private class CheckingInputStream extends FilterInputStream {
+
+            CheckingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                check();
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] buf, int offset, int length) throws IOException {
+                check();
+                return in.read(buf, offset, length);
+            }
+
+        }
+
+        /** Counts the compressed bytes, for the race. */
+        private class CountingOutputStream extends FilterOutputStream {
+
+            CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                wrote(1);
+            }
+
+            @Override
+            public void write(byte[] buf, int offset, int length) throws IOException {
+                out.write(buf, offset, length);
+                wrote(length);
+            }
+
+        }
+
+        private void wrote(int length) throws IOException {
+            written += length;
+            if(written >= nextCheck) {
+                nextCheck = written + CHECK_INTERVAL;
+                check();
+            }
+        }
+
+        private void check() throws IOException {
+            if(beaten || race.beaten(index, written)) {
+                beaten = true;
+                throw new BeatenException();
+            }
+        }
+
+    }
+
+    private static class HashJob implements Callable<HashResult[]> {
+
+        private final RandomAccessBucket data;
+        private final long generateHashes;
+
+        HashJob(RandomAccessBucket data, long generateHashes) {
+            this.data = data;
+            this.generateHashes = generateHashes;
+        }
+
+        @Override
+        public HashResult[] call() throws IOException {
+            try (MultiHashInputStream hasher =
+                    new MultiHashInputStream(data.getInputStream(), generateHashes)) {
+                hasher.skip(Long.MAX_VALUE);
+                return hasher.getResults();
+            }
+        }
+
+    }
+
+    /**
+     * Write a gzip stream, deflating chunks of the input in parallel.
+     * @param length The number of bytes to read.
+     */
+    void gzip(InputStream is, OutputStream os, long length) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        CRC32 crc = new CRC32();
+        ArrayDeque<FutureTask<byte[]>> deflating = new ArrayDeque<FutureTask<byte[]>>();
+        try {
+            os.write(GZIP_HEADER);
+            long remaining = length;
+            byte[] previous = null;
+            boolean last = false;
+            while(!last || !deflating.isEmpty()) {
+                if(!last && deflating.size() < maxChunks) {
+                    byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+                    dis.readFully(chunk);
+                    crc.update(chunk);
+                    remaining -= chunk.length;
+                    last = remaining == 0;
+                    FutureTask<byte[]> job =
+                        new FutureTask<byte[]>(new DeflateJob(chunk, previous, last));
+                    start(job);
+                    deflating.add(job);
+                    previous = chunk;
+                } else {
+                    os.write(join(deflating.remove()));
+                }
+            }
+        } finally {
+            for(FutureTask<byte[]> job : deflating)
+                job.cancel(false);
+        }
+        writeIntLE(os, (int) crc.getValue());
+        writeIntLE(os, (int) length);
+    }
+
+    private static void writeIntLE(OutputStream os, int x) throws IOException {
+        os.write(x);
+        os.write(x >> 8);
+        os.write(x >> 16);
+        os.write(x >> 24);
+    }
+
+    /** Deflate one chunk as part of a larger deflate stream. */
+    private static class DeflateJob implements Callable<byte[]> {
+
+        private final byte[] chunk;
+        /** The previous chunk, or null if this is the first. */
+        private final byte[] previous;
+        private final boolean last;
+
+        DeflateJob(byte[] chunk, byte[] previous, boolean last) {
+            this.chunk = chunk;
+            this.previous = previous;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                if(previous != null) {
+                    int length = Math.min(DICTIONARY_SIZE, previous.length);
+                    deflater.setDictionary(previous, previous.length - length, length);
+                }
+                deflater.setInput(chunk);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.length / 2 + 64);
+                byte[] buf = new byte[32768];
+                if(last) {
+                    deflater.finish();
+                    while(!deflater.finished()) {
+                        int x = deflater.deflate(buf);
+                        baos.write(buf, 0, x);
+                    }
+                } else {
+                    // A sync flush ends on a byte boundary, so the next chunk can follow it.
+                    while(true) {
+                        int x = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        baos.write(buf, 0, x);
+                        if(x < buf.length) break;
+                    }
+                }
+                return baos.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+    }
+
+    private void start(FutureTask<?> job) {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            // Shutting down. We will run it ourselves in join().
+        }
+    }
+
+    /** Run the job in this thread if it has not been started yet, and wait for it. */
+    private static <T> T join(FutureTask<T> job) throws IOException {
+        job.run();
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return job.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    if(t instanceof IOException) throw (IOException) t;
+                    if(t instanceof RuntimeException) throw (RuntimeException) t;
+                    if(t instanceof Error) throw (Error) t;
+                    throw new Error(t);
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -19,6 +19,9 @@ import freenet.support.io.NativeThread;
 public class RealCompressor {
     private final ExecutorService executorService;
     private ClientContext context;
+    /** Threads for the codecs and chunks of ParallelCompressor. Created on demand. */
+    private ExecutorService parallelExecutorService;
+    private ParallelCompressor parallelCompressor;
 
     private static volatile boolean logMINOR;
     static {
@@ -80,6 +83,26 @@ public class RealCompressor {
         }
     }
 
+    /** Get the ParallelCompressor, which has its own threads, so that it uses all the cores even
+     * when we only run one compression job at a time. */
+    public synchronized ParallelCompressor getParallelCompressor() {
+        if(parallelCompressor == null) {
+            int threads = getMaxParallelCompressionThreads();
+            parallelExecutorService = Executors.newFixedThreadPool(threads,
+                                                                   new CompressorThreadFactory());
+            parallelCompressor = new ParallelCompressor(parallelExecutorService, threads);
+        }
+        return parallelCompressor;
+    }
+
+    private static int getMaxParallelCompressionThreads() {
+        // One thread per core, but each codec needs memory, so limit it by RAM as below.
+        Runtime r = Runtime.getRuntime();
+        int max = r.availableProcessors();
+        max = Math.min(max, (int) (Math.min(Integer.MAX_VALUE, r.maxMemory() / (128 * 1024 * 1024))));
+        return Math.max(1, max);
+    }
+
     private static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
@@ -107,6 +130,10 @@ public class RealCompressor {
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        synchronized(this) {
+            if(parallelExecutorService != null)
+                parallelExecutorService.shutdown();
+        }
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -306,10 +307,19 @@ public class BucketTools {
 	/** Copy the given quantity of data from the given bucket to the given OutputStream. 
 	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
 	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength) throws IOException {
+		return copyTo(decodedData, os, 0, truncateLength);
+	}
+
+	/** Copy part of a bucket to the given OutputStream. The data before the offset is skipped
+	 * rather than read, where the bucket's InputStream supports it.
+	 * @param truncateLength The number of bytes to copy, or -1 to copy to the end of the bucket.
+	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
+	public static long copyTo(Bucket decodedData, OutputStream os, long offset, long truncateLength) throws IOException {
 		if(truncateLength == 0) return 0;
 		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
 		InputStream is = decodedData.getInputStreamUnbuffered();
 		try {
+			if(offset > 0) FileUtil.skipFully(is, offset);
 			int bufferSize = BUFFER_SIZE;
 			if(truncateLength > 0 && truncateLength < bufferSize) bufferSize = (int) truncateLength;
 			byte[] buf = new byte[bufferSize];
@@ -337,6 +347,21 @@ public class BucketTools {
 		}
 	}
 
+	/**
+	 * @return The file which holds the data of the bucket, if the data is kept unencrypted in a
+	 * file of its own, so it can be read directly, e.g. with FileChannel.transferTo(). Otherwise
+	 * null. The file must not be used after the bucket has been freed.
+	 */
+	public static File getPlainFile(Bucket bucket) {
+		if(bucket instanceof NoFreeBucket)
+			bucket = ((NoFreeBucket) bucket).proxy;
+		if(bucket instanceof TempBucketFactory.TempBucket)
+			bucket = ((TempBucketFactory.TempBucket) bucket).getUnderlying();
+		if(bucket instanceof BaseFileBucket)
+			return ((BaseFileBucket) bucket).getFile();
+		return null;
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
@@ -207,10 +207,8 @@ public class PaddedRandomAccessBucket implements RandomAccessBucket, Serializabl
         
         public long skip(long length) throws IOException {
             synchronized(PaddedRandomAccessBucket.this) {
-                if(counter >= size) return -1;
-                if(counter + length >= size) {
-                    length = (int)Math.min(length, counter + length - size);
-                }
+                if(counter >= size) return 0;
+                length = Math.min(length, size - counter);
             }
             long ret = in.skip(length);
             synchronized(PaddedRandomAccessBucket.this) {
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A bucket that stores data in memory, in slabs from a SlabPool. Unlike an ArrayBucket, data is
+ * visible to readers as soon as it has been written, and the bucket never copies its contents
+ * while growing. Data already written can be read while more is being appended, so it can be
+ * copied to disk without stopping the writer.
+ *
+ * Most temp buckets are much smaller than a slab, so a bucket starts in an array on the heap,
+ * grown as needed, and only moves to slabs once it is bigger than one slab.
+ */
+public class SlabBucket implements RandomAccessBucket {
+
+    /** Initial size of the array used before the bucket has any slabs. */
+    static final int MIN_ARRAY_SIZE = 64;
+
+    private final SlabPool pool;
+    private final ArrayList<ByteBuffer> slabs;
+    /** The data while the bucket is no bigger than a slab, before it has any slabs. */
+    private byte[] array;
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+
+    public SlabBucket(SlabPool pool) {
+        this.pool = pool;
+        this.slabs = new ArrayList<ByteBuffer>();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return getOutputStreamUnbuffered();
+    }
+
+    /** Opening an OutputStream truncates the bucket. */
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(freed) throw new IOException("Already freed");
+        releaseSlabs();
+        array = null;
+        size = 0;
+        return new SlabOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        return new SlabInputStream();
+    }
+
+    private class SlabOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(SlabBucket.this) {
+                if(closed) throw new IOException("Already closed");
+                append(buf, offset, length);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private class SlabInputStream extends InputStream {
+
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            int read = read(buf, 0, 1);
+            if(read <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            int read = SlabBucket.this.read(position, buf, offset, length);
+            if(read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(n <= 0) return 0;
+            synchronized(SlabBucket.this) {
+                n = Math.min(n, size - position);
+                position += n;
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(SlabBucket.this) {
+                return (int) Math.min(Integer.MAX_VALUE, size - position);
+            }
+        }
+
+    }
+
+    private void append(byte[] buf, int offset, int length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(readOnly) throw new IOException("Read only");
+        if(length == 0) return;
+        if(slabs.isEmpty()) {
+            if(size + length <= pool.slabSize) {
+                int newSize = (int) size + length;
+                if(array == null || array.length < newSize) {
+                    int capacity = Math.max(MIN_ARRAY_SIZE, array == null ? 0 : array.length * 2);
+                    while(capacity < newSize) capacity *= 2;
+                    capacity = Math.min(capacity, pool.slabSize);
+                    array = array == null ? new byte[capacity] : Arrays.copyOf(array, capacity);
+                }
+                System.arraycopy(buf, offset, array, (int) size, length);
+                size = newSize;
+                return;
+            }
+            if(size > 0) {
+                ByteBuffer slab = pool.allocate();
+                slab.put(array, 0, (int) size);
+                slabs.add(slab);
+            }
+            array = null;
+        }
+        while(length > 0) {
+            int slabOffset = (int) (size % pool.slabSize);
+            if(slabOffset == 0)
+                slabs.add(pool.allocate());
+            ByteBuffer slab = slabs.get(slabs.size()-1);
+            int copy = Math.min(length, pool.slabSize - slabOffset);
+            slab.position(slabOffset);
+            slab.put(buf, offset, copy);
+            offset += copy;
+            length -= copy;
+            size += copy;
+        }
+    }
+
+    /** Read from the given position.
+     * @return The number of bytes read, or -1 if the position is at or past the end. */
+    synchronized int read(long position, byte[] buf, int offset, int length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(length == 0) return 0;
+        if(position >= size) return -1;
+        length = (int) Math.min(length, size - position);
+        if(slabs.isEmpty()) {
+            System.arraycopy(array, (int) position, buf, offset, length);
+            return length;
+        }
+        int read = 0;
+        while(read < length) {
+            ByteBuffer slab = slabs.get((int) (position / pool.slabSize));
+            int slabOffset = (int) (position % pool.slabSize);
+            int copy = Math.min(length - read, pool.slabSize - slabOffset);
+            slab.position(slabOffset);
+            slab.get(buf, offset + read, copy);
+            read += copy;
+            position += copy;
+        }
+        return read;
+    }
+
+    /** Copy part of the bucket to a stream. Only holds the lock while reading each slab, so other
+     * threads can keep appending to the bucket while we write to e.g. a file. */
+    void copyTo(OutputStream os, long position, long length) throws IOException {
+        byte[] buf = new byte[pool.slabSize];
+        while(length > 0) {
+            int read = read(position, buf, 0, (int) Math.min(buf.length, length));
+            if(read <= 0) throw new IOException("Bucket is shorter than expected");
+            os.write(buf, 0, read);
+            position += read;
+            length -= read;
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket";
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(freed) return;
+        freed = true;
+        releaseSlabs();
+        array = null;
+    }
+
+    private void releaseSlabs() {
+        for(ByteBuffer slab : slabs)
+            pool.release(slab);
+        slabs.clear();
+    }
+
+    public synchronized byte[] toByteArray() throws IOException {
+        if(size > Integer.MAX_VALUE) throw new IOException("Too big");
+        byte[] buf = new byte[(int) size];
+        if(size > 0) read(0, buf, 0, buf.length);
+        return buf;
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    /** Copies the data to the heap and frees the slabs, so the bucket can't be used afterwards.
+     * In-RAM buckets are small, so this is cheap compared to keeping a slab backed buffer. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        readOnly = true;
+        byte[] buf = toByteArray();
+        free();
+        ByteArrayRandomAccessBuffer raf = new ByteArrayRandomAccessBuffer(buf);
+        raf.setReadOnly();
+        return raf;
+    }
+
+}
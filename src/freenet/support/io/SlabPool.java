@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import freenet.support.Logger;
+
+/**
+ * Pool of fixed size slabs of direct memory, used to store in-RAM temp buckets off the Java heap.
+ * Direct memory is expensive to allocate and is only given back when the garbage collector gets
+ * around to it, so we allocate it in chunks, cut them into slabs, and keep released slabs for
+ * reuse.
+ *
+ * At most maxBytes of direct memory is allocated. If the pool is exhausted, e.g. because the limit
+ * has been lowered, or many small buckets each hold a partly used slab, we hand out slabs on the
+ * heap instead, so a write never fails because of the pool. These are counted separately, so the
+ * stats page shows when the pool is too small.
+ *
+ * Slabs are taken from the oldest chunk with any free, so as usage falls the newer chunks empty
+ * out. We keep one empty chunk so a bucket being created and freed repeatedly doesn't allocate
+ * each time, and drop the rest for the garbage collector, so an idle pool shrinks to one chunk.
+ */
+public class SlabPool {
+
+    public final int slabSize;
+    /** Slabs allocated at once by allocateDirect(). */
+    static final int SLABS_PER_CHUNK = 64;
+
+    private long maxBytes;
+    /** Chunks of direct memory, oldest first. */
+    private final ArrayList<Chunk> chunks;
+    /** The chunk each direct slab was cut from. ByteBuffer.equals() compares the contents. */
+    private final IdentityHashMap<ByteBuffer, Chunk> chunkBySlab;
+    /** Chunks with no slabs in use. */
+    private int emptyChunks;
+    /** Direct slabs allocated and not yet dropped. */
+    private int allocated;
+    /** Direct slabs in use. */
+    private int inUse;
+    /** Heap slabs in use, because there were no direct slabs available. */
+    private int heapInUse;
+
+    private static class Chunk {
+
+        final int slabs;
+        /** Slabs not currently in use. */
+        final ArrayList<ByteBuffer> free;
+
+        Chunk(int slabs) {
+            this.slabs = slabs;
+            this.free = new ArrayList<ByteBuffer>(slabs);
+        }
+
+        boolean isEmpty() {
+            return free.size() == slabs;
+        }
+
+    }
+
+    public SlabPool(int slabSize, long maxBytes) {
+        if(slabSize <= 0) throw new IllegalArgumentException();
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.chunks = new ArrayList<Chunk>();
+        this.chunkBySlab = new IdentityHashMap<ByteBuffer, Chunk>();
+    }
+
+    /** Get an empty slab, with position 0 and limit slabSize. The caller must release() it. */
+    public synchronized ByteBuffer allocate() {
+        Chunk chunk = null;
+        for(Chunk c : chunks) {
+            if(!c.free.isEmpty()) {
+                chunk = c;
+                break;
+            }
+        }
+        if(chunk == null) chunk = allocateChunk();
+        if(chunk == null) {
+            heapInUse++;
+            return ByteBuffer.allocate(slabSize);
+        }
+        if(chunk.isEmpty()) emptyChunks--;
+        ByteBuffer slab = chunk.free.remove(chunk.free.size()-1);
+        slab.clear();
+        inUse++;
+        return slab;
+    }
+
+    private Chunk allocateChunk() {
+        long limit = maxBytes / slabSize;
+        int count = (int) Math.min(SLABS_PER_CHUNK, limit - allocated);
+        if(count <= 0) return null;
+        try {
+            ByteBuffer buf = ByteBuffer.allocateDirect(count * slabSize);
+            Chunk chunk = new Chunk(count);
+            for(int i=0;i<count;i++) {
+                buf.limit((i+1)*slabSize);
+                buf.position(i*slabSize);
+                ByteBuffer slab = buf.slice();
+                chunk.free.add(slab);
+                chunkBySlab.put(slab, chunk);
+            }
+            chunks.add(chunk);
+            emptyChunks++;
+            allocated += count;
+            return chunk;
+        } catch (OutOfMemoryError e) {
+            // Direct memory is limited separately from the heap by -XX:MaxDirectMemorySize.
+            Logger.error(this, "Unable to allocate direct memory for temp buckets: "+e);
+            maxBytes = (long)allocated * slabSize;
+            return null;
+        }
+    }
+
+    public synchronized void release(ByteBuffer slab) {
+        if(slab.isDirect()) {
+            inUse--;
+            Chunk chunk = chunkBySlab.get(slab);
+            chunk.free.add(slab);
+            if(chunk.isEmpty()) {
+                if(emptyChunks > 0 || (long)allocated * slabSize > maxBytes)
+                    dropChunk(chunk);
+                else
+                    emptyChunks++;
+            }
+        } else {
+            heapInUse--;
+        }
+    }
+
+    private void dropChunk(Chunk chunk) {
+        chunks.remove(chunk);
+        for(ByteBuffer slab : chunk.free)
+            chunkBySlab.remove(slab);
+        allocated -= chunk.slabs;
+    }
+
+    /** @return The number of slabs needed to hold the given number of bytes. */
+    public int slabsFor(long bytes) {
+        return (int) ((bytes + slabSize - 1) / slabSize);
+    }
+
+    /** Change the maximum amount of direct memory. If it is lowered, memory in use is kept until
+     * it is released, but no more will be allocated until usage falls below the new limit. */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return The amount of direct memory in use by buckets. */
+    public synchronized long getBytesInUse() {
+        return (long)inUse * slabSize;
+    }
+
+    /** @return The amount of direct memory allocated, whether in use or not. */
+    public synchronized long getBytesAllocated() {
+        return (long)allocated * slabSize;
+    }
+
+    /** @return The amount of heap memory in use because the pool was exhausted. */
+    public synchronized long getHeapBytesInUse() {
+        return (long)heapInUse * slabSize;
+    }
+
+}
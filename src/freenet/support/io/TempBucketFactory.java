@@ -41,11 +41,11 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets, in direct memory from slabPool, or on the heap while they are small
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * SlabBuckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -54,6 +54,10 @@ import freenet.support.api.RandomAccessBucket;
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * 
+ * A bucket which is growing is copied to disk in the background once it reaches half the limit,
+ * while the writer carries on writing to RAM. The writer only has to wait if it reaches the
+ * limit, or the pool is full, before the copy has finished.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -64,6 +68,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final DiskSpaceCheckingRandomAccessBufferFactory diskRAFFactory;
 	private volatile long minDiskSpace;
 	private long bytesInUse = 0;
+	private final SlabPool slabPool;
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
@@ -77,6 +82,18 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
 	/** How many times the maxRAMBucketSize can a RAMBucket be before it gets migrated? */
 	final static int RAMBUCKET_CONVERSION_FACTOR = 4;
+	/** Size of the slabs in-RAM buckets are stored in. */
+	final static int SLAB_SIZE = 4096;
+	/** A background migration copies the rest of the data while holding the bucket's lock once 
+	 * there is no more than this left to copy. */
+	final static int MIGRATION_FINAL_COPY = 16384;
+	
+	/** Buckets migrated to disk by the cleaner or in the background by a writer. */
+	private long backgroundMigrations;
+	/** Buckets migrated to disk on the writer's thread, because it was over the limit. */
+	private long writerMigrations;
+	/** Times a writer had to wait for a background migration to finish. */
+	private long writerWaits;
 	
 	final static boolean TRACE_BUCKET_LEAKS = false;
 
@@ -157,6 +174,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			Bucket toMigrate = null;
 			long size;
 			synchronized(this) {
+				waitForMigration();
 				if(!isRAMBucket() || hasBeenFreed)
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
 					return false;
@@ -183,10 +201,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				if(toMigrate.isReadOnly())
 					tempFB.setReadOnly();
 				
-				closeInputStreams(false);
-				
 				currentBucket = tempFB;
 				// We need streams to be reset to point to the new bucket
+				closeInputStreams(false);
 			}
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
@@ -203,7 +220,128 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket);
+		}
+		
+		/** The background migration job, if one has been queued and not finished. Anything which
+		 * would change currentBucket or truncate it must wait for it to finish. */
+		private Runnable migrationJob;
+		/** True if migrationJob has started copying. */
+		private boolean migrationRunning;
+		
+		private synchronized void waitForMigration() {
+			if(migrationJob != null && !migrationRunning) {
+				// Not started yet, e.g. because the executor is busy, so cancel it rather than wait.
+				migrationJob = null;
+				return;
+			}
+			while(migrationJob != null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+		
+		/** Start copying the bucket to disk off-thread. Writes can continue in the meantime. */
+		private synchronized void startMigration() {
+			if(migrationJob != null || !isRAMBucket() || hasBeenFreed) return;
+			migrationJob = new Runnable() {
+
+				@Override
+				public void run() {
+					migrateInBackground(this);
+				}
+				
+			};
+			executor.execute(migrationJob, "Migrating "+this+" to disk");
+		}
+		
+		private void migrateInBackground(Runnable job) {
+			SlabBucket toMigrate;
+			RandomAccessBucket tempFB = null;
+			OutputStream fos = null;
+			long size = 0;
+			boolean success = false;
+			synchronized(this) {
+				// May have been cancelled.
+				if(migrationJob != job) return;
+				if(!isRAMBucket() || hasBeenFreed) {
+					migrationJob = null;
+					return;
+				}
+				migrationRunning = true;
+				toMigrate = (SlabBucket) currentBucket;
+			}
+			try {
+				tempFB = _makeFileBucket();
+				fos = tempFB.getOutputStreamUnbuffered();
+				long copied = 0;
+				while(true) {
+					// Copy what has been written so far without blocking the writer, until it
+					// is small enough to finish while holding the lock.
+					synchronized(this) {
+						if(hasBeenFreed) return;
+						size = currentSize;
+						if(size - copied <= MIGRATION_FINAL_COPY) {
+							toMigrate.copyTo(fos, copied, size - copied);
+							if(os != null) {
+								os.close();
+								// DO NOT INCREMENT THE osIndex HERE!
+								os = fos;
+							} else {
+								fos.close();
+							}
+							fos = null;
+							if(toMigrate.isReadOnly())
+								tempFB.setReadOnly();
+							currentBucket = tempFB;
+							closeInputStreams(false);
+							success = true;
+							break;
+						}
+					}
+					toMigrate.copyTo(fos, copied, size - copied);
+					copied = size;
+				}
+			} catch (IOException e) {
+				boolean freed;
+				synchronized(this) {
+					freed = hasBeenFreed;
+				}
+				if(!freed)
+					Logger.error(this, "Unable to migrate "+this+" to disk in the background: "+e, e);
+				return;
+			} finally {
+				synchronized(this) {
+					migrationJob = null;
+					migrationRunning = false;
+					notifyAll();
+				}
+				if(!success) {
+					if(fos != null) {
+						try {
+							fos.close();
+						} catch (IOException e) {
+							// Ignore, we are about to free it.
+						}
+					}
+					if(tempFB != null) tempFB.free();
+				}
+			}
+			if(logMINOR)
+				Logger.minor(this, "We have migrated "+toMigrate.hashCode()+" in the background");
+			
+			synchronized(ramBucketQueue) {
+				ramBucketQueue.remove(getReference());
+			}
+			
+			toMigrate.free();
+			_hasFreed(size);
+			synchronized(TempBucketFactory.this) {
+				backgroundMigrations++;
+			}
 		}
 		
 		@Override
@@ -215,6 +353,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
 			if(os != null)
 				throw new IOException("Only one OutputStream per bucket on "+this+" !");
+			// Opening a stream truncates the bucket.
+			waitForMigration();
 			if(hasBeenFreed) throw new IOException("Already freed");
 			// Hence we don't need to reset currentSize / _hasTaken() if a bucket is reused.
 			// FIXME we should migrate to disk rather than throwing.
@@ -241,8 +381,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				if(isRAMBucket()) {
 					boolean shouldMigrate = false;
 					boolean isOversized = false;
+					long limit = Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR);
 					
-					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
+					if(futureSize >= limit) {
 						isOversized = true;
 						shouldMigrate = true;
 					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
@@ -255,7 +396,23 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 							else
 								Logger.minor(this, "The bucketpool is full: force-migrate before we go over the limit");
 						}
-						migrateToDisk();
+						if(migrationRunning) {
+							synchronized(TempBucketFactory.this) {
+								writerWaits++;
+							}
+						}
+						if(migrationJob != null) {
+							waitForMigration();
+							if(hasBeenFreed) throw new IOException("Already freed");
+						}
+						// Still in RAM if the background migration failed.
+						if(migrateToDisk()) {
+							synchronized(TempBucketFactory.this) {
+								writerMigrations++;
+							}
+						}
+					} else if(futureSize >= limit / 2) {
+						startMigration();
 					}
 				} else {
 				    // Check for excess disk usage.
@@ -517,6 +674,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
             synchronized(this) {
                 if(hasBeenFreed) throw new IOException("Already freed");
+                waitForMigration();
                 if(os != null) throw new IOException("Can't migrate with open OutputStream's");
                 if(!tbis.isEmpty()) throw new IOException("Can't migrate with open InputStream's");
                 setReadOnly();
@@ -533,7 +691,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
             }
         }
 
-        /** Only for testing */
+        /** For testing, and to find the file to send it straight from, see
+         * BucketTools.getPlainFile(). Once on disk, a TempBucket stays in the same file. */
         synchronized Bucket getUnderlying() {
             return currentBucket;
         }
@@ -552,6 +711,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		this.slabPool = new SlabPool(SLAB_SIZE, maxRamUsed);
 	}
 	
 	@Override
@@ -577,6 +737,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		slabPool.setMaxBytes(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -592,6 +753,23 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return maxRAMBucketSize;
 	}
 	
+	/** @return The pool of direct memory the in-RAM buckets are stored in, for stats. */
+	public SlabPool getSlabPool() {
+		return slabPool;
+	}
+	
+	public synchronized long getBackgroundMigrations() {
+		return backgroundMigrations;
+	}
+	
+	public synchronized long getWriterMigrations() {
+		return writerMigrations;
+	}
+	
+	public synchronized long getWriterWaits() {
+		return writerWaits;
+	}
+	
 	public void setEncryption(boolean value) {
 	    reallyEncrypt = value;
 		underlyingDiskRAFFactory.enableCrypto(value);
@@ -638,7 +816,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new SlabBucket(slabPool) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -761,7 +939,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				Logger.minor(this, "We are going to migrate " + toMigrate.size() + " RAMBuckets");
 			for(Migratable tmpBucket : toMigrate) {
 				try {
-					tmpBucket.migrateToDisk();
+					if(tmpBucket.migrateToDisk()) {
+						synchronized(this) {
+							backgroundMigrations++;
+						}
+					}
 				} catch (InsufficientDiskSpaceException e) {
 				    throw e;
 				} catch(IOException e) {
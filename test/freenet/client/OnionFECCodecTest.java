@@ -1,5 +1,6 @@
 package freenet.client;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -107,6 +108,62 @@ public class OnionFECCodecTest extends TestCase {
         }
     }
     
+    public void testDecodeByteBuffers() {
+        Random r = new Random(21612106);
+        for(int i=0;i<5;i++) {
+            innerByteBuffers(128, 128, r, false);
+            innerByteBuffers(100, 27, r, false);
+        }
+    }
+    
+    public void testDecodeDirectByteBuffers() {
+        Random r = new Random(21622106);
+        for(int i=0;i<5;i++) {
+            innerByteBuffers(128, 128, r, true);
+            innerByteBuffers(100, 27, r, true);
+        }
+    }
+    
+    /** Decode and then re-encode with the blocks as slices of one segment buffer. */
+    private void innerByteBuffers(int data, int check, Random r, boolean direct) {
+        setup(data, check, r);
+        deleteRandomBlocks(r);
+        ByteBuffer segment = direct ? ByteBuffer.allocateDirect((data+check)*BLOCK_SIZE+1) :
+            ByteBuffer.allocate((data+check)*BLOCK_SIZE+1);
+        // Make sure offsets are handled.
+        segment.put((byte)0);
+        segment = segment.slice();
+        ByteBuffer[] dataBuffers = slice(segment, dataBlocks, 0);
+        ByteBuffer[] checkBuffers = slice(segment, checkBlocks, data);
+        boolean[] oldCheckBlocksPresent = checkBlocksPresent.clone();
+        codec.decode(dataBuffers, checkBuffers, dataBlocksPresent, checkBlocksPresent, BLOCK_SIZE);
+        assertEquals(originalDataBlocks, toArrays(dataBuffers));
+        for(int i=0;i<dataBuffers.length;i++)
+            assertEquals(i*BLOCK_SIZE, dataBuffers[i].position());
+        codec.encode(dataBuffers, checkBuffers, checkBlocksPresent, BLOCK_SIZE);
+        assertEquals(originalCheckBlocks, toArrays(checkBuffers));
+        assertTrue(Arrays.equals(oldCheckBlocksPresent, checkBlocksPresent));
+    }
+    
+    private ByteBuffer[] slice(ByteBuffer segment, byte[][] blocks, int offset) {
+        ByteBuffer[] ret = new ByteBuffer[blocks.length];
+        for(int i=0;i<blocks.length;i++) {
+            ByteBuffer buf = segment.duplicate();
+            buf.position((i + offset) * BLOCK_SIZE);
+            buf.limit(buf.position() + BLOCK_SIZE);
+            buf.duplicate().put(blocks[i]);
+            ret[i] = buf;
+        }
+        return ret;
+    }
+    
+    private byte[][] toArrays(ByteBuffer[] blocks) {
+        byte[][] ret = new byte[blocks.length][BLOCK_SIZE];
+        for(int i=0;i<blocks.length;i++)
+            blocks[i].duplicate().get(ret[i]);
+        return ret;
+    }
+    
     protected void inner(int data, int check, Random r) {
         setup(data, check, r);
         // Now delete a random selection of blocks
@@ -0,0 +1,140 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+
+import junit.framework.TestCase;
+
+/** StripedFECCodec must produce exactly the same blocks as OnionFECCodec, which uses PureCode. */
+public class StripedFECCodecTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 32768;
+
+    private final OnionFECCodec reference = new OnionFECCodec();
+    private final StripedFECCodec codec = new StripedFECCodec();
+
+    public void testEncodeMatchesPureCode() {
+        Random r = new Random(19072106);
+        checkEncode(128, 128, BLOCK_SIZE, r);
+        checkEncode(128, 128, 1000, r);
+        checkEncode(1, 1, BLOCK_SIZE, r);
+        checkEncode(2, 3, BLOCK_SIZE, r);
+        checkEncode(200, 56, 4096, r);
+        checkEncode(10, 100, 4097, r);
+    }
+
+    public void testDecodeMatchesPureCode() {
+        Random r = new Random(19082106);
+        int iterations = TestProperty.EXTENSIVE ? 20 : 3;
+        for(int i=0;i<iterations;i++) {
+            checkDecode(128, 128, BLOCK_SIZE, r);
+            checkDecode(127, 129, 4096, r);
+            checkDecode(129, 127, 4096, r);
+            checkDecode(1+r.nextInt(50), 1+r.nextInt(50), 1+r.nextInt(10000), r);
+        }
+    }
+
+    public void testEncodeMatrix() {
+        // Check blocks for a single data block are copies of it.
+        byte[][] matrix = StripedFECCodec.createEncodeMatrix(1, 5);
+        for(int i=0;i<5;i++)
+            assertEquals(1, matrix[i][0]);
+        // Any k rows must be independent.
+        Random r = new Random(19092106);
+        for(int i=0;i<10;i++)
+            checkDecode(20, 20, 64, r);
+    }
+
+    private void checkEncode(int data, int check, int blockLength, Random r) {
+        byte[][] dataBlocks = randomBlocks(data, blockLength, r);
+        byte[][] expected = emptyBlocks(check, blockLength);
+        byte[][] checkBlocks = emptyBlocks(check, blockLength);
+        reference.encode(dataBlocks, expected, new boolean[check], blockLength);
+        codec.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+        assertEquals(expected, checkBlocks);
+    }
+
+    private void checkDecode(int data, int check, int blockLength, Random r) {
+        byte[][] originalData = randomBlocks(data, blockLength, r);
+        byte[][] originalCheck = emptyBlocks(check, blockLength);
+        reference.encode(originalData, originalCheck, new boolean[check], blockLength);
+        // Keep a random subset of exactly data blocks.
+        boolean[] present = new boolean[data+check];
+        for(int i=0;i<data;i++) present[i] = true;
+        for(int i=present.length-1;i>0;i--) {
+            int j = r.nextInt(i+1);
+            boolean t = present[i]; present[i] = present[j]; present[j] = t;
+        }
+        boolean[] dataPresent = Arrays.copyOf(present, data);
+        boolean[] checkPresent = Arrays.copyOfRange(present, data, data+check);
+        byte[][] d1 = emptyBlocks(data, blockLength);
+        byte[][] c1 = emptyBlocks(check, blockLength);
+        for(int i=0;i<data;i++)
+            if(dataPresent[i]) d1[i] = originalData[i].clone();
+        for(int i=0;i<check;i++)
+            if(checkPresent[i]) c1[i] = originalCheck[i].clone();
+        byte[][] d2 = copy(d1);
+        byte[][] c2 = copy(c1);
+        reference.decode(d1, c1, dataPresent.clone(), checkPresent.clone(), blockLength);
+        codec.decode(d2, c2, dataPresent.clone(), checkPresent.clone(), blockLength);
+        assertEquals(originalData, d1);
+        assertEquals(originalData, d2);
+    }
+
+    /** Compare with PureCode for the common case of 128 data and 128 check blocks. Run with
+     * -Dtest.benchmark=true. */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        int data = 128;
+        int check = 128;
+        int blockLength = 32768;
+        Random r = new Random(19102106);
+        byte[][] dataBlocks = randomBlocks(data, blockLength, r);
+        byte[][] checkBlocks = emptyBlocks(check, blockLength);
+        boolean[] dataPresent = new boolean[data];
+        boolean[] checkPresent = new boolean[check];
+        for(int i=0;i<data;i+=2) dataPresent[i] = true;
+        for(int i=0;i<check;i+=2) checkPresent[i] = true;
+        for(int round=0;round<5;round++) {
+            for(FECCodec c : new FECCodec[] { reference, codec }) {
+                int segments = 5;
+                long start = System.nanoTime();
+                for(int i=0;i<segments;i++)
+                    c.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+                long encode = (System.nanoTime() - start) / segments;
+                start = System.nanoTime();
+                for(int i=0;i<segments;i++)
+                    c.decode(copy(dataBlocks), copy(checkBlocks), dataPresent.clone(),
+                            checkPresent.clone(), blockLength);
+                long decode = (System.nanoTime() - start) / segments;
+                System.out.println(c.getClass().getSimpleName()+": encode "+
+                        (encode / 1000)+"us, decode half missing "+(decode / 1000)+"us");
+            }
+        }
+    }
+
+    private static byte[][] randomBlocks(int count, int blockLength, Random r) {
+        byte[][] blocks = new byte[count][blockLength];
+        for(byte[] block : blocks) r.nextBytes(block);
+        return blocks;
+    }
+
+    private static byte[][] emptyBlocks(int count, int blockLength) {
+        return new byte[count][blockLength];
+    }
+
+    private static byte[][] copy(byte[][] blocks) {
+        byte[][] out = new byte[blocks.length][];
+        for(int i=0;i<blocks.length;i++) out[i] = blocks[i].clone();
+        return out;
+    }
+
+    private void assertEquals(byte[][] blocks1, byte[][] blocks2) {
+        assertEquals(blocks1.length, blocks2.length);
+        for(int i=0;i<blocks1.length;i++)
+            assertTrue("Block "+i+" differs", Arrays.equals(blocks1[i], blocks2[i]));
+    }
+
+}
@@ -0,0 +1,115 @@
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.FileUtil;
+
+public class ClientLayerJournalTest extends TestCase {
+
+    private File base = new File("tmp.client-layer-journal-test");
+
+    public void setUp() {
+        base.mkdir();
+    }
+
+    public void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    private ClientLayerJournal makeJournal() {
+        return new ClientLayerJournal(new File(base, "client.dat.journal"),
+                new CRCChecksumChecker(), new ArrayBucketFactory());
+    }
+
+    private class Collector implements ClientLayerJournal.SegmentReader {
+
+        final List<byte[]> segments = new ArrayList<byte[]>();
+
+        @Override
+        public void read(InputStream segment, long length) throws IOException {
+            byte[] buf = new byte[(int)length];
+            new DataInputStream(segment).readFully(buf);
+            assertEquals(-1, segment.read());
+            segments.add(buf);
+        }
+
+    }
+
+    private static byte[] segment(int length, int seed) {
+        byte[] buf = new byte[length];
+        for(int i=0;i<length;i++) buf[i] = (byte)(i * seed);
+        return buf;
+    }
+
+    public void testAppendAndReplay() throws IOException {
+        ClientLayerJournal journal = makeJournal();
+        assertFalse(journal.canAppend());
+        assertEquals(-1, journal.replay(1234, new Collector()));
+        journal.reset(1234);
+        assertTrue(journal.canAppend());
+        journal.append(new ArrayBucket(segment(100, 1)));
+        journal.append(new ArrayBucket(segment(0, 2)));
+        journal.append(new ArrayBucket(segment(5000, 3)));
+        assertEquals(journal.file.length(), journal.length());
+
+        Collector c = new Collector();
+        assertEquals(3, makeJournal().replay(1234, c));
+        assertTrue(Arrays.equals(segment(100, 1), c.segments.get(0)));
+        assertTrue(Arrays.equals(segment(0, 2), c.segments.get(1)));
+        assertTrue(Arrays.equals(segment(5000, 3), c.segments.get(2)));
+
+        // Belongs to a different client.dat.
+        c = new Collector();
+        assertEquals(-1, makeJournal().replay(5678, c));
+        assertTrue(c.segments.isEmpty());
+
+        // Starting again discards everything.
+        journal.reset(5678);
+        assertEquals(0, makeJournal().replay(5678, new Collector()));
+    }
+
+    public void testIgnoresTornSegment() throws IOException {
+        ClientLayerJournal journal = makeJournal();
+        journal.reset(1234);
+        journal.append(new ArrayBucket(segment(100, 1)));
+        long length = journal.length();
+        journal.append(new ArrayBucket(segment(100, 2)));
+        // Crashed part way through writing the second segment.
+        RandomAccessFile raf = new RandomAccessFile(journal.file, "rw");
+        raf.setLength(length + 50);
+        raf.close();
+        Collector c = new Collector();
+        assertEquals(1, makeJournal().replay(1234, c));
+        assertTrue(Arrays.equals(segment(100, 1), c.segments.get(0)));
+    }
+
+    public void testIgnoresCorruptSegment() throws IOException {
+        ClientLayerJournal journal = makeJournal();
+        journal.reset(1234);
+        journal.append(new ArrayBucket(segment(100, 1)));
+        long length = journal.length();
+        journal.append(new ArrayBucket(segment(100, 2)));
+        journal.append(new ArrayBucket(segment(100, 3)));
+        RandomAccessFile raf = new RandomAccessFile(journal.file, "rw");
+        raf.seek(length + 20);
+        int b = raf.read();
+        raf.seek(length + 20);
+        raf.write(~b);
+        raf.close();
+        Collector c = new Collector();
+        assertEquals(1, makeJournal().replay(1234, c));
+        assertTrue(Arrays.equals(segment(100, 1), c.segments.get(0)));
+    }
+
+}
@@ -0,0 +1,270 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.ClientRequest;
+import freenet.clients.fcp.DummyClientRequest;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.node.RequestStarter;
+import freenet.node.RequestStarterGroup;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.WaitableExecutor;
+import freenet.support.io.FileUtil;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+
+/** Save persistent requests to client.dat and its journal, and load them again. */
+public class ClientLayerPersisterTest extends TestCase {
+
+    private static final String BASE_NAME = "client.dat";
+
+    private final File base = new File("tmp.client-layer-persister-test");
+    private File dir;
+    private WaitableExecutor executor;
+    private Ticker ticker;
+    private RandomSource random;
+    private TempBucketFactory tempBucketFactory;
+
+    @Override
+    protected void setUp() throws IOException {
+        FileUtil.removeAll(base);
+        base.mkdir();
+        dir = new File(base, "node");
+        dir.mkdir();
+        File tempDir = new File(base, "temp");
+        tempDir.mkdir();
+        executor = new WaitableExecutor(new PooledExecutor());
+        ticker = new CheatingTicker(executor);
+        random = new DummyRandomSource(12345);
+        FilenameGenerator fg = new FilenameGenerator(random, true, tempDir, "freenet-test");
+        tempBucketFactory = new TempBucketFactory(executor, fg, 0, 0, random, false, 0, null);
+        DummyClientRequest.clearResumed();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    /** Doesn't need a Node, so the stats are always zero. */
+    static class NoNodeStatsPutter extends PersistentStatsPutter {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+            // Ignore
+        }
+
+    }
+
+    private static void setField(Object o, Class<?> c, String name, Object value) throws Exception {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    /** Start a persister on the test directory, as the node does on startup, and wait for its
+     * first checkpoint.
+     * @param root Where the requests are loaded to, and saved from. */
+    private ClientLayerPersister load(final PersistentRequestRoot root) throws Exception {
+        NodeClientCore core = mock(NodeClientCore.class);
+        when(core.getPersistentRequests()).thenAnswer(new Answer<ClientRequest[]>() {
+            @Override
+            public ClientRequest[] answer(InvocationOnMock invocation) {
+                return root.getPersistentRequests();
+            }
+        });
+        ClientContext context = mock(ClientContext.class);
+        setField(context, ClientContext.class, "persistentRoot", root);
+        setField(context, ClientContext.class, "mainExecutor", executor);
+        ClientLayerPersister persister = new ClientLayerPersister(executor, ticker, null, core,
+                mock(PersistentTempBucketFactory.class), tempBucketFactory, new NoNodeStatsPutter());
+        persister.start(context);
+        persister.setFilesAndLoad(dir, BASE_NAME, false, false, null, context,
+                mock(RequestStarterGroup.class), random);
+        persister.waitForNotWriting();
+        return persister;
+    }
+
+    private static Map<String, String> contents(PersistentRequestRoot root) {
+        Map<String, String> contents = new HashMap<String, String>();
+        for(ClientRequest req : root.getPersistentRequests())
+            assertNull(contents.put(req.getIdentifier(), ((DummyClientRequest) req).getData()));
+        return contents;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] buf = new byte[(int) raf.length()];
+            raf.readFully(buf);
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeFile(File f, byte[] buf) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** The ID is the last thing in client.dat, in the same block of serialized data as the 
+     * number of buckets to free, which is always zero here. */
+    private static boolean hasBaseID(byte[] clientDat) {
+        int blockStart = clientDat.length - 14;
+        return (clientDat[blockStart] & 0xff) == 0x77 && // TC_BLOCKDATA
+            clientDat[blockStart + 1] == 12;
+    }
+
+    public void testJournalReplay() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        ClientLayerPersister persister = load(root);
+        File clientDat = new File(dir, BASE_NAME);
+        File journal = new File(dir, BASE_NAME + ".journal");
+        // Nothing to load, so the first checkpoint writes client.dat in full.
+        byte[] written = readFile(clientDat);
+        long journalLength = journal.length();
+
+        DummyClientRequest[] requests = new DummyClientRequest[10];
+        for(int i=0;i<requests.length;i++)
+            requests[i] = new DummyClientRequest(root, "request-"+i, i % 2 == 0 ? null : "client",
+                    RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "data-"+i);
+        persister.waitAndCheckpoint();
+        assertTrue(journal.length() > journalLength);
+        journalLength = journal.length();
+
+        requests[3].setData("changed");
+        requests[4].remove();
+        requests[7].remove();
+        new DummyClientRequest(root, "request-10", "client",
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "data-10");
+        persister.waitAndCheckpoint();
+        assertTrue(journal.length() > journalLength);
+        // Both checkpoints were appended to the journal.
+        assertTrue(Arrays.equals(written, readFile(clientDat)));
+        Map<String, String> expected = contents(root);
+        assertEquals(9, expected.size());
+        persister.killAndWaitForNotRunning();
+
+        PersistentRequestRoot loaded = new PersistentRequestRoot();
+        load(loaded).killAndWaitForNotRunning();
+        assertEquals(expected, contents(loaded));
+    }
+
+    public void testOldClientDatWithoutBaseID() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        for(int i=0;i<5;i++)
+            new DummyClientRequest(root, "request-"+i, null,
+                    RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "data-"+i);
+        ClientLayerPersister persister = load(root);
+        Map<String, String> expected = contents(root);
+        // Written to the journal, which must not be applied to a client.dat without an ID.
+        new DummyClientRequest(root, "request-5", null,
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "data-5");
+        persister.waitAndCheckpoint();
+        persister.killAndWaitForNotRunning();
+
+        // Make client.dat look as if it was written before the journal existed.
+        File clientDat = new File(dir, BASE_NAME);
+        byte[] buf = readFile(clientDat);
+        assertTrue(hasBaseID(buf));
+        byte[] old = Arrays.copyOf(buf, buf.length - 8);
+        old[old.length - 5] = 4;
+        writeFile(clientDat, old);
+
+        PersistentRequestRoot loaded = new PersistentRequestRoot();
+        persister = load(loaded);
+        assertEquals(expected, contents(loaded));
+        // The first checkpoint after loading rewrote client.dat with an ID, so the journal
+        // works again from here.
+        new DummyClientRequest(loaded, "request-6", "client",
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "data-6");
+        persister.waitAndCheckpoint();
+        assertTrue(hasBaseID(readFile(clientDat)));
+        expected = contents(loaded);
+        persister.killAndWaitForNotRunning();
+
+        PersistentRequestRoot reloaded = new PersistentRequestRoot();
+        load(reloaded).killAndWaitForNotRunning();
+        assertEquals(expected, contents(reloaded));
+    }
+
+    /** Load client.dat, deserializing on the given number of threads.
+     * @return The identifiers of the requests, in the order they were resumed. */
+    private List<String> loadWithThreads(int threads, Map<String, String> expected) throws Exception {
+        String old = System.getProperty(ClientLayerPersister.LOAD_THREADS_PROPERTY);
+        System.setProperty(ClientLayerPersister.LOAD_THREADS_PROPERTY, Integer.toString(threads));
+        try {
+            DummyClientRequest.clearResumed();
+            PersistentRequestRoot loaded = new PersistentRequestRoot();
+            load(loaded).killAndWaitForNotRunning();
+            assertEquals(expected, contents(loaded));
+            List<String> order = new ArrayList<String>();
+            for(DummyClientRequest req : DummyClientRequest.getResumed())
+                order.add(req.getIdentifier());
+            return order;
+        } finally {
+            if(old == null)
+                System.clearProperty(ClientLayerPersister.LOAD_THREADS_PROPERTY);
+            else
+                System.setProperty(ClientLayerPersister.LOAD_THREADS_PROPERTY, old);
+        }
+    }
+
+    public void testParallelLoadMatchesSerial() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        // Enough for several threads, and for more than one batch.
+        int count = ClientLayerPersister.LOAD_BATCH_SIZE + 
+            4 * ClientLayerPersister.MIN_RECORDS_PER_LOAD_THREAD + 1;
+        for(int i=0;i<count;i++)
+            new DummyClientRequest(root, "request-"+i, i % 3 == 0 ? null : "client-"+(i % 5),
+                    (short) (i % RequestStarter.NUMBER_OF_PRIORITY_CLASSES), "data-"+i);
+        Map<String, String> expected = contents(root);
+        load(root).killAndWaitForNotRunning();
+
+        List<String> serial = loadWithThreads(1, expected);
+        List<String> parallel = loadWithThreads(4, expected);
+        assertEquals(count, serial.size());
+        assertEquals(serial, parallel);
+        // Global queue first, then by priority.
+        List<DummyClientRequest> resumed = DummyClientRequest.getResumed();
+        for(int i=1;i<resumed.size();i++) {
+            DummyClientRequest prev = resumed.get(i-1);
+            DummyClientRequest req = resumed.get(i);
+            if(prev.isGlobal() == req.isGlobal())
+                assertTrue(prev.getPriority() <= req.getPriority());
+            else
+                assertTrue(prev.isGlobal());
+        }
+    }
+
+}
@@ -1,9 +1,18 @@
 package freenet.client.async;
 
+import static org.mockito.Mockito.mock;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -31,7 +40,10 @@ import freenet.keys.FreenetURI;
 import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
+import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
+import freenet.node.RequestClientBuilder;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
@@ -39,6 +51,9 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -373,6 +388,360 @@ public class ClientRequestSelectorTest extends TestCase {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
+    /** A requester whose priority can be changed without going through the schedulers. */
+    class MovableRequester extends ClientRequester {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RequestClient client;
+        private volatile short prio;
+
+        MovableRequester(RequestClient client, short prio) {
+            this.client = client;
+            this.prio = prio;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return prio;
+        }
+
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+
+        /** Change the priority and move our requests, as setPriorityClass() would.
+         * @return The old priority. */
+        short moveTo(short newPrio, ClientRequestSelector selector, ClientContext context) {
+            short oldPrio;
+            synchronized(this) {
+                oldPrio = prio;
+                prio = newPrio;
+            }
+            if(oldPrio != newPrio)
+                selector.reregisterAll(this, null, context, oldPrio);
+            return oldPrio;
+        }
+
+        @Override
+        public void onTransition(ClientGetState oldState, ClientGetState newState, ClientContext context) {
+            // Ignore
+        }
+
+        @Override
+        public void cancel(ClientContext context) {
+            // Ignore
+        }
+
+        @Override
+        public FreenetURI getURI() {
+            return null;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return false;
+        }
+
+        @Override
+        protected void innerNotifyClients(ClientContext context) {
+            // Ignore
+        }
+
+        @Override
+        protected void innerToNetwork(ClientContext context) {
+            // Ignore
+        }
+
+        @Override
+        protected ClientBaseCallback getCallback() {
+            return null;
+        }
+
+    }
+
+    /** An insert that belongs to a MovableRequester, and is removed from the tree once it has 
+     * been completed. */
+    class MovableSendableInsert extends NullSendableInsert {
+
+        private static final long serialVersionUID = 1L;
+
+        final MovableRequester requester;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        MovableSendableInsert(MovableRequester requester) {
+            super(false, false);
+            this.requester = requester;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return done.get();
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return requester.getPriorityClass();
+        }
+
+        @Override
+        public RequestClient getClient() {
+            return requester.getClient();
+        }
+
+        @Override
+        public ClientRequester getClientRequest() {
+            return requester;
+        }
+
+    }
+
+    private static void setField(Object o, Class<?> c, String name, Object value) throws Exception {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    /** Just enough of a ClientContext for the selection tree: it only needs the random source and 
+     * somewhere to run wakeups. */
+    private ClientContext makeSelectorContext() throws Exception {
+        ClientContext context = mock(ClientContext.class);
+        setField(context, ClientContext.class, "fastWeakRandom", new Random(12345));
+        setField(context, ClientContext.class, "mainExecutor", executor);
+        return context;
+    }
+
+    private ClientRequestSelector makeSelector() {
+        return new ClientRequestSelector(true, false, false, mock(ClientRequestScheduler.class));
+    }
+
+    private static RequestStarter makeStarter() {
+        // Inserts are never excluded, and we don't want the real starter's scheduler checks.
+        return new RequestStarter(mock(NodeClientCore.class), null, "test", null, null, true, false, false) {
+            @Override
+            public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+                return -1;
+            }
+        };
+    }
+
+    /** @return The number of uncompleted requests for the requester queued under the priority. */
+    private static int countQueued(ClientRequestSelector selector, short prio, MovableRequester requester) {
+        ClientRequestSelector.RequestClientRGANode tracker = selector.priorities[prio];
+        synchronized(tracker) {
+            ClientRequestSelector.ClientRequestRGANode clientGrabber = tracker.getGrabber(requester.getClient());
+            if(clientGrabber == null) return 0;
+            RandomGrabArray rga = clientGrabber.getGrabber(requester);
+            if(rga == null) return 0;
+            int count = 0;
+            for(int i=0;i<rga.size();i++) {
+                MovableSendableInsert req = (MovableSendableInsert) rga.get(i);
+                if(req == null || req.done.get()) continue;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /** Choose requests until nothing is left, completing each one chosen.
+     * @return The number of requests completed. */
+    private static int drain(ClientRequestSelector selector, RequestStarter starter, ClientContext context) {
+        RandomSource random = new DummyRandomSource(54321);
+        int completed = 0;
+        while(true) {
+            ClientRequestSelector.SelectorReturn ret = selector.chooseRequestInner(-1, random, null, starter, false, context, System.currentTimeMillis());
+            if(ret.req == null) return completed;
+            if(((MovableSendableInsert) ret.req).done.compareAndSet(false, true))
+                completed++;
+        }
+    }
+
+    public void testReregisterAllMovesRequests() throws Exception {
+        ClientContext context = makeSelectorContext();
+        ClientRequestSelector selector = makeSelector();
+        RequestStarter starter = makeStarter();
+        RequestClient client = new RequestClientBuilder().build();
+        MovableRequester moved = new MovableRequester(client, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        MovableRequester stays = new MovableRequester(client, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        for(int i=0;i<10;i++) {
+            selector.innerRegister(new MovableSendableInsert(moved), context, null);
+            selector.innerRegister(new MovableSendableInsert(stays), context, null);
+        }
+        assertEquals(10, countQueued(selector, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, moved));
+        moved.moveTo(RequestStarter.INTERACTIVE_PRIORITY_CLASS, selector, context);
+        assertEquals(0, countQueued(selector, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, moved));
+        assertEquals(10, countQueued(selector, RequestStarter.INTERACTIVE_PRIORITY_CLASS, moved));
+        // The other request for the same client must be left where it was.
+        assertEquals(10, countQueued(selector, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, stays));
+        // And back again, into the client grabber that still exists for the other request.
+        moved.moveTo(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, selector, context);
+        assertEquals(0, countQueued(selector, RequestStarter.INTERACTIVE_PRIORITY_CLASS, moved));
+        assertEquals(10, countQueued(selector, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, moved));
+        assertTrue(selector.priorities[RequestStarter.INTERACTIVE_PRIORITY_CLASS].isEmpty());
+        assertEquals(20, drain(selector, starter, context));
+    }
+
+    /** Register, choose and reprioritise at the same time, then check that no request has been 
+     * lost or duplicated and that every one can still be chosen. */
+    public void testConcurrentRegisterChooseReregister() throws Exception {
+        final ClientContext context = makeSelectorContext();
+        final ClientRequestSelector selector = makeSelector();
+        final RequestStarter starter = makeStarter();
+        final int REQUESTERS = 12;
+        final int REQUESTS_PER_REQUESTER = 100;
+        final int MOVES = 2000;
+        final int MAX_PRIO = RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS + 1;
+        RequestClient[] clients = new RequestClient[3];
+        for(int i=0;i<clients.length;i++)
+            clients[i] = new RequestClientBuilder().build();
+        final MovableRequester[] requesters = new MovableRequester[REQUESTERS];
+        final List<MovableSendableInsert> all = new ArrayList<MovableSendableInsert>();
+        for(int i=0;i<REQUESTERS;i++) {
+            requesters[i] = new MovableRequester(clients[i % clients.length], (short) (i % MAX_PRIO));
+            for(int j=0;j<REQUESTS_PER_REQUESTER;j++)
+                all.add(new MovableSendableInsert(requesters[i]));
+        }
+        Collections.shuffle(all, new Random(2));
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> workers = new ArrayList<Thread>();
+        // Two registering threads, each registering half of the requests.
+        for(int t=0;t<2;t++) {
+            final int first = t;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    for(int i=first;i<all.size();i+=2)
+                        selector.innerRegister(all.get(i), context, null);
+                }
+            });
+        }
+        // One thread moving requesters between priorities.
+        workers.add(new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                for(int i=0;i<MOVES;i++) {
+                    MovableRequester requester = requesters[random.nextInt(REQUESTERS)];
+                    requester.moveTo((short) random.nextInt(MAX_PRIO), selector, context);
+                }
+            }
+        });
+        List<Thread> choosers = new ArrayList<Thread>();
+        // Two choosing threads, completing only some of what they choose so there is plenty left
+        // to move.
+        for(int t=0;t<2;t++) {
+            final RandomSource random = new DummyRandomSource(100 + t);
+            choosers.add(new Thread() {
+                @Override
+                public void run() {
+                    while(!stop.get()) {
+                        ClientRequestSelector.SelectorReturn ret = selector.chooseRequestInner(-1, random, null, starter, false, context, System.currentTimeMillis());
+                        if(ret.req != null && random.nextInt(4) == 0 && 
+                                ((MovableSendableInsert) ret.req).done.compareAndSet(false, true))
+                            completed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        List<Thread> threads = new ArrayList<Thread>(workers);
+        threads.addAll(choosers);
+        for(Thread t : threads) {
+            t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    errors.add(e);
+                }
+            });
+            t.start();
+        }
+        for(Thread t : workers) {
+            t.join(60*1000);
+            assertFalse("Deadlocked: "+t, t.isAlive());
+        }
+        stop.set(true);
+        for(Thread t : choosers) {
+            t.join(60*1000);
+            assertFalse("Deadlocked: "+t, t.isAlive());
+        }
+        assertTrue("Errors: "+errors, errors.isEmpty());
+        // Everything not yet completed is still queued exactly once. A registration that raced 
+        // with a move can leave a request under its old priority, but choosing it moves it on.
+        int queued = 0;
+        for(MovableRequester requester : requesters) {
+            for(short prio = 0; prio < MAX_PRIO; prio++)
+                queued += countQueued(selector, prio, requester);
+        }
+        assertEquals(all.size() - completed.get(), queued);
+        assertEquals(queued, drain(selector, starter, context));
+        for(MovableSendableInsert req : all)
+            assertTrue(req.done.get());
+    }
+
+    /** Choose from a big queue on several threads at once. A quarter of the requests chosen are
+     * completed and replaced by a new one for the same requester, so the tree keeps changing. */
+    public void testBenchmarkChoose() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final ClientContext context = makeSelectorContext();
+        final RequestStarter starter = makeStarter();
+        final int CLIENTS = 50;
+        final int REQUESTERS = 2000;
+        final int REQUESTS_PER_REQUESTER = 4;
+        final int CHOOSES = 400000;
+        final int MAX_PRIO = RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS + 1;
+        for(int round=0;round<3;round++) {
+            for(int threads : new int[] { 1, 2, 4 }) {
+                final ClientRequestSelector selector = makeSelector();
+                RequestClient[] clients = new RequestClient[CLIENTS];
+                for(int i=0;i<CLIENTS;i++)
+                    clients[i] = new RequestClientBuilder().build();
+                for(int i=0;i<REQUESTERS;i++) {
+                    MovableRequester requester = new MovableRequester(clients[i % CLIENTS], (short) (i % MAX_PRIO));
+                    for(int j=0;j<REQUESTS_PER_REQUESTER;j++)
+                        selector.innerRegister(new MovableSendableInsert(requester), context, null);
+                }
+                final CountDownLatch go = new CountDownLatch(1);
+                final int perThread = CHOOSES / threads;
+                final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+                List<Thread> choosers = new ArrayList<Thread>();
+                for(int t=0;t<threads;t++) {
+                    final RandomSource random = new DummyRandomSource(200 + t);
+                    choosers.add(new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                go.await();
+                                for(int i=0;i<perThread;i++) {
+                                    ClientRequestSelector.SelectorReturn ret = selector.chooseRequestInner(-1, random, null, starter, false, context, System.currentTimeMillis());
+                                    if(ret.req == null) throw new IllegalStateException("Nothing chosen");
+                                    MovableSendableInsert req = (MovableSendableInsert) ret.req;
+                                    if(random.nextInt(4) == 0 && req.done.compareAndSet(false, true))
+                                        selector.innerRegister(new MovableSendableInsert(req.requester), context, null);
+                                }
+                            } catch (Throwable e) {
+                                errors.add(e);
+                            }
+                        }
+                    });
+                }
+                for(Thread t : choosers) t.start();
+                long startTime = System.nanoTime();
+                go.countDown();
+                for(Thread t : choosers) {
+                    t.join(5*60*1000);
+                    assertFalse("Deadlocked: "+t, t.isAlive());
+                }
+                long elapsed = System.nanoTime() - startTime;
+                assertTrue("Errors: "+errors, errors.isEmpty());
+                System.out.println(threads + " threads, " + (REQUESTERS * REQUESTS_PER_REQUESTER) + 
+                        " queued: " + (elapsed / ((long) perThread * threads)) + "ns per choose, " +
+                        ((long) perThread * threads * 1000000000L / elapsed) + " chooses per second");
+            }
+        }
+    }
+
 
     
 }
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.client.async.KeyListenerIndex} class.
+ */
+public class KeyListenerIndexTest extends TestCase {
+
+	private static final int LISTENERS = 200;
+	private static final int KEYS_PER_LISTENER = 50;
+
+	private static KeyListener listener(final int n) {
+		return (KeyListener) Proxy.newProxyInstance(KeyListener.class.getClassLoader(),
+				new Class<?>[] { KeyListener.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("hashCode")) return n;
+				if(method.getName().equals("equals")) return proxy == args[0];
+				if(method.getName().equals("toString")) return "listener "+n;
+				throw new UnsupportedOperationException();
+			}
+
+		});
+	}
+
+	private static byte[] key(int listener, int i) {
+		byte[] key = new byte[32];
+		new Random(listener * 100000L + i).nextBytes(key);
+		return key;
+	}
+
+	private static List<byte[]> keys(int listener) {
+		List<byte[]> keys = new ArrayList<byte[]>(KEYS_PER_LISTENER);
+		for(int i=0;i<KEYS_PER_LISTENER;i++)
+			keys.add(key(listener, i));
+		return keys;
+	}
+
+	private static List<KeyListener> lookup(KeyListenerIndex index, byte[] key) {
+		List<KeyListener> found = new ArrayList<KeyListener>();
+		index.lookup(key, found);
+		return found;
+	}
+
+	public void testAddLookupRemove() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		KeyListener[] listeners = new KeyListener[LISTENERS];
+		for(int i=0;i<LISTENERS;i++) {
+			listeners[i] = listener(i);
+			assertTrue(index.add(listeners[i], keys(i)));
+		}
+		assertFalse(index.add(listeners[0], keys(0)));
+		assertEquals(LISTENERS, index.countListeners());
+		assertEquals(LISTENERS * KEYS_PER_LISTENER, index.countKeys());
+		for(int i=0;i<LISTENERS;i++) {
+			for(int j=0;j<KEYS_PER_LISTENER;j++) {
+				List<KeyListener> found = lookup(index, key(i, j));
+				assertTrue(found.contains(listeners[i]));
+				// Only fingerprint collisions can return other listeners.
+				assertTrue(found.size() <= 2);
+			}
+		}
+		// Remove three quarters of the listeners, enough to force a rebuild.
+		for(int i=0;i<LISTENERS;i++)
+			if(i % 4 != 0) assertTrue(index.remove(listeners[i]));
+		assertFalse(index.remove(listeners[1]));
+		assertEquals(LISTENERS / 4, index.countListeners());
+		assertEquals(LISTENERS / 4 * KEYS_PER_LISTENER, index.countKeys());
+		for(int i=0;i<LISTENERS;i++) {
+			List<KeyListener> found = lookup(index, key(i, 0));
+			assertEquals(i % 4 == 0, found.contains(listeners[i]));
+			assertEquals(i % 4 == 0, index.contains(listeners[i]));
+		}
+	}
+
+	public void testSharedKeyNoDuplicates() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		KeyListener a = listener(1);
+		KeyListener b = listener(2);
+		List<byte[]> keys = keys(1);
+		// The same key listed twice is only stored once.
+		keys.add(key(1, 0));
+		index.add(a, keys);
+		index.add(b, keys(1));
+		assertEquals(2 * KEYS_PER_LISTENER, index.countKeys());
+		List<KeyListener> found = lookup(index, key(1, 0));
+		assertEquals(2, found.size());
+		assertSame(a, found.get(0));
+		assertSame(b, found.get(1));
+		assertTrue(lookup(index, key(3, 0)).isEmpty());
+	}
+
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -819,6 +820,74 @@ public class SplitFileInserterStorageTest extends TestCase {
         fcb.waitForFree();
     }
     
+    /** Bytes allocated by FEC jobs, which run on the executor, per segment encoded and decoded. */
+    public void testBenchmarkSegmentAllocation() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        int segments = 4;
+        long size = CHKBlock.DATA_LENGTH*128L*segments;
+        for(int i=0;i<3;i++) {
+            RandomSource r = new DummyRandomSource(12123+i);
+            LockableRandomAccessBuffer data = generateData(r, size);
+            HashResult[] hashes = getHashes(data);
+            MyCallback cb = new MyCallback();
+            InsertContext context = baseContext.clone();
+            context.earlyEncode = true;
+            context.setCompatibilityMode(CompatibilityMode.COMPAT_CURRENT);
+            short cmode = context.getCompatibilityMode().code;
+            KeysFetchingLocally keys = new MyKeysFetchingLocally();
+            SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                    new ClientMetadata(), false, null, smallRAFFactory, false, context, 
+                    cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                    r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+            long before = allocatedByOtherThreads();
+            storage.start();
+            cb.waitForFinishedEncode();
+            long encoded = allocatedByOtherThreads() - before;
+            cb.waitForHasKeys();
+            Metadata m = Metadata.construct(storage.encodeMetadata().toBucket(smallBucketFactory));
+            MyFetchCallback fcb = new MyFetchCallback();
+            FetchContext fctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(size*2, size*2, smallBucketFactory, new SimpleEventProducer());
+            SplitFileFetcherStorage fetcherStorage = new SplitFileFetcherStorage(m, fcb, new ArrayList<COMPRESSOR_TYPE>(),
+                    new ClientMetadata(), false, cmode, fctx, false, salt, URI, URI, true, new byte[0],
+                    r, smallBucketFactory, smallRAFFactory, jobRunner, ticker, memoryLimitedJobRunner, 
+                    checker, false, null, null, keys);
+            fetcherStorage.start(false);
+            executor.waitForIdle();
+            long decoded = 0;
+            for(int j=0;j<segments;j++) {
+                SplitFileFetcherSegmentStorage fetcherSegment = fetcherStorage.segments[j];
+                SplitFileInserterSegmentStorage inserterSegment = storage.segments[j];
+                // Only the check blocks, so every data block has to be decoded.
+                ClientCHKBlock[] blocks = new ClientCHKBlock[inserterSegment.checkBlockCount];
+                for(int k=0;k<blocks.length;k++)
+                    blocks[k] = inserterSegment.encodeBlock(inserterSegment.dataBlockCount+k);
+                before = allocatedByOtherThreads();
+                for(ClientCHKBlock block : blocks)
+                    assertTrue(fetcherSegment.onGotKey(block.getClientKey().getNodeCHK(), block.getBlock()));
+                waitForDecode(fetcherSegment);
+                decoded += allocatedByOtherThreads() - before;
+            }
+            fcb.waitForFinished();
+            fetcherStorage.finishedFetcher();
+            fcb.waitForFree();
+            System.out.println("Allocated per segment: encode "+(encoded/segments/1024)+"KB, decode "+
+                    (decoded/segments/1024)+"KB");
+        }
+    }
+    
+    private static long allocatedByOtherThreads() {
+        com.sun.management.ThreadMXBean bean = 
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        long self = Thread.currentThread().getId();
+        for(long id : bean.getAllThreadIds()) {
+            if(id == self) continue;
+            long allocated = bean.getThreadAllocatedBytes(id);
+            if(allocated > 0) total += allocated;
+        }
+        return total;
+    }
+    
     private void testResumeCrossSegment(long size) throws InsertException, IOException, MissingKeyException, StorageFormatException, ChecksumFailedException, ResumeFailedException, MetadataUnresolvedException {
         Random r = new Random(12121);
         LockableRandomAccessBuffer data = generateData(r, size);
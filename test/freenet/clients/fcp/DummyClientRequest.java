@@ -0,0 +1,174 @@
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.support.io.ResumeFailedException;
+
+/** A persistent request that doesn't do anything, for testing the persistence layer. It only
+ * carries a string, which can be changed to make the request look modified, and records the
+ * order in which requests are resumed. */
+public class DummyClientRequest extends ClientRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Every request resumed since the last call to clearResumed(), in order. */
+    private static final List<DummyClientRequest> resumed =
+        Collections.synchronizedList(new ArrayList<DummyClientRequest>());
+
+    private String data;
+
+    /** Create a request and add it to the root, as if it had been started over FCP.
+     * @param clientName The client the request belongs to, or null for the global queue. */
+    public DummyClientRequest(PersistentRequestRoot root, String identifier, String clientName, 
+            short priorityClass, String data) throws IdentifierCollisionException {
+        super(null, identifier, 0, null, null, makeClient(root, clientName), priorityClass,
+                Persistence.FOREVER, false, null, clientName == null);
+        this.data = data;
+        client.register(this);
+    }
+
+    private static PersistentRequestClient makeClient(PersistentRequestRoot root, String clientName) {
+        if(clientName == null)
+            return root.getGlobalForeverClient();
+        else
+            return root.registerForeverClient(clientName, null);
+    }
+
+    public synchronized String getData() {
+        return data;
+    }
+
+    public synchronized void setData(String data) {
+        this.data = data;
+    }
+
+    public boolean isGlobal() {
+        return global;
+    }
+
+    /** Remove the request from its root, as if it had been removed over FCP. */
+    public void remove() {
+        client.removeByIdentifier(identifier, false, null, null);
+    }
+
+    public static List<DummyClientRequest> getResumed() {
+        synchronized(resumed) {
+            return new ArrayList<DummyClientRequest>(resumed);
+        }
+    }
+
+    public static void clearResumed() {
+        resumed.clear();
+    }
+
+    @Override
+    protected void innerResume(ClientContext context) throws ResumeFailedException {
+        resumed.add(this);
+    }
+
+    @Override
+    public void onLostConnection(ClientContext context) {
+        // Ignore
+    }
+
+    @Override
+    public void sendPendingMessages(FCPConnectionOutputHandler handler, String listRequestIdentifier,
+            boolean includeData, boolean onlyData) {
+        // Ignore
+    }
+
+    @Override
+    void register(boolean noTags) throws IdentifierCollisionException {
+        // Ignore
+    }
+
+    @Override
+    protected ClientRequester getClientRequest() {
+        return null;
+    }
+
+    @Override
+    protected void freeData() {
+        // Ignore
+    }
+
+    @Override
+    public double getSuccessFraction() {
+        return 0;
+    }
+
+    @Override
+    public double getTotalBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getMinBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFetchedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFatalyFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public String getFailureReason(boolean longDescription) {
+        return null;
+    }
+
+    @Override
+    public boolean isTotalFinalized() {
+        return false;
+    }
+
+    @Override
+    public void start(ClientContext context) {
+        // Ignore
+    }
+
+    @Override
+    public boolean hasSucceeded() {
+        return false;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return false;
+    }
+
+    @Override
+    public boolean restart(ClientContext context, boolean disableFilterData) {
+        return false;
+    }
+
+    @Override
+    RequestStatus getStatus() {
+        return null;
+    }
+
+    @Override
+    RequestIdentifier.RequestType getType() {
+        return RequestIdentifier.RequestType.PUT;
+    }
+
+    @Override
+    public boolean fullyResumed() {
+        return true;
+    }
+
+}
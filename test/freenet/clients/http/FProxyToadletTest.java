@@ -0,0 +1,137 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.client.HighLevelSimpleClient;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.node.NodeClientCore;
+import freenet.support.MultiValueTable;
+import freenet.support.api.Bucket;
+import freenet.support.api.HTTPRequest;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FProxyToadletTest extends TestCase {
+
+	private static void assertRanges(long[][] expected, long[][] actual) {
+		assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++)
+			assertTrue(Arrays.toString(actual[i]), Arrays.equals(expected[i], actual[i]));
+	}
+
+	private static void assertInvalid(String range) {
+		try {
+			FProxyToadlet.parseRange(range);
+			fail(range);
+		} catch (HTTPRangeException e) {
+			// Expected.
+		}
+	}
+
+	public void testParseRange() throws HTTPRangeException {
+		assertRanges(new long[][] { { 0, 499 } }, FProxyToadlet.parseRange("bytes=0-499"));
+		assertRanges(new long[][] { { 0, 0 } }, FProxyToadlet.parseRange("bytes=0-0"));
+		assertRanges(new long[][] { { 500, -1 } }, FProxyToadlet.parseRange("bytes=500-"));
+		assertRanges(new long[][] { { -1, 500 } }, FProxyToadlet.parseRange("bytes=-500"));
+		assertRanges(new long[][] { { 500, 999 }, { 0, 99 }, { -1, 10 } },
+				FProxyToadlet.parseRange("bytes=500-999, 0-99,-10"));
+		assertInvalid("bytes");
+		assertInvalid("pages=0-1");
+		assertInvalid("bytes=10-5");
+		assertInvalid("bytes=-0");
+		assertInvalid("bytes=a-5");
+		StringBuilder sb = new StringBuilder("bytes=0-0");
+		for(int i=0;i<FProxyToadlet.MAX_RANGES;i++)
+			sb.append(",0-0");
+		assertInvalid(sb.toString());
+	}
+
+	public void testGetRanges() throws HTTPRangeException {
+		long[][] ranges = FProxyToadlet.parseRange("bytes=0-99,900-,-50,950-2000,1000-1100");
+		assertRanges(new long[][] { { 0, 99 }, { 900, 999 }, { 950, 999 }, { 950, 999 } },
+				FProxyToadlet.getRanges(ranges, 1000));
+		assertRanges(new long[][] { { 0, 9 } },
+				FProxyToadlet.getRanges(FProxyToadlet.parseRange("bytes=-50"), 10));
+		try {
+			FProxyToadlet.getRanges(FProxyToadlet.parseRange("bytes=1000-"), 1000);
+			fail();
+		} catch (HTTPRangeException e) {
+			// Expected.
+		}
+		try {
+			FProxyToadlet.getRanges(FProxyToadlet.parseRange("bytes=-1"), 0);
+			fail();
+		} catch (HTTPRangeException e) {
+			// Expected.
+		}
+	}
+
+	public void testPartHeader() throws Exception {
+		String header = new String(FProxyToadlet.getPartHeader("abc", "image/png", new long[] { 5, 9 }, 100), "US-ASCII");
+		assertEquals("\r\n--abc\r\nContent-Type: image/png\r\nContent-Range: bytes 5-9/100\r\n\r\n", header);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testFoundData() throws Exception {
+		final String key = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/test.txt";
+		byte[] content = "Hello world".getBytes("UTF-8");
+		ArrayBucket bucket = new ArrayBucket(content);
+		HighLevelSimpleClient client = mock(HighLevelSimpleClient.class);
+		when(client.getFetchContext(anyLong())).thenReturn(mock(FetchContext.class));
+		FProxyFetchTracker tracker = mock(FProxyFetchTracker.class);
+		FProxyFetchInProgress progress = mock(FProxyFetchInProgress.class);
+		FProxyFetchResult result = new FProxyFetchResult(progress, bucket, "text/plain", 0, false, -1, false);
+		FProxyFetchWaiter waiter = mock(FProxyFetchWaiter.class);
+		when(waiter.getResult(anyBoolean())).thenReturn(result);
+		when(tracker.makeFetcher(any(FreenetURI.class), anyLong(), any(FetchContext.class), any(REFILTER_POLICY.class))).thenReturn(waiter);
+		FProxyToadlet fproxy = new FProxyToadlet(client, mock(NodeClientCore.class), tracker);
+		fproxy.container = mock(ToadletContainer.class);
+		ToadletContext ctx = mock(ToadletContext.class);
+		// Not a browser, so the fetch is waited for rather than showing a progress page.
+		when(ctx.getHeaders()).thenReturn(new MultiValueTable<String, String>());
+		final Bucket[] sent = new Bucket[1];
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				sent[0] = (Bucket) invocation.getArguments()[0];
+				return null;
+			}
+		}).when(ctx).writeData(any(Bucket.class));
+
+		fproxy.handleMethodGET(new URI("/" + key), mock(HTTPRequest.class), ctx);
+
+		verify(ctx).sendReplyHeadersFProxy(eq(200), eq("OK"), any(MultiValueTable.class), eq("text/plain"), eq((long) content.length));
+		verify(waiter).close();
+		assertTrue(sent[0] instanceof FProxyToadlet.FetchResultBucket);
+		assertTrue(Arrays.equals(content, BucketTools.toByteArray(sent[0])));
+		// The result stays open until the reply has been sent.
+		verify(progress, never()).close(result);
+		sent[0].free();
+		verify(progress, times(1)).close(result);
+		sent[0].free();
+		verify(progress, times(1)).close(result);
+		assertEquals(content.length, bucket.size());
+	}
+
+}
@@ -0,0 +1,431 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
+import freenet.support.io.NoFreeBucket;
+
+public class ResponseOutputStreamTest extends TestCase {
+
+	/** Runs jobs when the test says so. */
+	private static class ManualExecutor implements Executor {
+
+		final List<Runnable> jobs = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable job) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			execute(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			execute(job);
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+		void runAll() {
+			while(!jobs.isEmpty())
+				jobs.remove(0).run();
+		}
+
+	}
+
+	/** Accepts a limited number of bytes each time it is written to, like a slow socket. */
+	private static class SlowChannel implements GatheringByteChannel {
+
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		int room;
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = Math.min(room, src.remaining());
+			byte[] buf = new byte[length];
+			src.get(buf);
+			received.write(buf, 0, length);
+			room -= length;
+			return length;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long written = 0;
+			for(int i=offset;i<offset+length;i++)
+				written += write(srcs[i]);
+			return written;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// Do nothing.
+		}
+
+	}
+
+	private static class Listener implements ResponseOutputStream.Listener {
+
+		int ready;
+		IOException failed;
+
+		@Override
+		public void dataReady() {
+			ready++;
+		}
+
+		@Override
+		public void failed(IOException e) {
+			failed = e;
+		}
+
+	}
+
+	private static class FreeCheckingBucket extends ArrayBucket {
+
+		private static final long serialVersionUID = 1L;
+
+		boolean freed;
+
+		FreeCheckingBucket(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	private ManualExecutor executor;
+	private Listener listener;
+	private ResponseOutputStream out;
+	private SlowChannel channel;
+
+	@Override
+	protected void setUp() {
+		executor = new ManualExecutor();
+		listener = new Listener();
+		out = new ResponseOutputStream(executor, listener);
+		channel = new SlowChannel();
+	}
+
+	/** Send everything, a little at a time, running the executor when asked to. */
+	private void sendAll() throws IOException {
+		while(!out.isEmpty()) {
+			channel.room = 1000;
+			out.writeTo(channel);
+			executor.runAll();
+		}
+	}
+
+	public void testWritesAndBuckets() throws IOException {
+		Random r = new Random(24);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes("US-ASCII");
+		out.write(head);
+		expected.write(head);
+		assertEquals(1, listener.ready);
+		byte[] data = new byte[ResponseOutputStream.BUCKET_CHUNK * 2 + 100];
+		r.nextBytes(data);
+		FreeCheckingBucket bucket = new FreeCheckingBucket(data);
+		out.write(bucket);
+		expected.write(data);
+		out.write('x');
+		expected.write('x');
+		// Only told once until the data is sent.
+		assertEquals(1, listener.ready);
+		assertTrue(executor.jobs.isEmpty());
+		sendAll();
+		assertTrue(bucket.freed);
+		assertTrue(Arrays.equals(expected.toByteArray(), channel.received.toByteArray()));
+		assertEquals(expected.size(), out.totalWritten());
+		assertNull(listener.failed);
+	}
+
+	public void testSlices() throws IOException {
+		Random r = new Random(25);
+		byte[] data = new byte[ResponseOutputStream.BUCKET_CHUNK * 3];
+		r.nextBytes(data);
+		FreeCheckingBucket bucket = new FreeCheckingBucket(data);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		out.write(new NoFreeBucket(bucket), 10, 20);
+		expected.write(data, 10, 20);
+		out.write(new NoFreeBucket(bucket), ResponseOutputStream.BUCKET_CHUNK + 5, ResponseOutputStream.BUCKET_CHUNK + 100);
+		expected.write(data, ResponseOutputStream.BUCKET_CHUNK + 5, ResponseOutputStream.BUCKET_CHUNK + 100);
+		out.write(bucket, data.length - 1, 1);
+		expected.write(data, data.length - 1, 1);
+		sendAll();
+		assertTrue(bucket.freed);
+		assertTrue(Arrays.equals(expected.toByteArray(), channel.received.toByteArray()));
+		assertNull(listener.failed);
+	}
+
+	public void testShortBucket() throws IOException {
+		FreeCheckingBucket bucket = new FreeCheckingBucket(new byte[100]);
+		out.write(bucket, 50, 51);
+		assertFalse(out.writeTo(channel));
+		executor.runAll();
+		assertNotNull(listener.failed);
+		out.abort();
+		assertTrue(bucket.freed);
+	}
+
+	public void testFileSlice() throws IOException {
+		Random r = new Random(26);
+		byte[] data = new byte[ResponseOutputStream.BUCKET_CHUNK * 2 + 10];
+		r.nextBytes(data);
+		File f = File.createTempFile("response", ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data);
+			fos.close();
+			out.write(new FileBucket(f, true, false, false, false), 1000, data.length - 1001);
+			// Opened on the executor, then sent straight from the file.
+			assertFalse(out.writeTo(channel));
+			assertEquals(1, executor.jobs.size());
+			executor.runAll();
+			while(!out.isEmpty()) {
+				channel.room = 1000;
+				out.writeTo(channel);
+				assertTrue(executor.jobs.isEmpty());
+			}
+			assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, data.length - 1), channel.received.toByteArray()));
+			assertEquals(data.length - 1001, out.totalWritten());
+			assertNull(listener.failed);
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** Sending from a file may read from disk on the selector thread, so only a limited amount
+	 * is sent at a time even if the client would take more. */
+	public void testFileSliceBounded() throws IOException {
+		Random r = new Random(29);
+		byte[] data = new byte[ResponseOutputStream.MAX_TRANSFER * 2 + 10];
+		r.nextBytes(data);
+		File f = File.createTempFile("response", ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(f);
+			fos.write(data);
+			fos.close();
+			out.write(new FileBucket(f, true, false, false, false));
+			assertFalse(out.writeTo(channel));
+			executor.runAll();
+			channel.room = Integer.MAX_VALUE;
+			assertTrue(out.writeTo(channel));
+			assertEquals(ResponseOutputStream.MAX_TRANSFER, channel.received.size());
+			assertTrue(out.writeTo(channel));
+			assertFalse(out.writeTo(channel));
+			assertTrue(out.isEmpty());
+			assertTrue(Arrays.equals(data, channel.received.toByteArray()));
+			assertNull(listener.failed);
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** FProxy queues the data of a fetch result and returns before it has been sent. If the
+	 * result was closed then, the fetch tracker could free the data while it is being sent. */
+	public void testFetchResultClosedWhenSent() throws IOException {
+		Random r = new Random(27);
+		byte[] data = new byte[ResponseOutputStream.BUCKET_CHUNK * 2 + 10];
+		r.nextBytes(data);
+		final FreeCheckingBucket bucket = new FreeCheckingBucket(data);
+		FProxyFetchInProgress progress = mock(FProxyFetchInProgress.class);
+		final FProxyFetchResult result = new FProxyFetchResult(progress, bucket, "text/plain", 0, false, -1, false);
+		// Once its last result is closed, the fetch can be cancelled and its data freed.
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				bucket.free();
+				return null;
+			}
+		}).when(progress).close(result);
+		out.write(new FProxyToadlet.FetchResultBucket(result));
+		// writeData() has returned, but nothing has been sent.
+		assertFalse(out.writeTo(channel));
+		verify(progress, never()).close(result);
+		executor.runAll();
+		channel.room = 1000;
+		out.writeTo(channel);
+		verify(progress, never()).close(result);
+		assertFalse(bucket.freed);
+		sendAll();
+		verify(progress, times(1)).close(result);
+		assertTrue(bucket.freed);
+		assertTrue(Arrays.equals(data, channel.received.toByteArray()));
+		assertNull(listener.failed);
+	}
+
+	/** The caller of writeBorrowed() frees the data as soon as it returns, so it must not
+	 * return until the data has been sent. */
+	public void testBorrowedBucketSentBeforeReturn() throws Exception {
+		Random r = new Random(28);
+		final byte[] data = new byte[ResponseOutputStream.BUCKET_CHUNK * 2 + 10];
+		r.nextBytes(data);
+		final FreeCheckingBucket bucket = new FreeCheckingBucket(data);
+		final IOException[] failed = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					out.writeBorrowed(new NoFreeBucket(bucket), 10, data.length - 20);
+				} catch (IOException e) {
+					failed[0] = e;
+				}
+			}
+		};
+		writer.start();
+		while(out.isEmpty()) Thread.sleep(1);
+		writer.join(200);
+		assertTrue(writer.isAlive());
+		sendAll();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNull(failed[0]);
+		assertFalse(bucket.freed);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, data.length - 10), channel.received.toByteArray()));
+		assertNull(listener.failed);
+	}
+
+	public void testBorrowedBucketAborted() throws Exception {
+		final FreeCheckingBucket bucket = new FreeCheckingBucket(new byte[100]);
+		final IOException[] failed = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					out.writeBorrowed(new NoFreeBucket(bucket), 0, -1);
+				} catch (IOException e) {
+					failed[0] = e;
+				}
+			}
+		};
+		writer.start();
+		while(out.isEmpty()) Thread.sleep(1);
+		out.abort();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNotNull(failed[0]);
+		assertFalse(bucket.freed);
+	}
+
+	public void testBlockedChannel() throws IOException {
+		out.write(new byte[100]);
+		channel.room = 10;
+		assertTrue(out.writeTo(channel));
+		assertEquals(10, channel.received.size());
+		channel.room = 1000;
+		assertFalse(out.writeTo(channel));
+		assertTrue(out.isEmpty());
+		assertEquals(100, channel.received.size());
+	}
+
+	public void testWriterBlocksWhenFull() throws Exception {
+		final byte[] data = new byte[ResponseOutputStream.MAX_BUFFERED];
+		out.write(data);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					out.write(data, 0, 1);
+				} catch (IOException e) {
+					// Fail below.
+				}
+			}
+		};
+		writer.start();
+		writer.join(200);
+		assertTrue(writer.isAlive());
+		channel.room = 1;
+		out.writeTo(channel);
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		channel.room = Integer.MAX_VALUE;
+		assertFalse(out.writeTo(channel));
+		assertEquals(data.length + 1, channel.received.size());
+	}
+
+	public void testAbort() throws IOException {
+		FreeCheckingBucket sending = new FreeCheckingBucket(new byte[ResponseOutputStream.BUCKET_CHUNK * 2]);
+		FreeCheckingBucket queued = new FreeCheckingBucket(new byte[10]);
+		out.write(sending);
+		out.write(queued);
+		// Start reading the first bucket, and abort while the chunk is being read.
+		assertFalse(out.writeTo(channel));
+		assertEquals(1, executor.jobs.size());
+		out.abort();
+		assertTrue(queued.freed);
+		assertFalse(sending.freed);
+		executor.runAll();
+		assertTrue(sending.freed);
+		try {
+			out.write(new byte[1]);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		FreeCheckingBucket late = new FreeCheckingBucket(new byte[10]);
+		try {
+			out.write(late);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertTrue(late.freed);
+	}
+
+}
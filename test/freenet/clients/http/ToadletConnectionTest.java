@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.support.io.TooLongException;
+
+public class ToadletConnectionTest extends TestCase {
+
+	private static ByteBuffer buffer(String s) throws Exception {
+		return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+	}
+
+	public void testParseHead() throws Exception {
+		ByteBuffer buf = buffer("\r\n\nGET / HTTP/1.1\r\nHost: localhost\nAccept: */*\r\n\r\nGET /next HTTP/1.1\r\n");
+		List<String> lines = new ArrayList<String>();
+		assertTrue(ToadletConnection.parseHead(buf, lines));
+		assertEquals(Arrays.asList("GET / HTTP/1.1", "Host: localhost", "Accept: */*"), lines);
+		// The next, pipelined, request is left in the buffer.
+		assertEquals("GET /next", new String(buf.array(), buf.position(), 9, "ISO-8859-1"));
+		lines.clear();
+		assertFalse(ToadletConnection.parseHead(buf, lines));
+		assertTrue(lines.isEmpty());
+		assertEquals("GET /next", new String(buf.array(), buf.position(), 9, "ISO-8859-1"));
+	}
+
+	public void testIncompleteHead() throws Exception {
+		String head = "POST /upload HTTP/1.1\r\nContent-Length: 3\r\n\r\n";
+		for(int i=0;i<head.length();i++) {
+			List<String> lines = new ArrayList<String>();
+			ByteBuffer buf = buffer(head.substring(0, i));
+			assertFalse(ToadletConnection.parseHead(buf, lines));
+			assertEquals(0, buf.position());
+		}
+		List<String> lines = new ArrayList<String>();
+		ByteBuffer buf = buffer(head+"abc");
+		assertTrue(ToadletConnection.parseHead(buf, lines));
+		assertEquals(3, buf.remaining());
+	}
+
+	public void testLineTooLong() throws Exception {
+		char[] c = new char[ToadletConnection.MAX_LINE_LENGTH];
+		Arrays.fill(c, 'a');
+		String line = new String(c);
+		List<String> lines = new ArrayList<String>();
+		assertTrue(ToadletConnection.parseHead(buffer("GET /"+line.substring(5)+"\r\n\r\n"), lines));
+		lines.clear();
+		try {
+			ToadletConnection.parseHead(buffer("GET /"+line+"\r\n\r\n"), lines);
+			fail();
+		} catch (TooLongException e) {
+			// Expected.
+		}
+		try {
+			// Not terminated yet.
+			ToadletConnection.parseHead(buffer("GET /"+line+"a"), lines);
+			fail();
+		} catch (TooLongException e) {
+			// Expected.
+		}
+	}
+
+	public void testGetBodyLength() {
+		assertEquals(10, ToadletConnection.getBodyLength("POST / HTTP/1.1", Arrays.asList("Host: x", "content-LENGTH:  10 ")));
+		assertEquals(0, ToadletConnection.getBodyLength("POST / HTTP/1.1", Arrays.asList("Host: x")));
+		// Rejected before reading the body.
+		assertEquals(0, ToadletConnection.getBodyLength("GET / HTTP/1.1", Arrays.asList("Content-Length: 10")));
+		assertEquals(0, ToadletConnection.getBodyLength("POST / HTTP/1.1", Arrays.asList("Content-Length: -1")));
+		assertEquals(0, ToadletConnection.getBodyLength("POST / HTTP/1.1", Arrays.asList("Content-Length: x")));
+		assertEquals(0, ToadletConnection.getBodyLength("POST / HTTP/1.1", Arrays.asList("Broken", "Content-Length: 10")));
+	}
+
+}
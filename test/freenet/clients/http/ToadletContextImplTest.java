@@ -0,0 +1,21 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import junit.framework.TestCase;
+
+public class ToadletContextImplTest extends TestCase {
+
+	public void testEtagMatches() {
+		String etag = "\"1234\"";
+		assertFalse(ToadletContextImpl.etagMatches(null, etag));
+		assertTrue(ToadletContextImpl.etagMatches("\"1234\"", etag));
+		assertTrue(ToadletContextImpl.etagMatches("W/\"1234\"", etag));
+		assertTrue(ToadletContextImpl.etagMatches("\"abcd\", \"1234\"", etag));
+		assertTrue(ToadletContextImpl.etagMatches("*", etag));
+		assertFalse(ToadletContextImpl.etagMatches("\"12345\"", etag));
+		assertFalse(ToadletContextImpl.etagMatches("1234", etag));
+	}
+
+}
@@ -85,6 +85,35 @@ public class EncryptedRandomAccessBucketTest extends BucketTestBase {
         bucket.free();
     }
     
+    public void testSkip() throws IOException {
+        Random r = new Random(6032405);
+        int length = 1024*64+1;
+        byte[] data = new byte[length];
+        r.nextBytes(data);
+        RandomAccessBucket bucket = (RandomAccessBucket) makeBucket(length);
+        OutputStream os = bucket.getOutputStream();
+        os.write(data);
+        os.close();
+        int[] offsets = new int[] { 0, 1, 15, 16, 17, 4095, 32768, length - 1 };
+        for(int offset : offsets) {
+            InputStream is = bucket.getInputStreamUnbuffered();
+            FileUtil.skipFully(is, offset);
+            byte[] buf = new byte[Math.min(100, length - offset)];
+            new DataInputStream(is).readFully(buf);
+            assertTrue(Arrays.equals(buf, Arrays.copyOfRange(data, offset, offset+buf.length)));
+            is.close();
+        }
+        // Through the buffered stream, after reading some.
+        InputStream is = bucket.getInputStream();
+        byte[] buf = new byte[10];
+        new DataInputStream(is).readFully(buf);
+        FileUtil.skipFully(is, 50000);
+        new DataInputStream(is).readFully(buf);
+        assertTrue(Arrays.equals(buf, Arrays.copyOfRange(data, 50010, 50020)));
+        is.close();
+        bucket.free();
+    }
+    
     public void testIrregularWritesNotOverlapping() throws IOException {
         Random r = new Random(6032405);
         int length = 1024*64+1;
@@ -3,9 +3,22 @@ package freenet.io;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Tests Message abilities.
@@ -73,4 +86,200 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/** Some common messages, covering all the field types DMT uses. */
+	private static Message[] sampleMessages() {
+		Random random = new Random(1234);
+		byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+		random.nextBytes(routingKey);
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		BitArray sent = new BitArray(32);
+		sent.setBit(3, true);
+		Message withSubMessage = DMT.createFNPCHKDataRequest(random.nextLong(), (short)18, new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256));
+		withSubMessage.addSubMessage(DMT.createFNPRealTimeFlag(true));
+		Message allTypes = new Message(test);
+		allTypes.set(BOOLEAN, false);
+		allTypes.set(BYTE, (byte)-3);
+		allTypes.set(SHORT, (short)-300);
+		allTypes.set(INT, -70000);
+		allTypes.set(LONG, Long.MIN_VALUE);
+		allTypes.set(DOUBLE, -Math.E);
+		allTypes.set(FLOAT, -1.5f);
+		allTypes.set(DOUBLE_ARRAY, new double[] { 0.1, 0.2, 0.3 });
+		allTypes.set(FLOAT_ARRAY, new float[] { 0.5f });
+		return new Message[] {
+			DMT.createFNPAccepted(random.nextLong()),
+			DMT.createFNPRejectedOverload(random.nextLong(), true, false, false),
+			withSubMessage,
+			DMT.createFNPBulkPacketSend(random.nextLong(), 7, data, false),
+			DMT.createPacketTransmit(random.nextLong(), 3, sent, new Buffer(data), true),
+			DMT.createSendAborted(random.nextLong(), 2, "Some reason \u00e9"),
+			DMT.createFNPLocChangeNotificationNew(0.25, new double[] { 0.5, 0.75 }),
+			allTypes
+		};
+	}
+
+	/** Encode the way Message used to, field by field through Serializer. */
+	private static byte[] legacyEncode(Message m, boolean includeSubMessages) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		MessageType spec = m.getSpec();
+		dos.writeInt(spec.getName().hashCode());
+		for (String name : spec.getOrderedFields()) {
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+		}
+		if (includeSubMessages) {
+			Message sub = m.getSubMessage(DMT.FNPRealTimeFlag);
+			if (sub != null) {
+				byte[] temp = legacyEncode(sub, false);
+				dos.writeShort(temp.length);
+				dos.write(temp);
+			}
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static void assertSameFields(Message expected, Message actual) {
+		assertEquals(expected.getSpec(), actual.getSpec());
+		for (String name : expected.getSpec().getOrderedFields()) {
+			Object a = expected.getObject(name);
+			Object b = actual.getObject(name);
+			if (a instanceof double[]) {
+				assertTrue(Arrays.equals((double[]) a, (double[]) b));
+			} else if (a instanceof float[]) {
+				assertTrue(Arrays.equals((float[]) a, (float[]) b));
+			} else if (a instanceof Buffer || a instanceof ShortBuffer || a instanceof BitArray) {
+				assertEquals(a.toString(), b.toString());
+			} else {
+				assertEquals(a, b);
+			}
+		}
+	}
+
+	/** The wire format must not change. */
+	public void testEncodingMatchesSerializer() throws IOException {
+		for (Message m : sampleMessages()) {
+			byte[] expected = legacyEncode(m, true);
+			byte[] encoded = m.encodeToPacket();
+			assertTrue(m.toString(), Arrays.equals(expected, encoded));
+			assertEquals(expected.length, m.encodedLength());
+		}
+	}
+
+	public void testRoundTrip() {
+		for (Message m : sampleMessages()) {
+			byte[] encoded = m.encodeToPacket();
+			Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+			assertNotNull(m.toString(), decoded);
+			assertSameFields(m, decoded);
+			Message sub = m.getSubMessage(DMT.FNPRealTimeFlag);
+			if (sub != null) {
+				assertSameFields(sub, decoded.getSubMessage(DMT.FNPRealTimeFlag));
+			}
+		}
+	}
+
+	public void testEncodeToBuffer() {
+		for (Message m : sampleMessages()) {
+			byte[] encoded = m.encodeToPacket();
+			// Direct, little-endian, and not at the start: none of these should matter.
+			ByteBuffer buf = ByteBuffer.allocateDirect(encoded.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(5);
+			m.encodeToBuffer(buf);
+			assertEquals(5 + encoded.length, buf.position());
+			assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+			buf.flip();
+			buf.position(5);
+			ByteBuffer copy = buf.duplicate();
+			byte[] written = new byte[encoded.length];
+			copy.get(written);
+			assertTrue(Arrays.equals(encoded, written));
+			Message decoded = Message.decodeMessageFromBuffer(buf, null, 0);
+			assertNotNull(decoded);
+			assertSameFields(m, decoded);
+			assertFalse(buf.hasRemaining());
+			assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+		}
+	}
+
+	public void testTruncated() {
+		Message m = DMT.createFNPBulkPacketSend(1, 2, new byte[100], false);
+		byte[] encoded = m.encodeToPacket();
+		ByteBuffer buf = ByteBuffer.allocate(encoded.length - 1);
+		try {
+			m.encodeToBuffer(buf);
+			fail();
+		} catch (java.nio.BufferOverflowException e) {
+			// Expected.
+		}
+	}
+
+	public void testUnsetField() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		msg.set(LONG, 5L);
+		assertTrue(msg.isSet(LONG));
+		assertEquals(Long.valueOf(5), msg.getObject(LONG));
+		try {
+			msg.getInt(INT);
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		try {
+			msg.set(INT, 5L);
+			fail();
+		} catch (freenet.io.comm.IncorrectTypeException e) {
+			// Expected.
+		}
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.io.MessageTest -Dtest.benchmark=true unit
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK) {
+			return;
+		}
+		Message[] messages = sampleMessages();
+		final int ITERATIONS = 200000;
+		ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+		for (Message m : messages) {
+			byte[] encoded = m.encodeToPacket();
+			int count = 0;
+			// Warm up.
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += legacyEncode(m, true).length + m.encodeToPacket().length;
+				buf.clear();
+				m.encodeToBuffer(buf);
+				count += Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0).receivedByteCount();
+			}
+			long t1 = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += legacyEncode(m, true).length;
+			}
+			long legacy = System.nanoTime() - t1;
+			t1 = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += m.encodeToPacket().length;
+			}
+			long toPacket = System.nanoTime() - t1;
+			t1 = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				buf.clear();
+				m.encodeToBuffer(buf);
+				count += buf.position();
+			}
+			long toBuffer = System.nanoTime() - t1;
+			t1 = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				count += Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0).receivedByteCount();
+			}
+			long decode = System.nanoTime() - t1;
+			System.out.println(m.getSpec().getName() + " (" + encoded.length + " bytes): legacy encode " +
+					legacy / ITERATIONS + "ns, encodeToPacket " + toPacket / ITERATIONS + "ns, encodeToBuffer " +
+					toBuffer / ITERATIONS + "ns, decode " + decode / ITERATIONS + "ns (" + count + ")");
+		}
+	}
 }
@@ -0,0 +1,144 @@
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+
+/**
+ * Test matching incoming messages against MessageFilter's.
+ */
+public class MessageCoreTest extends TestCase {
+
+	private PooledExecutor exec;
+	private MessageCore core;
+
+	@Override
+	protected void setUp() throws Exception {
+		exec = new PooledExecutor();
+		exec.start();
+		core = new MessageCore(exec);
+	}
+
+	private static class RecordingCallback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<Message>();
+		boolean timedOut;
+		volatile boolean shouldTimeout;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut = true;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			// Ignore
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore
+		}
+	}
+
+	private RecordingCallback addFilter(MessageFilter filter) throws DisconnectedException {
+		RecordingCallback cb = new RecordingCallback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	public void testMatchByUID() throws DisconnectedException {
+		RecordingCallback[] cbs = new RecordingCallback[10];
+		for(int i=0;i<cbs.length;i++)
+			cbs[i] = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, (long)i).setTimeout(60000));
+		assertEquals(cbs.length, core.getFilterCount());
+		Message m = DMT.createFNPAccepted(7);
+		core.checkFilters(m, null);
+		for(int i=0;i<cbs.length;i++)
+			assertEquals(i == 7 ? 1 : 0, cbs[i].matched.size());
+		assertSame(m, cbs[7].matched.get(0));
+		assertEquals(cbs.length - 1, core.getFilterCount());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+		// Wrong type, same UID.
+		core.checkFilters(DMT.createFNPRejectedLoop(3), null);
+		assertEquals(0, cbs[3].matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	/** The filter with the earliest timeout gets the message, whether or not it specifies a UID. */
+	public void testPriorityByTimeout() throws DisconnectedException {
+		RecordingCallback late = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		RecordingCallback anyUID = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(30000));
+		RecordingCallback early = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(10000));
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, early.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, anyUID.matched.size());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, late.matched.size());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testOr() throws DisconnectedException {
+		RecordingCallback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000)
+				.or(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(60000)));
+		core.checkFilters(DMT.createFNPRejectedLoop(2), null);
+		assertEquals(0, cb.matched.size());
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		Message m = DMT.createFNPAccepted(5);
+		core.checkFilters(DMT.createFNPAccepted(4), null);
+		core.checkFilters(m, null);
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		Message ret = core.waitFor(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 5L).setTimeout(60000), null);
+		assertSame(m, ret);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		RecordingCallback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(60000));
+		assertEquals(1, cb.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testTimeout() throws DisconnectedException, InterruptedException {
+		RecordingCallback shortTimeout = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(10));
+		RecordingCallback longTimeout = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		Thread.sleep(50);
+		long now = System.currentTimeMillis();
+		long next = core.removeTimedOutFilters(now + 120000);
+		assertTrue(shortTimeout.timedOut);
+		assertFalse(longTimeout.timedOut);
+		assertTrue(next > now && next <= now + 60000);
+		assertEquals(1, core.getFilterCount());
+	}
+
+	public void testShouldTimeout() throws DisconnectedException {
+		RecordingCallback early = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		RecordingCallback late = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000));
+		early.shouldTimeout = true;
+		long now = System.currentTimeMillis();
+		core.removeTimedOutFilters(now + 120000);
+		assertTrue(early.timedOut);
+		assertFalse(late.timedOut);
+		assertEquals(1, core.getFilterCount());
+		// Callbacks are only polled every few seconds, so this one lingers until the next poll.
+		late.shouldTimeout = true;
+		core.removeTimedOutFilters(now + 120000);
+		assertFalse(late.timedOut);
+		assertEquals(1, core.getFilterCount());
+	}
+}
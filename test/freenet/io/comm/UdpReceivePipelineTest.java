@@ -0,0 +1,183 @@
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.support.Fields;
+import freenet.support.PooledExecutor;
+
+/**
+ * Send datagrams over the loopback interface to a UdpReceivePipeline.
+ */
+public class UdpReceivePipelineTest extends TestCase {
+
+	private static final int SENDERS = 5;
+	private static final int PACKETS = 200;
+
+	private PooledExecutor exec;
+	private DatagramChannel channel;
+	private InetSocketAddress address;
+	private IOStatisticCollector collector;
+	private UdpReceivePipeline pipeline;
+
+	@Override
+	protected void setUp() throws Exception {
+		exec = new PooledExecutor();
+		exec.start();
+		channel = DatagramChannel.open();
+		channel.socket().setReceiveBufferSize(1024*1024);
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), channel.socket().getLocalPort());
+		collector = new IOStatisticCollector();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(pipeline != null) pipeline.close();
+		channel.close();
+	}
+
+	/** Records the sequence numbers received from each port. */
+	private static class RecordingFilter implements IncomingPacketFilter {
+		final HashMap<Integer, List<Integer>> received = new HashMap<Integer, List<Integer>>();
+		int count;
+		boolean blocked;
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			int seq = Fields.bytesToInt(buf, offset);
+			synchronized(this) {
+				while(blocked) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				List<Integer> list = received.get(peer.getPort());
+				if(list == null) {
+					list = new ArrayList<Integer>();
+					received.put(peer.getPort(), list);
+				}
+				list.add(seq);
+				count++;
+				notifyAll();
+			}
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+		synchronized void unblock() {
+			blocked = false;
+			notifyAll();
+		}
+
+		synchronized boolean waitFor(int packets, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while(count < packets) {
+				long now = System.currentTimeMillis();
+				if(now >= end) return false;
+				wait(end - now);
+			}
+			return true;
+		}
+	}
+
+	private void startPipeline(IncomingPacketFilter filter, int threads) throws IOException {
+		pipeline = new UdpReceivePipeline(channel, filter, collector, threads, 8, 1500);
+		pipeline.start(exec, "UdpReceivePipelineTest");
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				pipeline.run();
+			}
+		}, "UdpReceivePipelineTest receiver");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void send(DatagramSocket sock, int seq) throws IOException {
+		byte[] buf = new byte[100];
+		System.arraycopy(Fields.intToBytes(seq), 0, buf, 0, 4);
+		sock.send(new DatagramPacket(buf, buf.length, address));
+	}
+
+	public void testOrderPerPeer() throws Exception {
+		RecordingFilter filter = new RecordingFilter();
+		startPipeline(filter, 3);
+		DatagramSocket[] senders = new DatagramSocket[SENDERS];
+		for(int i=0;i<SENDERS;i++)
+			senders[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		try {
+			for(int seq=0;seq<PACKETS;seq++) {
+				for(DatagramSocket sock : senders)
+					send(sock, seq);
+				// Don't overflow the socket's receive buffer.
+				if(seq % 20 == 19) Thread.sleep(5);
+			}
+			assertTrue(filter.waitFor(SENDERS * PACKETS, 10000));
+			synchronized(filter) {
+				assertEquals(SENDERS, filter.received.size());
+				for(List<Integer> list : filter.received.values()) {
+					assertEquals(PACKETS, list.size());
+					for(int i=0;i<PACKETS;i++)
+						assertEquals(i, (int)list.get(i));
+				}
+			}
+		} finally {
+			for(DatagramSocket sock : senders)
+				sock.close();
+		}
+		assertEquals(0, collector.getDroppedPackets()[1]);
+		assertTrue(collector.getAverageReceiveBatchSize() >= 1.0);
+		// All buffers are returned to the pool.
+		assertEquals(UdpReceivePipeline.BUFFERS_PER_THREAD * 3, pipeline.getFreeBuffers());
+	}
+
+	public void testDropWhenWorkersBlocked() throws Exception {
+		RecordingFilter filter = new RecordingFilter();
+		filter.blocked = true;
+		startPipeline(filter, 1);
+		int sent = UdpReceivePipeline.BUFFERS_PER_THREAD * 2;
+		DatagramSocket sock = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		try {
+			for(int seq=0;seq<sent;seq++) {
+				send(sock, seq);
+				if(seq % 20 == 19) Thread.sleep(5);
+			}
+		} finally {
+			sock.close();
+		}
+		// Wait until the receiving thread has read everything.
+		long dropped = 0;
+		long end = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < end) {
+			Thread.sleep(200);
+			long d = collector.getDroppedPackets()[1];
+			if(d > 0 && d == dropped) break;
+			dropped = d;
+		}
+		assertTrue(dropped > 0);
+		filter.unblock();
+		assertTrue(filter.waitFor((int)(sent - dropped), 10000));
+		// The packets which were not dropped are still in order.
+		synchronized(filter) {
+			List<Integer> list = filter.received.values().iterator().next();
+			for(int i=1;i<list.size();i++)
+				assertTrue(list.get(i) > list.get(i-1));
+		}
+	}
+
+}
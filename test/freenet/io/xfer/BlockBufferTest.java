@@ -0,0 +1,156 @@
+package freenet.io.xfer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.Buffer;
+
+public class BlockBufferTest extends TestCase {
+
+    private static final int PACKETS = 32;
+    private static final int PACKET_SIZE = 1024;
+
+    public void testHeap() {
+        checkWriteAndRead(new BlockBuffer(PACKETS, PACKET_SIZE, false));
+    }
+
+    public void testOffHeap() {
+        BlockBuffer buffer = new BlockBuffer(PACKETS, PACKET_SIZE, true);
+        assertTrue(buffer.isOffHeap());
+        checkWriteAndRead(buffer);
+    }
+
+    private void checkWriteAndRead(BlockBuffer buffer) {
+        byte[] data = new byte[PACKETS * PACKET_SIZE];
+        new Random(22).nextBytes(data);
+        for(int i=PACKETS-1;i>=0;i-=2)
+            buffer.write(i, new Buffer(data, i * PACKET_SIZE, PACKET_SIZE));
+        for(int i=0;i<PACKETS;i++) {
+            Buffer packet = buffer.getPacket(i);
+            if(i % 2 == 0) {
+                assertNull(packet);
+                continue;
+            }
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, i * PACKET_SIZE, (i+1) * PACKET_SIZE),
+                    packet.getData()));
+            // Views are shared, not created on each call.
+            assertSame(packet, buffer.getPacket(i));
+        }
+        try {
+            buffer.write(1, new Buffer(data, 0, PACKET_SIZE));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        for(int i=0;i<PACKETS;i+=2)
+            buffer.write(i, new Buffer(data, i * PACKET_SIZE, PACKET_SIZE));
+        assertTrue(Arrays.equals(data, buffer.getData()));
+    }
+
+    public void testWrap() {
+        byte[] data = new byte[PACKETS * PACKET_SIZE];
+        new Random(23).nextBytes(data);
+        BlockBuffer buffer = new BlockBuffer(PACKETS, PACKET_SIZE, data);
+        assertSame(data, buffer.getData());
+        for(int i=0;i<PACKETS;i++)
+            assertEquals(data[i * PACKET_SIZE], buffer.getPacket(i).byteAt(0));
+    }
+
+    public void testReferenceCounting() {
+        BlockBuffer buffer = new BlockBuffer(PACKETS, PACKET_SIZE, true);
+        buffer.write(0, new Buffer(new byte[PACKET_SIZE]));
+        Buffer view = buffer.getPacket(0);
+        assertTrue(buffer.retain());
+        buffer.release();
+        assertFalse(buffer.isReleased());
+        assertNotNull(buffer.getPacket(0));
+        buffer.release();
+        assertTrue(buffer.isReleased());
+        assertNull(buffer.getPacket(0));
+        assertFalse(buffer.retain());
+        // Views already handed out stay valid.
+        assertEquals(0, view.byteAt(PACKET_SIZE - 1));
+        try {
+            buffer.getData();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            buffer.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    private static class Listener implements PartiallyReceivedBlock.PacketReceivedListener {
+
+        final List<Integer> received = new ArrayList<Integer>();
+        boolean aborted;
+
+        @Override
+        public void packetReceived(int packetNo) {
+            received.add(packetNo);
+        }
+
+        @Override
+        public void receiveAborted(int reason, String description) {
+            aborted = true;
+        }
+
+    }
+
+    public void testPartiallyReceivedBlock() throws AbortedException {
+        PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+        byte[] data = new byte[PACKETS * PACKET_SIZE];
+        new Random(24).nextBytes(data);
+        prb.addPacket(3, new Buffer(data, 3 * PACKET_SIZE, PACKET_SIZE));
+        Listener first = new Listener();
+        Listener second = new Listener();
+        Deque<Integer> already = prb.addListener(first);
+        assertEquals(1, already.size());
+        assertEquals(3, (int) already.getFirst());
+        assertTrue(prb.addListener(second).contains(3));
+        for(int i=0;i<PACKETS;i++) {
+            if(i == 3) continue;
+            if(i == PACKETS / 2) prb.removeListener(second);
+            prb.addPacket(i, new Buffer(data, i * PACKET_SIZE, PACKET_SIZE));
+        }
+        assertEquals(PACKETS - 1, first.received.size());
+        assertEquals(PACKETS / 2 - 1, second.received.size());
+        assertSame(prb.getPacket(5), prb.getPacket(5));
+        assertTrue(Arrays.equals(data, prb.getBlock()));
+        // Aborting a complete block doesn't abort it.
+        assertNotNull(prb.abort(0, "test", true));
+        assertFalse(first.aborted);
+        assertFalse(prb.getBlockBuffer().isReleased());
+    }
+
+    public void testAbortReleases() throws AbortedException {
+        PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+        prb.addPacket(0, new Buffer(new byte[PACKET_SIZE]));
+        Listener listener = new Listener();
+        prb.addListener(listener);
+        BlockBuffer buffer = prb.getBlockBuffer();
+        // A transmitter is still sending.
+        assertTrue(buffer.retain());
+        assertNull(prb.abort(0, "test", true));
+        assertTrue(listener.aborted);
+        try {
+            prb.getPacket(0);
+            fail();
+        } catch (AbortedException e) {
+            // Expected.
+        }
+        assertFalse(buffer.isReleased());
+        assertNotNull(buffer.getPacket(0));
+        buffer.release();
+        assertTrue(buffer.isReleased());
+    }
+
+}
@@ -0,0 +1,221 @@
+package freenet.io.xfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.Message;
+import freenet.io.comm.NotConnectedException;
+import freenet.node.MessageItem;
+import freenet.node.NullBasePeerNode;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Executor;
+
+public class TransferMultiplexerTest extends TestCase {
+
+    /** Runs jobs when the test says so. */
+    private static class ManualExecutor implements Executor {
+
+        final List<Runnable> jobs = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable job) {
+            jobs.add(job);
+        }
+
+        @Override
+        public void execute(Runnable job, String jobName) {
+            execute(job);
+        }
+
+        @Override
+        public void execute(Runnable job, String jobName, boolean fromTicker) {
+            execute(job);
+        }
+
+        @Override
+        public int[] waitingThreads() {
+            return new int[0];
+        }
+
+        @Override
+        public int[] runningThreads() {
+            return new int[0];
+        }
+
+        @Override
+        public int getWaitingThreadsCount() {
+            return 0;
+        }
+
+        void runAll() {
+            while(!jobs.isEmpty())
+                jobs.remove(0).run();
+        }
+
+    }
+
+    /** Keeps the queued packets until the test sends them. */
+    private static class QueueingPeer extends NullBasePeerNode {
+
+        final List<AsyncMessageCallback> queued = new ArrayList<AsyncMessageCallback>();
+
+        @Override
+        public MessageItem sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException {
+            queued.add(cb);
+            return null;
+        }
+
+        void sendAll() {
+            List<AsyncMessageCallback> sent = new ArrayList<AsyncMessageCallback>(queued);
+            queued.clear();
+            for(AsyncMessageCallback cb : sent) {
+                cb.sent();
+                cb.acknowledged();
+            }
+        }
+
+    }
+
+    /** A transfer which always has a packet to send. */
+    private static class Busy implements TransferMultiplexer.Transfer {
+
+        final TransferMultiplexer mux;
+        final boolean realTime;
+        final List<Integer> log;
+        final int id;
+        int sent;
+
+        Busy(TransferMultiplexer mux, boolean realTime, List<Integer> log, int id) {
+            this.mux = mux;
+            this.realTime = realTime;
+            this.log = log;
+            this.id = id;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return realTime;
+        }
+
+        @Override
+        public boolean sendPacket() {
+            try {
+                mux.send(DMT.createPacketTransmit(id, sent % 32, new BitArray(32), new Buffer(new byte[1024]), realTime), null, null, realTime);
+            } catch (NotConnectedException e) {
+                fail();
+            }
+            sent++;
+            log.add(id);
+            return true;
+        }
+
+    }
+
+    private ManualExecutor executor;
+    private QueueingPeer peer;
+    private TransferMultiplexer mux;
+    private List<Integer> log;
+
+    @Override
+    protected void setUp() {
+        executor = new ManualExecutor();
+        peer = new QueueingPeer();
+        mux = new TransferMultiplexer(peer, executor);
+        log = new ArrayList<Integer>();
+    }
+
+    public void testWeightedSharing() {
+        // Realtime transfers have odd ids.
+        Busy[] transfers = new Busy[4];
+        for(int i=0;i<transfers.length;i++) {
+            transfers[i] = new Busy(mux, i % 2 == 1, log, i);
+            mux.wakeUp(transfers[i]);
+        }
+        assertEquals(1, executor.jobs.size());
+        for(int round=0;round<10;round++) {
+            executor.runAll();
+            // Only about a queue's worth is queued at once.
+            assertTrue(mux.getQueuedBytes() >= TransferMultiplexer.MIN_QUEUED_BYTES);
+            assertTrue(mux.getQueuedBytes() < TransferMultiplexer.MIN_QUEUED_BYTES + 2048);
+            peer.sendAll();
+            assertEquals(0, mux.getQueuedBytes());
+            // Sending refills the queue.
+            assertEquals(1, executor.jobs.size());
+        }
+        int realTime = transfers[1].sent + transfers[3].sent;
+        int bulk = transfers[0].sent + transfers[2].sent;
+        double ratio = (double) realTime / bulk;
+        double expected = (double) TransferMultiplexer.REALTIME_WEIGHT / TransferMultiplexer.BULK_WEIGHT;
+        assertTrue("Ratio "+ratio, Math.abs(ratio - expected) < 0.1);
+        // Transfers in the same class take turns.
+        assertTrue(Math.abs(transfers[0].sent - transfers[2].sent) <= 1);
+        assertTrue(Math.abs(transfers[1].sent - transfers[3].sent) <= 1);
+        assertTrue(mux.getRate(true) > mux.getRate(false));
+        assertTrue(mux.getRate(false) > 0);
+    }
+
+    /** A class which has been idle doesn't get to catch up. */
+    public void testNoCreditForIdle() {
+        Busy bulk = new Busy(mux, false, log, 0);
+        mux.wakeUp(bulk);
+        for(int round=0;round<5;round++) {
+            executor.runAll();
+            peer.sendAll();
+        }
+        Busy realTime = new Busy(mux, true, log, 1);
+        mux.wakeUp(realTime);
+        log.clear();
+        executor.runAll();
+        // The bulk transfer gets its share straight away.
+        int firstBulk = log.indexOf(0);
+        assertTrue(firstBulk >= 0);
+        assertTrue(firstBulk <= TransferMultiplexer.REALTIME_WEIGHT / TransferMultiplexer.BULK_WEIGHT + 1);
+    }
+
+    /** A transfer with nothing to send is dropped until it wakes us up again. */
+    public void testIdleTransfer() {
+        final int[] calls = new int[1];
+        final boolean[] hasPacket = new boolean[] { true };
+        TransferMultiplexer.Transfer transfer = new TransferMultiplexer.Transfer() {
+
+            @Override
+            public boolean isRealTime() {
+                return true;
+            }
+
+            @Override
+            public boolean sendPacket() {
+                calls[0]++;
+                if(!hasPacket[0]) return false;
+                hasPacket[0] = false;
+                try {
+                    mux.send(DMT.createPacketTransmit(1, 0, new BitArray(32), new Buffer(new byte[1024]), true), null, null, true);
+                } catch (NotConnectedException e) {
+                    fail();
+                }
+                return true;
+            }
+
+        };
+        mux.wakeUp(transfer);
+        mux.wakeUp(transfer);
+        assertEquals(1, executor.jobs.size());
+        executor.runAll();
+        assertEquals(2, calls[0]);
+        assertEquals(1, peer.queued.size());
+        peer.sendAll();
+        executor.runAll();
+        assertEquals(2, calls[0]);
+        hasPacket[0] = true;
+        mux.wakeUp(transfer);
+        executor.runAll();
+        assertEquals(4, calls[0]);
+        assertEquals(1, peer.queued.size());
+    }
+
+}
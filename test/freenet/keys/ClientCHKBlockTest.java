@@ -63,6 +63,29 @@ public class ClientCHKBlockTest extends TestCase {
 		}
 	}
 	
+	public void testEncodeSplitfileBlockAtOffset() throws CHKEncodeException {
+		MersenneTwister random = new MersenneTwister(1234);
+		byte[] segment = new byte[CHKBlock.DATA_LENGTH * 3 + 7];
+		random.nextBytes(segment);
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		for(byte cryptoAlgorithm : new byte[] { Key.ALGO_AES_CTR_256_SHA256, Key.ALGO_AES_PCFB_256_SHA256 }) {
+			for(int offset : new int[] { 0, 7, CHKBlock.DATA_LENGTH * 2 + 7 }) {
+				byte[] block = Arrays.copyOfRange(segment, offset, offset + CHKBlock.DATA_LENGTH);
+				byte[] copyOfSegment = segment.clone();
+				for(byte[] key : new byte[][] { null, cryptoKey }) {
+					ClientCHKBlock expected = ClientCHKBlock.encodeSplitfileBlock(block, key, cryptoAlgorithm);
+					ClientCHKBlock actual = ClientCHKBlock.encodeSplitfileBlock(segment, offset, key, cryptoAlgorithm);
+					assertEquals(expected.getClientKey(), actual.getClientKey());
+					assertTrue(Arrays.equals(expected.getBlock().data, actual.getBlock().data));
+					assertTrue(Arrays.equals(expected.getBlock().headers, actual.getBlock().headers));
+					// Not modified in-place.
+					assertTrue(Arrays.equals(copyOfSegment, segment));
+				}
+			}
+		}
+	}
+	
 	private void checkBlock(byte[] data, boolean newAlgo) throws CHKEncodeException, InvalidCompressionCodecException, CHKVerifyException, CHKDecodeException, IOException {
 		byte cryptoAlgorithm = newAlgo ? Key.ALGO_AES_CTR_256_SHA256 : Key.ALGO_AES_PCFB_256_SHA256;
 		byte[] copyOfData = new byte[data.length];
@@ -56,6 +56,26 @@ public class NewPacketFormatTest extends TestCase {
 		assertEquals(1, p.getAcks().size());
 	}
 
+	public void testAckReschedulesSender() throws BlockedTooLongException {
+		final long[] rescheduled = new long[] { Long.MAX_VALUE };
+		BasePeerNode pn = new NullBasePeerNode() {
+			@Override
+			public void rescheduleSender(long time) {
+				rescheduled[0] = Math.min(rescheduled[0], time);
+			}
+		};
+		NewPacketFormat npf = new NewPacketFormat(pn, 0, 0);
+		SessionKey s = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+
+		NPFPacket p = new NPFPacket();
+		p.addMessageFragment(new MessageFragment(true, false, true, 0, 8, 8, 0, new byte[8], null));
+		long before = System.currentTimeMillis();
+		npf.handleDecryptedPacket(p, s);
+		// The ack is due well before the sender's next maintenance pass over the peer.
+		assertTrue(rescheduled[0] >= before + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+		assertTrue(rescheduled[0] <= System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+	}
+
 	public void testLostLastAck() throws BlockedTooLongException, InterruptedException {
 		NullBasePeerNode senderNode = new NullBasePeerNode();
 		NewPacketFormat sender = new NewPacketFormat(senderNode, 0, 0);
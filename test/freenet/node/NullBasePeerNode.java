@@ -13,6 +13,7 @@ import freenet.io.comm.PeerContext;
 import freenet.io.comm.SocketHandler;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.io.xfer.PacketThrottle;
+import freenet.io.xfer.TransferMultiplexer;
 
 /** Tests can override this to record specific events e.g. rekey */
 public class NullBasePeerNode implements BasePeerNode {
@@ -164,6 +165,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void rescheduleSender(long time) {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
@@ -283,4 +289,9 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Arbitrary.
 		return 10;
 	}
+
+	@Override
+	public TransferMultiplexer getTransferMultiplexer() {
+		throw new UnsupportedOperationException();
+	}
 }
@@ -0,0 +1,263 @@
+package freenet.node;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.support.TestProperty;
+
+import junit.framework.TestCase;
+
+/** PeerLocationIndex must choose exactly the same peer as the linear scan in
+ * PeerManager.closerPeer(), which is driven here with mock peers. */
+public class PeerLocationIndexTest extends TestCase {
+
+    /** A random set of peers, with the state closerPeer() looks at. */
+    private static class Peers implements PeerLocationIndex.Router {
+        final double target;
+        final double[] locs;
+        final double[][] peerLocs;
+        final PeerLocation[] locations;
+        final boolean[] routable;
+        final boolean[] useFOAF;
+        final boolean[] backedOff;
+        final Set<Double> exclude = new HashSet<Double>();
+
+        Peers(Random r, int count, boolean coarse) {
+            target = randomLocation(r, coarse);
+            locs = new double[count];
+            peerLocs = new double[count][];
+            locations = new PeerLocation[count];
+            routable = new boolean[count];
+            useFOAF = new boolean[count];
+            backedOff = new boolean[count];
+            for(int i=0;i<count;i++) {
+                locs[i] = r.nextInt(20) == 0 ? Location.LOCATION_INVALID : randomLocation(r, coarse);
+                locations[i] = new PeerLocation(Double.toString(locs[i]));
+                if(r.nextInt(4) != 0 && Location.isValid(locs[i])) {
+                    double[] l = new double[r.nextInt(30)];
+                    for(int j=0;j<l.length;j++) l[j] = randomLocation(r, coarse);
+                    locations[i].updateLocation(locs[i], l);
+                    peerLocs[i] = locations[i].getPeersLocationArray();
+                    if(l.length > 0 && r.nextInt(3) == 0)
+                        exclude.add(l[r.nextInt(l.length)]);
+                }
+                routable[i] = Location.isValid(locs[i]) && r.nextInt(5) != 0;
+                useFOAF[i] = r.nextBoolean();
+                backedOff[i] = r.nextInt(3) == 0;
+            }
+        }
+
+        @Override
+        public boolean canRouteTo(int peer) {
+            return routable[peer];
+        }
+
+        @Override
+        public double getLocation(int peer) {
+            return locs[peer];
+        }
+
+        @Override
+        public double getClosestPeerLocation(int peer) {
+            if(!useFOAF[peer]) return Double.NaN;
+            return locations[peer].getClosestPeerLocation(target, exclude);
+        }
+
+        @Override
+        public boolean isBackedOff(int peer) {
+            return backedOff[peer];
+        }
+
+    }
+
+    private static double randomLocation(Random r, boolean coarse) {
+        // Coarse locations give lots of exact ties.
+        if(coarse) return r.nextInt(64) / 64.0;
+        return r.nextDouble();
+    }
+
+    /** The most peers a test uses. */
+    private static final int MAX_PEERS = 60;
+
+    /** A real PeerManager whose connected peers are mocks answering from a Peers. */
+    private static class Manager {
+        final PeerManager manager;
+        final PeerNode[] pool = new PeerNode[MAX_PEERS];
+        Peers peers;
+        /** Peers already routed to, which aren't connected, at the excluded locations. */
+        final Set<PeerNode> routedTo = new HashSet<PeerNode>();
+
+        Manager() throws Exception {
+            manager = new PeerManager(mock(Node.class), mock(SemiOrderedShutdownHook.class));
+            for(int i=0;i<MAX_PEERS;i++) {
+                final int peer = i;
+                PeerNode pn = mock(PeerNode.class);
+                when(pn.getLocation()).thenAnswer(new Answer<Double>() {
+                    @Override
+                    public Double answer(InvocationOnMock invocation) {
+                        return peers.locs[peer];
+                    }
+                });
+                when(pn.getPeersLocationArray()).thenAnswer(new Answer<double[]>() {
+                    @Override
+                    public double[] answer(InvocationOnMock invocation) {
+                        return peers.peerLocs[peer];
+                    }
+                });
+                when(pn.isRoutable()).thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return peers.routable[peer];
+                    }
+                });
+                when(pn.shallWeRouteAccordingToOurPeersLocation(anyInt())).thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return peers.useFOAF[peer];
+                    }
+                });
+                when(pn.getClosestPeerLocation(anyDouble(), anySetOf(Double.class))).thenAnswer(new Answer<Double>() {
+                    @Override
+                    public Double answer(InvocationOnMock invocation) {
+                        Object[] args = invocation.getArguments();
+                        @SuppressWarnings("unchecked")
+                        Set<Double> exclude = (Set<Double>) args[1];
+                        return peers.locations[peer].getClosestPeerLocation((Double) args[0], exclude);
+                    }
+                });
+                when(pn.isRoutingBackedOff(anyLong(), anyBoolean())).thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return peers.backedOff[peer];
+                    }
+                });
+                pool[i] = pn;
+            }
+        }
+
+        /** Connect to the first peers.locs.length peers of the pool, with a new array, as
+         * PeerManager does when a peer connects. */
+        void setPeers(Peers peers) throws Exception {
+            this.peers = peers;
+            routedTo.clear();
+            for(double loc : peers.exclude) {
+                PeerNode pn = mock(PeerNode.class);
+                when(pn.getLocation()).thenReturn(loc);
+                routedTo.add(pn);
+            }
+            // closerPeer() also excludes our location, which is 0.0 on the mock Node, and
+            // that of the peer the request came from, -1.0 when there isn't one.
+            peers.exclude.add(0.0);
+            peers.exclude.add(-1.0);
+            Field f = PeerManager.class.getDeclaredField("connectedPeers");
+            f.setAccessible(true);
+            f.set(manager, Arrays.copyOf(pool, peers.locs.length));
+        }
+
+        /** @param linear If true, take closerPeer()'s linear scan, which it uses whenever it needs
+         * the unpicked locations, rather than the index.
+         * @return The index of the peer chosen, or -1. */
+        int closerPeer(double maxDistance, boolean linear) {
+            PeerNode chosen = manager.closerPeer(null, routedTo, peers.target,
+                    true, false, 0, linear ? new ArrayList<Double>() : null, maxDistance, null,
+                    (short) 10, 0, true, false, null, false, System.currentTimeMillis(), false);
+            if(chosen == null) return -1;
+            for(int i=0;i<peers.locs.length;i++)
+                if(pool[i] == chosen) return i;
+            throw new IllegalStateException("Chose a peer we are not connected to");
+        }
+
+    }
+
+    /** The index, and closerPeer() with and without it, must all choose the same peer. */
+    public void testSameAsCloserPeer() throws Exception {
+        Random r = new Random(20210621);
+        Manager manager = null;
+        int iterations = TestProperty.EXTENSIVE ? 50000 : 2000;
+        for(int i=0;i<iterations;i++) {
+            // The mocks remember every call made to them.
+            if(i % 100 == 0) manager = new Manager();
+            Peers peers = new Peers(r, r.nextInt(MAX_PEERS), r.nextBoolean());
+            double maxDistance;
+            switch(r.nextInt(3)) {
+            case 0:
+                maxDistance = 2.0;
+                break;
+            case 1:
+                maxDistance = r.nextDouble() * 0.5;
+                break;
+            default:
+                maxDistance = r.nextInt(32) / 64.0;
+            }
+            manager.setPeers(peers);
+            int linear = manager.closerPeer(maxDistance, true);
+            assertEquals("Iteration "+i, linear, manager.closerPeer(maxDistance, false));
+            PeerLocationIndex index = new PeerLocationIndex(peers.locs, peers.peerLocs);
+            assertEquals("Iteration "+i, linear, index.closest(peers.target, maxDistance, peers));
+        }
+    }
+
+    public void testEmpty() {
+        Peers peers = new Peers(new Random(20210622), 0, false);
+        PeerLocationIndex index = new PeerLocationIndex(peers.locs, peers.peerLocs);
+        assertEquals(-1, index.closest(0.5, 2.0, peers));
+    }
+
+    /** A direct location wins a tie with an earlier peer's FOAF location. */
+    public void testDirectWinsTie() throws Exception {
+        Random r = new Random(20210623);
+        Peers peers = new Peers(r, 2, false);
+        double target = peers.target;
+        Arrays.fill(peers.routable, true);
+        Arrays.fill(peers.backedOff, false);
+        Arrays.fill(peers.useFOAF, true);
+        peers.exclude.clear();
+        double near = (target + 0.1) % 1.0;
+        double far = (target + 0.3) % 1.0;
+        peers.locs[0] = far;
+        peers.locations[0].updateLocation(far, new double[] { near });
+        peers.peerLocs[0] = peers.locations[0].getPeersLocationArray();
+        peers.locs[1] = near;
+        peers.locations[1].updateLocation(near, new double[0]);
+        peers.peerLocs[1] = null;
+        PeerLocationIndex index = new PeerLocationIndex(peers.locs, peers.peerLocs);
+        assertEquals(1, index.closest(target, 2.0, peers));
+        Manager manager = new Manager();
+        manager.setPeers(peers);
+        assertEquals(1, manager.closerPeer(2.0, true));
+        assertEquals(1, manager.closerPeer(2.0, false));
+    }
+
+    /** closerPeer() doesn't ask every peer for its selection rate on every request. */
+    public void testSelectionRatesCached() throws Exception {
+        Manager manager = new Manager();
+        manager.setPeers(new Peers(new Random(20210624), 20, false));
+        for(int i=0;i<10;i++)
+            manager.closerPeer(2.0, i % 2 == 0);
+        for(int i=0;i<20;i++)
+            verify(manager.pool[i], times(1)).selectionRate();
+        // A new connectedPeers array means different peers.
+        manager.setPeers(manager.peers);
+        manager.closerPeer(2.0, false);
+        for(int i=0;i<20;i++)
+            verify(manager.pool[i], times(2)).selectionRate();
+    }
+
+}
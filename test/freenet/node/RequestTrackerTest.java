@@ -0,0 +1,180 @@
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+import junit.framework.TestCase;
+
+/** The running load totals in RequestTracker must always agree with a full recount of the
+ * tags, as tags are locked, change state and are unlocked. */
+public class RequestTrackerTest extends TestCase {
+
+	private static final int TRANSFERS_PER_INSERT = 3;
+
+	private RequestTracker tracker;
+	private Node node;
+	private PeerNode peerA;
+	private PeerNode peerB;
+	private long uid;
+
+	@Override
+	protected void setUp() throws Exception {
+		tracker = new RequestTracker(null, null);
+		// Tags only need the node for its tracker, and the source for its weak reference.
+		node = mock(Node.class);
+		setField(node, Node.class, "tracker", tracker);
+		peerA = mockPeer();
+		peerB = mockPeer();
+	}
+
+	private static PeerNode mockPeer() throws Exception {
+		PeerNode pn = mock(PeerNode.class);
+		setField(pn, PeerNode.class, "myRef", new WeakReference<PeerNode>(pn));
+		return pn;
+	}
+
+	private static void setField(Object o, Class<?> c, String name, Object value) throws Exception {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	private RequestTag lockRequest(PeerNode source) {
+		RequestTag tag = new RequestTag(false, source == null ? RequestTag.START.LOCAL : RequestTag.START.REMOTE, source, false, uid++, node);
+		assertTrue(tracker.lockUID(tag));
+		return tag;
+	}
+
+	private InsertTag lockInsert(PeerNode source) {
+		InsertTag tag = new InsertTag(false, source == null ? InsertTag.START.LOCAL : InsertTag.START.REMOTE, source, false, uid++, node);
+		assertTrue(tracker.lockUID(tag));
+		return tag;
+	}
+
+	private static void assertSame(String desc, CountedRequests expected, CountedRequests actual) {
+		assertEquals(desc+" total", expected.total(), actual.total());
+		assertEquals(desc+" in", expected.expectedTransfersIn(), actual.expectedTransfersIn());
+		assertEquals(desc+" out", expected.expectedTransfersOut(), actual.expectedTransfersOut());
+	}
+
+	/** Compare countRequests() with recountRequests() for every kind of count the tags in this
+	 * test can contribute to. */
+	private void checkTotals(String step) {
+		for(boolean insert : new boolean[] { false, true }) {
+			for(boolean local : new boolean[] { false, true }) {
+				for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+					String desc = step+": insert="+insert+" local="+local+" ignoreLocalVsRemote="+ignoreLocalVsRemote;
+					CountedRequests count = new CountedRequests();
+					CountedRequests countSR = new CountedRequests();
+					tracker.countRequests(local, false, insert, false, false, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, count, countSR);
+					CountedRequests recount = new CountedRequests();
+					CountedRequests recountSR = new CountedRequests();
+					tracker.recountRequests(local, false, insert, false, false, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, recount, recountSR);
+					assertSame(desc, recount, count);
+					assertSame(desc+" source restarted", recountSR, countSR);
+					for(PeerNode pn : new PeerNode[] { null, peerA, peerB }) {
+						for(boolean requestsToNode : new boolean[] { false, true }) {
+							String peerDesc = desc+(requestsToNode ? " to " : " from ")+(pn == peerA ? "A" : pn == peerB ? "B" : "null");
+							count = new CountedRequests();
+							countSR = new CountedRequests();
+							tracker.countRequests(pn, requestsToNode, local, false, insert, false, false, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, count, countSR);
+							recount = new CountedRequests();
+							recountSR = requestsToNode ? null : new CountedRequests();
+							tracker.recountRequests(pn, requestsToNode, local, false, insert, false, false, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, recount, recountSR);
+							assertSame(peerDesc, recount, count);
+							if(!requestsToNode)
+								assertSame(peerDesc+" source restarted", recountSR, countSR);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private int countAll(boolean insert) {
+		CountedRequests count = new CountedRequests();
+		tracker.countRequests(false, false, insert, false, false, TRANSFERS_PER_INSERT, true, count, null);
+		CountedRequests local = new CountedRequests();
+		tracker.countRequests(true, false, insert, false, false, TRANSFERS_PER_INSERT, true, local, null);
+		return count.total() + local.total();
+	}
+
+	public void testRequestLifecycle() {
+		checkTotals("empty");
+		RequestTag remote = lockRequest(peerA);
+		checkTotals("locked remote");
+		RequestTag local = lockRequest(null);
+		checkTotals("locked local");
+		remote.setAccepted();
+		checkTotals("accepted");
+
+		// Route both onwards.
+		remote.addRoutedTo(peerB, false);
+		checkTotals("remote routing to B");
+		local.addRoutedTo(peerA, false);
+		local.addRoutedTo(peerB, true);
+		checkTotals("local routing to A, offered key from B");
+		remote.setSender(null, false);
+		local.setSender(null, false);
+
+		// Handler side finishes first. Reassign so that we keep waiting for B.
+		remote.reassignToSelf();
+		checkTotals("remote reassigned");
+		remote.unlockHandler();
+		checkTotals("remote handler unlocked");
+		remote.removeRoutingTo(peerB);
+		checkTotals("remote no longer routing");
+		assertEquals(2, countAll(false));
+		// Still waiting for the sender.
+		remote.setRequestSenderFinished(RequestSender.SUCCESS);
+		checkTotals("remote sender finished");
+		assertEquals(1, countAll(false));
+
+		// Sender side finishes first.
+		local.removeRoutingTo(peerA);
+		local.removeFetchingOfferedKeyFrom(peerB);
+		checkTotals("local no longer routing");
+		local.setRequestSenderFinished(RequestSender.SUCCESS);
+		checkTotals("local sender finished");
+		local.unlockHandler();
+		checkTotals("local handler unlocked");
+		assertEquals(0, countAll(false));
+	}
+
+	public void testInsertSourceRestarted() {
+		InsertTag fromA = lockInsert(peerA);
+		InsertTag fromB = lockInsert(peerB);
+		fromA.setAccepted();
+		fromB.setAccepted();
+		checkTotals("accepted");
+		fromA.startedSender();
+		fromA.addRoutedTo(peerB, false);
+		fromB.addRoutedTo(peerA, false);
+		checkTotals("routing");
+		fromA.onRestartOrDisconnectSource();
+		checkTotals("source A restarted");
+		fromB.timedOutToHandlerButContinued();
+		checkTotals("B timed out but continued");
+		fromB.setNotRoutedOnwards();
+		checkTotals("B not routed onwards");
+
+		fromA.unlockHandler();
+		checkTotals("A handler unlocked");
+		fromA.removeRoutingTo(peerB);
+		checkTotals("A no longer routing");
+		assertEquals(2, countAll(true));
+		fromA.finishedSender();
+		checkTotals("A sender finished");
+		assertEquals(1, countAll(true));
+
+		fromB.removeRoutingTo(peerA);
+		fromB.unlockHandler();
+		checkTotals("B unlocked");
+		assertEquals(0, countAll(true));
+	}
+
+}
@@ -0,0 +1,100 @@
+package freenet.store.saltedhash;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/** Test the striped slot locking used by the salted hash store */
+public class LockManagerTest extends TestCase {
+
+	public void testStripesSortedAndDistinct() {
+		LockManager lm = new LockManager();
+		int[] locked = lm.lockEntries(5, 3, 5 + LockManager.STRIPES, 3);
+		assertNotNull(locked);
+		assertEquals(2, locked.length);
+		assertEquals(3, locked[0]);
+		assertEquals(5, locked[1]);
+		lm.unlockEntries(locked);
+		assertEquals(1, lm.lockCount());
+	}
+
+	public void testRangeCoversAllStripes() {
+		LockManager lm = new LockManager();
+		int[] locked = lm.lockRange(LockManager.STRIPES - 2, LockManager.STRIPES * 2);
+		assertNotNull(locked);
+		assertEquals(LockManager.STRIPES, locked.length);
+		for (int i = 0; i < locked.length; i++)
+			assertEquals(i, locked[i]);
+		lm.unlockEntries(locked);
+
+		locked = lm.lockRange(LockManager.STRIPES - 2, 4);
+		assertEquals(4, locked.length);
+		assertEquals(0, locked[0]);
+		assertEquals(LockManager.STRIPES - 1, locked[3]);
+		lm.unlockEntries(locked);
+	}
+
+	public void testExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		int[] locked = lm.lockEntries(10);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				int[] other = lm.lockEntries(10 + LockManager.STRIPES, 11);
+				acquired.countDown();
+				lm.unlockEntries(other);
+			}
+		};
+		t.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		lm.unlockEntries(locked);
+		assertTrue(acquired.await(10, TimeUnit.SECONDS));
+		t.join();
+		assertEquals(1, lm.contendedCount());
+		assertTrue(lm.contendedWaitNanos() > 0);
+	}
+
+	/** Overlapping multi-slot locks taken in any order must not deadlock. */
+	public void testNoDeadlock() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						int[] locked;
+						if (j % 2 == 0)
+							locked = lm.lockEntries(j * 7 + seed, 3 - seed, j);
+						else
+							locked = lm.lockRange(j * 31, 128);
+						if (locked == null) {
+							failed.set(true);
+							return;
+						}
+						lm.unlockEntries(locked);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join(60 * 1000);
+			assertFalse(t.isAlive());
+		}
+		assertFalse(failed.get());
+	}
+
+	public void testShutdown() {
+		LockManager lm = new LockManager();
+		lm.unlockEntries(lm.lockEntries(1, 2, 3));
+		lm.shutdown();
+		assertNull(lm.lockEntries(1));
+		assertNull(lm.lockRange(0, 16));
+	}
+}
@@ -0,0 +1,93 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+/** Test the on-heap and off-heap slot filter buffers */
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private static final int SIZE = 1000;
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testOffHeap() throws IOException {
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(new File(tempDir, "offheap"), SIZE, true);
+		assertTrue(buf.isOffHeap());
+		assertTrue(buf.isNew());
+		buf.fill(-1);
+		for(int i=0;i<SIZE;i++)
+			assertEquals(-1, buf.get(i));
+		buf.put(7, 42);
+		assertEquals(42, buf.get(7));
+		buf.replaceAllEntries(-1, 3);
+		assertEquals(3, buf.get(0));
+		assertEquals(42, buf.get(7));
+		buf.shutdown();
+	}
+
+	/** The file format must not depend on where the buffer is kept. */
+	public void testPersistenceCompatible() throws IOException {
+		checkPersistence(false, true);
+		checkPersistence(true, false);
+		checkPersistence(true, true);
+	}
+
+	private void checkPersistence(boolean writeOffHeap, boolean readOffHeap) throws IOException {
+		File f = new File(tempDir, "persist");
+		FileUtil.removeAll(f);
+		Random random = new Random(writeOffHeap ? 1 : 2);
+		int[] values = new int[SIZE];
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE, writeOffHeap);
+		for(int i=0;i<SIZE;i++) {
+			values[i] = random.nextInt();
+			buf.put(i, values[i], true);
+		}
+		buf.shutdown();
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE, readOffHeap);
+		assertFalse(buf.isNew());
+		assertEquals(readOffHeap, buf.isOffHeap());
+		for(int i=0;i<SIZE;i++)
+			assertEquals(values[i], buf.get(i));
+		buf.shutdown();
+	}
+
+	public void testResizeOffHeap() throws IOException {
+		File f = new File(tempDir, "resize");
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(f, SIZE, true);
+		for(int i=0;i<SIZE;i++)
+			buf.put(i, i, true);
+		buf.resize(SIZE * 2);
+		assertEquals(SIZE * 2, buf.size());
+		assertTrue(buf.isOffHeap());
+		for(int i=0;i<SIZE;i++)
+			assertEquals(i, buf.get(i));
+		assertEquals(0, buf.get(SIZE * 2 - 1));
+		buf.resize(SIZE / 2);
+		for(int i=0;i<SIZE/2;i++)
+			assertEquals(i, buf.get(i));
+		buf.shutdown();
+		assertEquals(SIZE / 2 * 4, f.length());
+
+		buf = new ResizablePersistentIntBuffer(f, SIZE / 2, false);
+		for(int i=0;i<SIZE/2;i++)
+			assertEquals(i, buf.get(i));
+		buf.shutdown();
+	}
+
+}
@@ -3,6 +3,9 @@ package freenet.store.saltedhash;
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 import freenet.crypt.DSAGroup;
@@ -35,8 +38,10 @@ import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
+import freenet.store.StoreFetchCallback;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -95,6 +100,124 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/* Simple test with CHK for SaltedHashFreenetStore with a memory-mapped metadata file */
+	public void testSimpleCHKMappedMetadata() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<keys.length;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, keys[i]);
+			assertEquals(test, data);
+		}
+		
+		saltStore.close();
+
+		// Blocks written through the mapping must be readable with or without it.
+		for(boolean mapMetadata : new boolean[] { false, true }) {
+			store = new CHKStore();
+			saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMapped", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, mapMetadata);
+			saltStore.start(null, true);
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+				assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			}
+			saltStore.close();
+		}
+	}
+
+	public void testFetchAsyncCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKAsync", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+		}
+		ClientCHK missing = encodeBlockCHK("missing").getClientKey();
+
+		for(int i=0;i<=keys.length;i++) {
+			ClientCHK key = i < keys.length ? keys[i] : missing;
+			final CountDownLatch done = new CountDownLatch(1);
+			final AtomicReference<CHKBlock> result = new AtomicReference<CHKBlock>();
+			store.fetchAsync(key.getNodeCHK(), false, false, null, new StoreFetchCallback<CHKBlock>() {
+
+				@Override
+				public void onFetched(CHKBlock block) {
+					result.set(block);
+					done.countDown();
+				}
+
+				@Override
+				public void onFailure(IOException e) {
+					done.countDown();
+				}
+
+			});
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			if(i < keys.length)
+				assertEquals("test" + i, decodeBlockCHK(result.get(), key));
+			else
+				assertNull(result.get());
+		}
+
+		saltStore.close();
+	}
+
+	/* Compare probe latency with and without a memory-mapped metadata file */
+	public void testBenchmarkMappedMetadata() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int storeSize = 20000;
+		final int blocks = 2000;
+		final int rounds = 20;
+		ClientCHKBlock[] present = new ClientCHKBlock[blocks];
+		ClientCHKBlock[] absent = new ClientCHKBlock[blocks];
+		for(int i=0;i<blocks;i++) {
+			present[i] = encodeBlockCHK("present" + i);
+			absent[i] = encodeBlockCHK("absent" + i);
+		}
+
+		for(boolean mapMetadata : new boolean[] { false, true, false, true }) {
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+			CHKStore store = new CHKStore();
+			// No slot filter, so every probe has to read the slot metadata.
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "benchmarkMappedMetadata", store, weakPRNG, storeSize, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, mapMetadata);
+			saltStore.start(null, true);
+			for(ClientCHKBlock block : present)
+				store.put(block.getBlock(), false);
+
+			long hits = 0;
+			long startTime = System.nanoTime();
+			for(int r=0;r<rounds;r++) {
+				for(int i=0;i<blocks;i++) {
+					if(store.fetch(present[i].getClientKey().getNodeCHK(), false, false, null) != null) hits++;
+					if(store.fetch(absent[i].getClientKey().getNodeCHK(), false, false, null) != null) hits++;
+				}
+			}
+			long elapsed = System.nanoTime() - startTime;
+			saltStore.close();
+			System.out.println("Metadata " + (mapMetadata ? "mapped" : "via FileChannel") + ": " +
+					(elapsed / (2L * rounds * blocks)) + "ns per fetch (" + hits + " hits)");
+		}
+	}
+	
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
@@ -16,8 +16,12 @@
 package freenet.support;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -184,4 +188,40 @@ public class BufferTest extends TestCase {
 			assertEquals(newBuf[i], oldBuf[i]);
 		}
 	}
+
+	public void testByteBufferBuffer() throws IOException {
+		byte[] data = DATA_STRING_1.getBytes();
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+		direct.position(5);
+		direct.put(data);
+		direct.position(5);
+		direct.limit(5 + data.length);
+		Buffer buffer = new Buffer(direct);
+		// The Buffer must not depend on the ByteBuffer's position and limit.
+		direct.clear();
+		
+		doTestBuffer(data, buffer);
+		assertTrue(Arrays.equals(data, buffer.getData()));
+		
+		byte[] copy = new byte[data.length + 1];
+		buffer.copyTo(copy, 1);
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(copy, 1, copy.length)));
+		
+		// Copying must not use up the buffer.
+		for(int i = 0; i < 2; i++) {
+			ByteBuffer out = ByteBuffer.allocate(data.length);
+			buffer.copyTo(out);
+			assertTrue(Arrays.equals(data, out.array()));
+		}
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		buffer.writeToDataOutputStream(new DataOutputStream(baos));
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Buffer(data).writeToDataOutputStream(new DataOutputStream(expected));
+		assertTrue(Arrays.equals(expected.toByteArray(), baos.toByteArray()));
+		
+		Buffer other = new Buffer(ByteBuffer.wrap(data.clone()));
+		assertTrue(buffer.equals(other));
+		assertEquals(buffer.hashCode(), other.hashCode());
+	}
 }
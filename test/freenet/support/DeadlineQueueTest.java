@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.DeadlineQueue} class.
+ */
+public class DeadlineQueueTest extends TestCase {
+
+	public void testRemoveDue() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		assertEquals(Long.MAX_VALUE, queue.earliest());
+		queue.set("c", 30);
+		queue.set("a", 10);
+		queue.set("b", 20);
+		queue.set("b2", 20);
+		assertEquals(4, queue.size());
+		assertEquals(10, queue.earliest());
+		List<String> due = new ArrayList<String>();
+		assertEquals(0, queue.removeDue(9, due));
+		assertEquals(3, queue.removeDue(20, due));
+		// Earliest first, ties in the order they were set.
+		assertEquals("a", due.get(0));
+		assertEquals("b", due.get(1));
+		assertEquals("b2", due.get(2));
+		assertEquals(1, queue.size());
+		assertEquals(30, queue.earliest());
+		assertEquals(Long.MAX_VALUE, queue.getTime("a"));
+	}
+
+	public void testSetIfEarlier() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		assertTrue(queue.setIfEarlier("a", 100));
+		assertFalse(queue.setIfEarlier("a", 200));
+		assertEquals(100, queue.getTime("a"));
+		assertTrue(queue.setIfEarlier("a", 50));
+		assertEquals(50, queue.earliest());
+		assertFalse(queue.setIfEarlier("b", Long.MAX_VALUE));
+		assertEquals(1, queue.size());
+		// set() can move it later.
+		queue.set("a", 300);
+		assertEquals(300, queue.earliest());
+		queue.set("a", Long.MAX_VALUE);
+		assertEquals(0, queue.size());
+	}
+
+	public void testIdentity() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		String a1 = new String("a");
+		String a2 = new String("a");
+		queue.set(a1, 10);
+		queue.set(a2, 20);
+		assertEquals(2, queue.size());
+		assertTrue(queue.remove(a1));
+		assertFalse(queue.remove(a1));
+		assertEquals(20, queue.earliest());
+		queue.clear();
+		assertEquals(Long.MAX_VALUE, queue.earliest());
+	}
+
+}
@@ -14,8 +14,8 @@ public class PrioritizedTickerTest extends TestCase {
 	    private boolean sleeping;
 	    private Object sleepSync = new Object();
 	    
-        public MyTicker(Executor executor, int portNumber) {
-            super(executor, portNumber);
+        public MyTicker(Executor executor, int portNumber, boolean timerWheel) {
+            super(executor, portNumber, timerWheel);
         }
         
         protected void sleep(long sleepTime) throws InterruptedException {
@@ -52,11 +52,16 @@ public class PrioritizedTickerTest extends TestCase {
 	    
 	}
 
+	/** Overridden to run the same tests with the timing wheel. */
+	protected boolean useTimerWheel() {
+		return false;
+	}
+
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
 		realExec = new WaitableExecutor(new PooledExecutor());
-		ticker = new MyTicker(realExec, 0);
+		ticker = new MyTicker(realExec, 0, useTimerWheel());
 		ticker.start();
 	}
 
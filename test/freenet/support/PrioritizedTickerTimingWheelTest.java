@@ -0,0 +1,11 @@
+package freenet.support;
+
+/** Runs PrioritizedTickerTest against the timing wheel. */
+public class PrioritizedTickerTimingWheelTest extends PrioritizedTickerTest {
+
+	@Override
+	protected boolean useTimerWheel() {
+		return true;
+	}
+
+}
@@ -0,0 +1,129 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.SegmentedLRUMap} class.
+ */
+public class SegmentedLRUMapTest extends TestCase {
+
+	private static final int SAMPLE_SIZE = 1000;
+
+	private static byte[] key(int i) {
+		byte[] key = new byte[32];
+		new Random(i).nextBytes(key);
+		return key;
+	}
+
+	public void testGetPushRemove() {
+		SegmentedLRUMap<Integer> map = new SegmentedLRUMap<Integer>();
+		for(int i=0;i<SAMPLE_SIZE;i++)
+			assertNull(map.push(key(i), i));
+		assertEquals(SAMPLE_SIZE, map.size());
+		for(int i=0;i<SAMPLE_SIZE;i++) {
+			// A different array with the same content must find the same entry.
+			assertEquals(Integer.valueOf(i), map.get(key(i)));
+			assertTrue(map.containsKey(key(i)));
+		}
+		assertNull(map.get(key(SAMPLE_SIZE)));
+		assertEquals(Integer.valueOf(5), map.push(key(5), -5));
+		assertEquals(Integer.valueOf(-5), map.get(key(5)));
+		assertEquals(SAMPLE_SIZE, map.size());
+		for(int i=0;i<SAMPLE_SIZE;i+=2)
+			assertNotNull(map.remove(key(i)));
+		assertNull(map.remove(key(0)));
+		assertEquals(SAMPLE_SIZE / 2, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(key(1)));
+	}
+
+	public void testConditionalOperations() {
+		SegmentedLRUMap<Integer> map = new SegmentedLRUMap<Integer>();
+		Integer one = new Integer(1);
+		Integer two = new Integer(2);
+		assertNull(map.replace(key(1), one));
+		assertNull(map.putIfAbsent(key(1), one));
+		assertSame(one, map.putIfAbsent(key(1), two));
+		// Identity, not equality.
+		assertFalse(map.replace(key(1), new Integer(1), two));
+		assertFalse(map.remove(key(1), new Integer(1)));
+		assertTrue(map.replace(key(1), one, two));
+		assertSame(two, map.replace(key(1), one));
+		assertTrue(map.remove(key(1), one));
+		assertTrue(map.isEmpty());
+	}
+
+	/** Eviction order must be LRU across all segments, not just within a segment. */
+	public void testGlobalLRUOrder() {
+		SegmentedLRUMap<Integer> map = new SegmentedLRUMap<Integer>(4);
+		for(int i=0;i<SAMPLE_SIZE;i++)
+			map.push(key(i), i);
+		// Promote the even keys, in reverse order. Plain get() must not promote.
+		for(int i=SAMPLE_SIZE-2;i>=0;i-=2)
+			map.get(key(i), true);
+		for(int i=1;i<SAMPLE_SIZE;i+=2)
+			map.get(key(i));
+		for(int i=1;i<SAMPLE_SIZE;i+=2)
+			assertEquals(Integer.valueOf(i), map.popOldest().value);
+		assertEquals(Integer.valueOf(SAMPLE_SIZE-2), map.peekOldest().value);
+		for(int i=SAMPLE_SIZE-2;i>=0;i-=2)
+			assertEquals(Integer.valueOf(i), map.popOldest().value);
+		assertNull(map.peekOldest());
+		assertNull(map.popOldest());
+	}
+
+	public void testEntries() {
+		SegmentedLRUMap<Integer> map = new SegmentedLRUMap<Integer>();
+		for(int i=0;i<SAMPLE_SIZE;i++)
+			map.push(key(i), i);
+		List<SegmentedLRUMap.Entry<Integer>> entries = map.entries();
+		assertEquals(SAMPLE_SIZE, entries.size());
+		Set<Integer> seen = new HashSet<Integer>();
+		for(SegmentedLRUMap.Entry<Integer> entry : entries) {
+			assertEquals(entry.value, map.get(entry.key));
+			assertTrue(seen.add(entry.value));
+		}
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final SegmentedLRUMap<Integer> map = new SegmentedLRUMap<Integer>();
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int base = t * SAMPLE_SIZE;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=base;i<base+SAMPLE_SIZE;i++) {
+						map.push(key(i), i);
+						Integer value = map.get(key(i), true);
+						if(value == null || value != i)
+							failed.set(true);
+						if(i % 3 == 0)
+							map.remove(key(i));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertFalse(failed.get());
+		int expected = 0;
+		for(int i=0;i<threads.length*SAMPLE_SIZE;i++)
+			if(i % 3 != 0) expected++;
+		assertEquals(expected, map.size());
+		assertEquals(expected, map.entries().size());
+		assertTrue(map.lockAcquisitions() > 0);
+	}
+}
@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.TimingWheel} class.
+ */
+public class TimingWheelTest extends TestCase {
+
+	private static List<String> expire(TimingWheel<String> wheel, long now) {
+		List<TimingWheel.Entry<String>> expired = new ArrayList<TimingWheel.Entry<String>>();
+		wheel.expire(now, expired);
+		List<String> items = new ArrayList<String>();
+		for(TimingWheel.Entry<String> e : expired)
+			items.add(e.item);
+		return items;
+	}
+
+	public void testSimple() {
+		long start = 1000000;
+		TimingWheel<String> wheel = new TimingWheel<String>(start);
+		assertEquals(start + 200, wheel.nextExpiry(start + 200));
+		wheel.add("a", start + 10);
+		wheel.add("b", start + 1000);
+		TimingWheel.Entry<String> c = wheel.add("c", start + 100000);
+		wheel.add("overdue", start - 5);
+		assertEquals(4, wheel.size());
+		// Overdue, so should be expired immediately.
+		assertTrue(wheel.nextExpiry(start + 200) < start);
+		assertEquals("[overdue]", expire(wheel, start).toString());
+		assertEquals(start + 10, wheel.nextExpiry(start + 200));
+		assertTrue(expire(wheel, start + 9).isEmpty());
+		assertEquals("[a]", expire(wheel, start + 10).toString());
+		wheel.remove(c);
+		wheel.remove(c);
+		assertFalse(c.isQueued());
+		assertEquals(1, wheel.size());
+		assertTrue(expire(wheel, start + 999).isEmpty());
+		assertEquals("[b]", expire(wheel, start + 200000).toString());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testRandom() {
+		Random random = new Random(1234);
+		long now = 1 << 20;
+		TimingWheel<String> wheel = new TimingWheel<String>(now);
+		List<TimingWheel.Entry<String>> queued = new ArrayList<TimingWheel.Entry<String>>();
+		List<TimingWheel.Entry<String>> expired = new ArrayList<TimingWheel.Entry<String>>();
+		for(int round = 0; round < 2000; round++) {
+			for(int i = 0; i < 20; i++) {
+				// Offsets up to beyond the range of the wheel.
+				long offset = (long) (Math.pow(2, random.nextDouble() * 34)) - 10;
+				queued.add(wheel.add("job " + round + "." + i, now + offset));
+			}
+			for(int i = 0; i < 5 && !queued.isEmpty(); i++)
+				wheel.remove(queued.remove(random.nextInt(queued.size())));
+			long earliest = Long.MAX_VALUE;
+			for(TimingWheel.Entry<String> e : queued)
+				earliest = Math.min(earliest, e.time);
+			long limit = now + 1 + random.nextInt(300);
+			long next = wheel.nextExpiry(limit);
+			assertTrue(next <= limit);
+			// Must not sleep past the earliest entry.
+			assertTrue(next <= Math.max(earliest, now + 1));
+			now += random.nextInt(10) == 0 ? random.nextInt(1 << 24) : random.nextInt(500);
+			expired.clear();
+			wheel.expire(now, expired);
+			for(TimingWheel.Entry<String> e : expired) {
+				assertTrue(e.time <= now);
+				assertTrue(queued.remove(e));
+			}
+			for(TimingWheel.Entry<String> e : queued) {
+				assertTrue(e.time > now);
+				assertTrue(e.isQueued());
+			}
+			assertEquals(queued.size(), wheel.size());
+		}
+		expired.clear();
+		wheel.expire(Long.MAX_VALUE - 1, expired);
+		assertEquals(queued.size(), expired.size());
+		assertEquals(0, wheel.size());
+	}
+
+}
@@ -0,0 +1,186 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static PrioRunnable job(final int prio, final Runnable r) {
+		return new PrioRunnable() {
+
+			@Override
+			public void run() {
+				r.run();
+			}
+
+			@Override
+			public int getPriority() {
+				return prio;
+			}
+
+		};
+	}
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+
+		};
+	}
+
+	private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+
+		};
+	}
+
+	private static void waitForIdle(Executor exec, int prio, int expected) throws InterruptedException {
+		for(int i=0;i<500;i++) {
+			if(exec.waitingThreads()[prio - 1] == expected) return;
+			Thread.sleep(10);
+		}
+	}
+
+	public void testRunsAllJobs() throws InterruptedException {
+		final WorkStealingExecutor exec = new WorkStealingExecutor();
+		final int producers = 4;
+		final int jobs = 5000;
+		final CountDownLatch done = new CountDownLatch(producers * jobs);
+		for(int p=0;p<producers;p++) {
+			final int prio = NativeThread.MIN_PRIORITY + p;
+			new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<jobs;i++)
+						exec.execute(job(prio, countDown(done)), "test");
+				}
+			}.start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+	}
+
+	public void testRunsAtRequestedPriority() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		final AtomicInteger wrong = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(NativeThread.JAVA_PRIORITY_RANGE * 10);
+		for(int prio = NativeThread.MIN_PRIORITY; prio <= NativeThread.MAX_PRIORITY; prio++) {
+			final int p = prio;
+			for(int i=0;i<10;i++) {
+				exec.execute(job(prio, new Runnable() {
+
+					@Override
+					public void run() {
+						if(((NativeThread) Thread.currentThread()).getNativePriority() != p)
+							wrong.incrementAndGet();
+						done.countDown();
+					}
+
+				}), "test");
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, wrong.get());
+	}
+
+	public void testThreadStatistics() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		final int prio = NativeThread.HIGH_PRIORITY;
+		final int threads = 5;
+		CountDownLatch started = new CountDownLatch(threads);
+		CountDownLatch release = new CountDownLatch(1);
+		for(int i=0;i<threads;i++)
+			exec.execute(job(prio, block(started, release)), "test");
+		// Every blocking job must get its own thread.
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(threads, exec.runningThreads()[prio - 1]);
+		assertEquals(0, exec.waitingThreads()[prio - 1]);
+		assertEquals(0, exec.getWaitingThreadsCount());
+
+		release.countDown();
+		waitForIdle(exec, prio, threads);
+		assertEquals(0, exec.runningThreads()[prio - 1]);
+		assertEquals(threads, exec.waitingThreads()[prio - 1]);
+		assertEquals(threads, exec.getWaitingThreadsCount());
+
+		// Idle threads are reused rather than new ones being created.
+		started = new CountDownLatch(threads);
+		release = new CountDownLatch(1);
+		for(int i=0;i<threads;i++)
+			exec.execute(job(prio, block(started, release)), "test");
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(threads, exec.runningThreads()[prio - 1]);
+		assertEquals(0, exec.waitingThreads()[prio - 1]);
+		release.countDown();
+	}
+
+	public void testInvalidPriority() {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		try {
+			exec.execute(job(NativeThread.MAX_PRIORITY + 1, countDown(new CountDownLatch(1))), "test");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int producers = 8;
+		final int jobs = 200000;
+		for(int round=0;round<4;round++) {
+			for(Executor exec : new Executor[] { new PooledExecutor(), new WorkStealingExecutor() }) {
+				final Executor e = exec;
+				final CountDownLatch done = new CountDownLatch(producers * jobs);
+				final CountDownLatch go = new CountDownLatch(1);
+				for(int p=0;p<producers;p++) {
+					final int prio = NativeThread.NORM_PRIORITY + (p % 3);
+					new Thread() {
+						@Override
+						public void run() {
+							try {
+								go.await();
+							} catch (InterruptedException ex) {
+								return;
+							}
+							for(int i=0;i<jobs;i++)
+								e.execute(job(prio, countDown(done)), "benchmark");
+						}
+					}.start();
+				}
+				long startTime = System.nanoTime();
+				go.countDown();
+				assertTrue(done.await(5, TimeUnit.MINUTES));
+				long elapsed = System.nanoTime() - startTime;
+				int threads = 0;
+				for(int n : exec.runningThreads()) threads += n;
+				threads += exec.getWaitingThreadsCount();
+				System.out.println(exec.getClass().getSimpleName() + ": " +
+						(elapsed / ((long) producers * jobs)) + "ns per job, " + threads + " threads");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.TestProperty;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class ParallelCompressorTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 32768;
+
+    private ExecutorService executor;
+    private ParallelCompressor compressor;
+    private final BucketFactory bf = new ArrayBucketFactory();
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+        compressor = new ParallelCompressor(executor, 3);
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdown();
+    }
+
+    /** Chunked gzip output must be a single gzip stream that GZIPInputStream and GzipCompressor
+     * can decode. */
+    public void testChunkedGzip() throws IOException {
+        Random r = new Random(20200601);
+        checkGzip(textLike(ParallelCompressor.CHUNK_SIZE * 3 + 12345, r));
+        checkGzip(textLike(ParallelCompressor.CHUNK_SIZE * 2, r));
+        checkGzip(textLike(100, r));
+        checkGzip(new byte[0]);
+        byte[] random = new byte[ParallelCompressor.CHUNK_SIZE + 1];
+        r.nextBytes(random);
+        checkGzip(random);
+    }
+
+    /** The output must not depend on the number of threads. */
+    public void testChunkedGzipDeterministic() throws IOException {
+        byte[] data = textLike(ParallelCompressor.CHUNK_SIZE * 4 + 1, new Random(20200602));
+        byte[] out1 = gzip(new ParallelCompressor(executor, 1), data);
+        byte[] out2 = gzip(new ParallelCompressor(executor, 8), data);
+        assertTrue(Arrays.equals(out1, out2));
+    }
+
+    private void checkGzip(byte[] data) throws IOException {
+        byte[] compressed = gzip(compressor, data);
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int x;
+        while((x = gis.read(buf)) > 0) baos.write(buf, 0, x);
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+        baos = new ByteArrayOutputStream();
+        COMPRESSOR_TYPE.GZIP.decompress(new ByteArrayInputStream(compressed), baos, data.length, -1);
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+
+    private byte[] gzip(ParallelCompressor c, byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        c.gzip(new ByteArrayInputStream(data), baos, data.length);
+        return baos.toByteArray();
+    }
+
+    /** Must choose the same codec as running them one after another. */
+    public void testSameChoiceAsSerial() throws IOException {
+        Random r = new Random(20200603);
+        COMPRESSOR_TYPE[] codecs = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW };
+        checkChoice(textLike(200000, r), codecs, 1024);
+        checkChoice(textLike(5000, r), codecs, 1024);
+        checkChoice(textLike(5000, r), codecs, 32768);
+        byte[] random = new byte[100000];
+        r.nextBytes(random);
+        checkChoice(random, codecs, 1024);
+        checkChoice(new byte[200000], codecs, 1024);
+    }
+
+    private void checkChoice(byte[] data, COMPRESSOR_TYPE[] codecs, int minSize) throws IOException {
+        // Same rule as InsertCompressor.
+        int expected = -1;
+        long bestBlocks = data.length / BLOCK_SIZE;
+        long expectedSize = data.length;
+        for(int i=0;i<codecs.length;i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                codecs[i].compress(new ByteArrayInputStream(data), baos, data.length, data.length);
+            } catch (CompressionOutputSizeException e) {
+                continue;
+            }
+            long size = baos.size();
+            if(size <= minSize) {
+                expected = i;
+                expectedSize = size;
+                break;
+            }
+            if(size / BLOCK_SIZE < bestBlocks) {
+                expected = i;
+                expectedSize = size;
+                bestBlocks = size / BLOCK_SIZE;
+            }
+        }
+        ArrayBucket input = new ArrayBucket(data);
+        ParallelCompressor.Result result =
+            compressor.compress(input, codecs, minSize, BLOCK_SIZE, bf, 0);
+        if(expected < 0) {
+            assertNull(result.codec);
+            assertSame(input, result.data);
+            return;
+        }
+        assertEquals(codecs[expected], result.codec);
+        assertEquals(expectedSize, result.data.size());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        result.codec.decompress(result.data.getInputStream(), baos, data.length, -1);
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+
+    /** Callers must run the jobs themselves if the executor does not get to them. */
+    public void testNoThreads() throws IOException {
+        Executor never = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                // Never run it.
+            }
+
+        };
+        ParallelCompressor c = new ParallelCompressor(never, 1);
+        byte[] data = textLike(ParallelCompressor.CHUNK_SIZE * 3, new Random(20200604));
+        ParallelCompressor.Result result = c.compress(new ArrayBucket(data),
+                new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 }, 1024,
+                BLOCK_SIZE, bf, 0);
+        assertNotNull(result.codec);
+        assertTrue(Arrays.equals(gzip(c, data), gzip(compressor, data)));
+    }
+
+    public void testHashes() throws IOException {
+        byte[] data = textLike(100000, new Random(20200605));
+        long hashes = HashType.SHA256.bitmask | HashType.MD5.bitmask;
+        ParallelCompressor.Result result = compressor.compress(new ArrayBucket(data),
+                new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP }, 1024, BLOCK_SIZE, bf, hashes);
+        MultiHashInputStream hasher = new MultiHashInputStream(new ByteArrayInputStream(data), hashes);
+        hasher.skip(Long.MAX_VALUE);
+        assertTrue(HashResult.strictEquals(hasher.getResults(), result.hashes));
+    }
+
+    /** Compare with running the codecs in turn on text. Run with -Dtest.benchmark=true. */
+    public void testBenchmark() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        byte[] data = textLike(32 * 1024 * 1024, new Random(20200606));
+        RandomAccessBucket input = new ArrayBucket(data);
+        COMPRESSOR_TYPE[] codecs = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW };
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ParallelCompressor c = new ParallelCompressor(pool, Runtime.getRuntime().availableProcessors());
+        try {
+            for(int round=0;round<3;round++) {
+                long start = System.nanoTime();
+                for(COMPRESSOR_TYPE codec : codecs)
+                    codec.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(),
+                            data.length, data.length);
+                long serial = System.nanoTime() - start;
+                start = System.nanoTime();
+                c.compress(input, codecs, 1024, BLOCK_SIZE, bf, 0).data.free();
+                long parallel = System.nanoTime() - start;
+                System.out.println("Serial "+(serial / 1000000)+"ms, parallel "+(parallel / 1000000)+"ms");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Compressible pseudo-random words. */
+    private static byte[] textLike(int length, Random r) {
+        String[] words = new String[500];
+        for(int i=0;i<words.length;i++) {
+            char[] c = new char[2 + r.nextInt(8)];
+            for(int j=0;j<c.length;j++) c[j] = (char) ('a' + r.nextInt(26));
+            words[i] = new String(c);
+        }
+        byte[] data = new byte[length];
+        int x = 0;
+        while(x < length) {
+            String w = words[(int) Math.abs(r.nextGaussian() * 100) % words.length];
+            for(int i=0;i<w.length() && x < length;i++) data[x++] = (byte) w.charAt(i);
+            if(x < length) data[x++] = ' ';
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,101 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.support.api.Bucket;
+
+public class SlabBucketTest extends BucketTestBase {
+	// Small slabs so the data spans many of them, and a small pool so some are on the heap.
+	private SlabPool pool = new SlabPool(16, 16 * SlabPool.SLABS_PER_CHUNK);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new SlabBucket(pool);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(0, pool.getHeapBytesInUse());
+	}
+
+	public void testAccounting() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[16 * 10 + 1]);
+		assertEquals(16 * 11, pool.getBytesInUse());
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK, pool.getBytesAllocated());
+		os.write(new byte[16 * SlabPool.SLABS_PER_CHUNK]);
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK, pool.getBytesInUse());
+		assertEquals(16 * 11, pool.getHeapBytesInUse());
+		os.close();
+		freeBucket(bucket);
+		// Direct memory is kept for reuse.
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK, pool.getBytesAllocated());
+	}
+
+	public void testSmallBucketOnHeap() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[] { 1, 2, 3 });
+		os.write(new byte[13]);
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(0, pool.getBytesAllocated());
+		// Past one slab, so it moves to the pool.
+		os.write(4);
+		assertEquals(16 * 2, pool.getBytesInUse());
+		os.close();
+		byte[] data = bucket.toByteArray();
+		assertEquals(17, data.length);
+		assertEquals(3, data[2]);
+		assertEquals(4, data[16]);
+		freeBucket(bucket);
+	}
+
+	public void testPoolShrinksWhenIdle() throws IOException {
+		SlabPool pool = new SlabPool(16, 16 * SlabPool.SLABS_PER_CHUNK * 3);
+		SlabBucket[] buckets = new SlabBucket[3];
+		for(int i=0;i<buckets.length;i++) {
+			buckets[i] = new SlabBucket(pool);
+			OutputStream os = buckets[i].getOutputStream();
+			os.write(new byte[16 * SlabPool.SLABS_PER_CHUNK]);
+			os.close();
+		}
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK * 3, pool.getBytesAllocated());
+		buckets[0].free();
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK * 3, pool.getBytesAllocated());
+		// Only one empty chunk is kept.
+		buckets[2].free();
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK * 2, pool.getBytesAllocated());
+		buckets[1].free();
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK, pool.getBytesAllocated());
+		// Reused, not allocated again.
+		SlabBucket bucket = new SlabBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[16 * 2]);
+		os.close();
+		assertEquals(16 * SlabPool.SLABS_PER_CHUNK, pool.getBytesAllocated());
+		bucket.free();
+	}
+
+	public void testReadWhileWriting() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		InputStream is = bucket.getInputStream();
+		for(int i=0;i<100;i++) {
+			os.write(i);
+			assertEquals(i, is.read());
+			assertEquals(-1, is.read());
+		}
+		is.close();
+		os.close();
+		freeBucket(bucket);
+	}
+}
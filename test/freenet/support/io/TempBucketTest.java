@@ -19,6 +19,7 @@ import freenet.crypt.DummyRandomSource;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.RandomSource;
 import freenet.support.Executor;
+import freenet.support.PooledExecutor;
 import freenet.support.SerialExecutor;
 import freenet.support.api.Bucket;
 import freenet.support.io.TempBucketFactory.TempBucket;
@@ -151,6 +152,41 @@ public class TempBucketTest extends TestSuite {
 			os.close();
 		}
 		
+		public void testBackgroundMigration() throws IOException {
+			// Needs an executor which actually runs jobs.
+			TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(), fg, 1024, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+			
+			TempBucket bucket = (TempBucket) tbf.makeBucket(1024);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			byte[] data = new byte[1024 * TempBucketFactory.RAMBUCKET_CONVERSION_FACTOR * 2];
+			new Random(90).nextBytes(data);
+			// Half the limit: starts copying to disk, but doesn't wait for it.
+			int half = data.length / 4;
+			os.write(data, 0, half);
+			for(int i=0;i<100 && bucket.isRAMBucket();i++) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			assertFalse(bucket.isRAMBucket());
+			assertEquals(0, tbf.getRamUsed());
+			os.write(data, half, data.length - half);
+			os.close();
+			assertEquals(1, tbf.getBackgroundMigrations());
+			assertEquals(0, tbf.getWriterMigrations());
+			assertEquals(0, tbf.getSlabPool().getBytesInUse());
+			byte[] readTo = new byte[data.length];
+			DataInputStream is = new DataInputStream(bucket.getInputStream());
+			is.readFully(readTo);
+			assertEquals(-1, is.read());
+			is.close();
+			for(int i=0;i<readTo.length;i++)
+				assertTrue(readTo[i] == data[i]);
+			bucket.free();
+		}
+		
 	}
 
 	// Private because we only use it as a base class for the actual tests.